@@ -0,0 +1,139 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file ByteRingBuffer.java
+ * \brief Fixed size circular buffer of bytes
+ * \copyright GNU GPL v3
+
+
+The ByteRingBuffer class stores the bytes received by a transport until they are read by WheelphoneRobot.
+The buffer is allocated once: writing and reading never allocate memory. All the functions are synchronized,
+one thread can write while another one reads.
+When the buffer is full the bytes that don't fit are discarded and counted (see "getOverflowCount").
+The transports store each USB transfer with "writeChunk": a transfer that doesn't fit is discarded as a whole
+together with the bytes still buffered, so that the reader starts again at the beginning of a packet; storing
+part of it would misalign all the following packets of the fixed size framing.
+
+*/
+
+public class ByteRingBuffer {
+
+	private final byte[] data;
+	private final int mask;
+	private long head = 0;			// total bytes read
+	private long tail = 0;			// total bytes written
+	private long overflow = 0;
+
+	/**
+	 * \brief Class constructor
+	 * \param capacity minimum number of bytes the buffer can hold (rounded up to a power of 2)
+	 * \return ByteRingBuffer instance
+	 */
+	public ByteRingBuffer(int capacity) {
+		int c = 1;
+		while(c < capacity) {
+			c <<= 1;
+		}
+		data = new byte[c];
+		mask = c - 1;
+	}
+
+	/**
+	 * \brief Append bytes to the buffer.
+	 * \param src source array
+	 * \param off offset of the first byte in the source array
+	 * \param len number of bytes
+	 * \return number of bytes stored (less than len if the buffer is full)
+	 */
+	public synchronized int write(byte[] src, int off, int len) {
+		int free = data.length - (int)(tail - head);
+		int n = Math.min(len, free);
+		int p = (int)tail & mask;
+		int first = Math.min(n, data.length - p);
+		System.arraycopy(src, off, data, p, first);
+		System.arraycopy(src, off + first, data, 0, n - first);
+		tail += n;
+		overflow += len - n;
+		return n;
+	}
+
+	/**
+	 * \brief Append a chunk of bytes (e.g. a USB transfer) as a whole or not at all. If the chunk doesn't fit, it is
+	 *  discarded and the buffer is emptied, thus the next chunk is read from its first byte (framing resynchronized).
+	 * \param src source array
+	 * \param off offset of the first byte in the source array
+	 * \param len number of bytes
+	 * \return number of bytes discarded: 0 if the chunk is stored, else len plus the bytes that were buffered
+	 */
+	public synchronized int writeChunk(byte[] src, int off, int len) {
+		int used = (int)(tail - head);
+		if(len <= data.length - used) {
+			write(src, off, len);
+			return 0;
+		}
+		head = tail;
+		overflow += len + used;
+		return len + used;
+	}
+
+	/**
+	 * \brief Copy bytes without removing them from the buffer.
+	 * \param dst destination array, filled as much as possible
+	 * \return number of bytes copied
+	 */
+	public synchronized int peek(byte[] dst) {
+		return copy(dst, dst.length);
+	}
+
+	/**
+	 * \brief Remove bytes from the buffer.
+	 * \param dst destination array, filled as much as possible
+	 * \return number of bytes read
+	 */
+	public synchronized int read(byte[] dst) {
+		int n = copy(dst, dst.length);
+		head += n;
+		return n;
+	}
+
+	/**
+	 * \brief Discard bytes from the buffer.
+	 * \param num number of bytes to discard
+	 * \return number of bytes discarded
+	 */
+	public synchronized int skip(int num) {
+		int n = Math.min(num, (int)(tail - head));
+		head += n;
+		return n;
+	}
+
+	public synchronized int available() {
+		return (int)(tail - head);
+	}
+
+	public synchronized void clear() {
+		head = tail;
+	}
+
+	/**
+	 * \brief Return the number of bytes discarded because the buffer was full.
+	 * \return number of bytes discarded
+	 */
+	public synchronized long getOverflowCount() {
+		return overflow;
+	}
+
+	public int capacity() {
+		return data.length;
+	}
+
+	private int copy(byte[] dst, int len) {
+		int n = Math.min(len, (int)(tail - head));
+		int p = (int)head & mask;
+		int first = Math.min(n, data.length - p);
+		System.arraycopy(data, p, dst, 0, first);
+		System.arraycopy(data, 0, dst, first, n - first);
+		return n;
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file ClockSync.java
+ * \brief Online estimation of the mapping between the robot time and the phone time
+ * \copyright GNU GPL v3
+
+
+The ClockSync class estimates the relation between the time of the robot sent in the frames (FEATURE_TIMESTAMP,
+see WheelphoneProtocol) and the time of the phone (System.nanoTime), so that the samples of the robot can be
+aligned with the other sensors of the phone (camera, IMU...):
+\verbatim
+ phone time (ns) = robot time (ms) * 1000000 + offset + drift * (robot time - reference)
+\endverbatim
+The drift of the robot oscillator is given in ppm (ns per ms). Each frame gives a pair (robot time, phone time
+of the reception); the phone time is late by the USB transfer and the scheduling of the thread, a delay that
+varies from packet to packet but is never negative. Thus only the pair with the smallest delay of each block of
+robot time is kept (the lower envelope), and the offset and the drift are fitted by least squares on the last
+blocks; a robot time jumping backward or a pair far from the estimate (robot reset) restarts the estimation.
+The blocks are stored in arrays allocated when the class is created, adding a pair doesn't allocate memory; the
+methods are synchronized since the pairs are added by the thread handling the packets.
+
+*/
+
+public class ClockSync {
+
+	public static final long RESYNC_NS = 1000000000L;		// a pair farther than this from the estimate restarts the estimation
+	private static final int MIN_DRIFT_BLOCKS = 4;			// blocks needed before estimating the drift
+
+	private final long blockMs;
+	private final long[] blockRobot;		// robot time of the pair kept in each block (ms, relative to "reference")
+	private final long[] blockDelta;		// phone time - robot time of that pair (ns, relative to "deltaReference")
+	private int first = 0, count = 0;
+	private long reference = -1;			// robot time of the first pair (ms)
+	private long deltaReference = 0;		// phone time - robot time of the first pair (ns)
+	private long lastRobot = 0;
+	private double offset = 0.0;			// ns, relative to "deltaReference"
+	private double drift = 0.0;				// ppm
+	private long lastDelay = 0;
+	private long pairs = 0;
+
+	/**
+	 * \brief Class constructor
+	 * \param blocks number of blocks used by the estimation (at least 2)
+	 * \param ms duration of a block (robot time, ms)
+	 * \return ClockSync instance
+	 */
+	public ClockSync(int blocks, long ms) {
+		blockMs = ms;
+		blockRobot = new long[Math.max(2, blocks)];
+		blockDelta = new long[blockRobot.length];
+	}
+
+	/**
+	 * \brief Add a pair of times and update the estimate.
+	 * \param robotMs robot time (ms, unwrapped)
+	 * \param phoneNs phone time when the frame was received (ns, as System.nanoTime)
+	 * \return none
+	 */
+	public synchronized void add(long robotMs, long phoneNs) {
+		if(reference >= 0 && (robotMs < lastRobot || Math.abs(phoneNs - toPhoneNanosLocked(robotMs)) > RESYNC_NS)) {
+			reset();
+		}
+		if(reference < 0) {
+			reference = robotMs;
+			deltaReference = phoneNs - robotMs*1000000L;
+		}
+		long r = robotMs - reference;
+		long d = phoneNs - robotMs*1000000L - deltaReference;
+		int last = (first + count - 1)%blockRobot.length;
+		if(count == 0 || r - blockRobot[last] >= blockMs) {		// new block, the oldest one is dropped when full
+			if(count == blockRobot.length) {
+				first = (first + 1)%blockRobot.length;
+				count--;
+			}
+			last = (first + count)%blockRobot.length;
+			blockRobot[last] = r;
+			blockDelta[last] = d;
+			count++;
+		} else if(d < blockDelta[last]) {
+			blockRobot[last] = r;
+			blockDelta[last] = d;
+		}
+		lastRobot = robotMs;
+		pairs++;
+		fit();
+		lastDelay = phoneNs - toPhoneNanosLocked(robotMs);
+	}
+
+	/*
+	 * Least squares fit of the pairs kept (offset only with few blocks).
+	 */
+	private void fit() {
+		if(count < MIN_DRIFT_BLOCKS) {
+			long min = Long.MAX_VALUE;
+			for(int i=0; i<count; i++) {
+				min = Math.min(min, blockDelta[(first + i)%blockRobot.length]);
+			}
+			offset = min;
+			drift = 0.0;
+			return;
+		}
+		double sx = 0.0, sy = 0.0, sxx = 0.0, sxy = 0.0;
+		for(int i=0; i<count; i++) {
+			int k = (first + i)%blockRobot.length;
+			double x = blockRobot[k], y = blockDelta[k];
+			sx += x;
+			sy += y;
+			sxx += x*x;
+			sxy += x*y;
+		}
+		double den = count*sxx - sx*sx;
+		drift = (den == 0.0) ? 0.0 : (count*sxy - sx*sy)/den;
+		offset = (sy - drift*sx)/count;
+	}
+
+	public synchronized void reset() {
+		first = 0;
+		count = 0;
+		reference = -1;
+		offset = 0.0;
+		drift = 0.0;
+		lastDelay = 0;
+	}
+
+	/**
+	 * \brief Return true once a pair was added (since the creation or the last reset).
+	 * \return true if the times can be converted
+	 */
+	public synchronized boolean isSynchronized() {
+		return reference >= 0;
+	}
+
+	/**
+	 * \brief Convert a robot time to the phone time.
+	 * \param robotMs robot time (ms, unwrapped)
+	 * \return phone time (ns, as System.nanoTime)
+	 */
+	public synchronized long toPhoneNanos(long robotMs) {
+		return toPhoneNanosLocked(robotMs);
+	}
+
+	private long toPhoneNanosLocked(long robotMs) {
+		return robotMs*1000000L + deltaReference + Math.round(offset + drift*(robotMs - reference));
+	}
+
+	/**
+	 * \brief Convert a phone time to the robot time.
+	 * \param phoneNs phone time (ns, as System.nanoTime)
+	 * \return robot time (ms)
+	 */
+	public synchronized long toRobotMillis(long phoneNs) {
+		return reference + Math.round((phoneNs - reference*1000000L - deltaReference - offset)/(1000000.0 + drift));
+	}
+
+	/**
+	 * \brief Return the offset of the phone time at the robot time 0.
+	 * \return offset (ns)
+	 */
+	public synchronized long getOffsetNanos() {
+		return toPhoneNanosLocked(0);
+	}
+
+	/**
+	 * \brief Return the drift of the robot clock with respect to the phone clock.
+	 * \return drift (ppm, positive if the robot clock is slower)
+	 */
+	public synchronized double getDriftPpm() {
+		return drift;
+	}
+
+	/**
+	 * \brief Return the delay of the last pair added with respect to the estimate (transfer and scheduling delay not
+	 *  included in the lower envelope).
+	 * \return delay (ns)
+	 */
+	public synchronized long getLastDelayNanos() {
+		return lastDelay;
+	}
+
+	public synchronized long getPairCount() {
+		return pairs;
+	}
+
+}
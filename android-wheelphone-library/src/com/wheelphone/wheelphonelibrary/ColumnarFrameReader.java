@@ -0,0 +1,331 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file ColumnarFrameReader.java
+ * \brief Reading of the columnar frames storage
+ * \copyright GNU GPL v3
+
+
+The ColumnarFrameReader class reads a file written by ColumnarFrameWriter. A channel is read with a cursor
+over a time interval: the block index gives the first block of the interval (binary search, the times must not
+decrease), then only the time column and the column of the requested channel of each block are read from the
+file and decoded; the other channels are skipped. Usage:
+\verbatim
+ ColumnarFrameReader r = new ColumnarFrameReader(file);
+ ColumnarFrameReader.Cursor c = r.openChannel(ColumnarFrameWriter.CH_BATTERY, from, to);
+ while(c.next()) {
+     ... c.getTime(), c.getValue() ...
+ }
+ r.close();
+\endverbatim
+Several cursors can be used at the same time (also from different threads), each one must be used by one
+thread at a time.
+
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class ColumnarFrameReader {
+
+	private final RandomAccessFile file;
+	private final int channels;
+	private int blocks = 0;
+	private long[] offsets = new long[64];
+	private long[] firstTimes = new long[64];
+	private long[] lastTimes = new long[64];
+	private int[] frames = new int[64];
+	private long frameCount = 0;
+	private boolean indexRebuilt = false;
+
+	/*
+	 * Sequential reader of one channel over a time interval.
+	 */
+	public class Cursor {
+		private final int channel;
+		private final long from, to;
+		private int block;
+		private byte[] timeColumn = new byte[0];
+		private byte[] valueColumn = new byte[0];
+		private int timePos = 0, valuePos = 0;
+		private int remaining = 0;		// frames still to decode in the current block
+		private long time, value;
+		private boolean done = false;
+
+		Cursor(int ch, long fromTime, long toTime) {
+			channel = ch;
+			from = fromTime;
+			to = toTime;
+			block = firstBlock(fromTime);
+		}
+
+		/**
+		 * \brief Move to the next frame of the interval.
+		 * \return false at the end of the interval
+		 */
+		public boolean next() throws IOException {
+			while(!done) {
+				if(remaining == 0) {
+					if(block >= blocks || firstTimes[block] > to) {
+						done = true;
+						break;
+					}
+					load(block++);
+					continue;
+				}
+				remaining--;
+				long t = 0, v = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = timeColumn[timePos++];
+					t |= (long)(b & 0x7F) << shift;
+					shift += 7;
+				} while(b < 0);
+				shift = 0;
+				do {
+					b = valueColumn[valuePos++];
+					v |= (long)(b & 0x7F) << shift;
+					shift += 7;
+				} while(b < 0);
+				time += ColumnarFrameWriter.unZigZag(t);
+				value += ColumnarFrameWriter.unZigZag(v);
+				if(time < from) {
+					continue;
+				}
+				if(time > to) {
+					done = true;
+					break;
+				}
+				return true;
+			}
+			return false;
+		}
+
+		private void load(int b) throws IOException {
+			int timeLength, offset = 0, length = 0;
+			synchronized(ColumnarFrameReader.this) {
+				file.seek(offsets[b] + 4 + 8 + 8);
+				timeLength = file.readInt();
+				for(int c=0; c<channels; c++) {
+					int l = file.readInt();
+					if(c < channel) {
+						offset += l;
+					} else if(c == channel) {
+						length = l;
+					}
+				}
+				if(timeColumn.length < timeLength) {
+					timeColumn = new byte[timeLength];
+				}
+				if(valueColumn.length < length) {
+					valueColumn = new byte[length];
+				}
+				long start = offsets[b] + ColumnarFrameWriter.BLOCK_HEADER_SIZE;
+				file.seek(start);
+				file.readFully(timeColumn, 0, timeLength);
+				file.seek(start + timeLength + offset);
+				file.readFully(valueColumn, 0, length);
+			}
+			timePos = 0;
+			valuePos = 0;
+			time = 0;
+			value = 0;
+			remaining = frames[b];
+		}
+
+		/**
+		 * \brief Return the time of the current frame.
+		 * \return time (ms)
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * \brief Return the stored value of the current frame (in um for x and y, urad for theta).
+		 * \return value
+		 */
+		public long getValue() {
+			return value;
+		}
+
+		/**
+		 * \brief Return the value of the current frame in the units of SensorFrame (mm, radians...).
+		 * \return value
+		 */
+		public double getDouble() {
+			return value/ColumnarFrameWriter.scale(channel);
+		}
+	}
+
+	/**
+	 * \brief Class constructor; opens the file and reads the block index.
+	 * \param f file written by ColumnarFrameWriter
+	 * \return ColumnarFrameReader instance
+	 */
+	public ColumnarFrameReader(File f) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		try {
+			if(file.length() < ColumnarFrameWriter.HEADER_SIZE || file.readInt() != ColumnarFrameWriter.MAGIC) {
+				throw new IOException("not a columnar frames file: " + f);
+			}
+			if(file.readInt() != ColumnarFrameWriter.FORMAT_VERSION) {
+				throw new IOException("unsupported format version: " + f);
+			}
+			channels = file.readInt();
+			file.readInt();		// frames per block
+			if(!readIndex()) {
+				rebuildIndex();
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private boolean readIndex() throws IOException {
+		long length = file.length();
+		if(length < ColumnarFrameWriter.HEADER_SIZE + ColumnarFrameWriter.FOOTER_SIZE) {
+			return false;
+		}
+		file.seek(length - ColumnarFrameWriter.FOOTER_SIZE);
+		long indexOffset = file.readLong();
+		int n = file.readInt();
+		if(file.readInt() != ColumnarFrameWriter.MAGIC_END || n < 0
+				|| indexOffset + (long)n*ColumnarFrameWriter.INDEX_ENTRY_SIZE + ColumnarFrameWriter.FOOTER_SIZE != length) {
+			return false;
+		}
+		file.seek(indexOffset);
+		for(int b=0; b<n; b++) {
+			addBlock(file.readLong(), file.readLong(), file.readLong(), file.readInt());
+		}
+		return true;
+	}
+
+	/**
+	 * \brief Rebuild the index from the block headers (file not closed); an incomplete last block is ignored.
+	 * \return none
+	 */
+	private void rebuildIndex() throws IOException {
+		indexRebuilt = true;
+		long length = file.length();
+		long pos = ColumnarFrameWriter.HEADER_SIZE;
+		while(pos + ColumnarFrameWriter.BLOCK_HEADER_SIZE <= length) {
+			file.seek(pos);
+			int n = file.readInt();
+			long first = file.readLong();
+			long last = file.readLong();
+			long size = ColumnarFrameWriter.BLOCK_HEADER_SIZE;
+			for(int c=0; c<=channels; c++) {
+				int l = file.readInt();
+				if(l < n || l > n*10) {	// each value takes 1 to 10 bytes
+					return;
+				}
+				size += l;
+			}
+			if(n <= 0 || pos + size > length) {
+				return;
+			}
+			addBlock(pos, first, last, n);
+			pos += size;
+		}
+	}
+
+	private void addBlock(long offset, long first, long last, int n) {
+		if(blocks == offsets.length) {
+			offsets = grow(offsets);
+			firstTimes = grow(firstTimes);
+			lastTimes = grow(lastTimes);
+			int[] f = new int[frames.length*2];
+			System.arraycopy(frames, 0, f, 0, frames.length);
+			frames = f;
+		}
+		offsets[blocks] = offset;
+		firstTimes[blocks] = first;
+		lastTimes[blocks] = last;
+		frames[blocks] = n;
+		blocks++;
+		frameCount += n;
+	}
+
+	private static long[] grow(long[] a) {
+		long[] r = new long[a.length*2];
+		System.arraycopy(a, 0, r, 0, a.length);
+		return r;
+	}
+
+	/**
+	 * \brief Return the first block containing frames not older than a time.
+	 * \param time time (ms)
+	 * \return block index, "getBlockCount()" if there are none
+	 */
+	public int firstBlock(long time) {
+		int lo = 0, hi = blocks;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(lastTimes[mid] < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * \brief Open a cursor over the values of a channel in a time interval.
+	 * \param channel channel (ColumnarFrameWriter.CH_*)
+	 * \param from start of the interval (ms, included)
+	 * \param to end of the interval (ms, included)
+	 * \return cursor, positioned before the first frame
+	 */
+	public Cursor openChannel(int channel, long from, long to) {
+		if(channel < 0 || channel >= channels) {
+			throw new IllegalArgumentException("channel " + channel);
+		}
+		return new Cursor(channel, from, to);
+	}
+
+	public Cursor openChannel(int channel) {
+		return openChannel(channel, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	public int getChannelCount() {
+		return channels;
+	}
+
+	public int getBlockCount() {
+		return blocks;
+	}
+
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	public long getBlockFirstTime(int block) {
+		return firstTimes[block];
+	}
+
+	public long getBlockLastTime(int block) {
+		return lastTimes[block];
+	}
+
+	public int getBlockFrames(int block) {
+		return frames[block];
+	}
+
+	/**
+	 * \brief Tell whether the file was not closed properly and the index was rebuilt from the blocks.
+	 * \return true if the index was rebuilt
+	 */
+	public boolean isIndexRebuilt() {
+		return indexRebuilt;
+	}
+
+	public synchronized void close() throws IOException {
+		file.close();
+	}
+
+}
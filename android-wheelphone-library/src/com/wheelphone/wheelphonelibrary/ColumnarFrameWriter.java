@@ -0,0 +1,284 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file ColumnarFrameWriter.java
+ * \brief Compact columnar storage of the decoded frames for long sessions
+ * \copyright GNU GPL v3
+
+
+The ColumnarFrameWriter class stores the values of the decoded frames (the 23 columns of the data log, see
+"SensorFrame.CSV_HEADER", plus the timestamp) by column instead of by line. The frames are grouped in blocks
+of a fixed number of frames; inside a block each channel is a separate column where the first value is stored
+as is and the following ones as the difference from the previous value, written as zig-zag varints (1 byte
+for a difference between -64 and 63). Most channels (battery, ambient values, flags...) barely change between
+packets, thus they take about 1 byte per frame.
+The odometry is stored in fixed point: x and y in um (3 decimals of mm, as in the data log), theta in urad.
+File layout (big endian):
+\verbatim
+ header:  magic "WPC1", version, number of channels, frames per block (4 ints)
+ block:   frames (int), first time (long), last time (long), time column length (int),
+          channels column lengths (int each), time column, channels columns
+ index:   for each block: offset (long), first time (long), last time (long), frames (int)
+ footer:  index offset (long), number of blocks (int), magic "WPCE"
+\endverbatim
+The index is written by "close"; a file not closed (e.g. application killed) is still readable, the reader
+rebuilds the index from the block headers. See ColumnarFrameReader.
+
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class ColumnarFrameWriter {
+
+	static final int MAGIC = 0x57504331;		// "WPC1"
+	static final int MAGIC_END = 0x57504345;	// "WPCE"
+	static final int FORMAT_VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int INDEX_ENTRY_SIZE = 28;
+	static final int FOOTER_SIZE = 16;
+	public static final int DEFAULT_BLOCK_FRAMES = 1024;
+	public static final String EXTENSION = ".wpc";
+
+	// channels, in the order of "SensorFrame.CSV_HEADER"
+	public static final int CH_PROX0 = 0;
+	public static final int CH_PROX_AMBIENT0 = 4;
+	public static final int CH_GROUND0 = 8;
+	public static final int CH_GROUND_AMBIENT0 = 12;
+	public static final int CH_BATTERY = 16;
+	public static final int CH_FLAGS = 17;
+	public static final int CH_LEFT_SPEED = 18;
+	public static final int CH_RIGHT_SPEED = 19;
+	public static final int CH_X = 20;
+	public static final int CH_Y = 21;
+	public static final int CH_THETA = 22;
+	public static final int CHANNELS = 23;
+	static final int BLOCK_HEADER_SIZE = 4 + 8 + 8 + 4 + 4*CHANNELS;
+
+	private static final String[] NAMES = SensorFrame.CSV_HEADER.split(",");
+
+	private final DataOutputStream out;
+	private final int blockFrames;
+	private final byte[][] columns = new byte[CHANNELS + 1][];	// last column: time
+	private final int[] columnLength = new int[CHANNELS + 1];
+	private final long[] previous = new long[CHANNELS + 1];
+	private final long[] values = new long[CHANNELS + 1];
+	private long[] index = new long[64*3];						// offset, first time, last time of each block
+	private int[] indexFrames = new int[64];
+	private int blocks = 0;
+	private int frames = 0;										// frames in the current block
+	private long firstTime, lastTime;
+	private long position;
+	private long frameCount = 0;
+	private boolean closed = false;
+
+	/**
+	 * \brief Class constructor; the file is overwritten.
+	 * \param file destination file
+	 * \param framesPerBlock frames of each block; smaller blocks make the time range scans more precise, bigger
+	 *  blocks compress slightly better
+	 * \return ColumnarFrameWriter instance
+	 */
+	public ColumnarFrameWriter(File file, int framesPerBlock) throws IOException {
+		blockFrames = framesPerBlock;
+		for(int i=0; i<columns.length; i++) {
+			columns[i] = new byte[framesPerBlock*10];	// a varint takes at most 10 bytes
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64*1024));
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(CHANNELS);
+		out.writeInt(blockFrames);
+		position = HEADER_SIZE;
+	}
+
+	public ColumnarFrameWriter(File file) throws IOException {
+		this(file, DEFAULT_BLOCK_FRAMES);
+	}
+
+	/**
+	 * \brief Add a frame; the time used is "frame.timestamp" (ms), that should not decrease.
+	 * \param frame frame to store
+	 * \return none
+	 */
+	public synchronized void append(SensorFrame frame) throws IOException {
+		if(closed) {
+			return;
+		}
+		for(int i=0; i<4; i++) {
+			values[CH_PROX0 + i] = frame.prox[i];
+			values[CH_PROX_AMBIENT0 + i] = frame.proxAmbient[i];
+			values[CH_GROUND0 + i] = frame.ground[i];
+			values[CH_GROUND_AMBIENT0 + i] = frame.groundAmbient[i];
+		}
+		values[CH_BATTERY] = frame.battery;
+		values[CH_FLAGS] = frame.flagRobotToPhone;
+		values[CH_LEFT_SPEED] = frame.leftSpeed;
+		values[CH_RIGHT_SPEED] = frame.rightSpeed;
+		values[CH_X] = Math.round(frame.x*scale(CH_X));
+		values[CH_Y] = Math.round(frame.y*scale(CH_Y));
+		values[CH_THETA] = Math.round(frame.theta*scale(CH_THETA));
+		values[CHANNELS] = frame.timestamp;
+		if(frames == 0) {
+			firstTime = frame.timestamp;
+			for(int c=0; c<=CHANNELS; c++) {	// each block starts from 0, thus it can be decoded alone
+				previous[c] = 0;
+			}
+		}
+		lastTime = frame.timestamp;
+		for(int c=0; c<=CHANNELS; c++) {
+			columnLength[c] = writeVarint(columns[c], columnLength[c], zigZag(values[c] - previous[c]));
+			previous[c] = values[c];
+		}
+		frames++;
+		frameCount++;
+		if(frames == blockFrames) {
+			writeBlock();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		if(frames == 0) {
+			return;
+		}
+		if(blocks == indexFrames.length) {
+			long[] i = new long[index.length*2];
+			System.arraycopy(index, 0, i, 0, index.length);
+			index = i;
+			int[] f = new int[indexFrames.length*2];
+			System.arraycopy(indexFrames, 0, f, 0, indexFrames.length);
+			indexFrames = f;
+		}
+		index[blocks*3] = position;
+		index[blocks*3 + 1] = firstTime;
+		index[blocks*3 + 2] = lastTime;
+		indexFrames[blocks] = frames;
+		blocks++;
+		out.writeInt(frames);
+		out.writeLong(firstTime);
+		out.writeLong(lastTime);
+		out.writeInt(columnLength[CHANNELS]);
+		for(int c=0; c<CHANNELS; c++) {
+			out.writeInt(columnLength[c]);
+		}
+		position += BLOCK_HEADER_SIZE;
+		out.write(columns[CHANNELS], 0, columnLength[CHANNELS]);
+		position += columnLength[CHANNELS];
+		for(int c=0; c<CHANNELS; c++) {
+			out.write(columns[c], 0, columnLength[c]);
+			position += columnLength[c];
+		}
+		for(int c=0; c<=CHANNELS; c++) {
+			columnLength[c] = 0;
+		}
+		frames = 0;
+	}
+
+	/**
+	 * \brief Write the blocks still buffered to the file (the last block is closed even if not full).
+	 * \return none
+	 */
+	public synchronized void flush() throws IOException {
+		if(closed) {
+			return;
+		}
+		writeBlock();
+		out.flush();
+	}
+
+	/**
+	 * \brief Write the last block and the index, then close the file.
+	 * \return none
+	 */
+	public synchronized void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			writeBlock();
+			long indexOffset = position;
+			for(int b=0; b<blocks; b++) {
+				out.writeLong(index[b*3]);
+				out.writeLong(index[b*3 + 1]);
+				out.writeLong(index[b*3 + 2]);
+				out.writeInt(indexFrames[b]);
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(blocks);
+			out.writeInt(MAGIC_END);
+		} finally {
+			out.close();
+		}
+	}
+
+	public synchronized long getFrameCount() {
+		return frameCount;
+	}
+
+	public synchronized int getBlockCount() {
+		return blocks;
+	}
+
+	/**
+	 * \brief Return the size of the data written so far (without the frames of the current block).
+	 * \return bytes
+	 */
+	public synchronized long getSize() {
+		return position;
+	}
+
+	/**
+	 * \brief Return the factor between the real value of a channel and the stored integer.
+	 * \param channel channel (CH_*)
+	 * \return 1000 for x and y (um), 1000000 for theta (urad), 1 for the others
+	 */
+	public static double scale(int channel) {
+		if(channel == CH_X || channel == CH_Y) {
+			return 1000.0;
+		}
+		if(channel == CH_THETA) {
+			return 1000000.0;
+		}
+		return 1.0;
+	}
+
+	/**
+	 * \brief Return the channel of a data log column.
+	 * \param name column name (see "SensorFrame.CSV_HEADER")
+	 * \return channel, -1 if not found
+	 */
+	public static int channelIndex(String name) {
+		for(int i=0; i<NAMES.length; i++) {
+			if(NAMES[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public static String channelName(int channel) {
+		return NAMES[channel];
+	}
+
+	static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static int writeVarint(byte[] buf, int pos, long v) {
+		while((v & ~0x7FL) != 0) {
+			buf[pos++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte)v;
+		return pos;
+	}
+
+}
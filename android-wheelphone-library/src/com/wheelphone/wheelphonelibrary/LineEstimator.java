@@ -0,0 +1,203 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file LineEstimator.java
+ * \brief Estimation of the line position from the ground sensors
+ * \copyright GNU GPL v3
+
+
+The LineEstimator class computes the position of a line under the robot from the 4 ground sensors.
+It is updated by the WheelphoneRobot class each time a packet is received (see "getLinePosition"), thus
+a line following controller can run at the packets exchange rate.
+The minimum and maximum value seen by each sensor are tracked (auto-ranging) and used to normalize the
+values between 0 (floor) and 1 (line); the position is the weighted centroid of the normalized values:
+\verbatim
+ sensor      0      1      2      3
+ weight    -1.0  -0.33   0.33   1.0
+\endverbatim
+The line is considered lost when no sensor sees it (or the range seen so far is too small to distinguish
+the line from the floor): the position is then the side where the line was last seen (-1.0 or 1.0), 0.0 if it
+was never seen on one side since the last reset; an intersection is detected when at least 3 sensors see the line.
+By default the line is darker than the floor (darker surface => lower values).
+
+*/
+
+public class LineEstimator {
+
+	public static final int NUM_SENSORS = 4;
+	private static final double[] WEIGHTS = {-1.0, -1.0/3.0, 1.0/3.0, 1.0};
+
+	private boolean darkLine = true;
+	private int minContrast = 20;							// minimum (max - min) range for a sensor to be used
+	private double detectThreshold = 0.3;					// normalized value above which a sensor sees the line
+	private double intersectionThreshold = 0.6;				// normalized value above which a sensor counts for an intersection
+	private double rangeDecay = 0.0;						// per update, fraction of the range the min/max move back toward the current value
+
+	private final double[] minValue = new double[NUM_SENSORS];
+	private final double[] maxValue = new double[NUM_SENSORS];
+	private final double[] normalized = new double[NUM_SENSORS];
+	private boolean initialized = false;
+
+	private double position = 0.0;
+	private boolean lineLost = true;
+	private int lastSide = 0;								// side where the line was last seen (-1, 1), 0 if unknown
+	private boolean intersection = false;
+
+	/**
+	 * \brief Set whether the line is darker (default) or lighter than the floor.
+	 * \param dark true if the line is darker than the floor
+	 * \return none
+	 */
+	public synchronized void setDarkLine(boolean dark) {
+		darkLine = dark;
+	}
+
+	/**
+	 * \brief Set the thresholds of the estimator.
+	 * \param contrast minimum difference between the maximum and minimum values seen by a sensor to use it
+	 * \param detect normalized value (0..1) above which a sensor sees the line
+	 * \param intersect normalized value (0..1) above which a sensor counts for an intersection
+	 * \return none
+	 */
+	public synchronized void setThresholds(int contrast, double detect, double intersect) {
+		minContrast = contrast;
+		detectThreshold = detect;
+		intersectionThreshold = intersect;
+	}
+
+	/**
+	 * \brief Let the tracked minimum and maximum slowly forget old values, useful when the lighting or the floor change
+	 *  during a long run. 0 (default) never forgets.
+	 * \param decay fraction of the distance to the current value recovered at each update (e.g. 0.001)
+	 * \return none
+	 */
+	public synchronized void setRangeDecay(double decay) {
+		rangeDecay = decay;
+	}
+
+	/**
+	 * \brief Forget the tracked minimum and maximum values; the next update restarts the auto-ranging.
+	 * \return none
+	 */
+	public synchronized void reset() {
+		initialized = false;
+		lineLost = true;
+		intersection = false;
+		position = 0.0;
+		lastSide = 0;
+	}
+
+	/**
+	 * \brief Restart the auto-ranging from the values of the floor, e.g. the ground values of the calibration.
+	 * \param floor array of size 4 containing the ground values measured on the floor
+	 * \return none
+	 */
+	public synchronized void seed(int[] floor) {
+		for(int i=0; i<NUM_SENSORS; i++) {
+			minValue[i] = floor[i];
+			maxValue[i] = floor[i];
+		}
+		initialized = true;
+	}
+
+	/**
+	 * \brief Update the estimation with new ground values. Called by WheelphoneRobot each time a packet is received.
+	 * \param ground array of size 4 containing the ground values
+	 * \return none
+	 */
+	public synchronized void update(int[] ground) {
+		if(!initialized) {
+			seed(ground);
+		}
+		double sum = 0.0, weighted = 0.0, maxNorm = 0.0;
+		int onLine = 0;
+		for(int i=0; i<NUM_SENSORS; i++) {
+			double v = ground[i];
+			if(v < minValue[i]) {
+				minValue[i] = v;
+			} else if(rangeDecay > 0.0) {
+				minValue[i] += (v - minValue[i])*rangeDecay;
+			}
+			if(v > maxValue[i]) {
+				maxValue[i] = v;
+			} else if(rangeDecay > 0.0) {
+				maxValue[i] += (v - maxValue[i])*rangeDecay;
+			}
+			double range = maxValue[i] - minValue[i];
+			double n = 0.0;
+			if(range >= minContrast) {
+				n = (v - minValue[i])/range;
+				if(darkLine) {
+					n = 1.0 - n;
+				}
+			}
+			normalized[i] = n;
+			sum += n;
+			weighted += n*WEIGHTS[i];
+			if(n > maxNorm) {
+				maxNorm = n;
+			}
+			if(n >= intersectionThreshold) {
+				onLine++;
+			}
+		}
+		if(maxNorm < detectThreshold) {
+			// saturated on the side where the line was last seen, the controller can turn back toward the line
+			lineLost = true;
+			intersection = false;
+			position = lastSide;
+			return;
+		}
+		lineLost = false;
+		intersection = (onLine >= 3);
+		position = weighted/sum;
+		if(position < 0.0) {
+			lastSide = -1;
+		} else if(position > 0.0) {
+			lastSide = 1;
+		}
+	}
+
+	/**
+	 * \brief Return the line position. When the line is lost the last side where it was seen is returned (-1.0 or 1.0),
+	 *  0.0 if the line was never seen on one side (see "getLastSide").
+	 * \return position from -1.0 (under sensor 0) to 1.0 (under sensor 3)
+	 */
+	public synchronized double getPosition() {
+		return position;
+	}
+
+	/**
+	 * \brief Return the side where the line was last seen.
+	 * \return -1 (sensor 0 side), 1 (sensor 3 side), 0 if unknown (never seen off center since the last reset)
+	 */
+	public synchronized int getLastSide() {
+		return lastSide;
+	}
+
+	/**
+	 * \brief Tell whether the line is seen by at least one sensor.
+	 * \return true if the line is lost, false otherwise
+	 */
+	public synchronized boolean isLineLost() {
+		return lineLost;
+	}
+
+	/**
+	 * \brief Tell whether an intersection (or a line perpendicular to the robot) is under the sensors.
+	 * \return true if an intersection is detected, false otherwise
+	 */
+	public synchronized boolean isIntersection() {
+		return intersection;
+	}
+
+	/**
+	 * \brief Return the normalized value of a ground sensor computed in the last update.
+	 * \param ind sensor index (0..3)
+	 * \return value from 0.0 (floor) to 1.0 (line)
+	 */
+	public synchronized double getNormalized(int ind) {
+		return normalized[ind];
+	}
+
+}
@@ -0,0 +1,194 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file LogArchiver.java
+ * \brief Background compression and retention of the log segments
+ * \copyright GNU GPL v3
+
+
+The LogArchiver class handles the segments sealed by the AsyncLogger writer thread: it adds them to the
+segment index, deletes the oldest segments exceeding the retention limit and compresses the new ones (gzip).
+Everything is done by a low priority thread, thus the logging threads and the writer thread are never
+slowed down by the compression. The index lists a segment before its compression, so a segment is never
+lost if the application is closed meanwhile (it stays uncompressed).
+There is a single archiver in the process ("shared"), used by all the AsyncLogger instances: it is the only one
+writing the segment indexes, so two loggers rotating the same file one after the other (e.g. the logger of a
+closed connection still being archived while the next one seals its first segment) can't overwrite each
+other's entries. A logger takes the archiver at its first sealed segment ("acquire") and gives it back when
+closed ("release"); when the last one is released the thread archives the segments still queued and exits,
+the next segment submitted starts a new one.
+
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+class LogArchiver implements Runnable {
+
+	/*
+	 * A segment just sealed by the writer thread.
+	 */
+	static class SealedSegment {
+		File logFile;
+		File file;
+		int index;
+		long firstTime, lastTime, bytes;
+		boolean compress;
+		int maxSegments;
+	}
+
+	private static final SealedSegment STOP = new SealedSegment();		// queued by "release" to stop the thread
+	private static final LogArchiver shared = new LogArchiver();
+
+	private final LinkedBlockingQueue<SealedSegment> queue = new LinkedBlockingQueue<SealedSegment>();
+	private final HashMap<String, LogSegmentIndex> indexes = new HashMap<String, LogSegmentIndex>();	// accessed only by the archiver thread
+	private final byte[] buffer = new byte[64*1024];
+	private Thread thread = null;
+	private int users = 0;
+	private volatile boolean busy = false;
+
+	private LogArchiver() {
+	}
+
+	/**
+	 * \brief Return the archiver of the process.
+	 * \return archiver
+	 */
+	static LogArchiver shared() {
+		return shared;
+	}
+
+	/**
+	 * \brief Register a logger using the archiver; the thread runs until all of them are released.
+	 * \return none
+	 */
+	synchronized void acquire() {
+		users++;
+	}
+
+	/**
+	 * \brief Unregister a logger; the thread exits after the segments queued when the last logger is released.
+	 * \return none
+	 */
+	synchronized void release() {
+		if(users > 0 && --users == 0 && thread != null) {
+			queue.add(STOP);
+		}
+	}
+
+	synchronized void submit(SealedSegment s) {
+		if(thread == null) {
+			thread = new Thread(this, "LogArchiver");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+		queue.add(s);
+	}
+
+	public void run() {
+		while(true) {
+			SealedSegment s;
+			try {
+				s = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(s == STOP) {
+				if(stop()) {
+					return;
+				}
+				continue;
+			}
+			busy = true;
+			try {
+				archive(s);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			busy = false;
+		}
+	}
+
+	/*
+	 * Exit the thread if no logger uses the archiver anymore (a logger may have been created meanwhile) and nothing
+	 * is queued; the cached indexes are dropped, the next thread reloads them.
+	 */
+	private synchronized boolean stop() {
+		if(users > 0 || !queue.isEmpty()) {
+			return false;
+		}
+		indexes.clear();
+		thread = null;
+		return true;
+	}
+
+	/**
+	 * \brief Tell whether segments are waiting to be archived.
+	 * \return true if the archiver is idle
+	 */
+	boolean isIdle() {
+		return queue.isEmpty() && !busy;
+	}
+
+	private void archive(SealedSegment s) throws IOException {
+		String key = s.logFile.getPath();
+		LogSegmentIndex idx = indexes.get(key);
+		if(idx == null) {
+			idx = LogSegmentIndex.load(s.logFile);
+			indexes.put(key, idx);
+		}
+		LogSegmentIndex.Segment seg = new LogSegmentIndex.Segment();
+		seg.index = s.index;
+		seg.fileName = s.file.getName();
+		seg.firstTime = s.firstTime;
+		seg.lastTime = s.lastTime;
+		seg.bytes = s.bytes;
+		seg.storedBytes = s.file.length();
+		idx.getSegments().add(seg);
+		while(s.maxSegments > 0 && idx.getSegments().size() > s.maxSegments) {	// retention
+			LogSegmentIndex.Segment old = idx.getSegments().remove(0);
+			idx.getSegmentFile(old).delete();
+		}
+		idx.save();
+		if(!s.compress || !s.file.exists()) {
+			return;
+		}
+		File gz = LogSegmentIndex.segmentFile(s.logFile, s.index, true);
+		File tmp = new File(gz.getPath() + ".tmp");
+		compress(s.file, tmp);
+		if(tmp.renameTo(gz)) {
+			seg.fileName = gz.getName();
+			seg.storedBytes = gz.length();
+			idx.save();
+			s.file.delete();
+		} else {
+			tmp.delete();
+		}
+	}
+
+	private void compress(File src, File dst) throws IOException {
+		InputStream in = new FileInputStream(src);
+		try {
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(dst), buffer.length);
+			try {
+				int n;
+				while((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
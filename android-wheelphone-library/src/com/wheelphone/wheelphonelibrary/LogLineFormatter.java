@@ -0,0 +1,152 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file LogLineFormatter.java
+ * \brief Formatting of log lines without allocating memory
+ * \copyright GNU GPL v3
+
+
+The LogLineFormatter class builds a log line (CSV values or debug text) directly in a preallocated characters
+buffer, that is then handed to the AsyncLogger ("AsyncLogger.append(int, char[], int)"). Unlike the String
+concatenation, formatting integers, doubles and text doesn't create any object, thus logging every packet
+doesn't produce garbage. Usage:
+\verbatim
+ line.clear().append(prox0).append(',').append(x, 3);
+ logger.append(stream, line.chars(), line.length());
+\endverbatim
+Doubles are written with a fixed number of decimals (rounded); values too big to be represented with the
+requested decimals (more than about 1e12 with 6 decimals) are saturated.
+The characters that don't fit in the buffer are discarded. An instance must be used by one thread at a time.
+
+*/
+
+public class LogLineFormatter {
+
+	private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L};
+	public static final int MAX_DECIMALS = POW10.length - 1;
+
+	private final char[] buf;
+	private int len = 0;
+	private final char[] digits = new char[20];
+
+	/**
+	 * \brief Class constructor; the buffer has the size of an AsyncLogger record.
+	 * \return LogLineFormatter instance
+	 */
+	public LogLineFormatter() {
+		this(AsyncLogger.RECORD_SIZE - 1);
+	}
+
+	/**
+	 * \brief Class constructor
+	 * \param capacity maximum number of characters of a line
+	 * \return LogLineFormatter instance
+	 */
+	public LogLineFormatter(int capacity) {
+		buf = new char[capacity];
+	}
+
+	/**
+	 * \brief Empty the line.
+	 * \return this formatter
+	 */
+	public LogLineFormatter clear() {
+		len = 0;
+		return this;
+	}
+
+	public LogLineFormatter append(char c) {
+		if(len < buf.length) {
+			buf[len++] = c;
+		}
+		return this;
+	}
+
+	public LogLineFormatter append(CharSequence s) {
+		int n = Math.min(s.length(), buf.length - len);
+		for(int i=0; i<n; i++) {
+			buf[len++] = s.charAt(i);
+		}
+		return this;
+	}
+
+	public LogLineFormatter append(int v) {
+		return append((long)v);
+	}
+
+	public LogLineFormatter append(long v) {
+		if(v == Long.MIN_VALUE) {
+			return append("-9223372036854775808");
+		}
+		if(v < 0) {
+			append('-');
+			v = -v;
+		}
+		int n = 0;
+		do {
+			digits[n++] = (char)('0' + (v % 10));
+			v /= 10;
+		} while(v != 0);
+		while(n > 0 && len < buf.length) {
+			buf[len++] = digits[--n];
+		}
+		return this;
+	}
+
+	/**
+	 * \brief Append a double with a fixed number of decimals.
+	 * \param v value
+	 * \param decimals number of decimals (0..MAX_DECIMALS)
+	 * \return this formatter
+	 */
+	public LogLineFormatter append(double v, int decimals) {
+		if(v != v) {
+			return append("NaN");
+		}
+		if(Double.isInfinite(v)) {
+			return append(v > 0 ? "Infinity" : "-Infinity");
+		}
+		if(decimals < 0) {
+			decimals = 0;
+		} else if(decimals > MAX_DECIMALS) {
+			decimals = MAX_DECIMALS;
+		}
+		long p = POW10[decimals];
+		long scaled = Math.round(Math.abs(v)*p);	// saturated to Long.MAX_VALUE if too big
+		if(v < 0 && scaled != 0) {
+			append('-');
+		}
+		append(scaled/p);
+		if(decimals > 0) {
+			append('.');
+			long frac = scaled%p;
+			for(long d=p/10; d>frac && d>1; d/=10) {	// leading zeros of the fractional part
+				append('0');
+			}
+			append(frac);
+		}
+		return this;
+	}
+
+	/**
+	 * \brief Return the buffer containing the line; only the first "length()" characters are valid.
+	 * \return characters buffer
+	 */
+	public char[] chars() {
+		return buf;
+	}
+
+	public int length() {
+		return len;
+	}
+
+	/**
+	 * \brief Return the line as a String (allocates, meant for the Android log only).
+	 * \return line
+	 */
+	@Override
+	public String toString() {
+		return new String(buf, 0, len);
+	}
+
+}
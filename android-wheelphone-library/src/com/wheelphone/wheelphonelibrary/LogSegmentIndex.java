@@ -0,0 +1,224 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file LogSegmentIndex.java
+ * \brief Index of the segments of a rotated log file
+ * \copyright GNU GPL v3
+
+
+The LogSegmentIndex class lists the sealed segments of a log file rotated by AsyncLogger (see
+"AsyncLogger.setRotation"), with the time range of the lines each segment contains. The index is stored in
+"<log file>.index" as CSV lines:
+\verbatim
+ index,file,firstTime,lastTime,bytes,storedBytes
+\endverbatim
+Times are in ms (System.currentTimeMillis when the lines were logged), bytes is the size of the lines and
+storedBytes the size of the file (smaller when compressed). The segments of "logFile.csv" are named
+"logFile-000001.csv", or "logFile-000001.csv.gz" once compressed; the log file itself is the current segment.
+The index is updated by the AsyncLogger archiver thread; an application can load it to find the segments of
+a time interval.
+
+*/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogSegmentIndex {
+
+	public static final String INDEX_EXTENSION = ".index";
+	public static final String COMPRESSED_EXTENSION = ".gz";
+	private static final String HEADER = "index,file,firstTime,lastTime,bytes,storedBytes";
+
+	/*
+	 * A sealed segment of the log file.
+	 */
+	public static class Segment {
+		public int index;
+		public String fileName;				// name inside the log directory
+		public long firstTime, lastTime;	// time range of the lines (ms)
+		public long bytes;					// size of the lines
+		public long storedBytes;			// size of the file
+
+		public boolean isCompressed() {
+			return fileName.endsWith(COMPRESSED_EXTENSION);
+		}
+	}
+
+	private final File logFile;
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+	/**
+	 * \brief Class constructor; the index is empty, use "load" to read an existing index.
+	 * \param file log file (current segment)
+	 * \return LogSegmentIndex instance
+	 */
+	public LogSegmentIndex(File file) {
+		logFile = file;
+	}
+
+	/**
+	 * \brief Read the index of a log file; the segments whose file doesn't exist anymore are skipped.
+	 * \param file log file (current segment)
+	 * \return index (empty if not found)
+	 */
+	public static LogSegmentIndex load(File file) {
+		LogSegmentIndex idx = new LogSegmentIndex(file);
+		File f = idx.getIndexFile();
+		if(!f.exists()) {
+			return idx;
+		}
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(f));
+			String line;
+			while((line = in.readLine()) != null) {
+				String[] v = line.split(",");
+				if(v.length < 6 || line.startsWith("index")) {
+					continue;
+				}
+				try {
+					Segment s = new Segment();
+					s.index = Integer.parseInt(v[0]);
+					s.fileName = v[1];
+					s.firstTime = Long.parseLong(v[2]);
+					s.lastTime = Long.parseLong(v[3]);
+					s.bytes = Long.parseLong(v[4]);
+					s.storedBytes = Long.parseLong(v[5]);
+					if(idx.getSegmentFile(s).exists()) {
+						idx.segments.add(s);
+					}
+				} catch (NumberFormatException e) {
+					// skip the line
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return idx;
+	}
+
+	/**
+	 * \brief Write the index; a temporary file is renamed, thus a reader never sees a partial index.
+	 * \return none
+	 */
+	public void save() throws IOException {
+		File f = getIndexFile();
+		File tmp = new File(f.getPath() + ".tmp");
+		BufferedWriter out = new BufferedWriter(new FileWriter(tmp));
+		try {
+			out.write(HEADER);
+			out.write('\n');
+			for(Segment s : segments) {
+				out.write(s.index + "," + s.fileName + "," + s.firstTime + "," + s.lastTime + "," + s.bytes + "," + s.storedBytes + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(f)) {
+			f.delete();
+			tmp.renameTo(f);
+		}
+	}
+
+	public List<Segment> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * \brief Return the segments containing lines logged in a time interval.
+	 * \param from start of the interval (ms)
+	 * \param to end of the interval (ms)
+	 * \return segments overlapping the interval, oldest first
+	 */
+	public List<Segment> find(long from, long to) {
+		ArrayList<Segment> r = new ArrayList<Segment>();
+		for(Segment s : segments) {
+			if(s.lastTime >= from && s.firstTime <= to) {
+				r.add(s);
+			}
+		}
+		return r;
+	}
+
+	public File getSegmentFile(Segment s) {
+		return new File(logFile.getParentFile(), s.fileName);
+	}
+
+	public File getIndexFile() {
+		return new File(logFile.getPath() + INDEX_EXTENSION);
+	}
+
+	public File getLogFile() {
+		return logFile;
+	}
+
+	/**
+	 * \brief Return the file of a segment.
+	 * \param file log file (current segment)
+	 * \param index segment index
+	 * \param compressed true for the compressed file
+	 * \return segment file
+	 */
+	public static File segmentFile(File file, int index, boolean compressed) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		String ext = dot > 0 ? name.substring(dot) : "";
+		String n = Integer.toString(index);
+		StringBuilder sb = new StringBuilder(base).append('-');
+		for(int i=n.length(); i<6; i++) {
+			sb.append('0');
+		}
+		sb.append(n).append(ext);
+		if(compressed) {
+			sb.append(COMPRESSED_EXTENSION);
+		}
+		return new File(file.getParentFile(), sb.toString());
+	}
+
+	/**
+	 * \brief Return the index following the last segment present in the directory.
+	 * \param file log file (current segment)
+	 * \return next segment index (1 if there are no segments)
+	 */
+	public static int nextIndex(File file) {
+		File dir = file.getParentFile();
+		String[] names = (dir == null) ? null : dir.list();
+		int next = 1;
+		if(names == null) {
+			return next;
+		}
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String base = (dot > 0 ? name.substring(0, dot) : name) + "-";
+		for(String n : names) {
+			if(!n.startsWith(base) || n.length() < base.length() + 6) {
+				continue;
+			}
+			try {
+				int i = Integer.parseInt(n.substring(base.length(), base.length() + 6));
+				if(i >= next) {
+					next = i + 1;
+				}
+			} catch (NumberFormatException e) {
+				// not a segment
+			}
+		}
+		return next;
+	}
+
+}
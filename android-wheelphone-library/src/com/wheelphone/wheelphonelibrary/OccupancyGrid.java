@@ -0,0 +1,412 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file OccupancyGrid.java
+ * \brief Occupancy grid built from the front proximity sensors and the odometry
+ * \copyright GNU GPL v3
+
+
+The OccupancyGrid class keeps a log-odds occupancy map of the environment. The map is updated by the
+WheelphoneRobot class each time a new packet is received from the robot (see "enableOccupancyGrid"):
+the beam of each front proximity sensor is traced from the current odometry pose and only the cells it
+crosses are changed.
+The map is split in square tiles of TILE_SIZE x TILE_SIZE cells stored in primitive arrays; the tiles
+are allocated when the robot first sees them and at most "maxTiles" are kept, when the limit is reached
+the tile that wasn't updated for the longest time is recycled. This bounds the memory for long runs.
+Only the packets receiving thread modifies the map; the query functions can be called from any other
+thread without blocking it, the readers take no lock shared with the update:
+- each cell is read and written atomically (the float bits in an AtomicIntegerArray per tile)
+- the tile index and each tile have a version counter, odd while the writer allocates, recycles or clears
+  tiles; a reader looking up a tile retries when the version changed during its read
+Thus a large region copied with "copyLogOdds" doesn't delay the decoding of the packets.
+
+*/
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class OccupancyGrid {
+
+	public static final int TILE_SHIFT = 5;
+	public static final int TILE_SIZE = 1 << TILE_SHIFT;		// cells per tile side
+	private static final int TILE_MASK = TILE_SIZE - 1;
+	private static final long NO_TILE = Long.MIN_VALUE;
+	private static final float MAX_LOG_ODDS = 4.0f;			// clamp to keep the map able to change (p=0.982)
+
+	private final double cellSize;								// mm
+	private final int maxTiles;
+	private final ProxSensorModel sensorModel;
+
+	// tiles storage: slot => cells (float bits), the key (tile coordinates) of the slot, its version (odd while
+	// recycled or cleared) and when it was last updated
+	private final AtomicIntegerArray[] tileCells;
+	private final AtomicLongArray tileKeys;
+	private final AtomicIntegerArray tileVersions;
+	private final long[] tileLastUpdate;
+	private volatile int tileCount = 0;
+
+	// open addressing index (linear probing): tile key => slot, version odd while modified
+	private final AtomicLongArray indexKeys;
+	private final AtomicIntegerArray indexSlots;
+	private final int indexMask;
+	private volatile int indexVersion = 0;
+
+	private long lastKey = NO_TILE;							// cache of the last tile accessed by the update
+	private int lastSlot = -1;
+	private volatile long updateCount = 0;
+	private volatile boolean clearRequested = false;
+
+	/**
+	 * \brief Class constructor
+	 * \param cellSize side of a cell in mm
+	 * \param maxTiles maximum number of tiles kept in memory (each tile takes TILE_SIZE*TILE_SIZE*4 bytes)
+	 * \param model the sensor model used to update the map
+	 * \return OccupancyGrid instance
+	 */
+	public OccupancyGrid(double cellSize, int maxTiles, ProxSensorModel model) {
+		if(cellSize <= 0 || maxTiles <= 0) {
+			throw new IllegalArgumentException("cellSize and maxTiles must be positive");
+		}
+		this.cellSize = cellSize;
+		this.maxTiles = maxTiles;
+		sensorModel = model;
+		tileCells = new AtomicIntegerArray[maxTiles];
+		tileKeys = new AtomicLongArray(maxTiles);
+		tileVersions = new AtomicIntegerArray(maxTiles);
+		tileLastUpdate = new long[maxTiles];
+		for(int i=0; i<maxTiles; i++) {
+			tileKeys.set(i, NO_TILE);
+		}
+		int capacity = 2;
+		while(capacity < maxTiles*2) {
+			capacity <<= 1;
+		}
+		indexKeys = new AtomicLongArray(capacity);
+		indexSlots = new AtomicIntegerArray(capacity);
+		indexMask = capacity - 1;
+		for(int i=0; i<capacity; i++) {
+			indexKeys.set(i, NO_TILE);
+		}
+	}
+
+	/**
+	 * \brief Class constructor with 10 mm cells, 256 tiles (about 1 MB) and the default sensor model.
+	 * \return OccupancyGrid instance
+	 */
+	public OccupancyGrid() {
+		this(10.0, 256, new ProxSensorModel());
+	}
+
+	/**
+	 * \brief Update the map with a new reading of the front proximity sensors. Called by WheelphoneRobot from the
+	 *  packets receiving thread; the same thread must be used for all the updates.
+	 * \param x robot x position (mm)
+	 * \param y robot y position (mm)
+	 * \param theta robot orientation (radians)
+	 * \param distances array of size 4 containing the distances (mm) of the objects detected by the front proximity
+	 *  sensors, ProxDistanceTable.NO_OBJECT if nothing is detected
+	 * \return none
+	 */
+	public void update(double x, double y, double theta, int[] distances) {
+		if(clearRequested) {
+			clearTiles();
+			clearRequested = false;
+		}
+		long now = updateCount + 1;
+		double cosT = Math.cos(theta);
+		double sinT = Math.sin(theta);
+		for(int i=0; i<ProxSensorModel.NUM_SENSORS; i++) {
+			double mx = sensorModel.getMountX(i);
+			double my = sensorModel.getMountY(i);
+			double sx = x + cosT*mx - sinT*my;
+			double sy = y + sinT*mx + cosT*my;
+			double angle = theta + sensorModel.getMountTheta(i);
+			double r = distances[i];
+			boolean hit = (distances[i] != ProxDistanceTable.NO_OBJECT && r <= sensorModel.getMaxRange(i));
+			if(!hit) {
+				r = sensorModel.getMaxRange(i);
+			}
+			traceBeam(sx, sy, sx + Math.cos(angle)*r, sy + Math.sin(angle)*r, hit,
+					sensorModel.getLogOddsHit(i), sensorModel.getLogOddsMiss(i), now);
+		}
+		updateCount = now;
+	}
+
+	/**
+	 * \brief Trace the beam from (x0,y0) to (x1,y1) cell by cell (Bresenham); the last cell is marked as occupied when
+	 *  an object was detected, all the others as free.
+	 */
+	private void traceBeam(double x0, double y0, double x1, double y1, boolean hit, float lHit, float lMiss, long now) {
+		int cx = toCell(x0);
+		int cy = toCell(y0);
+		int cx1 = toCell(x1);
+		int cy1 = toCell(y1);
+		int dx = Math.abs(cx1 - cx);
+		int dy = -Math.abs(cy1 - cy);
+		int stepX = (cx < cx1) ? 1 : -1;
+		int stepY = (cy < cy1) ? 1 : -1;
+		int err = dx + dy;
+		while(true) {
+			if(cx == cx1 && cy == cy1) {
+				addLogOdds(cx, cy, hit ? lHit : lMiss, now);
+				return;
+			}
+			addLogOdds(cx, cy, lMiss, now);
+			int e2 = 2*err;
+			if(e2 >= dy) {
+				err += dy;
+				cx += stepX;
+			}
+			if(e2 <= dx) {
+				err += dx;
+				cy += stepY;
+			}
+		}
+	}
+
+	private void addLogOdds(int cx, int cy, float delta, long now) {
+		long key = tileKey(cx >> TILE_SHIFT, cy >> TILE_SHIFT);
+		int slot;
+		if(key == lastKey) {
+			slot = lastSlot;
+		} else {
+			slot = findSlot(key);
+			if(slot < 0) {
+				slot = allocateTile(key);
+			}
+			lastKey = key;
+			lastSlot = slot;
+		}
+		tileLastUpdate[slot] = now;
+		AtomicIntegerArray cells = tileCells[slot];
+		int i = ((cy & TILE_MASK) << TILE_SHIFT) | (cx & TILE_MASK);
+		float l = Float.intBitsToFloat(cells.get(i)) + delta;
+		if(l > MAX_LOG_ODDS) {
+			l = MAX_LOG_ODDS;
+		} else if(l < -MAX_LOG_ODDS) {
+			l = -MAX_LOG_ODDS;
+		}
+		cells.lazySet(i, Float.floatToRawIntBits(l));	// only this thread writes the cells
+	}
+
+	/**
+	 * \brief Get a free slot for the tile, recycling the least recently updated one if the limit is reached.
+	 */
+	private int allocateTile(long key) {
+		int slot;
+		indexVersion++;		// odd: readers retry their lookup
+		if(tileCount < maxTiles) {
+			slot = tileCount;
+			if(tileCells[slot] == null) {
+				tileCells[slot] = new AtomicIntegerArray(TILE_SIZE*TILE_SIZE);	// published by the key and the versions
+			}
+			tileVersions.incrementAndGet(slot);
+			tileCount = slot + 1;
+		} else {
+			slot = 0;
+			for(int i=1; i<maxTiles; i++) {
+				if(tileLastUpdate[i] < tileLastUpdate[slot]) {
+					slot = i;
+				}
+			}
+			tileVersions.incrementAndGet(slot);
+			indexRemove(tileKeys.get(slot));
+			AtomicIntegerArray cells = tileCells[slot];
+			for(int i=0; i<cells.length(); i++) {
+				cells.lazySet(i, 0);
+			}
+		}
+		indexPut(key, slot);
+		tileKeys.set(slot, key);
+		tileVersions.incrementAndGet(slot);
+		indexVersion++;
+		return slot;
+	}
+
+	private int findSlot(long key) {
+		int i = hash(key) & indexMask;
+		while(true) {
+			long k = indexKeys.get(i);
+			if(k == key) {
+				return indexSlots.get(i);
+			}
+			if(k == NO_TILE) {
+				return -1;
+			}
+			i = (i + 1) & indexMask;
+		}
+	}
+
+	private void indexPut(long key, int slot) {
+		int i = hash(key) & indexMask;
+		while(indexKeys.get(i) != NO_TILE) {
+			i = (i + 1) & indexMask;
+		}
+		indexSlots.set(i, slot);
+		indexKeys.set(i, key);
+	}
+
+	private void indexRemove(long key) {
+		int i = hash(key) & indexMask;
+		while(indexKeys.get(i) != key) {
+			if(indexKeys.get(i) == NO_TILE) {
+				return;
+			}
+			i = (i + 1) & indexMask;
+		}
+		// backward shift deletion to keep the probing sequences valid without tombstones
+		int j = i;
+		while(true) {
+			j = (j + 1) & indexMask;
+			long k = indexKeys.get(j);
+			if(k == NO_TILE) {
+				break;
+			}
+			int home = hash(k) & indexMask;
+			if(((j - home) & indexMask) >= ((j - i) & indexMask)) {
+				indexSlots.set(i, indexSlots.get(j));
+				indexKeys.set(i, k);
+				i = j;
+			}
+		}
+		indexKeys.set(i, NO_TILE);
+	}
+
+	private void clearTiles() {
+		indexVersion++;
+		int count = tileCount;
+		for(int s=0; s<count; s++) {
+			tileVersions.incrementAndGet(s);
+			tileKeys.set(s, NO_TILE);
+			AtomicIntegerArray cells = tileCells[s];
+			for(int i=0; i<cells.length(); i++) {
+				cells.lazySet(i, 0);
+			}
+			tileLastUpdate[s] = 0;
+			tileVersions.incrementAndGet(s);
+		}
+		for(int i=0; i<indexKeys.length(); i++) {
+			indexKeys.set(i, NO_TILE);
+		}
+		tileCount = 0;	// the cells arrays already allocated are reused by "allocateTile"
+		indexVersion++;
+		lastKey = NO_TILE;
+		lastSlot = -1;
+	}
+
+	/**
+	 * \brief Return the log-odds of the cell containing the given point. Can be called from any thread.
+	 * \param x x position (mm)
+	 * \param y y position (mm)
+	 * \return log-odds (positive => occupied, negative => free, 0 => unknown)
+	 */
+	public float getLogOdds(double x, double y) {
+		return readCell(toCell(x), toCell(y));
+	}
+
+	/**
+	 * \brief Return the occupancy probability of the cell containing the given point. Can be called from any thread.
+	 * \param x x position (mm)
+	 * \param y y position (mm)
+	 * \return probability from 0.0 (free) to 1.0 (occupied), 0.5 if unknown
+	 */
+	public double getProbability(double x, double y) {
+		return 1.0 - 1.0/(1.0 + Math.exp(getLogOdds(x, y)));
+	}
+
+	/**
+	 * \brief Copy the log-odds of a rectangular region of the map, for instance to draw it. Can be called from any thread,
+	 *  the updates are not blocked during the copy (the region may mix cells read before and after an update).
+	 * \param x x position of the first cell (mm)
+	 * \param y y position of the first cell (mm)
+	 * \param width number of cells along x
+	 * \param height number of cells along y
+	 * \param dst destination array of size at least width*height, filled row by row (y major)
+	 * \return none
+	 */
+	public void copyLogOdds(double x, double y, int width, int height, float[] dst) {
+		int cx0 = toCell(x);
+		int cy0 = toCell(y);
+		for(int j=0; j<height; j++) {
+			for(int i=0; i<width; i++) {
+				dst[j*width + i] = readCell(cx0 + i, cy0 + j);
+			}
+		}
+	}
+
+	/*
+	 * Read a cell from any thread: the lookup is retried while the index or the tile is modified by the writer.
+	 */
+	private float readCell(int cx, int cy) {
+		long key = tileKey(cx >> TILE_SHIFT, cy >> TILE_SHIFT);
+		int i = ((cy & TILE_MASK) << TILE_SHIFT) | (cx & TILE_MASK);
+		while(true) {
+			int iv = indexVersion;
+			if((iv & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			int slot = findSlot(key);
+			if(indexVersion != iv) {
+				continue;
+			}
+			if(slot < 0) {
+				return 0.0f;
+			}
+			int tv = tileVersions.get(slot);
+			if((tv & 1) != 0 || tileKeys.get(slot) != key) {
+				continue;		// being recycled, or recycled since the lookup
+			}
+			float value = Float.intBitsToFloat(tileCells[slot].get(i));
+			if(tileVersions.get(slot) == tv) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * \brief Erase the map. The request is executed by the packets receiving thread before the next update.
+	 * \return none
+	 */
+	public void clear() {
+		clearRequested = true;
+	}
+
+	/**
+	 * \brief Return the number of updates done since the map was created; can be used to know whether the map changed.
+	 * \return number of updates
+	 */
+	public long getUpdateCount() {
+		return updateCount;
+	}
+
+	/**
+	 * \brief Return the number of tiles currently allocated.
+	 * \return number of tiles (at most "maxTiles")
+	 */
+	public int getTileCount() {
+		return tileCount;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	public ProxSensorModel getSensorModel() {
+		return sensorModel;
+	}
+
+	private int toCell(double v) {
+		return (int)Math.floor(v/cellSize);
+	}
+
+	private static long tileKey(int tx, int ty) {
+		return ((long)tx << 32) | (ty & 0xFFFFFFFFL);
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file Odometry.java
+ * \brief Odometry integration from the measured motors speeds
+ * \copyright GNU GPL v3
+
+
+The Odometry class integrates the motors speeds measured by the robot (back EMF) to estimate the robot
+pose. It is used by the WheelphoneRobot class for each received packet and by the tools working on
+recorded packets, so that they compute exactly the same pose.
+The positive x axis is pointing forward and the positive y axis is pointing to the left side of the robot.
+
+*/
+
+public class Odometry {
+
+	public static final int X_ODOM = 0;
+	public static final int Y_ODOM = 1;
+	public static final int THETA_ODOM = 2;
+
+	private double leftDiamCoeff = 1.0;
+	private double rightDiamCoeff = 1.0;
+	private double wheelBase = 0.087;						// meters
+	private final double[] pose = {0.0, 0.0, 0.0};			// x (mm), y (mm), theta (radians) respectively
+	private double leftDist=0.0, rightDist=0.0;
+	private double leftDistPrev=0.0, rightDistPrev=0.0;
+	private double deltaDist=0.0;
+
+	/**
+	 * \brief Integrate the measured speeds over the elapsed time.
+	 * \param leftSpeed left measured speed (mm/s)
+	 * \param rightSpeed right measured speed (mm/s)
+	 * \param dtMs time elapsed since the last update (ms)
+	 * \return none
+	 */
+	public void update(int leftSpeed, int rightSpeed, double dtMs) {
+		leftDistPrev = leftDist;
+		rightDistPrev = rightDist;
+		leftDist += (leftSpeed*dtMs/1000.0)*leftDiamCoeff;
+		rightDist += (rightSpeed*dtMs/1000.0)*rightDiamCoeff;
+		deltaDist = ((rightDist-rightDistPrev)+(leftDist-leftDistPrev))/2.0;
+		pose[X_ODOM] += Math.cos(pose[THETA_ODOM])*deltaDist;
+		pose[Y_ODOM] += Math.sin(pose[THETA_ODOM])*deltaDist;
+		pose[THETA_ODOM] = ((rightDist-leftDist)/wheelBase)/1000.0;	// over 1000 because rightDist and leftDist are in mm
+	}
+
+	/**
+	 * \brief Return the pose; the array is updated in place by "update".
+	 * \return array of length 3 containing sequentially x position (mm), y position (mm), theta (radians)
+	 */
+	public double[] getPose() {
+		return pose;
+	}
+
+	public void set(double x, double y, double t) {
+		pose[X_ODOM] = x;
+		pose[Y_ODOM] = y;
+		pose[THETA_ODOM] = t;
+	}
+
+	public void setParameters(double ldc, double rdc, double wb) {
+		leftDiamCoeff = ldc;
+		rightDiamCoeff = rdc;
+		wheelBase = wb;
+	}
+
+	public double getWheelBase() {
+		return wheelBase;
+	}
+
+	public void reset() {
+		set(0, 0, 0);
+		leftDist = 0;
+		rightDist = 0;
+		leftDistPrev = 0;
+		rightDistPrev = 0;
+	}
+
+}
@@ -0,0 +1,284 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file PacketRecorder.java
+ * \brief Binary recording of the raw packets exchanged with the robot
+ * \copyright GNU GPL v3
+
+
+The PacketRecorder class stores every packet received from the robot and every packet sent to it, exactly
+as exchanged, together with the time (System.nanoTime) and the direction. Nothing is decoded or formatted
+while recording: a record is copied in a memory mapped file, thus recording costs less than a microsecond
+per packet and a whole day of packets takes a few hundreds of megabytes. The recording can be converted
+offline to the "logFile.csv" format with PacketRecordingConverter (desktop tools, see "tools/README.md") or
+replayed (see PacketRecordingReader).
+
+The recording is split in segments named "<prefix>-NNNNNN.wpr"; when a segment is full a new one is started
+(the index continues from the segments already present in the directory). Segment layout (big endian):
+\verbatim
+ header (HEADER_SIZE bytes):
+  int    MAGIC
+  short  FORMAT_VERSION
+  short  HEADER_SIZE
+  long   wall clock time when the segment was created (ms)
+  long   System.nanoTime when the segment was created
+  int    segment index
+  int    reserved
+ records:
+  byte   type (INBOUND, OUTBOUND, VERSION, POSE), 0 marks the end of the segment
+  short  length of the data
+  long   System.nanoTime
+  byte[] data
+\endverbatim
+The type byte is written last, so a record is visible only when complete even if the application is killed
+while recording. The firmware version (VERSION record) is repeated at the beginning of each segment, thus
+each segment can be decoded alone.
+
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class PacketRecorder {
+
+	public static final byte END = 0;
+	public static final byte INBOUND = 'I';					// packet received from the robot
+	public static final byte OUTBOUND = 'O';				// packet sent to the robot
+	public static final byte VERSION = 'V';					// firmware version string reported by the accessory
+	public static final byte POSE = 'P';					// odometry set by the application (3 doubles: x, y, theta)
+
+	public static final int MAGIC = 0x57505231;				// "WPR1"
+	public static final int FORMAT_VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	public static final int RECORD_HEADER_SIZE = 11;		// type + length + timestamp
+	public static final String SEGMENT_EXTENSION = ".wpr";
+	public static final int DEFAULT_SEGMENT_SIZE = 8*1024*1024;
+
+	private final File directory;
+	private final String prefix;
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+	private int nextIndex = -1;
+	private RandomAccessFile file = null;
+	private FileChannel channel = null;
+	private MappedByteBuffer buffer = null;
+	private String firmwareVersion = null;
+	private long recordCount = 0;
+	private int segmentCount = 0;
+	private boolean closed = false;
+
+	/**
+	 * \brief Class constructor; the first segment is created with the first record.
+	 * \param dir directory where the segments are created
+	 * \param prefix name of the recording
+	 * \return PacketRecorder instance
+	 */
+	public PacketRecorder(File dir, String prefix) {
+		directory = dir;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * \brief Set the size of the segments created from now on.
+	 * \param bytes segment size (minimum 4096 bytes)
+	 * \return none
+	 */
+	public synchronized void setSegmentSize(int bytes) {
+		segmentSize = Math.max(bytes, 4096);
+	}
+
+	/**
+	 * \brief Record a packet.
+	 * \param type INBOUND or OUTBOUND
+	 * \param data packet bytes
+	 * \param len number of bytes to record
+	 * \return true if recorded, false if the recorder is closed or an error occurred
+	 */
+	public synchronized boolean record(byte type, byte[] data, int len) {
+		if(!reserve(len)) {
+			return false;
+		}
+		int pos = buffer.position();
+		buffer.position(pos + 1);
+		buffer.putShort((short)len);
+		buffer.putLong(System.nanoTime());
+		buffer.put(data, 0, len);
+		buffer.put(pos, type);	// commit the record
+		recordCount++;
+		return true;
+	}
+
+	/**
+	 * \brief Record the firmware version reported by the accessory; it is repeated at the beginning of each segment.
+	 * \param version version string
+	 * \return none
+	 */
+	public synchronized void setFirmwareVersion(String version) {
+		firmwareVersion = version;
+		if(version != null && buffer != null) {
+			recordVersion();
+		}
+	}
+
+	/**
+	 * \brief Record the odometry set by the application, so that the converted odometry matches the one computed online.
+	 * \param x x position (mm)
+	 * \param y y position (mm)
+	 * \param theta theta angle (radians)
+	 * \return none
+	 */
+	public synchronized void recordPose(double x, double y, double theta) {
+		if(!reserve(24)) {
+			return;
+		}
+		int pos = buffer.position();
+		buffer.position(pos + 1);
+		buffer.putShort((short)24);
+		buffer.putLong(System.nanoTime());
+		buffer.putDouble(x);
+		buffer.putDouble(y);
+		buffer.putDouble(theta);
+		buffer.put(pos, POSE);
+		recordCount++;
+	}
+
+	private void recordVersion() {
+		byte[] v = firmwareVersion.getBytes();
+		if(!reserve(v.length)) {
+			return;
+		}
+		int pos = buffer.position();
+		buffer.position(pos + 1);
+		buffer.putShort((short)v.length);
+		buffer.putLong(System.nanoTime());
+		buffer.put(v);
+		buffer.put(pos, VERSION);
+		recordCount++;
+	}
+
+	/**
+	 * \brief Make sure the current segment has room for a record, starting a new segment if needed.
+	 * \param len data length of the record
+	 * \return true if the record can be written
+	 */
+	private boolean reserve(int len) {
+		if(closed) {
+			return false;
+		}
+		if(buffer != null && buffer.remaining() >= RECORD_HEADER_SIZE + len + 1) {	// keep room for the end marker
+			return true;
+		}
+		try {
+			closeSegment();
+			openSegment(Math.max(segmentSize, HEADER_SIZE + RECORD_HEADER_SIZE + len + 1));
+			if(firmwareVersion != null) {
+				recordVersion();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			closed = true;
+			return false;
+		}
+		return buffer.remaining() >= RECORD_HEADER_SIZE + len + 1;
+	}
+
+	private void openSegment(int size) throws IOException {
+		if(!directory.exists()) {
+			directory.mkdirs();
+		}
+		if(nextIndex < 0) {
+			File[] existing = PacketRecordingReader.listSegments(directory, prefix);
+			nextIndex = 0;
+			if(existing.length > 0) {
+				nextIndex = PacketRecordingReader.segmentIndex(existing[existing.length-1], prefix) + 1;
+			}
+		}
+		File f = segmentFile(directory, prefix, nextIndex);
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.putInt(MAGIC);
+		buffer.putShort((short)FORMAT_VERSION);
+		buffer.putShort((short)HEADER_SIZE);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.putLong(System.nanoTime());
+		buffer.putInt(nextIndex);
+		buffer.putInt(0);
+		nextIndex++;
+		segmentCount++;
+	}
+
+	private void closeSegment() throws IOException {
+		if(buffer == null) {
+			return;
+		}
+		int used = buffer.position();
+		buffer.put(used, END);
+		buffer.force();
+		buffer = null;
+		channel.truncate(used + 1);		// don't keep the unused part of the segment
+		channel.close();
+		file.close();
+		channel = null;
+		file = null;
+	}
+
+	/**
+	 * \brief Write the records to the storage; they are written anyway by the system, this only guarantees it.
+	 * \return none
+	 */
+	public synchronized void force() {
+		if(buffer != null) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * \brief Close the current segment; the recorder can't be used anymore.
+	 * \return none
+	 */
+	public synchronized void close() {
+		try {
+			closeSegment();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		closed = true;
+	}
+
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segmentCount;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * \brief Return the file of a segment.
+	 * \param dir directory of the recording
+	 * \param prefix name of the recording
+	 * \param index segment index
+	 * \return segment file
+	 */
+	public static File segmentFile(File dir, String prefix, int index) {
+		String n = Integer.toString(index);
+		StringBuilder sb = new StringBuilder(prefix).append('-');
+		for(int i=n.length(); i<6; i++) {
+			sb.append('0');
+		}
+		return new File(dir, sb.append(n).append(SEGMENT_EXTENSION).toString());
+	}
+
+}
@@ -0,0 +1,245 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file PacketRecordingReader.java
+ * \brief Sequential reading of a packets recording
+ * \copyright GNU GPL v3
+
+
+The PacketRecordingReader class reads back the records written by PacketRecorder, segment after segment in
+index order. Typical usage:
+\verbatim
+ PacketRecordingReader r = new PacketRecordingReader(dir, "session");
+ while(r.next()) {
+     if(r.getType() == PacketRecorder.INBOUND) {
+         ... r.getData(), r.getLength(), r.getTimestamp() ...
+     }
+ }
+ r.close();
+\endverbatim
+A segment not closed properly (application killed) is read up to the last complete record. The data array
+returned by "getData" is reused by the next call to "next".
+It doesn't depend on Android, thus it can be used on a desktop computer too.
+
+*/
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class PacketRecordingReader {
+
+	private final File[] segments;
+	private int segment = -1;
+	private ByteBuffer buffer = null;
+	private long segmentWallClock = 0;
+	private long segmentNanoTime = 0;
+
+	private byte type = PacketRecorder.END;
+	private int length = 0;
+	private long timestamp = 0;
+	private byte[] data = new byte[256];
+	private String firmwareVersion = null;
+	private long recordCount = 0;
+
+	/**
+	 * \brief Class constructor
+	 * \param dir directory of the recording
+	 * \param prefix name of the recording
+	 * \return PacketRecordingReader instance
+	 */
+	public PacketRecordingReader(File dir, String prefix) {
+		this(listSegments(dir, prefix));
+	}
+
+	/**
+	 * \brief Class constructor
+	 * \param files segments to read, in order
+	 * \return PacketRecordingReader instance
+	 */
+	public PacketRecordingReader(File[] files) {
+		segments = files;
+	}
+
+	/**
+	 * \brief Move to the next record.
+	 * \return true if a record is available, false at the end of the recording
+	 */
+	public boolean next() throws IOException {
+		while(true) {
+			if(buffer == null || !readRecord()) {
+				if(!openNextSegment()) {
+					type = PacketRecorder.END;
+					return false;
+				}
+				continue;
+			}
+			recordCount++;
+			if(type == PacketRecorder.VERSION) {
+				firmwareVersion = new String(data, 0, length);
+			}
+			return true;
+		}
+	}
+
+	private boolean readRecord() {
+		if(buffer.remaining() < PacketRecorder.RECORD_HEADER_SIZE) {
+			return false;
+		}
+		int pos = buffer.position();
+		byte t = buffer.get(pos);
+		if(t != PacketRecorder.INBOUND && t != PacketRecorder.OUTBOUND && t != PacketRecorder.VERSION && t != PacketRecorder.POSE) {
+			return false;	// end marker or incomplete record
+		}
+		int len = buffer.getShort(pos + 1)&0xFFFF;
+		if(buffer.remaining() < PacketRecorder.RECORD_HEADER_SIZE + len) {
+			return false;
+		}
+		timestamp = buffer.getLong(pos + 3);
+		if(data.length < len) {
+			data = new byte[len];
+		}
+		buffer.position(pos + PacketRecorder.RECORD_HEADER_SIZE);
+		buffer.get(data, 0, len);
+		type = t;
+		length = len;
+		return true;
+	}
+
+	private boolean openNextSegment() throws IOException {
+		buffer = null;
+		while(++segment < segments.length) {
+			RandomAccessFile f = new RandomAccessFile(segments[segment], "r");
+			try {
+				FileChannel ch = f.getChannel();
+				ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				if(b.remaining() < PacketRecorder.HEADER_SIZE || b.getInt(0) != PacketRecorder.MAGIC) {
+					continue;	// not a recording segment
+				}
+				segmentWallClock = b.getLong(8);
+				segmentNanoTime = b.getLong(16);
+				b.position(b.getShort(6)&0xFFFF);
+				buffer = b;
+				return true;
+			} finally {
+				f.close();	// the mapping stays valid
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * \brief Return the type of the current record.
+	 * \return PacketRecorder.INBOUND, OUTBOUND, VERSION or POSE
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * \brief Return the data of the current record; the array is reused and can be longer than the data.
+	 * \return record data
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * \brief Return the time of the current record.
+	 * \return System.nanoTime of the phone when the record was written
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * \brief Convert the time of the current record to the wall clock, using the time the segment was created.
+	 * \return time in ms (as System.currentTimeMillis)
+	 */
+	public long getWallClockTime() {
+		return segmentWallClock + (timestamp - segmentNanoTime)/1000000;
+	}
+
+	/**
+	 * \brief Return the firmware version read so far.
+	 * \return version string as reported by the accessory, null if not recorded yet
+	 */
+	public String getFirmwareVersion() {
+		return firmwareVersion;
+	}
+
+	/**
+	 * \brief Decode the current POSE record.
+	 * \param pose array of size 3 where to store x (mm), y (mm), theta (radians)
+	 * \return none
+	 */
+	public void getPose(double[] pose) {
+		ByteBuffer b = ByteBuffer.wrap(data, 0, 24);
+		pose[0] = b.getDouble();
+		pose[1] = b.getDouble();
+		pose[2] = b.getDouble();
+	}
+
+	public int getSegment() {
+		return segment;
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public void close() {
+		buffer = null;
+		segment = segments.length;
+	}
+
+	/**
+	 * \brief List the segments of a recording in index order.
+	 * \param dir directory of the recording
+	 * \param prefix name of the recording
+	 * \return segment files (empty if none)
+	 */
+	public static File[] listSegments(File dir, final String prefix) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.startsWith(prefix + "-") && name.endsWith(PacketRecorder.SEGMENT_EXTENSION);
+			}
+		});
+		if(files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				int ia = segmentIndex(a, prefix);
+				int ib = segmentIndex(b, prefix);
+				return ia < ib ? -1 : (ia == ib ? 0 : 1);
+			}
+		});
+		return files;
+	}
+
+	/**
+	 * \brief Return the index of a segment from its name.
+	 * \param f segment file
+	 * \param prefix name of the recording
+	 * \return segment index, -1 if the name is not valid
+	 */
+	static int segmentIndex(File f, String prefix) {
+		String n = f.getName();
+		try {
+			return Integer.parseInt(n.substring(prefix.length() + 1, n.length() - PacketRecorder.SEGMENT_EXTENSION.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file PoseHistory.java
+ * \brief Last poses of the odometry with their time
+ * \copyright GNU GPL v3
+
+
+The PoseHistory class keeps the last poses computed by the odometry, one for each sample of the sensors (several
+per packet with the batch frames of the protocol v4, see WheelphoneProtocol), in a ring of fixed capacity. It
+is filled by WheelphoneRobot and can be used to know where the robot was at a given time, e.g. when a camera
+frame was taken. The poses are stored in arrays allocated when the class is created, adding a pose doesn't
+allocate memory; the methods are synchronized since the poses are added by the thread handling the packets.
+
+*/
+
+public class PoseHistory {
+
+	private final long[] times;				// ms, as System.currentTimeMillis
+	private final double[] x, y, theta;		// mm, mm, radians
+	private int next = 0;					// index of the next pose
+	private int size = 0;
+	private long total = 0;					// poses added since the creation
+
+	/**
+	 * \brief Class constructor
+	 * \param capacity number of poses kept
+	 * \return PoseHistory instance
+	 */
+	public PoseHistory(int capacity) {
+		times = new long[capacity];
+		x = new double[capacity];
+		y = new double[capacity];
+		theta = new double[capacity];
+	}
+
+	/**
+	 * \brief Add a pose, the oldest one is dropped when the history is full.
+	 * \param timeMs time of the pose (ms), not older than the previous pose
+	 * \param px x (mm)
+	 * \param py y (mm)
+	 * \param pTheta theta (radians)
+	 * \return none
+	 */
+	public synchronized void add(long timeMs, double px, double py, double pTheta) {
+		times[next] = timeMs;
+		x[next] = px;
+		y[next] = py;
+		theta[next] = pTheta;
+		next = (next + 1)%times.length;
+		if(size < times.length) {
+			size++;
+		}
+		total++;
+	}
+
+	public synchronized void clear() {
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return times.length;
+	}
+
+	public synchronized long getTotalCount() {
+		return total;
+	}
+
+	/**
+	 * \brief Return a pose of the history.
+	 * \param i index, 0 is the oldest pose and size()-1 the last one
+	 * \param pose destination: x (mm), y (mm), theta (radians)
+	 * \return time of the pose (ms)
+	 */
+	public synchronized long get(int i, double[] pose) {
+		int k = index(i);
+		pose[Odometry.X_ODOM] = x[k];
+		pose[Odometry.Y_ODOM] = y[k];
+		pose[Odometry.THETA_ODOM] = theta[k];
+		return times[k];
+	}
+
+	/**
+	 * \brief Return the pose at a given time, interpolated linearly between the two nearest poses; the first (last)
+	 *  pose is returned for a time before (after) the history.
+	 * \param timeMs time (ms)
+	 * \param pose destination: x (mm), y (mm), theta (radians)
+	 * \return false if the history is empty
+	 */
+	public synchronized boolean interpolate(long timeMs, double[] pose) {
+		if(size == 0) {
+			return false;
+		}
+		int hi = 0;
+		while(hi < size && times[index(hi)] < timeMs) {
+			hi++;
+		}
+		if(hi == 0 || hi == size) {
+			get(hi == 0 ? 0 : size - 1, pose);
+			return true;
+		}
+		int a = index(hi - 1), b = index(hi);
+		double f = (times[b] == times[a]) ? 1.0 : (double)(timeMs - times[a])/(times[b] - times[a]);
+		pose[Odometry.X_ODOM] = x[a] + (x[b] - x[a])*f;
+		pose[Odometry.Y_ODOM] = y[a] + (y[b] - y[a])*f;
+		pose[Odometry.THETA_ODOM] = theta[a] + (theta[b] - theta[a])*f;
+		return true;
+	}
+
+	private int index(int i) {
+		return (next - size + i + times.length)%times.length;
+	}
+
+}
@@ -0,0 +1,240 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file ProxDistanceTable.java
+ * \brief Conversion of the front proximity values to distances
+ * \copyright GNU GPL v3
+
+
+The ProxDistanceTable class converts the compensated front proximity values to the distance (mm) of
+the detected object with a lookup table per sensor: the conversion is a single array access and is
+done by the WheelphoneRobot class for each received packet (see "getFrontProxDistances").
+The tables are generated from the model distance = a * value^b of each sensor. The model can be fitted
+with a calibration sweep: place an object at known distances in front of the sensors and add a sample
+(compensated value, distance) for each position with "addSample", then call "fit". The fitted models
+can be saved to a file and loaded back the next time.
+The models can be changed while the robot is running: a new table is generated aside and then published, thus
+the packets receiving thread converts a value either with the old table or with the new one, never a mix.
+The compensated value is the proximity value minus the value measured during the calibration (see
+"WheelphoneRobot.calibrateSensors"), corrected for the change of the ambient light since then. The firmware
+already subtracts the ambient light from the proximity values, thus the ambient gain is 0 by default; it
+can be set if a residual dependency is observed.
+
+*/
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class ProxDistanceTable {
+
+	public static final int NUM_SENSORS = 4;
+	public static final int TABLE_SIZE = 256;					// proximity values are 8 bits
+	public static final int NO_OBJECT = -1;					// distance returned when nothing is detected
+	private static final int MAX_SAMPLES = 256;				// samples per sensor for the calibration sweep
+	private static final int FILE_MAGIC = 0x57504454;			// "WPDT"
+	private static final int FILE_VERSION = 1;
+
+	private final AtomicReferenceArray<int[]> tables = new AtomicReferenceArray<int[]>(NUM_SENSORS);	// replaced, never modified
+	private final double[] coeffA = new double[NUM_SENSORS];
+	private final double[] coeffB = new double[NUM_SENSORS];
+	private final double[] maxRange = new double[NUM_SENSORS];
+	private final double[] ambientGain = new double[NUM_SENSORS];
+
+	// calibration sweep samples
+	private final int[][] sampleValues = new int[NUM_SENSORS][MAX_SAMPLES];
+	private final double[][] sampleDistances = new double[NUM_SENSORS][MAX_SAMPLES];
+	private final int[] sampleCount = new int[NUM_SENSORS];
+
+	/**
+	 * \brief Class constructor; the tables are generated from a rough default model (the reflected light decreases
+	 *  with the square of the distance, objects are detected up to 60 mm).
+	 * \return ProxDistanceTable instance
+	 */
+	public ProxDistanceTable() {
+		for(int i=0; i<NUM_SENSORS; i++) {
+			setModel(i, 190.0, -0.5, 60.0);
+		}
+	}
+
+	/**
+	 * \brief Set the model of a sensor and regenerate its table.
+	 * \param sensor sensor index (0..3)
+	 * \param a, b model coefficients: distance = a * value^b (b negative)
+	 * \param range maximum distance detected (mm), the values converted to a farther distance give NO_OBJECT
+	 * \return none
+	 */
+	public synchronized void setModel(int sensor, double a, double b, double range) {
+		coeffA[sensor] = a;
+		coeffB[sensor] = b;
+		maxRange[sensor] = range;
+		int[] t = new int[TABLE_SIZE];
+		t[0] = NO_OBJECT;
+		for(int v=1; v<TABLE_SIZE; v++) {
+			double d = a*Math.pow(v, b);
+			t[v] = (d > range) ? NO_OBJECT : (int)Math.round(d);
+		}
+		tables.set(sensor, t);
+	}
+
+	/**
+	 * \brief Set how much the change of the ambient light since the calibration affects a proximity value.
+	 * \param sensor sensor index (0..3)
+	 * \param gain proximity value change per ambient value change
+	 * \return none
+	 */
+	public void setAmbientGain(int sensor, double gain) {
+		ambientGain[sensor] = gain;
+	}
+
+	/**
+	 * \brief Compensate a proximity value for the calibration and the ambient light.
+	 * \param sensor sensor index (0..3)
+	 * \param prox proximity value
+	 * \param ambient ambient value
+	 * \param proxCalibration proximity value measured during the calibration
+	 * \param ambientCalibration ambient value measured during the calibration
+	 * \return compensated value (0..255)
+	 */
+	public int compensate(int sensor, int prox, int ambient, int proxCalibration, int ambientCalibration) {
+		int v = prox - proxCalibration - (int)(ambientGain[sensor]*(ambient - ambientCalibration));
+		if(v < 0) {
+			return 0;
+		}
+		if(v >= TABLE_SIZE) {
+			return TABLE_SIZE - 1;
+		}
+		return v;
+	}
+
+	/**
+	 * \brief Convert a compensated proximity value to a distance.
+	 * \param sensor sensor index (0..3)
+	 * \param value compensated proximity value (0..255)
+	 * \return distance in mm, NO_OBJECT if nothing is detected
+	 */
+	public int distance(int sensor, int value) {
+		return tables.get(sensor)[value & 0xFF];
+	}
+
+	/**
+	 * \brief Add a sample of the calibration sweep.
+	 * \param sensor sensor index (0..3)
+	 * \param value compensated proximity value measured (see "WheelphoneRobot.getFrontProxsCompensated")
+	 * \param distance distance of the object (mm)
+	 * \return false if the maximum number of samples is reached, true otherwise
+	 */
+	public synchronized boolean addSample(int sensor, int value, double distance) {
+		int n = sampleCount[sensor];
+		if(n >= MAX_SAMPLES) {
+			return false;
+		}
+		sampleValues[sensor][n] = value;
+		sampleDistances[sensor][n] = distance;
+		sampleCount[sensor] = n + 1;
+		return true;
+	}
+
+	/**
+	 * \brief Discard all the samples of the calibration sweep.
+	 * \return none
+	 */
+	public synchronized void clearSamples() {
+		for(int i=0; i<NUM_SENSORS; i++) {
+			sampleCount[i] = 0;
+		}
+	}
+
+	/**
+	 * \brief Fit the model of a sensor to the samples of the calibration sweep (least squares in logarithmic scale)
+	 *  and regenerate its table. The maximum distance is set to the farthest sample.
+	 * \param sensor sensor index (0..3)
+	 * \return true if the model was fitted, false if the samples are not enough or not consistent (the model is unchanged)
+	 */
+	public synchronized boolean fit(int sensor) {
+		double sx=0.0, sy=0.0, sxx=0.0, sxy=0.0, range=0.0;
+		int n = 0;
+		for(int i=0; i<sampleCount[sensor]; i++) {
+			int v = sampleValues[sensor][i];
+			double d = sampleDistances[sensor][i];
+			if(v <= 0 || d <= 0) {	// nothing detected, can't be used
+				continue;
+			}
+			double lx = Math.log(v);
+			double ly = Math.log(d);
+			sx += lx;
+			sy += ly;
+			sxx += lx*lx;
+			sxy += lx*ly;
+			if(d > range) {
+				range = d;
+			}
+			n++;
+		}
+		double den = n*sxx - sx*sx;
+		if(n < 2 || den == 0.0) {
+			return false;
+		}
+		double b = (n*sxy - sx*sy)/den;
+		if(b >= 0.0) {	// the distance must decrease when the value increases
+			return false;
+		}
+		double a = Math.exp((sy - b*sx)/n);
+		setModel(sensor, a, b, range);
+		return true;
+	}
+
+	/**
+	 * \brief Save the models of all the sensors to a file.
+	 * \param file destination file
+	 * \return none
+	 */
+	public synchronized void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			for(int i=0; i<NUM_SENSORS; i++) {
+				out.writeDouble(coeffA[i]);
+				out.writeDouble(coeffB[i]);
+				out.writeDouble(maxRange[i]);
+				out.writeDouble(ambientGain[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * \brief Load the models of all the sensors from a file written with "save" and regenerate the tables.
+	 * \param file source file
+	 * \return none
+	 */
+	public synchronized void load(File file) throws IOException {
+		double[] models = new double[NUM_SENSORS*4];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if(in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				throw new IOException("not a proximity distance table: " + file);
+			}
+			for(int i=0; i<models.length; i++) {
+				models[i] = in.readDouble();
+			}
+		} finally {
+			in.close();
+		}
+		for(int i=0; i<NUM_SENSORS; i++) {	// the file is read completely before changing the models
+			ambientGain[i] = models[i*4 + 3];
+			setModel(i, models[i*4], models[i*4 + 1], models[i*4 + 2]);
+		}
+	}
+
+	public synchronized double getMaxRange(int sensor) {
+		return maxRange[sensor];
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file ProxSensorModel.java
+ * \brief Inverse sensor model of the front proximity sensors
+ * \copyright GNU GPL v3
+
+
+The ProxSensorModel class describes, for each of the 4 front proximity channels, where the sensor
+is mounted on the robot, its maximum range and how much a reading should change the occupancy of the
+cells it covers. It is used by the OccupancyGrid class; the distances of the detected objects are
+given by the ProxDistanceTable class.
+All the distances are given in mm and the angles in radians, in the same frame used by the odometry
+(x axis pointing forward, y axis pointing to the left side of the robot).
+
+*/
+
+public class ProxSensorModel {
+
+	public static final int NUM_SENSORS = 4;
+
+	// default mounting of the sensors (positioned as "1 2" in front and "0 3" on the sides, see WheelphoneRobot.getFrontProxs)
+	private double[] mountX = {30.0, 40.0, 40.0, 30.0};			// mm
+	private double[] mountY = {25.0, 8.0, -8.0, -25.0};			// mm
+	private double[] mountTheta = {0.7, 0.15, -0.15, -0.7};		// radians
+
+	private double[] maxRange = {60.0, 60.0, 60.0, 60.0};		// mm, farther than this nothing is detected
+	private float[] logOddsHit = {0.85f, 0.85f, 0.85f, 0.85f};	// occupancy increment of the cell where the object is detected (p=0.7)
+	private float[] logOddsMiss = {-0.4f, -0.4f, -0.4f, -0.4f};	// occupancy decrement of the cells traversed by the beam (p=0.4)
+
+	/**
+	 * \brief Set where a sensor is mounted on the robot.
+	 * \param channel sensor index (0..3)
+	 * \param x position along the forward axis (mm)
+	 * \param y position along the left axis (mm)
+	 * \param theta orientation of the sensor beam (radians)
+	 * \return none
+	 */
+	public void setMount(int channel, double x, double y, double theta) {
+		mountX[channel] = x;
+		mountY[channel] = y;
+		mountTheta[channel] = theta;
+	}
+
+	/**
+	 * \brief Set the maximum range of a sensor, i.e. how far the free space is traced when nothing is detected.
+	 * \param channel sensor index (0..3)
+	 * \param range maximum range of the sensor (mm)
+	 * \return none
+	 */
+	public void setMaxRange(int channel, double range) {
+		maxRange[channel] = range;
+	}
+
+	/**
+	 * \brief Set how much a reading changes the occupancy of the cells (log-odds).
+	 * \param channel sensor index (0..3)
+	 * \param hit value added to the cell where the object is detected (positive)
+	 * \param miss value added to the free cells traversed by the beam (negative)
+	 * \return none
+	 */
+	public void setLogOdds(int channel, float hit, float miss) {
+		logOddsHit[channel] = hit;
+		logOddsMiss[channel] = miss;
+	}
+
+	public double getMountX(int channel) {
+		return mountX[channel];
+	}
+
+	public double getMountY(int channel) {
+		return mountY[channel];
+	}
+
+	public double getMountTheta(int channel) {
+		return mountTheta[channel];
+	}
+
+	public double getMaxRange(int channel) {
+		return maxRange[channel];
+	}
+
+	public float getLogOddsHit(int channel) {
+		return logOddsHit[channel];
+	}
+
+	public float getLogOddsMiss(int channel) {
+		return logOddsMiss[channel];
+	}
+
+}
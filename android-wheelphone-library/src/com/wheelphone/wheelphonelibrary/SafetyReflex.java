@@ -0,0 +1,203 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file SafetyReflex.java
+ * \brief Phone side obstacle and cliff reflex
+ * \copyright GNU GPL v3
+
+
+The SafetyReflex class stops the robot when an obstacle is too near or a cliff is detected. It is checked
+by the WheelphoneRobot class while decoding each received packet (see "enableSafetyReflex"); when it
+triggers, the speeds sent in the very next command packet are overridden, without waiting for the
+application to react. Thus the worst case reaction time is one packets exchange.
+Unlike the onboard obstacle and cliff avoidance, the thresholds are configurable per sensor:
+- obstacle: the distance of the object in front of a proximity sensor (see "WheelphoneRobot.getFrontProxDistances")
+  is less than or equal to the threshold
+- cliff: the filtered ground value is lower than the threshold (darker surface/cliff => lower values)
+The reflex is released when all the sensors are back over their threshold plus the hysteresis. While
+triggered, the robot is stopped; if reverse is allowed the robot can still move backward (both speeds
+negative or zero) to get away from the obstacle.
+
+*/
+
+public class SafetyReflex {
+
+	public static final int CAUSE_NONE = 0;
+	public static final int CAUSE_OBSTACLE = 1;
+	public static final int CAUSE_CLIFF = 2;
+
+	/*
+	 * Interface that should be implemented by classes that would like to be notified when the reflex is triggered or released.
+	 * The notification is done from the packets receiving thread.
+	 */
+	public interface SafetyReflexListener {
+		public void onSafetyReflex(int cause, int sensor);	// cause is CAUSE_NONE when the reflex is released
+	}
+
+	private int[] obstacleDistance = {20, 20, 20, 20};		// mm, 0 to disable the sensor
+	private int obstacleHysteresis = 5;						// mm
+	private int[] cliffThreshold = {0, 0, 0, 0};			// 0 to disable the sensor
+	private int cliffHysteresis = 5;
+	private boolean allowReverse = true;
+
+	private volatile boolean enabled = false;
+	private volatile int cause = CAUSE_NONE;				// written by the receiving thread, read by the sending thread
+	private int triggerSensor = -1;
+	private long triggerCount = 0;
+	private SafetyReflexListener listener = null;
+
+	/**
+	 * \brief Set the obstacle distance threshold of a front proximity sensor.
+	 * \param sensor sensor index (0..3)
+	 * \param mm the reflex triggers when an object is at this distance or nearer, 0 to ignore the sensor
+	 * \return none
+	 */
+	public void setObstacleDistance(int sensor, int mm) {
+		obstacleDistance[sensor] = mm;
+	}
+
+	/**
+	 * \brief Set the cliff threshold of a ground sensor.
+	 * \param sensor sensor index (0..3)
+	 * \param value the reflex triggers when the filtered ground value is lower than this, 0 to ignore the sensor
+	 * \return none
+	 */
+	public void setCliffThreshold(int sensor, int value) {
+		cliffThreshold[sensor] = value;
+	}
+
+	/**
+	 * \brief Set the hysteresis used to release the reflex.
+	 * \param obstacle distance (mm) that must be added to the obstacle threshold
+	 * \param cliff value that must be added to the cliff threshold
+	 * \return none
+	 */
+	public void setHysteresis(int obstacle, int cliff) {
+		obstacleHysteresis = obstacle;
+		cliffHysteresis = cliff;
+	}
+
+	/**
+	 * \brief Set whether the robot can move backward while the reflex is triggered (default true).
+	 * \param allow true to let backward speeds through
+	 * \return none
+	 */
+	public void setAllowReverse(boolean allow) {
+		allowReverse = allow;
+	}
+
+	public void setEnabled(boolean en) {
+		enabled = en;
+		if(!en) {
+			cause = CAUSE_NONE;
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setSafetyReflexListener(SafetyReflexListener l) {
+		listener = l;
+	}
+
+	public void removeSafetyReflexListener() {
+		listener = null;
+	}
+
+	/**
+	 * \brief Check the thresholds with the values of a received packet. Called by WheelphoneRobot while decoding.
+	 * \param distances array of size 4 containing the front proximity distances (mm)
+	 * \param ground array of size 4 containing the filtered ground values
+	 * \return none
+	 */
+	public void check(int[] distances, int[] ground) {
+		if(!enabled) {
+			return;
+		}
+		int newCause = CAUSE_NONE;
+		int sensor = -1;
+		boolean holding = false;	// at least one sensor still within the hysteresis band
+		for(int i=0; i<4; i++) {
+			int d = distances[i];
+			if(obstacleDistance[i] > 0 && d != ProxDistanceTable.NO_OBJECT) {
+				if(d <= obstacleDistance[i]) {
+					newCause = CAUSE_OBSTACLE;
+					sensor = i;
+					break;
+				}
+				if(d <= obstacleDistance[i] + obstacleHysteresis) {
+					holding = true;
+				}
+			}
+		}
+		if(newCause == CAUSE_NONE) {
+			for(int i=0; i<4; i++) {
+				if(cliffThreshold[i] > 0) {
+					if(ground[i] < cliffThreshold[i]) {
+						newCause = CAUSE_CLIFF;
+						sensor = i;
+						break;
+					}
+					if(ground[i] < cliffThreshold[i] + cliffHysteresis) {
+						holding = true;
+					}
+				}
+			}
+		}
+		if(newCause != CAUSE_NONE) {
+			if(cause != newCause) {
+				cause = newCause;
+				triggerSensor = sensor;
+				triggerCount++;
+				if(listener != null) {
+					listener.onSafetyReflex(newCause, sensor);
+				}
+			}
+		} else if(cause != CAUSE_NONE && !holding) {
+			cause = CAUSE_NONE;
+			triggerSensor = -1;
+			if(listener != null) {
+				listener.onSafetyReflex(CAUSE_NONE, -1);
+			}
+		}
+	}
+
+	/**
+	 * \brief Tell whether the speeds must be overridden with 0. Called by WheelphoneRobot when building the command packet.
+	 * \param l left speed requested by the application
+	 * \param r right speed requested by the application
+	 * \return true if the robot must be stopped, false if the speeds can be sent
+	 */
+	public boolean blocks(int l, int r) {
+		if(cause == CAUSE_NONE) {
+			return false;
+		}
+		return !(allowReverse && l <= 0 && r <= 0);
+	}
+
+	/**
+	 * \brief Return the cause of the reflex currently triggered.
+	 * \return CAUSE_NONE, CAUSE_OBSTACLE or CAUSE_CLIFF
+	 */
+	public int getCause() {
+		return cause;
+	}
+
+	/**
+	 * \brief Return the sensor that triggered the reflex.
+	 * \return sensor index (0..3), -1 if not triggered
+	 */
+	public int getTriggerSensor() {
+		return triggerSensor;
+	}
+
+	/**
+	 * \brief Return how many times the reflex was triggered.
+	 * \return number of triggers
+	 */
+	public long getTriggerCount() {
+		return triggerCount;
+	}
+
+}
@@ -0,0 +1,238 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file SensorFilter.java
+ * \brief Filtering of the proximity and ground sensors values
+ * \copyright GNU GPL v3
+
+
+The SensorFilter class smooths the sensors values received from the robot. It is applied by the
+WheelphoneRobot class to each received packet, before the values are published (see "getSensorFrame").
+Each group of channels (front proximity, front ambient, ground proximity, ground ambient) can be configured
+with one of the following filters:
+- FILTER_NONE: the filtered value is the raw value
+- FILTER_EMA: exponential moving average, the parameter is the weight of the new sample (0..1)
+- FILTER_MOVING_AVERAGE: average of the last N samples, the parameter is N (1..MAX_WINDOW)
+- FILTER_MEDIAN: median of the last N samples, the parameter is N (1..MAX_WINDOW)
+Moreover an outlier clamp can be enabled per group: a new sample differing from the previous filtered
+value by more than the given step is limited to that step before entering the filter.
+All the state is allocated when the class is created, filtering a packet doesn't allocate memory.
+The cost of the filtering can be measured online with "setCostTiming" (off by default, it reads the clock twice
+per packet); LibraryBenchmark (tools/) measures it on a desktop computer.
+
+*/
+
+public class SensorFilter {
+
+	public static final int GROUP_PROX = 0;
+	public static final int GROUP_PROX_AMBIENT = 1;
+	public static final int GROUP_GROUND = 2;
+	public static final int GROUP_GROUND_AMBIENT = 3;
+	public static final int NUM_GROUPS = 4;
+	public static final int CHANNELS_PER_GROUP = 4;
+
+	public static final int FILTER_NONE = 0;
+	public static final int FILTER_EMA = 1;
+	public static final int FILTER_MOVING_AVERAGE = 2;
+	public static final int FILTER_MEDIAN = 3;
+	public static final int MAX_WINDOW = 16;
+
+	// configuration per group
+	private final int[] filterType = new int[NUM_GROUPS];
+	private final double[] emaAlpha = new double[NUM_GROUPS];
+	private final int[] windowSize = new int[NUM_GROUPS];
+	private final int[] clampStep = new int[NUM_GROUPS];		// 0 => outlier clamp disabled
+
+	// state per group and channel
+	private final double[][] emaState = new double[NUM_GROUPS][CHANNELS_PER_GROUP];
+	private final int[][][] window = new int[NUM_GROUPS][CHANNELS_PER_GROUP][MAX_WINDOW];
+	private final int[][] windowSum = new int[NUM_GROUPS][CHANNELS_PER_GROUP];
+	private final int[] windowPos = new int[NUM_GROUPS];
+	private final int[] windowFill = new int[NUM_GROUPS];
+	private final int[][] lastOutput = new int[NUM_GROUPS][CHANNELS_PER_GROUP];
+	private final boolean[] initialized = new boolean[NUM_GROUPS];
+	private final int[] sortBuffer = new int[MAX_WINDOW];
+
+	// cost of the filtering, see "setCostTiming"
+	private volatile boolean costTiming = false;
+	private long lastCostNs = 0;
+	private double averageCostNs = 0.0;
+
+	public SensorFilter() {
+		for(int g=0; g<NUM_GROUPS; g++) {
+			filterType[g] = FILTER_NONE;
+			emaAlpha[g] = 1.0;
+			windowSize[g] = 1;
+		}
+	}
+
+	/**
+	 * \brief Set the filter of a group of channels; the state of the group is reset.
+	 * \param group one of GROUP_PROX, GROUP_PROX_AMBIENT, GROUP_GROUND, GROUP_GROUND_AMBIENT
+	 * \param type one of FILTER_NONE, FILTER_EMA, FILTER_MOVING_AVERAGE, FILTER_MEDIAN
+	 * \param param EMA weight of the new sample (0..1) or number of samples (1..MAX_WINDOW), not used for FILTER_NONE
+	 * \return none
+	 */
+	public synchronized void setFilter(int group, int type, double param) {
+		switch(type) {
+			case FILTER_NONE:
+				break;
+			case FILTER_EMA:
+				if(param <= 0.0 || param > 1.0) {
+					throw new IllegalArgumentException("EMA weight must be in (0, 1]");
+				}
+				emaAlpha[group] = param;
+				break;
+			case FILTER_MOVING_AVERAGE:
+			case FILTER_MEDIAN:
+				if(param < 1 || param > MAX_WINDOW) {
+					throw new IllegalArgumentException("window must be in [1, " + MAX_WINDOW + "]");
+				}
+				windowSize[group] = (int)param;
+				break;
+			default:
+				throw new IllegalArgumentException("unknown filter type " + type);
+		}
+		filterType[group] = type;
+		initialized[group] = false;
+	}
+
+	/**
+	 * \brief Enable/disable the outlier clamp of a group of channels.
+	 * \param group one of GROUP_PROX, GROUP_PROX_AMBIENT, GROUP_GROUND, GROUP_GROUND_AMBIENT
+	 * \param maxStep maximum change accepted between two samples, 0 to disable the clamp
+	 * \return none
+	 */
+	public synchronized void setOutlierClamp(int group, int maxStep) {
+		clampStep[group] = maxStep;
+	}
+
+	/**
+	 * \brief Reset the state of all the filters; the next packet restarts the filtering from its raw values.
+	 * \return none
+	 */
+	public synchronized void reset() {
+		for(int g=0; g<NUM_GROUPS; g++) {
+			initialized[g] = false;
+		}
+	}
+
+	/**
+	 * \brief Filter the values of a packet. Called by WheelphoneRobot each time a packet is received.
+	 * \param prox, proxAmbient, ground, groundAmbient raw values (arrays of size 4)
+	 * \param proxOut, proxAmbientOut, groundOut, groundAmbientOut filtered values (arrays of size 4)
+	 * \return none
+	 */
+	public synchronized void apply(int[] prox, int[] proxAmbient, int[] ground, int[] groundAmbient,
+			int[] proxOut, int[] proxAmbientOut, int[] groundOut, int[] groundAmbientOut) {
+		boolean timed = costTiming;
+		long start = timed ? System.nanoTime() : 0;
+		applyGroup(GROUP_PROX, prox, proxOut);
+		applyGroup(GROUP_PROX_AMBIENT, proxAmbient, proxAmbientOut);
+		applyGroup(GROUP_GROUND, ground, groundOut);
+		applyGroup(GROUP_GROUND_AMBIENT, groundAmbient, groundAmbientOut);
+		if(timed) {
+			lastCostNs = System.nanoTime() - start;
+			averageCostNs += (lastCostNs - averageCostNs)*0.01;
+		}
+	}
+
+	private void applyGroup(int g, int[] in, int[] out) {
+		int[] last = lastOutput[g];
+		if(!initialized[g]) {	// start from the current raw values
+			for(int c=0; c<CHANNELS_PER_GROUP; c++) {
+				emaState[g][c] = in[c];
+				windowSum[g][c] = 0;
+				last[c] = in[c];
+			}
+			windowPos[g] = 0;
+			windowFill[g] = 0;
+			initialized[g] = true;
+		}
+		int step = clampStep[g];
+		int type = filterType[g];
+		int n = windowSize[g];
+		int pos = windowPos[g];
+		for(int c=0; c<CHANNELS_PER_GROUP; c++) {
+			int v = in[c];
+			if(step > 0) {
+				if(v > last[c] + step) {
+					v = last[c] + step;
+				} else if(v < last[c] - step) {
+					v = last[c] - step;
+				}
+			}
+			int[] w = window[g][c];
+			switch(type) {
+				case FILTER_EMA:
+					emaState[g][c] += emaAlpha[g]*(v - emaState[g][c]);
+					v = (int)Math.round(emaState[g][c]);
+					break;
+				case FILTER_MOVING_AVERAGE:
+					if(windowFill[g] == n) {
+						windowSum[g][c] -= w[pos];
+					}
+					w[pos] = v;
+					windowSum[g][c] += v;
+					v = Math.round((float)windowSum[g][c]/Math.min(windowFill[g] + 1, n));
+					break;
+				case FILTER_MEDIAN:
+					w[pos] = v;
+					v = median(w, Math.min(windowFill[g] + 1, n));
+					break;
+				default:
+					break;
+			}
+			out[c] = v;
+			last[c] = v;
+		}
+		if(type == FILTER_MOVING_AVERAGE || type == FILTER_MEDIAN) {
+			windowPos[g] = (pos + 1) % n;
+			if(windowFill[g] < n) {
+				windowFill[g]++;
+			}
+		}
+	}
+
+	/**
+	 * \brief Median of the first "count" values (insertion sort in the preallocated buffer, count is small).
+	 */
+	private int median(int[] values, int count) {
+		for(int i=0; i<count; i++) {
+			int v = values[i];
+			int j = i - 1;
+			while(j >= 0 && sortBuffer[j] > v) {
+				sortBuffer[j+1] = sortBuffer[j];
+				j--;
+			}
+			sortBuffer[j+1] = v;
+		}
+		return sortBuffer[count/2];
+	}
+
+	/**
+	 * \brief Enable/disable the measure of the time spent filtering each packet (disabled by default).
+	 * \param enabled true to measure the cost (see "getLastCostNs", "getAverageCostNs")
+	 * \return none
+	 */
+	public void setCostTiming(boolean enabled) {
+		costTiming = enabled;
+	}
+
+	/**
+	 * \brief Return the time spent filtering the last packet (see "setCostTiming").
+	 * \return time in nanoseconds, 0 if not measured
+	 */
+	public synchronized long getLastCostNs() {
+		return lastCostNs;
+	}
+
+	/**
+	 * \brief Return the average time spent filtering a packet (moving average over about 100 packets).
+	 * \return time in nanoseconds
+	 */
+	public synchronized double getAverageCostNs() {
+		return averageCostNs;
+	}
+
+}
@@ -0,0 +1,198 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file SensorFrame.java
+ * \brief Snapshot of the robot state decoded from a packet
+ * \copyright GNU GPL v3
+
+
+The SensorFrame class contains all the values decoded from one packet received from the robot, both raw
+and filtered (see SensorFilter), together with the resulting odometry. The WheelphoneRobot class publishes
+a new frame each time a packet is received; "WheelphoneRobot.getSensorFrame" copies the last published frame
+atomically, i.e. all the values returned come from the same packet.
+The application should allocate its own frame once and reuse it.
+The values of the data log can also be copied in a binary record ("writeLogRecord", LOG_RECORD_SIZE bytes),
+queued to the AsyncLogger and converted to the CSV line by its writer thread ("newCsvFormatter").
+
+*/
+
+public class SensorFrame {
+
+	public static final String CSV_HEADER = "prox0,prox1,prox2,prox3,proxAmb0,proxAmb1,proxAmb2,proxAmb3,ground0,ground1,ground2,ground3,groundAmb0,groundAmb1,groundAmb2,groundAmb3,battery,flagRobotToPhone,leftSpeed,rightSpeed,x,y,theta";	// columns of the data log
+	public static final int CSV_POSITION_DECIMALS = 3;		// decimals of x and y (mm) in the data log
+	public static final int CSV_ANGLE_DECIMALS = 6;			// decimals of theta (radians) in the data log
+	public static final int LOG_RECORD_SIZE = 19*4 + 1 + 3*8;	// values of the data log: 19 int, the flags, 3 double
+
+	public final int[] prox = new int[4];					// front proximity values
+	public final int[] proxAmbient = new int[4];			// front proximity ambient values
+	public final int[] ground = new int[4];					// ground proximity values
+	public final int[] groundAmbient = new int[4];			// ground proximity ambient values
+	public final int[] proxFiltered = new int[4];
+	public final int[] proxAmbientFiltered = new int[4];
+	public final int[] groundFiltered = new int[4];
+	public final int[] groundAmbientFiltered = new int[4];
+	public final int[] proxCompensated = new int[4];		// front proximity values compensated for the calibration and the ambient light
+	public final int[] proxDistances = new int[4];			// distances of the objects in front of the proximity sensors (mm)
+	public double linePosition = 0.0;						// see LineEstimator
+	public boolean lineLost = true;
+	public boolean lineIntersection = false;
+	public int battery = 0;
+	public byte flagRobotToPhone = 0;
+	public int leftSpeed = 0, rightSpeed = 0;				// measured speeds (mm/s)
+	public double x = 0.0, y = 0.0, theta = 0.0;			// odometry: x (mm), y (mm), theta (radians)
+	public long timestamp = 0;								// phone time when the packet was decoded (System.currentTimeMillis)
+	public long sequence = 0;								// number of packets decoded before this one
+	public long robotTime = -1;								// robot time when the sample was taken (ms, FEATURE_TIMESTAMP), -1 if not sent
+
+	/**
+	 * \brief Copy all the values of another frame into this one.
+	 * \param f source frame
+	 * \return none
+	 */
+	public void copyFrom(SensorFrame f) {
+		System.arraycopy(f.prox, 0, prox, 0, 4);
+		System.arraycopy(f.proxAmbient, 0, proxAmbient, 0, 4);
+		System.arraycopy(f.ground, 0, ground, 0, 4);
+		System.arraycopy(f.groundAmbient, 0, groundAmbient, 0, 4);
+		System.arraycopy(f.proxFiltered, 0, proxFiltered, 0, 4);
+		System.arraycopy(f.proxAmbientFiltered, 0, proxAmbientFiltered, 0, 4);
+		System.arraycopy(f.groundFiltered, 0, groundFiltered, 0, 4);
+		System.arraycopy(f.groundAmbientFiltered, 0, groundAmbientFiltered, 0, 4);
+		System.arraycopy(f.proxCompensated, 0, proxCompensated, 0, 4);
+		System.arraycopy(f.proxDistances, 0, proxDistances, 0, 4);
+		linePosition = f.linePosition;
+		lineLost = f.lineLost;
+		lineIntersection = f.lineIntersection;
+		battery = f.battery;
+		flagRobotToPhone = f.flagRobotToPhone;
+		leftSpeed = f.leftSpeed;
+		rightSpeed = f.rightSpeed;
+		x = f.x;
+		y = f.y;
+		theta = f.theta;
+		timestamp = f.timestamp;
+		sequence = f.sequence;
+		robotTime = f.robotTime;
+	}
+
+	/**
+	 * \brief Append the raw values and the odometry in the data log format (see CSV_HEADER), without allocating memory.
+	 * \param line destination
+	 * \return none
+	 */
+	public void appendCsv(LogLineFormatter line) {
+		for(int i=0; i<4; i++) {
+			line.append(prox[i]).append(',');
+		}
+		for(int i=0; i<4; i++) {
+			line.append(proxAmbient[i]).append(',');
+		}
+		for(int i=0; i<4; i++) {
+			line.append(ground[i]).append(',');
+		}
+		for(int i=0; i<4; i++) {
+			line.append(groundAmbient[i]).append(',');
+		}
+		line.append(battery).append(',');
+		line.append(flagRobotToPhone).append(',');
+		line.append(leftSpeed).append(',').append(rightSpeed).append(',');
+		line.append(x, CSV_POSITION_DECIMALS).append(',').append(y, CSV_POSITION_DECIMALS).append(',').append(theta, CSV_ANGLE_DECIMALS);
+	}
+
+	/**
+	 * \brief Copy the values of the data log (see "appendCsv") in a binary record, without allocating memory.
+	 * \param dst destination, at least LOG_RECORD_SIZE bytes
+	 * \return record length (LOG_RECORD_SIZE)
+	 */
+	public int writeLogRecord(byte[] dst) {
+		int p = 0;
+		for(int i=0; i<4; i++) {
+			p = putInt(dst, p, prox[i]);
+		}
+		for(int i=0; i<4; i++) {
+			p = putInt(dst, p, proxAmbient[i]);
+		}
+		for(int i=0; i<4; i++) {
+			p = putInt(dst, p, ground[i]);
+		}
+		for(int i=0; i<4; i++) {
+			p = putInt(dst, p, groundAmbient[i]);
+		}
+		p = putInt(dst, p, battery);
+		p = putInt(dst, p, leftSpeed);
+		p = putInt(dst, p, rightSpeed);
+		dst[p++] = flagRobotToPhone;
+		p = putLong(dst, p, Double.doubleToRawLongBits(x));
+		p = putLong(dst, p, Double.doubleToRawLongBits(y));
+		p = putLong(dst, p, Double.doubleToRawLongBits(theta));
+		return p;
+	}
+
+	/**
+	 * \brief Set the values of the data log from a record written with "writeLogRecord".
+	 * \param src record
+	 * \return none
+	 */
+	public void readLogRecord(byte[] src) {
+		int p = 0;
+		for(int i=0; i<4; i++, p+=4) {
+			prox[i] = getInt(src, p);
+		}
+		for(int i=0; i<4; i++, p+=4) {
+			proxAmbient[i] = getInt(src, p);
+		}
+		for(int i=0; i<4; i++, p+=4) {
+			ground[i] = getInt(src, p);
+		}
+		for(int i=0; i<4; i++, p+=4) {
+			groundAmbient[i] = getInt(src, p);
+		}
+		battery = getInt(src, p);
+		leftSpeed = getInt(src, p + 4);
+		rightSpeed = getInt(src, p + 8);
+		p += 12;
+		flagRobotToPhone = src[p++];
+		x = Double.longBitsToDouble(getLong(src, p));
+		y = Double.longBitsToDouble(getLong(src, p + 8));
+		theta = Double.longBitsToDouble(getLong(src, p + 16));
+	}
+
+	/**
+	 * \brief Return a formatter converting the records of "writeLogRecord" to the CSV lines of the data log, for
+	 *  "AsyncLogger.setRecordFormatter"; each formatter has its own frame, used by the writer thread only.
+	 * \return formatter
+	 */
+	public static AsyncLogger.RecordFormatter newCsvFormatter() {
+		return new AsyncLogger.RecordFormatter() {
+			private final SensorFrame frame = new SensorFrame();
+			public void format(byte[] record, int len, LogLineFormatter line) {
+				if(len >= LOG_RECORD_SIZE) {
+					frame.readLogRecord(record);
+					frame.appendCsv(line);
+				}
+			}
+		};
+	}
+
+	private static int putInt(byte[] b, int p, int v) {
+		b[p] = (byte)v;
+		b[p + 1] = (byte)(v >> 8);
+		b[p + 2] = (byte)(v >> 16);
+		b[p + 3] = (byte)(v >> 24);
+		return p + 4;
+	}
+
+	private static int putLong(byte[] b, int p, long v) {
+		putInt(b, p, (int)v);
+		return putInt(b, p + 4, (int)(v >> 32));
+	}
+
+	private static int getInt(byte[] b, int p) {
+		return (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | ((b[p + 2] & 0xFF) << 16) | (b[p + 3] << 24);
+	}
+
+	private static long getLong(byte[] b, int p) {
+		return (getInt(b, p) & 0xFFFFFFFFL) | ((long)getInt(b, p + 4) << 32);
+	}
+
+}
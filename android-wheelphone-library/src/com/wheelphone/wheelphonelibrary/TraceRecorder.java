@@ -0,0 +1,218 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file TraceRecorder.java
+ * \brief Always-on in-memory recorder of the communication events
+ * \copyright GNU GPL v3
+
+
+The TraceRecorder class keeps the last events of the communication (timer ticks, packets sent and received,
+USB reads, timeouts, connection changes...) in a fixed size ring in memory, like a flight recorder. Recording
+an event only stores the event id, the time (System.nanoTime) and 3 integer arguments: no lock, no allocation,
+no I/O, thus it can stay always enabled without changing the timing of the communication. When the oldest
+events are overwritten they are lost.
+The ring is written to a file only when requested ("dump", "dumpAsync"); WheelphoneRobot dumps it when the
+robot is detached and when the communication times out. The dump is a CSV file:
+\verbatim
+ time_ns,event,arg0,arg1,arg2
+\endverbatim
+Multiple threads can record at the same time. A slot being overwritten while dumping is skipped.
+
+*/
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class TraceRecorder {
+
+	// events (arguments in brackets)
+	public static final int EV_TIMER_TICK = 1;		// communication timer task run (task id, packet received flag, timeout counter)
+	public static final int EV_SEND = 2;			// command packet sent (left speed, right speed, flags)
+	public static final int EV_READ = 3;			// READ event handled (bytes available)
+	public static final int EV_PACKET = 4;			// packet decoded (left measured speed, right measured speed, flagRobotToPhone)
+	public static final int EV_TIMEOUT = 5;			// communication timeout, no packet for too long (task id, timeout counter)
+	public static final int EV_ATTACHED = 6;
+	public static final int EV_READY = 7;			// accessory ready (firmware version)
+	public static final int EV_DETACHED = 8;
+	public static final int EV_CONNECT = 9;			// APP_CONNECT sent
+	public static final int EV_DISCONNECT = 10;		// APP_DISCONNECT sent
+	public static final int EV_START = 11;			// communication started (timer task id)
+	public static final int EV_CLOSE = 12;			// communication closed
+	public static final int EV_USB_RX = 13;			// bytes received by the USB read thread (bytes)
+	public static final int EV_USB_WRITE_ERROR = 14;	// USB write failed (tries left)
+	public static final int EV_DUMP = 15;			// dump requested
+	public static final int EV_FAULT = 16;			// fault injected by USBAccessoryManagerFaulty (fault class, parameter)
+	public static final int EV_FRAME_ERROR = 17;	// frame rejected or lost (FRAME_*, sequence number or bytes, frames lost)
+	public static final int FRAME_CORRUPTED = 1;
+	public static final int FRAME_DUPLICATE = 2;
+	public static final int FRAME_LOST = 3;
+	public static final int FRAME_STALLED = 4;		// incomplete frame discarded
+	public static final int EV_USB_OVERFLOW = 18;	// receive buffer full: transfer and buffered bytes discarded (transfer bytes, buffered bytes)
+	public static final int EV_USER = 100;			// first id available to the application
+
+	private static final String[] NAMES = {"", "TIMER_TICK", "SEND", "READ", "PACKET", "TIMEOUT", "ATTACHED", "READY", "DETACHED",
+		"CONNECT", "DISCONNECT", "START", "CLOSE", "USB_RX", "USB_WRITE_ERROR", "DUMP", "FAULT", "FRAME_ERROR",
+		"USB_OVERFLOW"};
+
+	private static final int FIELDS = 4;			// per slot: sequence, time, id|arg0, arg1|arg2
+	private final int capacity;
+	private final int mask;
+	private final AtomicLongArray slots;
+	private final AtomicLong cursor = new AtomicLong(0);
+	private volatile boolean enabled = true;
+
+	/**
+	 * \brief Class constructor
+	 * \param events number of events kept (rounded up to a power of 2)
+	 * \return TraceRecorder instance
+	 */
+	public TraceRecorder(int events) {
+		int c = 1;
+		while(c < events) {
+			c <<= 1;
+		}
+		capacity = c;
+		mask = c - 1;
+		slots = new AtomicLongArray(c*FIELDS);
+		for(int i=0; i<c; i++) {
+			slots.set(i*FIELDS, -1);	// never written
+		}
+	}
+
+	public void setEnabled(boolean en) {
+		enabled = en;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * \brief Record an event.
+	 * \param id event identifier (EV_*)
+	 * \param arg0 first argument
+	 * \param arg1 second argument
+	 * \param arg2 third argument
+	 * \return none
+	 */
+	public void record(int id, int arg0, int arg1, int arg2) {
+		if(!enabled) {
+			return;
+		}
+		long seq = cursor.getAndIncrement();
+		int base = ((int)seq & mask)*FIELDS;
+		slots.lazySet(base, -2);		// being written
+		slots.lazySet(base + 1, System.nanoTime());
+		slots.lazySet(base + 2, ((long)id << 32) | (arg0 & 0xFFFFFFFFL));
+		slots.lazySet(base + 3, ((long)arg1 << 32) | (arg2 & 0xFFFFFFFFL));
+		slots.lazySet(base, seq);		// ordered after the fields
+	}
+
+	public void record(int id) {
+		record(id, 0, 0, 0);
+	}
+
+	/**
+	 * \brief Return the number of events recorded since the creation (including the overwritten ones).
+	 * \return number of events
+	 */
+	public long getEventCount() {
+		return cursor.get();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * \brief Copy the events currently in the ring, oldest first.
+	 * \param time destination of the times (System.nanoTime), size at least "getCapacity()"
+	 * \param id destination of the event ids
+	 * \param args destination of the arguments (3 per event)
+	 * \return number of events copied
+	 */
+	public int snapshot(long[] time, int[] id, int[] args) {
+		long end = cursor.get();
+		long start = Math.max(0, end - capacity);
+		int n = 0;
+		for(long seq=start; seq<end; seq++) {
+			int base = ((int)seq & mask)*FIELDS;
+			if(slots.get(base) != seq) {
+				continue;	// being written or already overwritten
+			}
+			long t = slots.get(base + 1);
+			long a = slots.get(base + 2);
+			long b = slots.get(base + 3);
+			if(slots.get(base) != seq) {
+				continue;
+			}
+			time[n] = t;
+			id[n] = (int)(a >> 32);
+			args[n*3] = (int)a;
+			args[n*3 + 1] = (int)(b >> 32);
+			args[n*3 + 2] = (int)b;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * \brief Write the events currently in the ring to a CSV file; the recording continues meanwhile.
+	 * \param file destination file
+	 * \return number of events written
+	 */
+	public int dump(File file) throws IOException {
+		long[] time = new long[capacity];
+		int[] id = new int[capacity];
+		int[] args = new int[capacity*3];
+		int n = snapshot(time, id, args);
+		File parent = file.getParentFile();
+		if(parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		BufferedWriter out = new BufferedWriter(new FileWriter(file), 64*1024);
+		try {
+			out.write("time_ns,event,arg0,arg1,arg2\n");
+			for(int i=0; i<n; i++) {
+				out.write(time[i] + "," + eventName(id[i]) + "," + args[i*3] + "," + args[i*3 + 1] + "," + args[i*3 + 2] + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		return n;
+	}
+
+	/**
+	 * \brief Dump the ring from a background thread, so that the calling thread (e.g. the communication timer) is not slowed down.
+	 * \param dir destination directory
+	 * \param reason text added to the file name ("trace-<time>-<reason>.csv")
+	 * \return none
+	 */
+	public void dumpAsync(File dir, String reason) {
+		record(EV_DUMP);
+		final File f = new File(dir, "trace-" + System.currentTimeMillis() + "-" + reason + ".csv");
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					dump(f);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "TraceRecorderDump");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public static String eventName(int id) {
+		if(id > 0 && id < NAMES.length) {
+			return NAMES[id];
+		}
+		return Integer.toString(id);
+	}
+
+}
@@ -1,10 +1,5 @@
 package com.wheelphone.wheelphonelibrary;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
@@ -12,6 +7,8 @@ import android.os.Handler;
 public abstract class USBAccessoryManager {
 	
 	public Context mContext;
+	LoggerSource logger = null;		// logger of WheelphoneRobot, see "setLogger"
+	TraceRecorder trace = null;		// communication events, see "setTraceRecorder"
 	
 	/**
 	 * Enumeration of possible return values for the enable function
@@ -50,47 +47,85 @@ public abstract class USBAccessoryManager {
 		return true;
 	}
 	
+	/**
+	 * Gives the logger used for the debug files; the WheelphoneRobot instance creates its logger when
+	 * something is logged the first time, thus the manager asks for it at each line
+	 */
+	interface LoggerSource {
+		AsyncLogger getLogger();
+	}
+	
+	/**
+	 * Sets the logger used for the debug files (normally the one of the WheelphoneRobot instance); without
+	 * logger the debug lines are discarded
+	 * 
+	 * @param l
+	 *            the logger source
+	 */
+	void setLogger(LoggerSource l) {
+		logger = l;
+	}
+	
+	/**
+	 * Sets the recorder of the communication events (normally the one of the WheelphoneRobot instance)
+	 * 
+	 * @param t
+	 *            the trace recorder
+	 */
+	void setTraceRecorder(TraceRecorder t) {
+		trace = t;
+	}
+	
 	void appendLog(String fileName, String text, boolean clearFile)
-	{       
-	   File logFile = new File("sdcard/" + fileName);
-	   if (!logFile.exists()) {
-	      try
-	      {
-	         logFile.createNewFile();
-	      } 
-	      catch (IOException e)
-	      {
-	         // TODO Auto-generated catch block
-	         e.printStackTrace();
-	      }
-	   } else {
-		   if(clearFile) {
-			   logFile.delete();
-			   try {
-				   logFile.createNewFile();
-			   } catch (IOException e) {
-				   // TODO Auto-generated catch block
-				   e.printStackTrace();
-			   }
-		   }
-	   }
-	   try
-	   {
-	      //BufferedWriter for performance, true to set append to file flag
-	      BufferedWriter buf = new BufferedWriter(new FileWriter(logFile, true)); 
-	      buf.append(text);
-	      buf.newLine(); 
-	      buf.close();
-	   }
-	   catch (IOException e)
-	   {
-	      // TODO Auto-generated catch block
-	      e.printStackTrace();
-	   }
+	{
+		LoggerSource source = logger;
+		if(source == null) {
+			return;
+		}
+		source.getLogger().append(fileName, text, clearFile);	// queued, written by the logger thread
+	}
+	
+	/**
+	 * Queues a line formatted with a LogLineFormatter, without allocating memory
+	 * 
+	 * @param fileName
+	 *            name of the file inside the log directory
+	 * @param line
+	 *            the formatted line
+	 */
+	void appendLog(String fileName, LogLineFormatter line)
+	{
+		LoggerSource source = logger;
+		if(source == null) {
+			return;
+		}
+		AsyncLogger l = source.getLogger();
+		l.append(l.openStream(fileName), line.chars(), line.length());
 	}
 	
 	public String getVersion() {
 		return "";
 	}
 	
+	/**
+	 * Returns the time at which the last packet was received; the transports
+	 * replaying or simulating packets return their own time
+	 * 
+	 * @return time in ms (as System.currentTimeMillis)
+	 */
+	long getPacketTime() {
+		return System.currentTimeMillis();
+	}
+	
+	/**
+	 * Returns the time at which the last packet was received with the clock
+	 * used to synchronize the robot time (see ClockSync); the transports
+	 * replaying or simulating packets return their own time
+	 * 
+	 * @return time in ns (as System.nanoTime)
+	 */
+	long getPacketNanoTime() {
+		return System.nanoTime();
+	}
+	
 }
\ No newline at end of file
@@ -28,7 +28,6 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 
 import android.annotation.SuppressLint;
 import android.app.PendingIntent;
@@ -68,11 +67,16 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 	private FileOutputStream outputStream = null;
 	private ParcelFileDescriptor parcelFileDescriptor = null;
 	private ReadThread readThread = null;
+	private UsbAccessory openedAccessory = null;	// accessory managed by this instance, see "getVersion"
 
-	private ArrayList<byte[]> readData = new ArrayList<byte[]>();
+	private static final int READ_BUFFER_SIZE = 16*1024;	// many packets, the bytes are consumed at each READ
+	private final ByteRingBuffer readData = new ByteRingBuffer(READ_BUFFER_SIZE);	// bytes received, written by the ReadThread
+	private final USBAccessoryManagerMessageAndroidLib readMessage = new USBAccessoryManagerMessageAndroidLib(
+			USBAccessoryManagerMessageAndroidLib.MessageType.READ);	// posted for each chunk received
 	
 	private String TAG = USBAccessoryManagerAndroidLib.class.getName();
 	private String logString;
+	private final LogLineFormatter writeLine = new LogLineFormatter();	// debug lines of the write function
 	private boolean debugUsbComm = false;
 	
 	/***********************************************************************/
@@ -154,6 +158,7 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 			// only
 			// supports one accessory, so this is it)
 			accessory = accessories[0];
+			openedAccessory = accessory;
 
 			// If the accessory isn't null, then let's try to attach to it.
 			if (accessory != null) {
@@ -320,79 +325,11 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 	 *            the number of bytes to discard
 	 */
 	void ignore(int num) {
-		int amountRead = 0;
-
 		// If the accessory is not connected, then we can't really do anything
-		if (isConnected() == false) {
-			// throw new USBAccessoryManagerException(
-			// USB_ACCESSORY_NOT_CONNECTED );
-			return;
-		}
-
-		// Must request to ignore 1 or more bytes, otherwise do nothing
-		if (num <= 0) {
+		if (isConnected() == false || num <= 0) {
 			return;
 		}
-
-		// synchronizing to the readData object so that the ReadThread and this
-		// don't try to access the readData object at the same time. This will
-		// block whoever tries to access it second until it is available.
-		synchronized (readData) {
-			// Keep reading through the data objects until one of the many
-			// internal
-			// checks decides to exit. This each entry in this loop either
-			// returns
-			// or removed objects from the list (which ultimately causes a
-			// return),
-			// this loop should always exit.
-			while (true) {
-				// If there are no more data objects in the list, exit
-				if (readData.size() == 0) {
-					return;
-				}
-
-				// If we have ignored the requested amount of data from the
-				// buffer, then exit
-				if (amountRead == num) {
-					return;
-				}
-
-				if ((num - amountRead) >= readData.get(0).length) {
-					// We need to ignore equal to or greater than the size of
-					// data in this entry
-
-					// then ignore the whole size of the entry
-					amountRead += readData.get(0).length;
-
-					// and remove it from the list.
-					readData.remove(0);
-				} else {
-					// We need to ignore only a portion of the data in this
-					// entry
-
-					// only remove a portion of the entry, leaving part of the
-					// data
-					int amountRemoved = num - amountRead;
-					byte[] newData = new byte[readData.get(0).length
-							- amountRemoved];
-
-					// Copy the remaining data in to a new buffer
-					for (int i = 0; i < newData.length; i++) {
-						newData[i] = readData.get(0)[i + amountRemoved];
-					}
-
-					// remove the old entry
-					readData.remove(0);
-
-					// add a new entry to the front of the buffer with the
-					// remaining data
-					readData.add(0, newData);
-
-					// since we have now read all of the data that we need, exit
-					return;
-				}
-			}
-		}
+		readData.skip(num);
 	}
 
 	/**
@@ -403,64 +340,11 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 	 * @return the number of bytes copied from the buffer
 	 */
 	int peek(byte[] array) {
-		int amountRead = 0;
-		int currentNode = 0;
-
 		// If an accessory is not connected, this request is invalid
 		if (isConnected() == false) {
-			// throw new USBAccessoryManagerException(
-			// USB_ACCESSORY_NOT_CONNECTED );
-			return 0;
-		}
-
-		// If there is no data available, then return 0 bytes read
-		if (array.length == 0) {
 			return 0;
 		}
-
-		/*
-		 * Synchronize to the readData object so that the ReadThread doesn't
-		 * attempt to add more data to the readData list while we are accessing
-		 * it.
-		 */
-		synchronized (readData) {
-			/* While we still have data to read */
-			while (true) {
-				/*
-				 * if we have run out of list objects to peek from... (no data
-				 * left to peek)
-				 */
-				if (currentNode >= readData.size()) {
-					/* then return the amount that we have read */
-					return amountRead;
-				}
-
-				/*
-				 * if the amount that we have read exactly matches the amount
-				 * that we need
-				 */
-				if (amountRead == array.length) {
-					return amountRead;
-				}
-
-				if ((array.length - amountRead) >= readData.get(currentNode).length) {
-					// If the amount we need to read is larger than or equal to
-					// the data buffer for this node
-					for (int i = 0; i < readData.get(currentNode).length; i++) {
-						array[amountRead++] = readData.get(currentNode)[i];
-					}
-					currentNode++;
-				} else {
-					// If the amount we need to read is less than the data
-					// buffer for this node
-					for (int i = 0; i < (array.length - amountRead); i++) {
-						array[amountRead++] = readData.get(currentNode)[i];
-					}
-
-					return amountRead;
-				}
-			}
-		}
+		return readData.peek(array);
 	}
 
 	/**
@@ -472,26 +356,11 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 	 * @return the number of bytes available in the read queue
 	 */
 	int available() {
-		int amount = 0;
-
 		// If the accessory is not connected, then this request is invalid
 		if (isConnected() == false) {
-			// throw new USBAccessoryManagerException(
-			// USB_ACCESSORY_NOT_CONNECTED );
 			return 0;
 		}
-
-		/*
-		 * Synchronize to the readData object so that the ReadThread doesn't try
-		 * to add data the list while we are accessing it.
-		 */
-		synchronized (readData) {
-			for (byte[] b : readData) {
-				amount += b.length;
-			}
-		}
-
-		return amount;
+		return readData.available();
 	}
 
 	/**
@@ -503,84 +372,11 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 	 *         array param
 	 */
 	int read(byte[] array) {
-		int amountRead = 0;
-
 		/* If an accessory is not connected, this request is not valid */
 		if (isConnected() == false) {
-			// throw new USBAccessoryManagerException(
-			// USB_ACCESSORY_NOT_CONNECTED );
 			return 0;
 		}
-
-		/* if there is no data to read, return 0 instead of blocking */
-		if (array.length == 0) {
-			return 0;
-		}
-
-		/*
-		 * Synchronize to the readData object so that the ReadThread doesn't try
-		 * to add data to the list while we are accessing it.
-		 */
-		synchronized (readData) {
-			/* while we still have data to read */
-			while (true) {
-				/*
-				 * if there is no data left in the list, exit with the amount
-				 * read already
-				 */
-				if (readData.size() == 0) {
-					return amountRead;
-				}
-
-				/*
-				 * if we have read all of the data that we can store in the
-				 * buffer provided, then exit.
-				 */
-				if (amountRead == array.length) {
-					return amountRead;
-				}
-
-				if ((array.length - amountRead) >= readData.get(0).length) {
-					/*
-					 * If the amount we need to read is larger than or equal to
-					 * the data buffer for this node, then copy what is here and
-					 * remove it from the list
-					 */
-					for (int i = 0; i < readData.get(0).length; i++) {
-						array[amountRead++] = readData.get(0)[i];
-					}
-					readData.remove(0);
-				} else {
-					// If the amount we need to read is less than the data
-					// buffer for this node
-					int amountRemoved = 0;
-
-					/* then copy what we need */
-					for (int i = 0; i < (array.length - amountRead); i++) {
-						array[amountRead++] = readData.get(0)[i];
-						amountRemoved++;
-					}
-
-					/* create a new buffer the size of the remaining data */
-					byte[] newData = new byte[readData.get(0).length
-							- amountRemoved];
-
-					/* copy the remaining data to that buffer */
-					for (int i = 0; i < newData.length; i++) {
-						newData[i] = readData.get(0)[i + amountRemoved];
-					}
-
-					/*
-					 * remove the old object and add a new object with the
-					 * remaining data
-					 */
-					readData.remove(0);
-					readData.add(0, newData);
-
-					return amountRead;
-				}
-			}
-		}
+		return readData.read(array);
 	}
 
 	/**
@@ -611,10 +407,13 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 						outputStream.write(data);
 						tries = 0;
 					} catch (IOException e) {
+						if(trace != null) {
+							trace.record(TraceRecorder.EV_USB_WRITE_ERROR, tries, 0, 0);
+						}
 						if(debugUsbComm) {
-							logString = TAG + ": write():IOException: " + e.toString();
-							Log.d(TAG, logString);
-							appendLog("debugUsbComm.txt", logString, false);
+							writeLine.clear().append(TAG).append(": write():IOException: ").append(e.toString());
+							Log.d(TAG, writeLine.toString());
+							appendLog("debugUsbComm.txt", writeLine);
 						}
 						try {
 							Thread.sleep(2000);
@@ -673,6 +472,7 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 					}
 
 					accessory = accessories[0];
+					openedAccessory = accessory;
 
 					parcelFileDescriptor = deviceManager
 							.openAccessory(accessory);
@@ -735,6 +535,7 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 				}
 
 				accessory = accessories[0];
+				openedAccessory = accessory;
 
 				parcelFileDescriptor = deviceManager.openAccessory(accessory);
 
@@ -798,6 +599,7 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 		open = false;
 		enabled = false;
 		permissionRequested = false;
+		openedAccessory = null;
 
 		if (readThread != null) {
 			readThread.cancel();
@@ -932,25 +734,21 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 //						continue;
 //					}		
 					
-					// Send the obtained bytes to the UI Activity
-					byte[] data = new byte[bytes];
-					System.arraycopy(buffer, 0, data, 0, bytes);
-
-					/*
-					 * Synchronize to the readData object to make sure that no
-					 * user API is accessing it at the moment
-					 */
-					synchronized (readData) {
-						readData.add(data);
+					if(trace != null) {
+						trace.record(TraceRecorder.EV_USB_RX, bytes, 0, 0);
 					}
 					
-					handler.obtainMessage(
-							what,
-							bytes,
-							-1,
-							new USBAccessoryManagerMessageAndroidLib(
-									USBAccessoryManagerMessageAndroidLib.MessageType.READ,
-									data)).sendToTarget();
+					// Copy the obtained bytes to the ring buffer (no allocation) and notify the UI Activity; all the READ
+					// notifications share the same message object, the bytes are taken from the buffer. If the
+					// buffer is full the transfer is dropped and the buffer emptied, the packets stay aligned
+					int discarded = readData.writeChunk(buffer, 0, bytes);
+					if(discarded > 0) {
+						if(trace != null) {
+							trace.record(TraceRecorder.EV_USB_OVERFLOW, bytes, discarded - bytes, 0);
+						}
+						continue;
+					}
+					handler.obtainMessage(what, bytes, -1, readMessage).sendToTarget();
 				} catch (IOException e) {
 					// Exiting read thread
 					break;
@@ -999,6 +797,10 @@ public class USBAccessoryManagerAndroidLib extends USBAccessoryManager {
 	
 	@SuppressLint("NewApi")
 	public String getVersion() {
+		UsbAccessory a = openedAccessory;
+		if (a != null) {
+			return a.getVersion();
+		}
 		return  ((UsbManager) mContext.getSystemService(Context.USB_SERVICE)).getAccessoryList()[0].getVersion();
 	}
 	
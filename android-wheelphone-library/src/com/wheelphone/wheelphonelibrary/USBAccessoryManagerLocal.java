@@ -0,0 +1,127 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file USBAccessoryManagerLocal.java
+ * \brief Base class of the transports not based on the Android USB accessory
+ * \copyright GNU GPL v3
+
+
+The USBAccessoryManagerLocal class is the base of the transports that exchange packets with something else
+than a robot connected via USB (a recorded session, a simulator, ...). The received bytes are stored in a
+ByteRingBuffer and the events (READY, READ, DETACHED, ...) are delivered directly to WheelphoneRobot from the
+transport thread, without an Android Handler; thus WheelphoneRobot can be used with these transports also on
+a desktop computer (see "WheelphoneRobot.startCommunication").
+A subclass implements "enable", "disable" and "write" and calls "receive" for each packet received.
+
+*/
+
+import android.content.Context;
+import android.content.Intent;
+
+public abstract class USBAccessoryManagerLocal extends USBAccessoryManager {
+
+	/*
+	 * Interface implemented by the class receiving the events of the transport (WheelphoneRobot).
+	 * The events are delivered from the transport thread.
+	 */
+	interface MessageReceiver {
+		void onAccessoryMessage(USBAccessoryManagerMessage.MessageType type);
+	}
+
+	protected final ByteRingBuffer readData;
+	protected volatile boolean connected = false;
+	protected volatile boolean closed = true;
+	protected volatile String version = "";
+	private volatile MessageReceiver receiver = null;
+
+	/**
+	 * \brief Class constructor
+	 * \param bufferSize size of the receive buffer (bytes)
+	 * \return USBAccessoryManagerLocal instance
+	 */
+	protected USBAccessoryManagerLocal(int bufferSize) {
+		readData = new ByteRingBuffer(bufferSize);
+	}
+
+	void setReceiver(MessageReceiver r) {
+		receiver = r;
+	}
+
+	@Override
+	public abstract RETURN_CODES enable(Context context, Intent intent);
+
+	@Override
+	public abstract void disable(Context context);
+
+	@Override
+	public abstract void write(byte[] data);
+
+	/**
+	 * \brief Store a received packet and notify the receiver; when the buffer is full the packet is dropped (see "ByteRingBuffer.writeChunk").
+	 * \param data packet bytes
+	 * \param off offset of the packet in the array
+	 * \param len packet length
+	 * \return none
+	 */
+	protected void receive(byte[] data, int off, int len) {
+		int discarded = readData.writeChunk(data, off, len);
+		if(trace != null) {
+			trace.record(TraceRecorder.EV_USB_RX, len, 0, 0);
+			if(discarded > 0) {
+				trace.record(TraceRecorder.EV_USB_OVERFLOW, len, discarded - len, 0);
+			}
+		}
+		if(discarded > 0) {
+			return;
+		}
+		deliver(USBAccessoryManagerMessage.MessageType.READ);
+	}
+
+	/**
+	 * \brief Notify the receiver of an event; returns when the receiver has handled it.
+	 * \param type event
+	 * \return none
+	 */
+	protected void deliver(USBAccessoryManagerMessage.MessageType type) {
+		MessageReceiver r = receiver;
+		if(r != null) {
+			r.onAccessoryMessage(type);
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public String getVersion() {
+		return version;
+	}
+
+	@Override
+	void ignore(int num) {
+		readData.skip(num);
+	}
+
+	@Override
+	int peek(byte[] array) {
+		return readData.peek(array);
+	}
+
+	@Override
+	int available() {
+		return readData.available();
+	}
+
+	@Override
+	int read(byte[] array) {
+		return readData.read(array);
+	}
+
+}
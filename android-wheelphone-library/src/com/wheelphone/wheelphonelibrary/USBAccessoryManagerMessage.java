@@ -13,7 +13,8 @@ public abstract class USBAccessoryManagerMessage {
 	/* The MessageType for this message instance */
 	public MessageType type;
 	
-	public static String getVersion() {
+	/* Version of the accessory associated with this message, "" if none */
+	public String getVersion() {
 		return "";
 	}
 	
@@ -41,8 +41,8 @@ public class USBAccessoryManagerMessageAndroidLib extends USBAccessoryManagerMes
 	public String text = null;
 	/* Data send in the read MessageType */
 	public byte[] data = null;
-	/* A USB accessory that attached */
-	public static UsbAccessory accessory = null;
+	/* A USB accessory that attached (one per message, several accessories can be managed in the same process) */
+	public UsbAccessory accessory = null;
 	
 	/** Creates new message of specified type
 	 * 
@@ -84,7 +84,8 @@ public class USBAccessoryManagerMessageAndroidLib extends USBAccessoryManagerMes
 		this.accessory = accessory;
 	}
 	
-	public static String getVersion() {
-		return accessory.getVersion();
+	@Override
+	public String getVersion() {
+		return (accessory == null) ? "" : accessory.getVersion();
 	}
 }
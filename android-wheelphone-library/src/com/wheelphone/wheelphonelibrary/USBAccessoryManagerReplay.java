@@ -0,0 +1,265 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file USBAccessoryManagerReplay.java
+ * \brief Transport replaying a packets recording
+ * \copyright GNU GPL v3
+
+
+The USBAccessoryManagerReplay class feeds the packets of a recording made with PacketRecorder to
+WheelphoneRobot, as if they were received from the robot: they go through the normal decoding, filtering,
+odometry, logging and listener notification. Usage:
+\verbatim
+ USBAccessoryManagerReplay replay = new USBAccessoryManagerReplay(new PacketRecordingReader(dir, "session"));
+ replay.setTiming(USBAccessoryManagerReplay.TIMING_MAX, 1.0);
+ robot.startCommunication(replay);
+ replay.waitForEnd(60000);
+ robot.closeUSBCommunication();
+ Log.d(TAG, replay.getReport());
+\endverbatim
+Timing modes:
+- TIMING_ORIGINAL: the packets are delivered with the same intervals as recorded
+- TIMING_SCALED: the intervals are divided by the speed factor (2.0 => twice as fast)
+- TIMING_MAX: the packets are delivered as fast as they are decoded, useful to measure the decoding throughput
+READY is delivered with the firmware version of the recording; DETACHED is delivered at the end of the recording.
+The odometry is integrated with the recorded times, thus it's the same whatever the timing mode.
+The packets sent by WheelphoneRobot are counted and discarded. The listeners are notified from the replay thread.
+
+*/
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.Intent;
+
+public class USBAccessoryManagerReplay extends USBAccessoryManagerLocal {
+
+	public static final int TIMING_ORIGINAL = 0;
+	public static final int TIMING_SCALED = 1;
+	public static final int TIMING_MAX = 2;
+
+	private static final String DEFAULT_VERSION = "3.0";	// used if the recording doesn't contain the firmware version
+
+	private final PacketRecordingReader reader;
+	private volatile long packetTime = 0;				// recorded time of the packet being delivered (ms)
+	private int timing = TIMING_ORIGINAL;
+	private double speed = 1.0;
+	private Thread replayThread = null;
+	private volatile boolean running = false;
+	private volatile boolean finished = false;
+
+	// statistics
+	private volatile long packetsReplayed = 0;
+	private volatile long packetsWritten = 0;
+	private volatile long decodeNs = 0;					// time spent in WheelphoneRobot handling the READ events
+	private volatile long startNs = 0, endNs = 0;
+	private volatile long recordedSpanNs = 0;			// time covered by the replayed packets in the recording
+
+	/**
+	 * \brief Class constructor
+	 * \param reader recording to replay (read once)
+	 * \return USBAccessoryManagerReplay instance
+	 */
+	public USBAccessoryManagerReplay(PacketRecordingReader reader) {
+		super(4096);
+		this.reader = reader;
+	}
+
+	/**
+	 * \brief Set how the packets are timed; to be called before starting the communication.
+	 * \param mode TIMING_ORIGINAL, TIMING_SCALED or TIMING_MAX
+	 * \param speedFactor speed used by TIMING_SCALED (2.0 => twice as fast as recorded)
+	 * \return none
+	 */
+	public void setTiming(int mode, double speedFactor) {
+		timing = mode;
+		speed = speedFactor > 0.0 ? speedFactor : 1.0;
+	}
+
+	@Override
+	public RETURN_CODES enable(Context context, Intent intent) {
+		if(replayThread != null) {
+			return RETURN_CODES.SUCCESS;
+		}
+		running = true;
+		closed = false;
+		replayThread = new Thread(new Runnable() {
+			public void run() {
+				replay();
+			}
+		}, "USBAccessoryManagerReplay");
+		replayThread.start();
+		return RETURN_CODES.SUCCESS;
+	}
+
+	@Override
+	public void disable(Context context) {
+		running = false;
+		Thread t = replayThread;
+		if(t != null && t != Thread.currentThread()) {
+			t.interrupt();
+			try {
+				t.join(2000);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		connected = false;
+		closed = true;
+	}
+
+	@Override
+	public void write(byte[] data) {
+		packetsWritten++;
+	}
+
+	private void replay() {
+		boolean ready = false;
+		long firstRecordNs = 0;
+		long lastRecordNs = 0;
+		startNs = System.nanoTime();
+		try {
+			while(running && reader.next()) {
+				byte type = reader.getType();
+				if(type == PacketRecorder.VERSION && !ready) {
+					version = reader.getFirmwareVersion();
+					ready = deliverReady();
+				}
+				if(type != PacketRecorder.INBOUND) {
+					continue;
+				}
+				if(!ready) {
+					version = DEFAULT_VERSION;
+					ready = deliverReady();
+				}
+				long t = reader.getTimestamp();
+				if(packetsReplayed == 0) {
+					firstRecordNs = t;
+					startNs = System.nanoTime();
+				} else if(timing != TIMING_MAX && !waitUntil(startNs + (long)((t - firstRecordNs)/(timing == TIMING_SCALED ? speed : 1.0)))) {
+					break;
+				}
+				packetTime = reader.getWallClockTime();
+				long t0 = System.nanoTime();
+				receive(reader.getData(), 0, reader.getLength());
+				decodeNs += System.nanoTime() - t0;
+				packetsReplayed++;
+				lastRecordNs = t;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		endNs = System.nanoTime();
+		recordedSpanNs = lastRecordNs - firstRecordNs;
+		reader.close();
+		connected = false;
+		finished = true;
+		deliver(USBAccessoryManagerMessage.MessageType.DETACHED);
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * \brief Return the recorded time of the packet being delivered, so that the odometry doesn't depend on the replay timing.
+	 * \return time in ms (as System.currentTimeMillis when recorded)
+	 */
+	@Override
+	long getPacketTime() {
+		return packetTime;
+	}
+
+	@Override
+	long getPacketNanoTime() {
+		return packetTime*1000000L;
+	}
+
+	private boolean deliverReady() {
+		connected = true;
+		deliver(USBAccessoryManagerMessage.MessageType.READY);
+		return true;
+	}
+
+	private boolean waitUntil(long deadlineNs) {
+		while(running) {
+			long wait = deadlineNs - System.nanoTime();
+			if(wait <= 0) {
+				return true;
+			}
+			try {
+				Thread.sleep(wait/1000000, (int)(wait%1000000));
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * \brief Wait until the whole recording is replayed.
+	 * \param timeoutMs maximum time to wait (ms)
+	 * \return true if the replay is finished, false if the timeout expired
+	 */
+	public synchronized boolean waitForEnd(long timeoutMs) {
+		long end = System.currentTimeMillis() + timeoutMs;
+		while(!finished) {
+			long wait = end - System.currentTimeMillis();
+			if(wait <= 0) {
+				return false;
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public long getPacketsReplayed() {
+		return packetsReplayed;
+	}
+
+	/**
+	 * \brief Return the number of packets sent by WheelphoneRobot during the replay.
+	 * \return number of packets
+	 */
+	public long getPacketsWritten() {
+		return packetsWritten;
+	}
+
+	/**
+	 * \brief Return the decoding throughput, i.e. the packets handled per second of time spent in WheelphoneRobot.
+	 * \return packets per second
+	 */
+	public double getDecodePacketsPerSecond() {
+		return decodeNs > 0 ? packetsReplayed*1e9/decodeNs : 0.0;
+	}
+
+	/**
+	 * \brief Return the replay rate, i.e. the packets delivered per second of elapsed time.
+	 * \return packets per second
+	 */
+	public double getReplayPacketsPerSecond() {
+		long end = finished ? endNs : System.nanoTime();
+		return end > startNs ? packetsReplayed*1e9/(end - startNs) : 0.0;
+	}
+
+	/**
+	 * \brief Return a summary of the replay.
+	 * \return report text
+	 */
+	public String getReport() {
+		long elapsed = (finished ? endNs : System.nanoTime()) - startNs;
+		return "replayed " + packetsReplayed + " packets (" + recordedSpanNs/1000000 + " ms recorded) in " + elapsed/1000000 + " ms"
+				+ ", replay rate " + (long)getReplayPacketsPerSecond() + " packets/s"
+				+ ", decode throughput " + (long)getDecodePacketsPerSecond() + " packets/s"
+				+ " (" + (packetsReplayed > 0 ? decodeNs/packetsReplayed : 0) + " ns/packet)"
+				+ ", " + packetsWritten + " packets sent, " + readData.getOverflowCount() + " bytes overflowed";
+	}
+
+}
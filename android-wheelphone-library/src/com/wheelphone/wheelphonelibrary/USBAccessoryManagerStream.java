@@ -0,0 +1,247 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file USBAccessoryManagerStream.java
+ * \brief Transport exchanging the packets over a byte stream (socket, pipe)
+ * \copyright GNU GPL v3
+
+
+The USBAccessoryManagerStream class exchanges the packets of the accessory protocol with a robot (normally the
+RobotSimulator of tools/) through a pair of streams: a TCP socket, a named pipe on Linux, ... The packets are the same as
+over USB, their length is given by the first byte (UPDATE_STATE: 63 bytes, APP_CONNECT and APP_DISCONNECT: 2
+bytes, UPDATE_STATE_COMPACT: 4 bytes from the phone, from the robot given by the features in the second byte,
+UPDATE_STATE_CHECKED: 6 bytes). Since a stream doesn't carry the accessory version reported by the USB accessory, the robot side sends
+first a hello message:
+\verbatim
+ 'V', length (1 byte), version (ASCII, e.g. "3.0")
+\endverbatim
+READY is delivered when the hello is received, DETACHED when the stream is closed by the other side.
+Usage on a desktop computer:
+\verbatim
+ RobotSimulator sim = new RobotSimulator("3.0");
+ int port = sim.listen(0);
+ robot.startCommunication(USBAccessoryManagerStream.connect("localhost", port));
+\endverbatim
+
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import android.content.Context;
+import android.content.Intent;
+
+public class USBAccessoryManagerStream extends USBAccessoryManagerLocal {
+
+	public static final int HELLO = 'V';
+
+	private final InputStream in;
+	private final OutputStream out;
+	private final Socket socket;				// null for other streams
+	private Thread readThread = null;
+	private volatile boolean running = false;
+	private volatile long packetsWritten = 0, packetsReceived = 0;
+
+	/**
+	 * \brief Class constructor
+	 * \param input stream of the bytes sent by the robot
+	 * \param output stream of the bytes sent to the robot
+	 * \return USBAccessoryManagerStream instance
+	 */
+	public USBAccessoryManagerStream(InputStream input, OutputStream output) {
+		this(input, output, null);
+	}
+
+	private USBAccessoryManagerStream(InputStream input, OutputStream output, Socket s) {
+		super(4096);
+		in = input;
+		out = output;
+		socket = s;
+	}
+
+	/**
+	 * \brief Open a TCP connection with a robot (simulator).
+	 * \param host host name
+	 * \param port TCP port
+	 * \return transport, to pass to "WheelphoneRobot.startCommunication"
+	 */
+	public static USBAccessoryManagerStream connect(String host, int port) throws IOException {
+		Socket s = new Socket(host, port);
+		s.setTcpNoDelay(true);		// a packet every few ms, don't wait to fill a segment
+		return new USBAccessoryManagerStream(s.getInputStream(), s.getOutputStream(), s);
+	}
+
+	/**
+	 * \brief Send the hello message (robot side).
+	 * \param output stream to the phone
+	 * \param version accessory version
+	 * \return none
+	 */
+	public static void writeHello(OutputStream output, String version) throws IOException {
+		byte[] v = version.getBytes("US-ASCII");
+		byte[] msg = new byte[2 + v.length];
+		msg[0] = (byte)HELLO;
+		msg[1] = (byte)v.length;
+		System.arraycopy(v, 0, msg, 2, v.length);
+		output.write(msg);
+		output.flush();
+	}
+
+	/**
+	 * \brief Return the length of a packet of the accessory protocol.
+	 * \param command first byte of the packet
+	 * \param sentByRobot true for a packet sent by the robot
+	 * \return length, 0 if the command is unknown; for UPDATE_STATE_COMPACT sent by the robot the length of the
+	 *  header, the full length is given by "WheelphoneProtocol.compactStateLength"
+	 */
+	public static int packetLength(int command, boolean sentByRobot) {
+		switch(command & 0xFF) {
+			case WheelphoneProtocol.UPDATE_STATE:
+				return sentByRobot ? WheelphoneProtocol.PACKET_LENGTH_RECV : WheelphoneProtocol.PACKET_LENGTH_SEND;
+			case WheelphoneProtocol.APP_CONNECT:
+			case WheelphoneProtocol.APP_DISCONNECT:
+				return 2;
+			case WheelphoneProtocol.UPDATE_STATE_COMPACT:
+				return sentByRobot ? WheelphoneProtocol.COMPACT_HEADER_LENGTH : WheelphoneProtocol.COMPACT_COMMAND_LENGTH;
+			case WheelphoneProtocol.UPDATE_STATE_CHECKED:
+				return sentByRobot ? 0 : WheelphoneProtocol.CHECKED_COMMAND_LENGTH;
+			default:
+				return 0;
+		}
+	}
+
+	@Override
+	public RETURN_CODES enable(Context context, Intent intent) {
+		if(readThread != null) {
+			return RETURN_CODES.SUCCESS;
+		}
+		running = true;
+		closed = false;
+		readThread = new Thread(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		}, "USBAccessoryManagerStream");
+		readThread.start();
+		return RETURN_CODES.SUCCESS;
+	}
+
+	/**
+	 * \brief Stop the communication; the stream is closed after a short delay so that the APP_DISCONNECT sent by
+	 *  "WheelphoneRobot.closeUSBCommunication" after this call reaches the robot.
+	 * \param context not used
+	 * \return none
+	 */
+	@Override
+	public void disable(Context context) {
+		running = false;
+		connected = false;
+		closed = true;
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					// close now
+				}
+				closeStreams();
+			}
+		}, "USBAccessoryManagerStreamClose");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void write(byte[] data) {
+		try {
+			synchronized(out) {
+				out.write(data);
+				out.flush();
+			}
+			packetsWritten++;
+		} catch (IOException e) {
+			if(trace != null) {
+				trace.record(TraceRecorder.EV_USB_WRITE_ERROR, 0, 0, 0);
+			}
+		}
+	}
+
+	private void readLoop() {
+		byte[] packet = new byte[WheelphoneProtocol.PACKET_LENGTH_RECV];
+		try {
+			readFully(packet, 0, 2);
+			if(packet[0] != HELLO) {
+				throw new IOException("hello expected");
+			}
+			int n = packet[1] & 0xFF;
+			byte[] v = new byte[n];
+			readFully(v, 0, n);
+			version = new String(v, "US-ASCII");
+			connected = true;
+			deliver(USBAccessoryManagerMessage.MessageType.ATTACHED);
+			deliver(USBAccessoryManagerMessage.MessageType.READY);
+			while(running) {
+				int c = in.read();
+				if(c < 0) {
+					break;
+				}
+				int len = packetLength(c, true);
+				if(len == 0) {
+					continue;	// out of sync, skip the byte
+				}
+				packet[0] = (byte)c;
+				readFully(packet, 1, len);
+				if(c == WheelphoneProtocol.UPDATE_STATE_COMPACT) {
+					int full = WheelphoneProtocol.compactStateLength(packet[1]);
+					readFully(packet, len, full);
+					len = full;
+				}
+				packetsReceived++;
+				receive(packet, 0, len);
+			}
+		} catch (IOException e) {
+			// stream closed
+		}
+		boolean wasConnected = connected;
+		connected = false;
+		if(running && wasConnected) {	// closed by the robot
+			deliver(USBAccessoryManagerMessage.MessageType.DETACHED);
+		}
+		closeStreams();
+	}
+
+	private void readFully(byte[] b, int from, int end) throws IOException {
+		int n = from;
+		while(n < end) {
+			int r = in.read(b, n, end - n);
+			if(r < 0) {
+				throw new IOException("end of stream");
+			}
+			n += r;
+		}
+	}
+
+	private void closeStreams() {
+		try {
+			if(socket != null) {
+				socket.close();
+			} else {
+				in.close();
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public long getPacketsWritten() {
+		return packetsWritten;
+	}
+
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+
+}
@@ -0,0 +1,542 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file WheelphoneProtocol.java
+ * \brief Layout of the packets exchanged with the robot
+ * \copyright GNU GPL v3
+
+
+The WheelphoneProtocol class contains the constants describing the packets exchanged between the phone
+and the robot and the functions to decode/encode them. It is used by the WheelphoneRobot class and by the
+tools working on recorded packets.
+
+UPDATE_STATE packet sent by the robot (63 bytes, only the first 23 are used):
+\verbatim
+ byte  0      UPDATE_STATE
+ bytes 1-4    front proximity values
+ bytes 5-8    front proximity ambient values
+ bytes 9-12   ground proximity values
+ bytes 13-16  ground proximity ambient values
+ byte  17     battery
+ byte  18     flags (robot => phone)
+ bytes 19-20  left measured speed (little endian, signed, mm/s)
+ bytes 21-22  right measured speed (little endian, signed, mm/s)
+\endverbatim
+UPDATE_STATE packet sent by the phone (63 bytes, only the first 4 are used):
+\verbatim
+ byte  0      UPDATE_STATE
+ byte  1      left speed (signed)
+ byte  2      right speed (signed)
+ byte  3      flags (phone => robot)
+\endverbatim
+
+Protocol v4 (firmware version 4.x): the frames are sent without padding. The phone asks for the compact frames
+in the connect packet and gives the features it wants, the robot answers with the features it will send (those
+it supports among the requested ones); until the answer is received no command is sent. The firmware v2/v3 are
+still handled with the 63 bytes packets.
+\verbatim
+ APP_CONNECT (both directions, 2 bytes): APP_CONNECT, CONNECT_COMPACT | features
+ UPDATE_STATE_COMPACT sent by the phone (4 bytes): same layout as UPDATE_STATE
+ UPDATE_STATE_COMPACT sent by the robot (16 to 28 bytes, see "compactStateLength"):
+ byte  0      UPDATE_STATE_COMPACT
+ byte  1      features of this frame
+ bytes 2-5    front proximity values
+ 4 bytes      front proximity ambient values (FEATURE_PROX_AMBIENT)
+ 4 bytes      ground proximity values
+ 4 bytes      ground proximity ambient values (FEATURE_GROUND_AMBIENT)
+ 1 byte       battery
+ 1 byte       flags (robot => phone)
+ 4 bytes      left and right measured speeds (little endian, signed, mm/s)
+\endverbatim
+With FEATURE_BATCH the robot sends in each frame the last samples of the sensors (up to "batchCapacity", taken
+at the sampling rate of the robot) instead of a single one; the number of samples is in bits 4-6 of byte 1:
+\verbatim
+ byte  0      UPDATE_STATE_COMPACT
+ byte  1      features of this frame (bits 0-3), number of samples n (bits 4-6)
+ 4 bytes      front proximity ambient values (FEATURE_PROX_AMBIENT)
+ 4 bytes      ground proximity ambient values (FEATURE_GROUND_AMBIENT)
+ 1 byte       battery
+ 1 byte       flags (robot => phone)
+ n x 13 bytes samples, oldest first:
+              time since the previous sample (ms, unsigned, the first one since the last sample of the previous frame)
+              front proximity values (4 bytes), ground proximity values (4 bytes), left and right measured speeds (4 bytes)
+\endverbatim
+With FEATURE_INTEGRITY (bit 3 of byte 1 in the frames of the robot) each frame ends with a sequence number and a
+CRC-8 (polynomial 0x07) of all the previous bytes, see "seal"; the phone sends its commands as UPDATE_STATE_CHECKED:
+\verbatim
+ byte  0      UPDATE_STATE_CHECKED
+ bytes 1-3    left speed, right speed, flags (phone => robot), as UPDATE_STATE
+ byte  4      sequence number (incremented for each command)
+ byte  5      CRC-8 of bytes 0-4
+\endverbatim
+A frame with a wrong CRC is dropped without being decoded, a frame with the sequence number of an already
+received one is a duplicate, a gap in the sequence numbers gives the frames lost.
+The iOS library talks to the robot through the audio jack with its own frames (ios-wheelphone-library): the 4
+bytes of a command (left speed, right speed, flags, checksum) end with the two's complement of the sum of the
+first 3 bytes. These frames are not covered by FEATURE_INTEGRITY and are left unchanged.
+With FEATURE_TIMESTAMP (bit 7 of byte 1 in the frames of the robot, FRAME_TIMESTAMP) the data of each frame are
+followed by the time of the robot when its last sample was taken, before the sequence number and the CRC:
+\verbatim
+ 2 bytes      robot time (ms, little endian, unsigned, wraps around every 65.536 s, see "unwrapRobotTime")
+\endverbatim
+The phone integrates the odometry with the time of the robot instead of the time the packets are received, and
+estimates the mapping between the two clocks (see ClockSync).
+
+*/
+
+public final class WheelphoneProtocol {
+
+	public static final int PACKET_LENGTH_RECV = 63;
+	public static final int PACKET_LENGTH_SEND = 63;
+	public static final int UPDATE_STATE = 4;
+	public static final int APP_CONNECT = (int)0xFE;
+	public static final int APP_DISCONNECT = (int)0xFF;
+
+	// protocol v4
+	public static final int PROTOCOL_COMPACT = 4;			// first firmware major version using the compact frames
+	public static final int UPDATE_STATE_COMPACT = 5;
+	public static final int CONNECT_COMPACT = 0x80;			// bit of the second byte of APP_CONNECT, the other bits are the features
+	public static final int FEATURE_PROX_AMBIENT = 0x01;
+	public static final int FEATURE_GROUND_AMBIENT = 0x02;
+	public static final int FEATURE_BATCH = 0x04;			// several samples per frame
+	public static final int FEATURE_INTEGRITY = 0x08;		// sequence number and CRC in each frame
+	public static final int FEATURE_TIMESTAMP = 0x10;		// time of the robot in each frame
+	public static final int FEATURES_ALL = 0x1F;			// features known by this version of the library
+	public static final int FEATURES_DEFAULT = FEATURE_PROX_AMBIENT | FEATURE_GROUND_AMBIENT | FEATURE_TIMESTAMP;
+	public static final int FRAME_FEATURES_MASK = 0x0F;		// features in the second byte of a frame, the other bits are the number of samples and FRAME_TIMESTAMP
+	public static final int FRAME_TIMESTAMP = 0x80;			// FEATURE_TIMESTAMP in the second byte of a frame
+	public static final int BATCH_COUNT_SHIFT = 4;
+	public static final int MAX_BATCH_COUNT = 7;
+	public static final int BATCH_SAMPLE_LENGTH = 13;
+	public static final int UPDATE_STATE_CHECKED = 6;
+	public static final int CHECKED_COMMAND_LENGTH = 6;
+	public static final int INTEGRITY_LENGTH = 2;			// sequence number and CRC
+	public static final int TIMESTAMP_LENGTH = 2;
+	public static final int ROBOT_TIME_MODULO = 0x10000;	// the robot time sent wraps around (ms)
+	public static final long ROBOT_TIME_JUMP_MS = ClockSync.RESYNC_NS/1000000L;	// larger steps of the robot time are clock jumps
+
+	private static final byte[] CRC8_TABLE = new byte[256];
+	static {
+		for(int i=0; i<256; i++) {
+			int c = i;
+			for(int b=0; b<8; b++) {
+				c = ((c & 0x80) != 0) ? ((c << 1) ^ 0x07) : (c << 1);
+			}
+			CRC8_TABLE[i] = (byte)c;
+		}
+	}
+	public static final int COMPACT_HEADER_LENGTH = 2;
+	public static final int COMPACT_COMMAND_LENGTH = 4;
+
+	// robot => phone
+	public static final int OFFSET_PROX = 1;
+	public static final int OFFSET_PROX_AMBIENT = 5;
+	public static final int OFFSET_GROUND = 9;
+	public static final int OFFSET_GROUND_AMBIENT = 13;
+	public static final int OFFSET_BATTERY = 17;
+	public static final int OFFSET_FLAGS_ROBOT = 18;
+	public static final int OFFSET_LEFT_SPEED = 19;
+	public static final int OFFSET_RIGHT_SPEED = 21;
+
+	// phone => robot
+	public static final int OFFSET_LEFT_SPEED_CMD = 1;
+	public static final int OFFSET_RIGHT_SPEED_CMD = 2;
+	public static final int OFFSET_FLAGS_PHONE = 3;
+
+	public static final int SPEED_THR = 3;					// under this value the received measured speed is set to 0 to avoid noisy measure affecting odometry
+
+	private WheelphoneProtocol() {
+	}
+
+	/**
+	 * \brief Decode the raw values of an UPDATE_STATE packet sent by the robot (the speed threshold is not applied).
+	 * \param packet bytes received
+	 * \param off offset of the packet in the array
+	 * \param f frame where to store the values (prox, proxAmbient, ground, groundAmbient, battery, flags, speeds)
+	 * \return none
+	 */
+	public static void decodeUpdateState(byte[] packet, int off, SensorFrame f) {
+		for(int i=0; i<4; i++) {
+			f.prox[i] = packet[off + OFFSET_PROX + i]&0xFF;	// to get unsigned int
+			f.proxAmbient[i] = packet[off + OFFSET_PROX_AMBIENT + i]&0xFF;
+			f.ground[i] = packet[off + OFFSET_GROUND + i]&0xFF;
+			f.groundAmbient[i] = packet[off + OFFSET_GROUND_AMBIENT + i]&0xFF;
+		}
+		f.battery = packet[off + OFFSET_BATTERY]&0xFF;
+		f.flagRobotToPhone = packet[off + OFFSET_FLAGS_ROBOT];
+		f.leftSpeed = (packet[off + OFFSET_LEFT_SPEED]&0xFF) + (packet[off + OFFSET_LEFT_SPEED + 1])*256;
+		f.rightSpeed = (packet[off + OFFSET_RIGHT_SPEED]&0xFF) + (packet[off + OFFSET_RIGHT_SPEED + 1])*256;
+	}
+
+	/**
+	 * \brief Encode an UPDATE_STATE packet as sent by the robot (used by the simulators).
+	 * \param f frame containing the raw values (prox, proxAmbient, ground, groundAmbient, battery, flags, speeds)
+	 * \param packet destination array
+	 * \param off offset of the packet in the array
+	 * \return none
+	 */
+	public static void encodeUpdateState(SensorFrame f, byte[] packet, int off) {
+		packet[off] = (byte)UPDATE_STATE;
+		for(int i=0; i<4; i++) {
+			packet[off + OFFSET_PROX + i] = (byte)f.prox[i];
+			packet[off + OFFSET_PROX_AMBIENT + i] = (byte)f.proxAmbient[i];
+			packet[off + OFFSET_GROUND + i] = (byte)f.ground[i];
+			packet[off + OFFSET_GROUND_AMBIENT + i] = (byte)f.groundAmbient[i];
+		}
+		packet[off + OFFSET_BATTERY] = (byte)f.battery;
+		packet[off + OFFSET_FLAGS_ROBOT] = f.flagRobotToPhone;
+		packet[off + OFFSET_LEFT_SPEED] = (byte)f.leftSpeed;
+		packet[off + OFFSET_LEFT_SPEED + 1] = (byte)(f.leftSpeed >> 8);
+		packet[off + OFFSET_RIGHT_SPEED] = (byte)f.rightSpeed;
+		packet[off + OFFSET_RIGHT_SPEED + 1] = (byte)(f.rightSpeed >> 8);
+	}
+
+	/**
+	 * \brief Return the length of an UPDATE_STATE_COMPACT frame sent by the robot.
+	 * \param features features of the frame (second byte)
+	 * \return length (bytes)
+	 */
+	public static int compactStateLength(int features) {
+		int trailer = trailerLength(features);
+		if((features & FEATURE_BATCH) != 0) {
+			return batchHeaderLength(features) + batchCount(features)*BATCH_SAMPLE_LENGTH + trailer;
+		}
+		return COMPACT_HEADER_LENGTH + ambientLength(features) + 4 + 4 + 1 + 1 + 4 + trailer;
+	}
+
+	/**
+	 * \brief Return the robot time sent in an UPDATE_STATE_COMPACT frame (FEATURE_TIMESTAMP).
+	 * \param compact frame received (starting at index 0)
+	 * \return time of the last sample (ms, 16 bits as sent), -1 if the frame has no time
+	 */
+	public static int timestampOf(byte[] compact) {
+		int features = compact[1];
+		if((features & FRAME_TIMESTAMP) == 0) {
+			return -1;
+		}
+		int p = compactStateLength(features) - trailerLength(features);
+		return (compact[p]&0xFF) | ((compact[p + 1]&0xFF) << 8);
+	}
+
+	/**
+	 * \brief Extend a robot time as sent (16 bits) to the time nearest to a reference, e.g. the previous time received 
+	 *  or the time predicted by ClockSync; the wraparounds are handled as long as the reference is known within 
+	 *  ROBOT_TIME_MODULO/2 ms.
+	 * \param reference robot time (ms), negative if unknown
+	 * \param time robot time as sent (ms, 0..ROBOT_TIME_MODULO-1)
+	 * \return robot time (ms)
+	 */
+	public static long unwrapRobotTime(long reference, int time) {
+		if(reference < 0) {
+			return time;
+		}
+		return Math.max(0, reference + (short)(time - (int)(reference & (ROBOT_TIME_MODULO - 1))));
+	}
+
+	/**
+	 * \brief Tell whether the robot clock jumped between two samples, e.g. after a reset of the firmware: the unwrapped 
+	 *  time then lands anywhere within ROBOT_TIME_MODULO/2 ms of the previous one. The odometry must not integrate the 
+	 *  step (up to 32 s forward, or frozen until the clock catches up backward) but restart from the new time.
+	 * \param previous robot time of the previous sample (ms), negative if unknown
+	 * \param time robot time of the sample (ms, unwrapped)
+	 * \return true if the time moved more than ROBOT_TIME_JUMP_MS forward or backward
+	 */
+	public static boolean isRobotTimeJump(long previous, long time) {
+		return previous >= 0 && Math.abs(time - previous) > ROBOT_TIME_JUMP_MS;
+	}
+
+	/**
+	 * \brief Compute the CRC-8 (polynomial 0x07, initial value 0) of bytes.
+	 * \param data bytes
+	 * \param off offset of the first byte
+	 * \param len number of bytes
+	 * \return CRC (0..255)
+	 */
+	public static int crc8(byte[] data, int off, int len) {
+		int crc = 0;
+		for(int i=off; i<off + len; i++) {
+			crc = CRC8_TABLE[(crc ^ data[i]) & 0xFF] & 0xFF;
+		}
+		return crc;
+	}
+
+	/**
+	 * \brief Append the sequence number and the CRC to a frame (FEATURE_INTEGRITY).
+	 * \param packet frame, starting at index 0
+	 * \param len length of the frame without the sequence number and the CRC
+	 * \param sequence sequence number (the low 8 bits are sent)
+	 * \return length of the frame
+	 */
+	public static int seal(byte[] packet, int len, int sequence) {
+		packet[len] = (byte)sequence;
+		packet[len + 1] = (byte)crc8(packet, 0, len + 1);
+		return len + INTEGRITY_LENGTH;
+	}
+
+	/**
+	 * \brief Check the CRC of a frame ending with the sequence number and the CRC.
+	 * \param packet frame, starting at index 0
+	 * \param len length of the frame
+	 * \return true if the CRC is correct
+	 */
+	public static boolean checkIntegrity(byte[] packet, int len) {
+		return len >= INTEGRITY_LENGTH + 1 && crc8(packet, 0, len - 1) == (packet[len - 1] & 0xFF);
+	}
+
+	/**
+	 * \brief Return the sequence number of a frame ending with the sequence number and the CRC.
+	 * \param packet frame, starting at index 0
+	 * \param len length of the frame
+	 * \return sequence number (0..255)
+	 */
+	public static int sequenceOf(byte[] packet, int len) {
+		return packet[len - INTEGRITY_LENGTH] & 0xFF;
+	}
+
+	/**
+	 * \brief Return the number of samples of a batch frame.
+	 * \param features second byte of the frame
+	 * \return number of samples
+	 */
+	public static int batchCount(int features) {
+		return (features >> BATCH_COUNT_SHIFT) & MAX_BATCH_COUNT;
+	}
+
+	/**
+	 * \brief Return the maximum number of samples of a batch frame, so that it isn't longer than the packets of the
+	 *  firmware v2/v3 (a single USB transfer).
+	 * \param features features of the frame
+	 * \return number of samples
+	 */
+	public static int batchCapacity(int features) {
+		int trailer = ((features & FEATURE_INTEGRITY) != 0 ? INTEGRITY_LENGTH : 0) + ((features & FEATURE_TIMESTAMP) != 0 ? TIMESTAMP_LENGTH : 0);
+		return Math.min(MAX_BATCH_COUNT, (PACKET_LENGTH_RECV - batchHeaderLength(features) - trailer)/BATCH_SAMPLE_LENGTH);
+	}
+
+	/*
+	 * Bytes after the data of a frame: robot time, sequence number and CRC (features of the frame).
+	 */
+	private static int trailerLength(int features) {
+		return ((features & FRAME_TIMESTAMP) != 0 ? TIMESTAMP_LENGTH : 0) + ((features & FEATURE_INTEGRITY) != 0 ? INTEGRITY_LENGTH : 0);
+	}
+
+	/*
+	 * Second byte of a frame sent by the robot, without the number of samples.
+	 */
+	private static int frameFeatures(int features) {
+		return (features & FRAME_FEATURES_MASK) | (((features & FEATURE_TIMESTAMP) != 0) ? FRAME_TIMESTAMP : 0);
+	}
+
+	private static int putTime(long time, byte[] packet, int p) {
+		packet[p] = (byte)time;
+		packet[p + 1] = (byte)(time >> 8);
+		return p + TIMESTAMP_LENGTH;
+	}
+
+	private static int batchHeaderLength(int features) {
+		return COMPACT_HEADER_LENGTH + ambientLength(features) + 2;
+	}
+
+	private static int ambientLength(int features) {
+		int len = 0;
+		if((features & FEATURE_PROX_AMBIENT) != 0) {
+			len += 4;
+		}
+		if((features & FEATURE_GROUND_AMBIENT) != 0) {
+			len += 4;
+		}
+		return len;
+	}
+
+	/**
+	 * \brief Encode an UPDATE_STATE_COMPACT frame as sent by the robot (used by the simulators).
+	 * \param f frame containing the raw values
+	 * \param features features of the frame (FEATURE_*), with FEATURE_INTEGRITY the frame must be completed by "seal";
+	 *  with FEATURE_TIMESTAMP the robot time is "f.robotTime"
+	 * \param packet destination array
+	 * \param off offset of the frame in the array
+	 * \return frame length (without the sequence number and the CRC)
+	 */
+	public static int encodeCompactState(SensorFrame f, int features, byte[] packet, int off) {
+		int p = off;
+		packet[p++] = (byte)UPDATE_STATE_COMPACT;
+		packet[p++] = (byte)frameFeatures(features & ~FEATURE_BATCH);
+		p = put(f.prox, packet, p);
+		if((features & FEATURE_PROX_AMBIENT) != 0) {
+			p = put(f.proxAmbient, packet, p);
+		}
+		p = put(f.ground, packet, p);
+		if((features & FEATURE_GROUND_AMBIENT) != 0) {
+			p = put(f.groundAmbient, packet, p);
+		}
+		packet[p++] = (byte)f.battery;
+		packet[p++] = f.flagRobotToPhone;
+		packet[p++] = (byte)f.leftSpeed;
+		packet[p++] = (byte)(f.leftSpeed >> 8);
+		packet[p++] = (byte)f.rightSpeed;
+		packet[p++] = (byte)(f.rightSpeed >> 8);
+		if((features & FEATURE_TIMESTAMP) != 0) {
+			p = putTime(f.robotTime, packet, p);
+		}
+		return p - off;
+	}
+
+	/**
+	 * \brief Encode an UPDATE_STATE_COMPACT frame with several samples (FEATURE_BATCH, used by the simulators).
+	 * \param f frame containing the values sent once (ambient values, battery, flags)
+	 * \param samples samples (prox, ground, speeds), oldest first
+	 * \param dtMs time before each sample (ms), clamped to 0..255
+	 * \param count number of samples, at most "batchCapacity"
+	 * \param features features of the frame (FEATURE_BATCH is added), with FEATURE_INTEGRITY the frame must be 
+	 *  completed by "seal"; with FEATURE_TIMESTAMP the robot time is the one of the last sample ("robotTime")
+	 * \param packet destination array
+	 * \param off offset of the frame in the array
+	 * \return frame length (without the sequence number and the CRC)
+	 */
+	public static int encodeBatchState(SensorFrame f, SensorFrame[] samples, int[] dtMs, int count, int features, byte[] packet, int off) {
+		features = (features & FEATURES_ALL) | FEATURE_BATCH;
+		int p = off;
+		packet[p++] = (byte)UPDATE_STATE_COMPACT;
+		packet[p++] = (byte)(frameFeatures(features) | (count << BATCH_COUNT_SHIFT));
+		if((features & FEATURE_PROX_AMBIENT) != 0) {
+			p = put(f.proxAmbient, packet, p);
+		}
+		if((features & FEATURE_GROUND_AMBIENT) != 0) {
+			p = put(f.groundAmbient, packet, p);
+		}
+		packet[p++] = (byte)f.battery;
+		packet[p++] = f.flagRobotToPhone;
+		for(int s=0; s<count; s++) {
+			SensorFrame sample = samples[s];
+			packet[p++] = (byte)Math.max(0, Math.min(255, dtMs[s]));
+			p = put(sample.prox, packet, p);
+			p = put(sample.ground, packet, p);
+			packet[p++] = (byte)sample.leftSpeed;
+			packet[p++] = (byte)(sample.leftSpeed >> 8);
+			packet[p++] = (byte)sample.rightSpeed;
+			packet[p++] = (byte)(sample.rightSpeed >> 8);
+		}
+		if((features & FEATURE_TIMESTAMP) != 0) {
+			p = putTime((count > 0) ? samples[count - 1].robotTime : f.robotTime, packet, p);
+		}
+		return p - off;
+	}
+
+	/**
+	 * \brief Convert a sample of a batch frame (FEATURE_BATCH) to the layout of the UPDATE_STATE packet; the ambient
+	 *  values, the battery and the flags are those of the frame.
+	 * \param compact frame received (starting at index 0)
+	 * \param index sample index (0 is the oldest)
+	 * \param packet destination (PACKET_LENGTH_RECV bytes), must not be the same array
+	 * \return time since the previous sample (ms)
+	 */
+	public static int expandBatchSample(byte[] compact, int index, byte[] packet) {
+		int features = compact[1];
+		int p = COMPACT_HEADER_LENGTH;
+		packet[0] = (byte)UPDATE_STATE;
+		p = copyOrClear(compact, p, (features & FEATURE_PROX_AMBIENT) != 0, packet, OFFSET_PROX_AMBIENT);
+		p = copyOrClear(compact, p, (features & FEATURE_GROUND_AMBIENT) != 0, packet, OFFSET_GROUND_AMBIENT);
+		packet[OFFSET_BATTERY] = compact[p++];
+		packet[OFFSET_FLAGS_ROBOT] = compact[p++];
+		p += index*BATCH_SAMPLE_LENGTH;
+		int dt = compact[p++]&0xFF;
+		System.arraycopy(compact, p, packet, OFFSET_PROX, 4);
+		System.arraycopy(compact, p + 4, packet, OFFSET_GROUND, 4);
+		System.arraycopy(compact, p + 8, packet, OFFSET_LEFT_SPEED, 4);
+		for(int i=OFFSET_RIGHT_SPEED + 2; i<PACKET_LENGTH_RECV; i++) {
+			packet[i] = 0;
+		}
+		return dt;
+	}
+
+	/**
+	 * \brief Return the time before a sample of a batch frame.
+	 * \param compact frame received (starting at index 0)
+	 * \param index sample index (0 is the oldest)
+	 * \return time since the previous sample (ms)
+	 */
+	public static int batchSampleDt(byte[] compact, int index) {
+		return compact[batchHeaderLength(compact[1]) + index*BATCH_SAMPLE_LENGTH]&0xFF;
+	}
+
+	/**
+	 * \brief Convert an UPDATE_STATE_COMPACT frame to the layout of the UPDATE_STATE packet, so that it is decoded as
+	 *  the packets of the firmware v2/v3; the values of the features not in the frame are set to 0. For a batch frame 
+	 *  the last sample is converted.
+	 * \param compact frame received (starting at index 0)
+	 * \param packet destination (PACKET_LENGTH_RECV bytes), must not be the same array
+	 * \return none
+	 */
+	public static void expandCompactState(byte[] compact, byte[] packet) {
+		int features = compact[1];
+		if((features & FEATURE_BATCH) != 0) {
+			expandBatchSample(compact, Math.max(0, batchCount(features) - 1), packet);
+			return;
+		}
+		int p = COMPACT_HEADER_LENGTH;
+		packet[0] = (byte)UPDATE_STATE;
+		System.arraycopy(compact, p, packet, OFFSET_PROX, 4);
+		p += 4;
+		p = copyOrClear(compact, p, (features & FEATURE_PROX_AMBIENT) != 0, packet, OFFSET_PROX_AMBIENT);
+		System.arraycopy(compact, p, packet, OFFSET_GROUND, 4);
+		p += 4;
+		p = copyOrClear(compact, p, (features & FEATURE_GROUND_AMBIENT) != 0, packet, OFFSET_GROUND_AMBIENT);
+		System.arraycopy(compact, p, packet, OFFSET_BATTERY, 6);		// battery, flags, speeds
+		for(int i=OFFSET_RIGHT_SPEED + 2; i<PACKET_LENGTH_RECV; i++) {
+			packet[i] = 0;
+		}
+	}
+
+	/**
+	 * \brief Decode the raw values of a state packet sent by the robot, UPDATE_STATE or UPDATE_STATE_COMPACT (used
+	 *  by the tools working on recorded packets); for a batch frame the last sample is decoded, a frame with a wrong
+	 *  CRC is rejected. The robot time is stored as sent (16 bits, -1 if not sent, see "unwrapRobotTime").
+	 * \param packet bytes received (starting at index 0)
+	 * \param len number of bytes
+	 * \param f frame where to store the values
+	 * \return false if this isn't a complete state packet
+	 */
+	public static boolean decodeState(byte[] packet, int len, SensorFrame f) {
+		if(len >= PACKET_LENGTH_RECV && packet[0] == UPDATE_STATE) {
+			decodeUpdateState(packet, 0, f);
+			f.robotTime = -1;
+			return true;
+		}
+		if(len >= COMPACT_HEADER_LENGTH && packet[0] == UPDATE_STATE_COMPACT && len >= compactStateLength(packet[1])
+				&& ((packet[1] & FEATURE_INTEGRITY) == 0 || checkIntegrity(packet, compactStateLength(packet[1])))) {
+			byte[] expanded = new byte[PACKET_LENGTH_RECV];
+			expandCompactState(packet, expanded);
+			decodeUpdateState(expanded, 0, f);
+			f.robotTime = timestampOf(packet);
+			return true;
+		}
+		return false;
+	}
+
+	private static int put(int[] values, byte[] packet, int p) {
+		for(int i=0; i<4; i++) {
+			packet[p + i] = (byte)values[i];
+		}
+		return p + 4;
+	}
+
+	private static int copyOrClear(byte[] compact, int p, boolean present, byte[] packet, int dst) {
+		for(int i=0; i<4; i++) {
+			packet[dst + i] = present ? compact[p + i] : 0;
+		}
+		return present ? p + 4 : p;
+	}
+
+	/**
+	 * \brief Apply the speed threshold to a measured speed.
+	 * \param speed measured speed (mm/s)
+	 * \return 0 if the speed is under the threshold, the speed otherwise
+	 */
+	public static int filterSpeed(int speed) {
+		if(Math.abs(speed) < SPEED_THR) {
+			return 0;
+		}
+		return speed;
+	}
+
+}
@@ -15,9 +15,7 @@ The low-level communication with the robot (packets exchange) is handled interna
 
 */
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -35,12 +33,19 @@ import android.widget.Toast;
 public class WheelphoneRobot {
 	
 	// USB communication
-	private final static int packetLengthRecv	= 63;		// receiving packet length (this the maximum packet length, actually only 23 bytes are used)
-	private final static int packetLengthSend	= 63;		// sending packet legnth (this the maximum packet length, actually only 3 bytes are used)
+	private final static int packetLengthRecv	= WheelphoneProtocol.PACKET_LENGTH_RECV;		// receiving packet length (this the maximum packet length, actually only 23 bytes are used)
+	private final static int packetLengthSend	= WheelphoneProtocol.PACKET_LENGTH_SEND;		// sending packet legnth (this the maximum packet length, actually only 3 bytes are used)
 	private final static int USBAccessoryWhat	= 0;		// type of message received
-	private static final int UPDATE_STATE		= 4;
-	private static final int APP_CONNECT		= (int)0xFE;
-	private static final int APP_DISCONNECT		= (int)0xFF;			
+	private static final int UPDATE_STATE		= WheelphoneProtocol.UPDATE_STATE;
+	private static final int APP_CONNECT		= WheelphoneProtocol.APP_CONNECT;
+	private static final int APP_DISCONNECT		= WheelphoneProtocol.APP_DISCONNECT;
+	private static final int UPDATE_STATE_COMPACT	= WheelphoneProtocol.UPDATE_STATE_COMPACT;
+	private int protocolFeatures = WheelphoneProtocol.FEATURES_DEFAULT;	// features requested to a firmware v4, see "setProtocolFeatures"
+	private volatile int negotiatedFeatures = 0;			// features sent by the robot, received in the answer to the connect packet
+	private volatile boolean compactProtocol = false;		// true when the compact frames are exchanged (firmware v4, connect answered)
+	private int txSequence = 0;								// sequence number of the next command (FEATURE_INTEGRITY)
+	private int rxSequence = -1;							// sequence number of the last frame received, -1 when connecting
+	private volatile long framesLost = 0, framesDuplicated = 0, framesCorrupted = 0;	// see "getFramesLost"
 	private int packetReceived = 0;							// flag indicating when a new packet is received from the robot; after this flag is set the next packet 
 															// containing the new commands is sent to the robot (communication is synchronized)
 	private int commTrials = 0;
@@ -48,12 +53,15 @@ public class WheelphoneRobot {
 	private USBAccessoryManager accessoryManager;			// low-level USB communication class
 	private boolean isConnected = false;					// flag indicating if the robot is connected (and exchanging packets) with the phone
 	private int commTimeoutLimit = 50;						// based on communication timer task (repeatedly scheduled at 50 ms) => 2000 ms
+	private int commTimeoutMs = 50*50;						// see "setCommunicationTimeout", converted to timer ticks in "commTimeoutLimit"
+	private volatile int commPeriod = 50;					// period of the communication timer task (ms), see "setCommunicationPeriod"
 	private boolean debugUsbComm = false;
 	
 	// Robot state (robot => phone)
 	private int[] proxValues = {0, 0, 0, 0};				// front proximity values (higher value means nearer object)	
 	private int[] proxAmbientValues = {0, 0, 0, 0};			// front proximity ambient values
 	private int[] proxValuesCalibration = {0, 0, 0, 0};		// front proximity values of the calibration
+	private int[] proxAmbientValuesCalibration = {0, 0, 0, 0};	// front proximity ambient values at the time of the calibration
 	private int[] groundValues = {0, 0, 0, 0};				// ground proximity values (darker surface/cliff => lower values)
 	private int[] groundAmbientValues = {0, 0, 0, 0};		// ground proximity ambient values
 	private int[] groundValuesCalibration = {0, 0, 0, 0};	// ground proximity values of the calibration
@@ -74,6 +82,22 @@ public class WheelphoneRobot {
 	private boolean obstacleAvoidanceEnabled = false;
 	private boolean cliffAvoidanceEnabled = false;
 	
+	// Filtered robot state
+	private SensorFilter sensorFilter = new SensorFilter();	// applied to each received packet, by default the filtered values are the raw values
+	private int[] proxFilteredValues = {0, 0, 0, 0};
+	private int[] proxAmbientFilteredValues = {0, 0, 0, 0};
+	private int[] groundFilteredValues = {0, 0, 0, 0};
+	private int[] groundAmbientFilteredValues = {0, 0, 0, 0};
+	private SensorFrame sensorFrame = new SensorFrame();	// last published frame, accessed only when synchronized on it
+	private long packetsDecoded = 0;
+	
+	// Distances
+	private ProxDistanceTable proxDistanceTable = new ProxDistanceTable();
+	private int[] proxCompensatedValues = {0, 0, 0, 0};	// front proximity values compensated for the calibration and the ambient light
+	private LineEstimator lineEstimator = new LineEstimator();	// line position computed from the ground values at each received packet
+	private SafetyReflex safetyReflex = new SafetyReflex();	// checked at each received packet, can stop the robot in the next command packet
+	private int[] proxDistances = {ProxDistanceTable.NO_OBJECT, ProxDistanceTable.NO_OBJECT, ProxDistanceTable.NO_OBJECT, ProxDistanceTable.NO_OBJECT};	// mm
+	
 	// Robot control (phone => robot)
 	private int lSpeed=0, rSpeed=0;
 	private static final int MIN_SPEED_RAW = -127;
@@ -88,30 +112,54 @@ public class WheelphoneRobot {
 															
 	// Various
 	private static final String TAG = WheelphoneRobot.class.getName();
-	private Timer timer = null;						// timer used for scheduling the communication every 50 ms: this task poll a flag indicating whether a message 
+	private communicationTask manualTask = null;	// communication task run by "tick"
+	private Timer timer = null;						// timer used for scheduling the communication every 50 ms (see "setCommunicationPeriod"): this task poll a flag indicating whether a message 
 															// was received, if this is the case a new command is sent to the robot and the flag is reset.
 	private Context context;
 	private Intent activityIntent;
 	private boolean debugSensorsData = false;
 	private boolean debugLogic = false;
 	private String logString;
+	private final LogLineFormatter rxLine = new LogLineFormatter();		// log lines built by the thread handling the packets received
+	private final byte[] rxRecord = new byte[SensorFrame.LOG_RECORD_SIZE];	// data log record of the last packet received
+	private final LogLineFormatter timerLine = new LogLineFormatter();	// log lines built by the communication timer task
+	private final byte[] rxPacket = new byte[packetLengthRecv];		// packet being decoded, used only by the thread handling the packets received
+	private final byte[] connectPacket = new byte[2];				// APP_CONNECT, sent by the thread handling the packets received
+	private final byte[] txPacket = new byte[packetLengthSend];		// command packet, sent only by the communication timer task (the transports write it before returning)
+	private final byte[] txCompactPacket = new byte[WheelphoneProtocol.COMPACT_COMMAND_LENGTH];	// command packet of the protocol v4
+	private final byte[] txCheckedPacket = new byte[WheelphoneProtocol.CHECKED_COMMAND_LENGTH];	// with sequence number and CRC
+	private final byte[] rxExpanded = new byte[packetLengthRecv];	// compact state frame converted to the UPDATE_STATE layout
 	private static final double MM_S_TO_BYTE = 2.8;			// scale the speed given in mm/s to a byte sent to the microcontroller 
-	private static final int SPEED_THR = 3;					// under this value the received measured speed is set to 0 to avoid noisy measure affecting odometry
+	private static final int SPEED_THR = WheelphoneProtocol.SPEED_THR;	// under this value the received measured speed is set to 0 to avoid noisy measure affecting odometry
 	private int timerTaskId = 0;
 	
 	// odometry
-	private double leftDiamCoeff = 1.0;
-	private double rightDiamCoeff = 1.0;
-	private double wheelBase = 0.087;						// meters
-	private double [] odometry = {0.0, 0.0, 0.0};			// x (mm), y (mm), theta (radians) respectively
-	private static final int X_ODOM = 0;
-	private static final int Y_ODOM = 1;
-	private static final int THETA_ODOM = 2;
-	private double leftDist=0.0, rightDist=0.0;
-	private double leftDistPrev=0.0, rightDistPrev=0.0;
-	private double deltaDist=0.0;
+	private Odometry odom = new Odometry();					// shared with the tools working on recorded packets
+	private final PoseHistory poseHistory = new PoseHistory(512);	// pose at each sample received, see "getPoseHistory"
+	private double [] odometry = odom.getPose();			// x (mm), y (mm), theta (radians) respectively
+	private static final int X_ODOM = Odometry.X_ODOM;
+	private static final int Y_ODOM = Odometry.Y_ODOM;
+	private static final int THETA_ODOM = Odometry.THETA_ODOM;
 	private double startTime=0.0, finalTime=0.0, totalTime=0.0;
+	private volatile long robotTime = -1;					// robot time of the last sample (ms, FEATURE_TIMESTAMP), -1 if unknown
+	private final ClockSync clockSync = new ClockSync(32, 1000);	// robot time => phone time, see "getClockSync"
 	private boolean logEnabled = false;
+	private AsyncLogger logger = null;						// writes the log files in background, created on first use (see "getLogger")
+	private File logDirectory = new File("sdcard");
+	private boolean logRotation = false;					// data log rotation, applied again when the logger is created
+	private long logRotationBytes = 0, logRotationMs = 0;
+	private int logRotationSegments = 0;
+	private boolean logRotationCompress = false;
+	private volatile PacketRecorder packetRecorder = null;	// raw packets recording, see "enablePacketRecording"
+	private final TraceRecorder trace = new TraceRecorder(4096);	// last communication events, dumped on detach/timeout, see "dumpTrace"
+	private final USBAccessoryManager.LoggerSource loggerSource = new USBAccessoryManager.LoggerSource() {
+		public AsyncLogger getLogger() {
+			return WheelphoneRobot.this.getLogger();	// the USB manager writes its debug files with the logger of the robot
+		}
+	};
+	
+	// mapping
+	private OccupancyGrid occupancyGrid = null;				// updated with the front proximity values each time a packet is received
 	
 	/*
 	 * Interface that should be implemented by classes that would like to be notified by when the WheelphoneRobot state is updated. (Observer pattern)
@@ -124,6 +172,7 @@ public class WheelphoneRobot {
 	private class communicationTask extends TimerTask {     
 		private int currentId;	// id of this task
 		private int timeout;	// timeout indicating that nothing is received from the robot for a while
+		private boolean retry = false;	// the command is sent again because the answer was rejected or lost
 		
 		public communicationTask(int id) {
 			currentId = id;
@@ -132,26 +181,25 @@ public class WheelphoneRobot {
 		
 		@Override        
 		public void run() {        
+			trace.record(TraceRecorder.EV_TIMER_TICK, currentId, packetReceived, timeout);
 			if(debugUsbComm) {
-				logString = TAG + ": timerTask id = " + currentId;
-				Log.d(TAG, logString);
-				appendLog("debugUsbComm.txt", logString, false);
+				debugLog("debugUsbComm.txt", timerLine.clear().append(TAG).append(": timerTask id = ").append(currentId));
 			}
 			if(packetReceived==1) {
 				packetReceived=0;
 				sendCommandsToRobot();
 				if(debugUsbComm) {
-					logString = TAG + ": write update packet)";
-					Log.d(TAG, logString);
-					appendLog("debugUsbComm.txt", logString, false);
+					debugLog("debugUsbComm.txt", timerLine.clear().append(TAG).append(": write update packet)"));
+				}
+				if(retry) {
+					retry = false;	// still nothing valid received, the timeout goes on
+				} else {
+					timeout = 0;
 				}
-				timeout = 0;
 				if(isCalibrating) {
 					isCalibratingCounter--;
 					if(debugLogic) {
-						logString = TAG + ": isCalibratingCounter = " + isCalibratingCounter + "\n"; 
-						Log.d(TAG, logString);
-						appendLog("debugLogic.txt", logString, false);
+						debugLog("debugLogic.txt", timerLine.clear().append(TAG).append(": isCalibratingCounter = ").append(isCalibratingCounter).append('\n'));
 					}
 					if(isCalibratingCounter == 0) {
 						isCalibrating = false;
@@ -161,16 +209,24 @@ public class WheelphoneRobot {
 			} else {
 				if(debugUsbComm) {
 					//logString = TAG + ": timeout = " + timeout + "(trials="+commTrials+")";
-					logString = TAG + ": timeout = " + timeout + "(trials="+commTrials+")";
-					Log.d(TAG, logString);
-					appendLog("debugUsbComm.txt", logString, false);
+					debugLog("debugUsbComm.txt", timerLine.clear().append(TAG).append(": timeout = ").append(timeout).append("(trials=").append(commTrials).append(')'));
 				}	
 				timeout++;
+				if(isIntegrityChecked() && timeout%Math.max(2, 200/commPeriod) == 0) {	// no valid answer for 200 ms: send the command again
+					int pending = accessoryManager.available();
+					if(pending > 0) {		// incomplete frame
+						accessoryManager.ignore(pending);
+						framesCorrupted++;
+						trace.record(TraceRecorder.EV_FRAME_ERROR, TraceRecorder.FRAME_STALLED, pending, 0);
+					}
+					retry = true;
+					packetReceived = 1;
+				}
 				if(timeout == commTimeoutLimit) {	// about "50*commTimeoutLimit" ms is passed without any answer from the robot; 50 ms is the task frequency
+					trace.record(TraceRecorder.EV_TIMEOUT, currentId, timeout, 0);
+					trace.dumpAsync(logDirectory, "timeout");
 					if(debugUsbComm) {
-						logString = TAG + ": commTask timer cancel id = " + currentId;
-						Log.d(TAG, logString);
-						appendLog("debugUsbComm.txt", logString, false);
+						debugLog("debugUsbComm.txt", timerLine.clear().append(TAG).append(": commTask timer cancel id = ").append(currentId));
 					}			
 					isConnected = false;
 					cancel();
@@ -185,252 +241,315 @@ public class WheelphoneRobot {
 	}; 		
 	
 	// Handler for receiving messages from the USB Manager thread
-    private Handler handler = new Handler() {
-    	
-    	@Override
-    	public void handleMessage(Message msg) {
-    		
-    		byte[] commandPacket = new byte[packetLengthRecv];
-    		byte[] commandPacket2 = new byte[2];
+    private Handler handler = null;		// created by "startUSBCommunication", the local transports don't use it (see "startCommunication")
+    
+    private Handler getHandler() {
+    	if(handler == null) {
+    		handler = new Handler() {
+    			@Override
+    			public void handleMessage(Message msg) {
+    				switch(msg.what) {
+    					case USBAccessoryWhat:
+    						processAccessoryMessage(((USBAccessoryManagerMessage)msg.obj).type);
+    						break;
+    					default:
+    						break;
+    				}
+    			}
+    		};
+    	}
+    	return handler;
+    }
+    
+    /**
+     * \brief Handle an event of the USB manager; called from the Handler for the USB accessory and directly from the 
+     *  transport thread for the local transports.
+     * \param type event type
+     * \return none
+     */
+    private void processAccessoryMessage(USBAccessoryManagerMessage.MessageType type) {
     		
-			switch(msg.what) {			
-			
-				case USBAccessoryWhat:
-					
-					switch(((USBAccessoryManagerMessage)msg.obj).type) {
-						case READ:
-							if(debugUsbComm) {
-								logString = TAG + ": READ";
-								Log.d(TAG, logString);
-								appendLog("debugUsbComm.txt", logString, false);
+		byte[] commandPacket = rxPacket;		// no allocation per message
+		byte[] commandPacket2 = connectPacket;
+		
+		switch(type) {
+			case READ:
+				trace.record(TraceRecorder.EV_READ, accessoryManager.available(), 0, 0);
+				if(debugUsbComm) {
+					debugLog("debugUsbComm.txt", rxLine.clear().append(TAG).append(": READ"));
+				}
+				if(accessoryManager.isConnected() == false) {
+					return;
+				}
+		
+				while(true) {
+
+					commandPacket = rxPacket;
+					int length = packetLengthRecv;
+					if(firmwareVersion >= WheelphoneProtocol.PROTOCOL_COMPACT) {	// frames of variable length, given by their header
+						int n = accessoryManager.peek(commandPacket);
+						if(n < WheelphoneProtocol.COMPACT_HEADER_LENGTH) {
+							break;
+						}
+						length = frameLength(commandPacket);
+						if(length == 0) {
+							accessoryManager.ignore(1);		// out of sync, skip the byte
+							continue;
+						}
+						if(length > packetLengthRecv) {		// corrupted header
+							rejectFrame(length);
+							break;
+						}
+						if(n < length) {
+							break;
+						}
+						accessoryManager.ignore(length);
+						if(isIntegrityChecked() && commandPacket[0] != (byte)APP_CONNECT) {	// only frames with a valid CRC once negotiated
+							if(commandPacket[0] != UPDATE_STATE_COMPACT || (commandPacket[1] & WheelphoneProtocol.FEATURE_INTEGRITY) == 0 
+									|| !WheelphoneProtocol.checkIntegrity(commandPacket, length)) {
+								rejectFrame(length);
+								break;
 							}
-							if(accessoryManager.isConnected() == false) {
-								return;
+							if(!acceptSequence(WheelphoneProtocol.sequenceOf(commandPacket, length))) {
+								continue;		// duplicate, the answer to the last command was already handled
 							}
+						}
+					} else {
+						if(accessoryManager.available() < packetLengthRecv) {							
+							break;
+						}
+						accessoryManager.read(commandPacket);
+					}
+					PacketRecorder recorder = packetRecorder;
+					if(recorder != null) {
+						recorder.record(PacketRecorder.INBOUND, commandPacket, length);
+					}
+					if(commandPacket[0] == UPDATE_STATE_COMPACT) {
+						WheelphoneProtocol.expandCompactState(commandPacket, rxExpanded);
+						commandPacket = rxExpanded;
+					}
+									
+					switch(commandPacket[0]) {
 					
-							while(true) {
-
-								if(accessoryManager.available() < packetLengthRecv) {							
-									break;
+						case (byte)APP_CONNECT:		// answer of a firmware v4 to the connect packet
+							negotiatedFeatures = commandPacket[1] & WheelphoneProtocol.FEATURES_ALL;
+							compactProtocol = (commandPacket[1] & WheelphoneProtocol.CONNECT_COMPACT) != 0;
+							trace.record(TraceRecorder.EV_CONNECT, negotiatedFeatures, 1, 0);
+							if(debugUsbComm) {
+								debugLog("debugUsbComm.txt", rxLine.clear().append(TAG).append(": connect answered, features = ").append(negotiatedFeatures));
+							}
+							break;
+    			
+						case UPDATE_STATE:		
+							finalTime = accessoryManager.getPacketTime();
+							if(commandPacket == rxExpanded && (rxPacket[1] & WheelphoneProtocol.FRAME_TIMESTAMP) != 0) {
+								decodeTimedSamples();
+							} else if(commandPacket == rxExpanded && (rxPacket[1] & WheelphoneProtocol.FEATURE_BATCH) != 0) {	// several samples, oldest first, the last one taken now
+								int samples = WheelphoneProtocol.batchCount(rxPacket[1]);
+								long t = (long)finalTime;
+								for(int s=1; s<samples; s++) {
+									t -= WheelphoneProtocol.batchSampleDt(rxPacket, s);
 								}
-						
-								accessoryManager.read(commandPacket);
-												
-								switch(commandPacket[0]) {
-			    			
-									case UPDATE_STATE:		
-										proxValues[0] = 0x00<<24 | commandPacket[1]&0xFF;	// to get unsigned int
-										//if(accessoryManager instanceof USBAccessoryManagerAddOnLib) {
-										//	proxValues[0] = 1;
-										//} else if(accessoryManager instanceof USBAccessoryManagerAndroidLib) {
-										//	proxValues[0] = 2;
-										//}
-										proxValues[1] = 0x00<<24 | commandPacket[2]&0xFF;
-										proxValues[2] = 0x00<<24 | commandPacket[3]&0xFF;
-										proxValues[3] = 0x00<<24 | commandPacket[4]&0xFF;
-										proxAmbientValues[0] = 0x00<<24 | commandPacket[5]&0xFF;
-										proxAmbientValues[1] = 0x00<<24 | commandPacket[6]&0xFF;
-										proxAmbientValues[2] = 0x00<<24 | commandPacket[7]&0xFF;
-										proxAmbientValues[3] = 0x00<<24 | commandPacket[8]&0xFF;
-										groundValues[0] = 0x00<<24 | commandPacket[9]&0xFF;
-										groundValues[1] = 0x00<<24 | commandPacket[10]&0xFF;
-										groundValues[2] = 0x00<<24 | commandPacket[11]&0xFF;
-										groundValues[3] = 0x00<<24 | commandPacket[12]&0xFF;
-										groundAmbientValues[0] = 0x00<<24 | commandPacket[13]&0xFF;
-										groundAmbientValues[1] = 0x00<<24 | commandPacket[14]&0xFF;
-										groundAmbientValues[2] = 0x00<<24 | commandPacket[15]&0xFF;
-										groundAmbientValues[3] = 0x00<<24 | commandPacket[16]&0xFF;								
-										battery = 0x00<<24 | commandPacket[17]&0xFF;
-										flagRobotToPhone = commandPacket[18]; 										
-										leftMeasuredSpeed = (commandPacket[19]&0xFF) + (commandPacket[20])*256;
-										rightMeasuredSpeed = (commandPacket[21]&0xFF) + (commandPacket[22])*256;										
-										if(Math.abs(leftMeasuredSpeed) < SPEED_THR) {
-											leftMeasuredSpeed = 0;
-										}
-										if(Math.abs(rightMeasuredSpeed) < SPEED_THR) {
-											rightMeasuredSpeed = 0;
-										}
-										
-										leftDistPrev = leftDist;
-										rightDistPrev = rightDist;
-										finalTime = System.currentTimeMillis();
-										totalTime = finalTime - startTime;
-										leftDist += (leftMeasuredSpeed*totalTime/1000.0)*leftDiamCoeff;
-										rightDist += (rightMeasuredSpeed*totalTime/1000.0)*rightDiamCoeff;											
-										deltaDist = ((rightDist-rightDistPrev)+(leftDist-leftDistPrev))/2.0;
-										odometry[X_ODOM] += Math.cos(odometry[THETA_ODOM])*deltaDist;				
-										odometry[Y_ODOM] += Math.sin(odometry[THETA_ODOM])*deltaDist;
-										odometry[THETA_ODOM] = ((rightDist-leftDist)/wheelBase)/1000.0;	// over 1000 because rightDist and leftDist are in mm									    	  								    	
-								    			
-										if(logEnabled) {
-											logString = proxValues[0] + "," + proxValues[1] + "," + proxValues[2] + "," + proxValues[3] + ",";
-											logString += proxAmbientValues[0] + "," + proxAmbientValues[1] + "," + proxAmbientValues[2] + "," + proxAmbientValues[3] + ",";
-											logString += groundValues[0] + "," + groundValues[1] + "," + groundValues[2] + "," + groundValues[3] + ",";
-											logString += groundAmbientValues[0] + "," + groundAmbientValues[1] + "," + groundAmbientValues[2] + "," + groundAmbientValues[3] + ",";
-											logString += battery + ",";
-											logString += flagRobotToPhone + ",";
-											logString += leftMeasuredSpeed + "," + rightMeasuredSpeed + ",";
-											logString += odometry[X_ODOM] + "," + odometry[Y_ODOM] + "," + odometry[THETA_ODOM];
-											appendLog("logFile.csv", logString, false);
-										}
-										
-								    	if(debugSensorsData) {
-								    		//logString = lSpeed + "," + rSpeed + "," + leftMeasuredSpeed + "," + rightMeasuredSpeed + "," + leftDistPrev + "," + rightDistPrev + "," + leftDist + "," + rightDist + "," + startTime + "," + finalTime + "," + totalTime + "," + odometry[X_ODOM] + "," + odometry[Y_ODOM] + "," + odometry[THETA_ODOM] + "\n";		
-								    		//logString = proxValues[0] + "," + proxValues[1] + "," + proxValues[2] + "," + proxValues[3] + "," + proxValues[1] + "," + groundValues[0] + "," + groundValues[1] + "," + groundValues[2] + "," + groundValues[3] + "," + battery + "," + leftMeasuredSpeed + "," + rightMeasuredSpeed + "\n";
-								    		int j=0;
-								    		//for(j=0; j<(commandPacket[57]&0xFF); j++) {
-								    		for(j=0; j<7; j++) {	
-								    			//debugControllerValues[j] = (commandPacket[21]&0xFF) + (commandPacket[22])*256;
+								for(int s=0; s<samples; s++) {
+									int dt = WheelphoneProtocol.expandBatchSample(rxPacket, s, rxExpanded);
+									if(s > 0) {
+										t += dt;
+									}
+									decodeSample(rxExpanded, (startTime == 0.0 && s == 0) ? 0.0 : dt, t);
+								}
+							} else {
+								decodeSample(commandPacket, (startTime == 0.0) ? 0.0 : (finalTime - startTime), (long)finalTime);	// nothing to integrate for the first packet
+							}
+							
+					    	if(debugSensorsData) {
+					    		//logString = lSpeed + "," + rSpeed + "," + leftMeasuredSpeed + "," + rightMeasuredSpeed + "," + leftDistPrev + "," + rightDistPrev + "," + leftDist + "," + rightDist + "," + startTime + "," + finalTime + "," + totalTime + "," + odometry[X_ODOM] + "," + odometry[Y_ODOM] + "," + odometry[THETA_ODOM] + "\n";		
+					    		//logString = proxValues[0] + "," + proxValues[1] + "," + proxValues[2] + "," + proxValues[3] + "," + proxValues[1] + "," + groundValues[0] + "," + groundValues[1] + "," + groundValues[2] + "," + groundValues[3] + "," + battery + "," + leftMeasuredSpeed + "," + rightMeasuredSpeed + "\n";
+					    		int j=0;
+					    		//for(j=0; j<(commandPacket[57]&0xFF); j++) {
+					    		for(j=0; j<7; j++) {	
+					    			//debugControllerValues[j] = (commandPacket[21]&0xFF) + (commandPacket[22])*256;
 //								    			logString = ((commandPacket[j*8+1]&0xFF) + (commandPacket[j*8+2])*256) + ",";
 //								    			logString += ((commandPacket[j*8+3]&0xFF) + (commandPacket[j*8+4])*256) + ",";
 //								    			logString += ((commandPacket[j*8+5]&0xFF) + (commandPacket[j*8+6])*256) + ",";
 //								    			logString += ((commandPacket[j*8+7]&0xFF) + (commandPacket[j*8+8])*256) + ",";
 //								    			logString += (commandPacket[57]&0xFF);
 //								    			appendLog(logString);
-								    		}
-								    										    		
-							    			logString = (((commandPacket[1]&0xFF) + (commandPacket[2])*256)&0x0000FFF) + ",";	// unsigned int
-							    			logString += (commandPacket[3]&0xFF) + (commandPacket[4])*256 + ",";
-							    			logString += (commandPacket[5]&0xFF) + (commandPacket[6])*256 + ",";
-							    			logString += (commandPacket[7]&0xFF) + (commandPacket[8])*256 + ",";
-							    			logString += (commandPacket[9]&0xFF) + (commandPacket[10])*256 + ",";
-							    			logString += (commandPacket[11]&0xFF) + ",";
-							    			logString += (commandPacket[12]&0xFF) + (commandPacket[13])*256 + ",";
-							    			logString += (commandPacket[14]&0xFF) + (commandPacket[15])*256 + ",";
-							    			logString += (commandPacket[16]&0xFF) + (commandPacket[17])*256 + ",";
-							    			logString += (commandPacket[18]&0xFF) + (commandPacket[19])*256 + ",";
-							    			logString += (commandPacket[20]&0xFF) + (commandPacket[21])*256;
-							    			appendLog("sensorsData.csv", logString, false);
-								    		
-								    	}
-								    	
-								    	startTime = finalTime; 
-								    	
-										if((flagRobotToPhone&0x20)==0x20) {
-											if((flagRobotToPhone&0x40)==0x40) {
-												chargeState = CHARGED;
-											} else {
-												chargeState = CHARGING;						
-											}
-										} else {
-											chargeState = NOT_CHARGING;
-										}
-										
-										if((flagRobotToPhone&0x80)==0x80) {
-											odomCalibFinish = true;
-										} else {
-											odomCalibFinish = false;
-										}
-								        if((flagRobotToPhone&0x01)==0x01) {
-								            obstacleAvoidanceEnabled = true;
-								        } else {
-								            obstacleAvoidanceEnabled = false;
-								        }
-								        
-								        if((flagRobotToPhone&0x02)==0x02) {
-								            cliffAvoidanceEnabled = true;
-								        } else {
-								            cliffAvoidanceEnabled = false;
-								        }
-										if(mEventListener!=null) {
-											mEventListener.onWheelphoneUpdate(); //Notify listener of an update
-										}
-
-										break;
+					    		}
+					    										    		
+				    			rxLine.clear().append(((commandPacket[1]&0xFF) + (commandPacket[2])*256)&0x0000FFF).append(',');	// unsigned int
+				    			rxLine.append((commandPacket[3]&0xFF) + (commandPacket[4])*256).append(',');
+				    			rxLine.append((commandPacket[5]&0xFF) + (commandPacket[6])*256).append(',');
+				    			rxLine.append((commandPacket[7]&0xFF) + (commandPacket[8])*256).append(',');
+				    			rxLine.append((commandPacket[9]&0xFF) + (commandPacket[10])*256).append(',');
+				    			rxLine.append(commandPacket[11]&0xFF).append(',');
+				    			rxLine.append((commandPacket[12]&0xFF) + (commandPacket[13])*256).append(',');
+				    			rxLine.append((commandPacket[14]&0xFF) + (commandPacket[15])*256).append(',');
+				    			rxLine.append((commandPacket[16]&0xFF) + (commandPacket[17])*256).append(',');
+				    			rxLine.append((commandPacket[18]&0xFF) + (commandPacket[19])*256).append(',');
+				    			rxLine.append((commandPacket[20]&0xFF) + (commandPacket[21])*256);
+				    			logLine("sensorsData.csv", rxLine);
+					    		
+					    	}
+					    	
+					    	startTime = finalTime; 
+					    	
+							if((flagRobotToPhone&0x20)==0x20) {
+								if((flagRobotToPhone&0x40)==0x40) {
+									chargeState = CHARGED;
+								} else {
+									chargeState = CHARGING;						
 								}
-
-								packetReceived=1;
-							}	// while
-							
-							break;
-							
-						case ATTACHED:
-							if(debugUsbComm) {
-								logString = TAG + ": ATTACHED";
-								Log.d(TAG, logString);
-								appendLog("debugUsbComm.txt", logString, false);
+							} else {
+								chargeState = NOT_CHARGING;
 							}
-							break;
 							
-						case READY:
-							if(debugUsbComm) {
-								logString = TAG + ": READY";
-								Log.d(TAG, logString);
-								appendLog("debugUsbComm.txt", logString, false);
-							}								
-					    	
-							String version = accessoryManager.getVersion();							
-							firmwareVersion = getFirmwareVersion(version);
-							
-					        if(debugUsbComm) {
-					        	logString = TAG + ": usb version = " + version + "\n";
-					        	logString += TAG + ": firmware version = " + firmwareVersion;
-					        	Log.d(TAG, logString);
-					        	appendLog("debugUsbComm.txt", logString, false);
+							if((flagRobotToPhone&0x80)==0x80) {
+								odomCalibFinish = true;
+							} else {
+								odomCalibFinish = false;
+							}
+					        if((flagRobotToPhone&0x01)==0x01) {
+					            obstacleAvoidanceEnabled = true;
+					        } else {
+					            obstacleAvoidanceEnabled = false;
 					        }
 					        
-							switch(firmwareVersion){
-								case 2:
-								case 3:
-									commandPacket2[0] = (byte) APP_CONNECT;
-									commandPacket2[1] = 0;
-									if(debugUsbComm) {
-										logString = TAG + ": sending connect message";
-										Log.d(TAG, logString);
-										appendLog("debugUsbComm.txt", logString, false);										
-									}
-									accessoryManager.write(commandPacket2);
-									if(debugUsbComm) {
-										logString = TAG + ": write APP_CONNECT)";
-										Log.d(TAG, logString);
-										appendLog("debugUsbComm.txt", logString, false);
-									}
-									if(debugUsbComm) {
-										logString = TAG + ": connect message sent";
-										Log.d(TAG, logString);
-										appendLog("debugUsbComm.txt", logString, false);
-									}
-									break;
-								case 4:	// next protocol version...
-									break;
-								default:
-									break;
+					        if((flagRobotToPhone&0x02)==0x02) {
+					            cliffAvoidanceEnabled = true;
+					        } else {
+					            cliffAvoidanceEnabled = false;
+					        }
+					        
+					        publishSensorFrame();
+					        trace.record(TraceRecorder.EV_PACKET, leftMeasuredSpeed, rightMeasuredSpeed, flagRobotToPhone);
+					        
+							if(logEnabled) {
+								int n = sensorFrame.writeLogRecord(rxRecord);	// formatted by the logger thread (see SensorFrame.newCsvFormatter)
+								AsyncLogger l = getLogger();
+								l.appendRecord(l.openStream("logFile.csv"), rxRecord, n);
 							}
-							
-					    	packetReceived = 1;
-							isConnected = true;	
-							
-							break;
-							
-						case DETACHED:
-							if(debugUsbComm) {
-								logString = TAG + ": DETACHED (trials="+commTrials+")";
-								Log.d(TAG, logString);
-								appendLog("debugUsbComm.txt", logString, false);
+					        
+							if(mEventListener!=null) {
+								mEventListener.onWheelphoneUpdate(); //Notify listener of an update
 							}
+
+							break;
+					}
+
+					packetReceived=1;
+				}	// while
+				
+				break;
+				
+			case ATTACHED:
+				trace.record(TraceRecorder.EV_ATTACHED);
+				if(debugUsbComm) {
+					logString = TAG + ": ATTACHED";
+					Log.d(TAG, logString);
+					appendLog("debugUsbComm.txt", logString, false);
+				}
+				break;
+				
+			case READY:
+				if(debugUsbComm) {
+					logString = TAG + ": READY";
+					Log.d(TAG, logString);
+					appendLog("debugUsbComm.txt", logString, false);
+				}								
+		    	
+				String version = accessoryManager.getVersion();							
+				firmwareVersion = getFirmwareVersion(version);
+				compactProtocol = false;
+				negotiatedFeatures = 0;
+				rxSequence = -1;
+				robotTime = -1;
+				clockSync.reset();
+				trace.record(TraceRecorder.EV_READY, firmwareVersion, 0, 0);
+				if(packetRecorder != null) {
+					packetRecorder.setFirmwareVersion(version);
+				}
+				
+		        if(debugUsbComm) {
+		        	logString = TAG + ": usb version = " + version + "\n";
+		        	logString += TAG + ": firmware version = " + firmwareVersion;
+		        	Log.d(TAG, logString);
+		        	appendLog("debugUsbComm.txt", logString, false);
+		        }
+		        
+				switch(firmwareVersion){
+					case 2:
+					case 3:
+						commandPacket2[0] = (byte) APP_CONNECT;
+						commandPacket2[1] = 0;
+						if(debugUsbComm) {
+							logString = TAG + ": sending connect message";
+							Log.d(TAG, logString);
+							appendLog("debugUsbComm.txt", logString, false);										
+						}
+						accessoryManager.write(commandPacket2);
+						trace.record(TraceRecorder.EV_CONNECT);
+						if(packetRecorder != null) {
+							packetRecorder.record(PacketRecorder.OUTBOUND, commandPacket2, commandPacket2.length);
+						}
+						if(debugUsbComm) {
+							logString = TAG + ": write APP_CONNECT)";
+							Log.d(TAG, logString);
+							appendLog("debugUsbComm.txt", logString, false);
+						}
+						if(debugUsbComm) {
+							logString = TAG + ": connect message sent";
+							Log.d(TAG, logString);
+							appendLog("debugUsbComm.txt", logString, false);
+						}
+						break;
+					case 4:
+						packetReceived = 0;		// the first command is sent when the connect is answered (possibly before the write returns)
+						commandPacket2[0] = (byte) APP_CONNECT;
+						commandPacket2[1] = (byte) (WheelphoneProtocol.CONNECT_COMPACT | protocolFeatures);
+						accessoryManager.write(commandPacket2);
+						trace.record(TraceRecorder.EV_CONNECT, protocolFeatures, 0, 0);
+						if(packetRecorder != null) {
+							packetRecorder.record(PacketRecorder.OUTBOUND, commandPacket2, commandPacket2.length);
+						}
+						if(debugUsbComm) {
+							logString = TAG + ": compact connect message sent, features = " + protocolFeatures;
+							Log.d(TAG, logString);
+							appendLog("debugUsbComm.txt", logString, false);
+						}
+						break;
+					default:
+						break;
+				}
+				
+				if(firmwareVersion != 4) {
+					packetReceived = 1;
+				}
+				isConnected = true;	
+				
+				break;
+				
+			case DETACHED:
+				if(debugUsbComm) {
+					logString = TAG + ": DETACHED (trials="+commTrials+")";
+					Log.d(TAG, logString);
+					appendLog("debugUsbComm.txt", logString, false);
+				}
 //							closeUSBCommunication();
 //							if(commTrials < MAX_TRIALS) {
 //								commTrials++;
 //								startUSBCommunication();
 //							}								
-							isConnected = false;
-							
-							if(mEventListener!=null) {
-								mEventListener.onWheelphoneUpdate(); //Notify listener of a disconnection
-							}							
-							break;
-					}				
+				isConnected = false;
+				trace.record(TraceRecorder.EV_DETACHED);
+				trace.dumpAsync(logDirectory, "detached");
 				
-					break;
-					
-				default:
-					break;
-					
-			}	//switch msg.what
-			
-    	} //handleMessage
-    	
-    }; //handler	
+				if(mEventListener!=null) {
+					mEventListener.onWheelphoneUpdate(); //Notify listener of a disconnection
+				}							
+				break;
+		}
+		
+    } //processAccessoryMessage
 	
     /**
      * \brief Class constructor
@@ -455,6 +574,61 @@ public class WheelphoneRobot {
 		}
 	}
 	
+    /**
+     * \brief Queue a formatted line for a log file, without allocating memory.
+     * \param fileName name of the file inside the log directory
+     * \param line formatted line
+     * \return none
+     */
+    private void logLine(String fileName, LogLineFormatter line) {
+    	AsyncLogger l = getLogger();
+    	l.append(l.openStream(fileName), line.chars(), line.length());
+    }
+    
+    /**
+     * \brief Return the logger, created the first time a log is written or configured (a logger preallocates its
+     *  queue and starts a writer thread, nothing is allocated while the logging is disabled). It is closed by
+     *  "closeUSBCommunication" and created again when needed.
+     * \return logger
+     */
+    synchronized AsyncLogger getLogger() {
+    	if(logger == null) {
+    		logger = new AsyncLogger(logDirectory);
+    		logger.setRecordFormatter(logger.openStream("logFile.csv"), SensorFrame.newCsvFormatter());
+    		if(logRotation) {
+    			logger.setSegmentHeader("logFile.csv", SensorFrame.CSV_HEADER);
+    			logger.setRotation("logFile.csv", logRotationBytes, logRotationMs, logRotationSegments, logRotationCompress);
+    		}
+    	}
+    	return logger;
+    }
+    
+    /*
+     * Stop the writer thread of the logger after writing the queued lines.
+     */
+    private void closeLogger() {
+    	AsyncLogger l;
+    	synchronized(this) {
+    		l = logger;
+    		logger = null;
+    	}
+    	if(l != null) {
+    		l.close();
+    	}
+    }
+    
+    /**
+     * \brief Write a formatted debug line to the Android log and to a debug file; the Android log needs a String, thus 
+     *  this allocates (only when debugging).
+     * \param fileName name of the debug file
+     * \param line formatted line
+     * \return none
+     */
+    private void debugLog(String fileName, LogLineFormatter line) {
+    	Log.d(TAG, line.toString());
+    	logLine(fileName, line);
+    }
+    
     private int getFirmwareVersion(String version) {    	
     	String major = "0";    	
     	int positionOfDot;    	
@@ -465,20 +639,228 @@ public class WheelphoneRobot {
     	return Integer.valueOf(major);
     }    
     
+    /**
+     * \brief Drop a frame with a wrong CRC or header, and the bytes received after it (with the commands sent one at a 
+     *  time they belong to the same answer); the next command is sent, the answer to the previous one being lost.
+     * \param length length of the frame
+     * \return none
+     */
+    private void rejectFrame(int length) {
+    	framesCorrupted++;
+    	trace.record(TraceRecorder.EV_FRAME_ERROR, TraceRecorder.FRAME_CORRUPTED, length, 0);
+    	accessoryManager.ignore(accessoryManager.available());
+    	packetReceived = 1;
+    }
+    
+    /**
+     * \brief Check the sequence number of a frame (FEATURE_INTEGRITY) and count the frames lost.
+     * \param sequence sequence number of the frame
+     * \return false if the frame is a duplicate (same or older sequence number than the last one)
+     */
+    private boolean acceptSequence(int sequence) {
+    	if(rxSequence >= 0) {
+    		int gap = (sequence - rxSequence) & 0xFF;
+    		if(gap == 0 || gap > 128) {
+    			framesDuplicated++;
+    			trace.record(TraceRecorder.EV_FRAME_ERROR, TraceRecorder.FRAME_DUPLICATE, sequence, 0);
+    			return false;
+    		}
+    		if(gap > 1) {
+    			framesLost += gap - 1;
+    			trace.record(TraceRecorder.EV_FRAME_ERROR, TraceRecorder.FRAME_LOST, sequence, gap - 1);
+    		}
+    	}
+    	rxSequence = sequence;
+    	return true;
+    }
+    
+    private boolean isIntegrityChecked() {
+    	return compactProtocol && (negotiatedFeatures & WheelphoneProtocol.FEATURE_INTEGRITY) != 0;
+    }
+    
+    /**
+     * \brief Return the length of the frame at the beginning of a buffer (protocol v4).
+     * \param packet received bytes, at least the header
+     * \return length, 0 if the first byte isn't a known command
+     */
+    private static int frameLength(byte[] packet) {
+    	switch(packet[0]) {
+    		case UPDATE_STATE_COMPACT:
+    			return WheelphoneProtocol.compactStateLength(packet[1]);
+    		case (byte)APP_CONNECT:
+    			return 2;
+    		case UPDATE_STATE:				// padded packet, if the firmware didn't switch to the compact frames
+    			return packetLengthRecv;
+    		default:
+    			return 0;
+    	}
+    }
+    
+    /**
+     * \brief Decode a sample of the sensors (a packet, or a sample of a batch frame converted to the same layout) and run 
+     *  it through the filter, the distances, the line estimation, the safety reflex, the odometry and the pose history.
+     * \param commandPacket packet with the UPDATE_STATE layout
+     * \param dtMs time since the previous sample (ms), integrated by the odometry
+     * \param timeMs time of the sample (ms)
+     * \return none
+     */
+    private void decodeSample(byte[] commandPacket, double dtMs, long timeMs) {
+		proxValues[0] = 0x00<<24 | commandPacket[1]&0xFF;	// to get unsigned int
+		//if(accessoryManager instanceof USBAccessoryManagerAddOnLib) {
+		//	proxValues[0] = 1;
+		//} else if(accessoryManager instanceof USBAccessoryManagerAndroidLib) {
+		//	proxValues[0] = 2;
+		//}
+		proxValues[1] = 0x00<<24 | commandPacket[2]&0xFF;
+		proxValues[2] = 0x00<<24 | commandPacket[3]&0xFF;
+		proxValues[3] = 0x00<<24 | commandPacket[4]&0xFF;
+		proxAmbientValues[0] = 0x00<<24 | commandPacket[5]&0xFF;
+		proxAmbientValues[1] = 0x00<<24 | commandPacket[6]&0xFF;
+		proxAmbientValues[2] = 0x00<<24 | commandPacket[7]&0xFF;
+		proxAmbientValues[3] = 0x00<<24 | commandPacket[8]&0xFF;
+		groundValues[0] = 0x00<<24 | commandPacket[9]&0xFF;
+		groundValues[1] = 0x00<<24 | commandPacket[10]&0xFF;
+		groundValues[2] = 0x00<<24 | commandPacket[11]&0xFF;
+		groundValues[3] = 0x00<<24 | commandPacket[12]&0xFF;
+		groundAmbientValues[0] = 0x00<<24 | commandPacket[13]&0xFF;
+		groundAmbientValues[1] = 0x00<<24 | commandPacket[14]&0xFF;
+		groundAmbientValues[2] = 0x00<<24 | commandPacket[15]&0xFF;
+		groundAmbientValues[3] = 0x00<<24 | commandPacket[16]&0xFF;								
+		battery = 0x00<<24 | commandPacket[17]&0xFF;
+		flagRobotToPhone = commandPacket[18]; 										
+		leftMeasuredSpeed = (commandPacket[19]&0xFF) + (commandPacket[20])*256;
+		rightMeasuredSpeed = (commandPacket[21]&0xFF) + (commandPacket[22])*256;										
+		if(Math.abs(leftMeasuredSpeed) < SPEED_THR) {
+			leftMeasuredSpeed = 0;
+		}
+		if(Math.abs(rightMeasuredSpeed) < SPEED_THR) {
+			rightMeasuredSpeed = 0;
+		}
+		
+		sensorFilter.apply(proxValues, proxAmbientValues, groundValues, groundAmbientValues, 
+				proxFilteredValues, proxAmbientFilteredValues, groundFilteredValues, groundAmbientFilteredValues);
+		for(int i=0; i<4; i++) {
+			proxCompensatedValues[i] = proxDistanceTable.compensate(i, proxFilteredValues[i], proxAmbientFilteredValues[i], 
+					proxValuesCalibration[i], proxAmbientValuesCalibration[i]);
+			proxDistances[i] = proxDistanceTable.distance(i, proxCompensatedValues[i]);
+		}
+		lineEstimator.update(groundFilteredValues);
+		safetyReflex.check(proxDistances, groundFilteredValues);
+		
+		totalTime = dtMs;
+		odom.update(leftMeasuredSpeed, rightMeasuredSpeed, totalTime);
+		poseHistory.add(timeMs, odometry[X_ODOM], odometry[Y_ODOM], odometry[THETA_ODOM]);
+					    			
+		if(occupancyGrid != null) {
+			occupancyGrid.update(odometry[X_ODOM], odometry[Y_ODOM], odometry[THETA_ODOM], proxDistances);
+		}
+    }
+    
+    /**
+     * \brief Decode the samples of a frame with the robot time (FEATURE_TIMESTAMP, single sample or batch): the odometry 
+     *  integrates the time elapsed on the robot between the samples, and the samples are timed in the pose history 
+     *  with the robot time converted to the phone time by the clock synchronization, without the jitter of the 
+     *  transfer and of the scheduling. When the robot clock jumps (see "WheelphoneProtocol.isRobotTimeJump") the 
+     *  odometry restarts from the new time without integrating the step, as the clock synchronization does.
+     * \return none
+     */
+    private void decodeTimedSamples() {
+    	long packetNs = accessoryManager.getPacketNanoTime();
+    	long reference = clockSync.isSynchronized() ? clockSync.toRobotMillis(packetNs) : robotTime;	// handles the wraparound after a long pause too
+    	long last = WheelphoneProtocol.unwrapRobotTime(reference, WheelphoneProtocol.timestampOf(rxPacket));
+    	clockSync.add(last, packetNs);
+    	boolean batch = (rxPacket[1] & WheelphoneProtocol.FEATURE_BATCH) != 0;
+    	int samples = batch ? WheelphoneProtocol.batchCount(rxPacket[1]) : 1;
+    	long t = last;
+    	for(int s=1; s<samples; s++) {
+    		t -= WheelphoneProtocol.batchSampleDt(rxPacket, s);
+    	}
+    	for(int s=0; s<samples; s++) {
+    		if(batch) {
+    			WheelphoneProtocol.expandBatchSample(rxPacket, s, rxExpanded);
+    			if(s > 0) {
+    				t += WheelphoneProtocol.batchSampleDt(rxPacket, s);
+    			}
+    		}
+    		double dt;
+    		if(robotTime < 0 || WheelphoneProtocol.isRobotTimeJump(robotTime, t)) {	// first sample or clock jump: restart from t
+    			dt = 0.0;
+    			robotTime = t;
+    		} else {
+    			dt = Math.max(0, t - robotTime);
+    			robotTime = Math.max(robotTime, t);
+    		}
+    		long timeMs = (long)finalTime - (packetNs - clockSync.toPhoneNanos(t))/1000000L;
+    		decodeSample(rxExpanded, dt, timeMs);
+    	}
+    }
+    
+    /**
+     * \brief Copy the values of the packet just decoded (raw and filtered) to the published frame; the copy is done 
+     *  while holding the frame lock so that "getSensorFrame" never returns values from different packets.
+     * \return none
+     */
+    private void publishSensorFrame() {
+    	synchronized(sensorFrame) {
+    		System.arraycopy(proxValues, 0, sensorFrame.prox, 0, 4);
+    		System.arraycopy(proxAmbientValues, 0, sensorFrame.proxAmbient, 0, 4);
+    		System.arraycopy(groundValues, 0, sensorFrame.ground, 0, 4);
+    		System.arraycopy(groundAmbientValues, 0, sensorFrame.groundAmbient, 0, 4);
+    		System.arraycopy(proxFilteredValues, 0, sensorFrame.proxFiltered, 0, 4);
+    		System.arraycopy(proxAmbientFilteredValues, 0, sensorFrame.proxAmbientFiltered, 0, 4);
+    		System.arraycopy(groundFilteredValues, 0, sensorFrame.groundFiltered, 0, 4);
+    		System.arraycopy(groundAmbientFilteredValues, 0, sensorFrame.groundAmbientFiltered, 0, 4);
+    		System.arraycopy(proxCompensatedValues, 0, sensorFrame.proxCompensated, 0, 4);
+    		System.arraycopy(proxDistances, 0, sensorFrame.proxDistances, 0, 4);
+    		sensorFrame.linePosition = lineEstimator.getPosition();
+    		sensorFrame.lineLost = lineEstimator.isLineLost();
+    		sensorFrame.lineIntersection = lineEstimator.isIntersection();
+    		sensorFrame.battery = battery;
+    		sensorFrame.flagRobotToPhone = flagRobotToPhone;
+    		sensorFrame.leftSpeed = leftMeasuredSpeed;
+    		sensorFrame.rightSpeed = rightMeasuredSpeed;
+    		sensorFrame.x = odometry[X_ODOM];
+    		sensorFrame.y = odometry[Y_ODOM];
+    		sensorFrame.theta = odometry[THETA_ODOM];
+    		sensorFrame.timestamp = (long)finalTime;
+    		sensorFrame.sequence = packetsDecoded;
+    		sensorFrame.robotTime = robotTime;
+    	}
+    	packetsDecoded++;
+    }
+    
     /**
      * \brief Send the next packet to the robot containing the last left and right speeds and flag data.
      * \return none
      */
-    private void sendCommandsToRobot() {
+    void sendCommandsToRobot() {
     	if(accessoryManager.isConnected() == false) {
     		return;
 		}
-		byte[] commandPacket = new byte[packetLengthSend];
-		commandPacket[0] = (byte) UPDATE_STATE;
-		commandPacket[1] = (byte)lSpeed;
-		commandPacket[2] = (byte)rSpeed;
+		int l = lSpeed;
+		int r = rSpeed;
+		if(safetyReflex.blocks(l, r)) {	// obstacle or cliff detected in the last packet received
+			l = 0;
+			r = 0;
+		}
+		byte[] commandPacket = compactProtocol ? txCompactPacket : txPacket;
+		commandPacket[0] = (byte) (compactProtocol ? UPDATE_STATE_COMPACT : UPDATE_STATE);
+		if(isIntegrityChecked()) {
+			commandPacket = txCheckedPacket;
+			commandPacket[0] = (byte) WheelphoneProtocol.UPDATE_STATE_CHECKED;
+		}
+		commandPacket[1] = (byte)l;
+		commandPacket[2] = (byte)r;
 		commandPacket[3] = flagPhoneToRobot;
+		if(commandPacket == txCheckedPacket) {
+			WheelphoneProtocol.seal(commandPacket, 4, txSequence++);
+		}
 		accessoryManager.write(commandPacket);	
+		trace.record(TraceRecorder.EV_SEND, l, r, flagPhoneToRobot);
+		PacketRecorder recorder = packetRecorder;
+		if(recorder != null) {
+			recorder.record(PacketRecorder.OUTBOUND, commandPacket, commandPacket.length);
+		}
 		flagPhoneToRobot &= 0xEF; //~(1 << 4);	// calibration flag sent only once
 		flagPhoneToRobot &= ~(1 << 5);
     }    
@@ -502,13 +884,36 @@ public class WheelphoneRobot {
 //    	}
     	
     	if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
-    		accessoryManager = new USBAccessoryManagerAndroidLib(handler, USBAccessoryWhat);
+    		accessoryManager = new USBAccessoryManagerAndroidLib(getHandler(), USBAccessoryWhat);
     	} else {
-    		accessoryManager = new USBAccessoryManagerAddOnLib(handler, USBAccessoryWhat);
+    		accessoryManager = new USBAccessoryManagerAddOnLib(getHandler(), USBAccessoryWhat);
     	}
     	
+		accessoryManager.setLogger(loggerSource);
+		accessoryManager.setTraceRecorder(trace);
 		accessoryManager.enable(context, activityIntent);
 		
+		startCommunicationTimer();
+		
+//		if(commTrials > 0) {
+//			byte[] commandPacket2 = new byte[2];
+//			commandPacket2[0] = (byte) APP_CONNECT;
+//			commandPacket2[1] = 0;
+//			accessoryManager.write(commandPacket2);				
+//			packetReceived = 1;
+//	        timer = new Timer();                                         
+//	        timer.schedule(new communicationTask(timerTaskId), 0, 50);
+//	        timerTaskId++;
+//	        isConnected = true;	    
+//		}
+   	
+    }
+    
+    /**
+     * \brief (Re)start the timer task exchanging the packets with the robot every "commPeriod" ms (50 ms by default).
+     * \return none
+     */
+    private void startCommunicationTimer() {
 		if(timer != null) {
 			if(debugUsbComm) {
 	    		logString = TAG + ": startUSBCommunication timer cancel id = " + (timerTaskId-1);
@@ -518,26 +923,58 @@ public class WheelphoneRobot {
 			timer.cancel();
 		}
         timer = new Timer();                                         
-        timer.schedule(new communicationTask(timerTaskId), 0, 50);
+        timer.schedule(new communicationTask(timerTaskId), 0, commPeriod);
+        trace.record(TraceRecorder.EV_START, timerTaskId, 0, 0);
 		if(debugUsbComm) {
     		logString = TAG + ": startUSBCommunication new timer wiht id = " + timerTaskId;
     		Log.d(TAG, logString);
     		appendLog("debugUsbComm.txt", logString, false);
 		}        
 		timerTaskId++;
-		
-//		if(commTrials > 0) {
-//			byte[] commandPacket2 = new byte[2];
-//			commandPacket2[0] = (byte) APP_CONNECT;
-//			commandPacket2[1] = 0;
-//			accessoryManager.write(commandPacket2);				
-//			packetReceived = 1;
-//	        timer = new Timer();                                         
-//	        timer.schedule(new communicationTask(timerTaskId), 0, 50);
-//	        timerTaskId++;
-//	        isConnected = true;	    
-//		}
-   	
+    }
+    
+    /**
+     * \brief Start the communication with a transport other than the USB accessory, e.g. the replay of a recorded session 
+     *  (see "USBAccessoryManagerReplay"). The packets go through the same decoding as with the robot, but the events are 
+     *  handled (and the listeners notified) from the transport thread instead of the main thread; no Android service is 
+     *  used, thus this works also on a desktop computer. Use "closeUSBCommunication" to stop the communication.
+     * \param manager transport to use
+     * \return none
+     */
+    public void startCommunication(USBAccessoryManagerLocal manager) {
+    	attach(manager);
+		startCommunicationTimer();
+    }
+    
+    /**
+     * \brief Connect a local transport without starting the communication timer; the packets are sent only when 
+     *  "sendCommandsToRobot" is called (used by LibraryBenchmark, see tools/).
+     * \param manager transport to use
+     * \return none
+     */
+    void attach(USBAccessoryManagerLocal manager) {
+    	accessoryManager = manager;
+    	manager.setReceiver(new USBAccessoryManagerLocal.MessageReceiver() {
+    		public void onAccessoryMessage(USBAccessoryManagerMessage.MessageType type) {
+    			processAccessoryMessage(type);
+    		}
+    	});
+		accessoryManager.setLogger(loggerSource);
+		accessoryManager.setTraceRecorder(trace);
+		accessoryManager.enable(context, activityIntent);
+    }
+    
+    /**
+     * \brief Run one period of the communication task from the caller thread instead of the timer: the next command is 
+     *  sent if the answer to the previous one was received, the timeout is counted otherwise. Used with "attach" to 
+     *  run the robot against a simulated one in virtual time (see EpisodeRunner in tools/).
+     * \return none
+     */
+    void tick() {
+    	if(manualTask == null) {
+    		manualTask = new communicationTask(-1);
+    	}
+    	manualTask.run();
     }
        
     /**
@@ -556,10 +993,15 @@ public class WheelphoneRobot {
 	    switch(firmwareVersion) {
 	    	case 2:
 	    	case 3:
+	    	case 4:
 	    		byte[] commandPacket = new byte[2];
 	    		commandPacket[0] = (byte) APP_DISCONNECT;
 	    		commandPacket[1] = 0;
 	    		accessoryManager.write(commandPacket);	
+	    		trace.record(TraceRecorder.EV_DISCONNECT);
+	    		if(packetRecorder != null) {
+	    			packetRecorder.record(PacketRecorder.OUTBOUND, commandPacket, commandPacket.length);
+	    		}
 	    		break;
 	    }
     
@@ -576,7 +1018,12 @@ public class WheelphoneRobot {
     		Log.d(TAG, logString);
     		appendLog("debugUsbComm.txt", logString, false);
 		}		
-		timer.cancel();
+		if(timer != null) {
+			timer.cancel();
+			timer = null;		// not restarted by "setCommunicationPeriod"
+		}
+		trace.record(TraceRecorder.EV_CLOSE);
+		closeLogger();
 		
 		isConnected = false;
 	}
@@ -771,6 +1218,32 @@ public class WheelphoneRobot {
 		flagPhoneToRobot &= ~(1 << 3);
 	}
 	
+    /**
+     * \brief Enable the phone side safety reflex: when an obstacle is too near or a cliff is detected in a received packet, 
+     * the next command packet stops the robot. The thresholds are configured with "getSafetyReflex".
+     * \return none
+     */
+    public void enableSafetyReflex() {
+    	safetyReflex.setEnabled(true);
+    }
+    
+    /**
+     * \brief Disable the phone side safety reflex.
+     * \return none
+     */
+    public void disableSafetyReflex() {
+    	safetyReflex.setEnabled(false);
+    }
+    
+    /**
+     * \brief Return the safety reflex; use it to configure the thresholds and to register a listener notified when 
+     *  the reflex is triggered. For more details refer to "SafetyReflex".
+     * \return safety reflex
+     */
+    public SafetyReflex getSafetyReflex() {
+    	return safetyReflex;
+    }
+    
     /**
      * \brief Start the calibration of all the sensors. Use "isCalibrating" to know when the calibration is done.
      * \return none
@@ -779,8 +1252,10 @@ public class WheelphoneRobot {
     	int i=0;
     	for(i=0; i<4; i++) {
     		proxValuesCalibration[i] = proxValues[i];
+    		proxAmbientValuesCalibration[i] = proxAmbientValues[i];
     		groundValuesCalibration[i] = groundValues[i];
     	}
+    	lineEstimator.seed(groundValuesCalibration);	// the calibration is done on the floor
     	flagPhoneToRobot |= (1 << 4);
     	isCalibratingCounter = 2;	// the calibration lasts about 43 ms (105(adc int)*26(adc states)*16(samples for calibration)=43680 us)
     								// thus wait at least two cylces (100 ms) to be sure the calibration is done
@@ -981,6 +1456,138 @@ public class WheelphoneRobot {
     	return groundValuesCalibration;
     }
     
+    /**
+     * \brief Front proximity values filtered as configured with "getSensorFilter". For more details refer to "getFrontProxs".
+     * \return array of size 4 containing the filtered sensors values
+     */
+    public int[] getFrontProxsFiltered() {
+    	return proxFilteredValues;
+    }
+    
+    /**
+     * \brief Front ambient values filtered as configured with "getSensorFilter". For more details refer to "getFrontAmbients".
+     * \return array of size 4 containing the filtered sensors values
+     */
+    public int[] getFrontAmbientsFiltered() {
+    	return proxAmbientFilteredValues;
+    }
+    
+    /**
+     * \brief Ground proximity values filtered as configured with "getSensorFilter". For more details refer to "getGroundProxs".
+     * \return array of size 4 containing the filtered sensors values
+     */
+    public int[] getGroundProxsFiltered() {
+    	return groundFilteredValues;
+    }
+    
+    /**
+     * \brief Ground ambient values filtered as configured with "getSensorFilter". For more details refer to "getGroundAmbients".
+     * \return array of size 4 containing the filtered sensors values
+     */
+    public int[] getGroundAmbientsFiltered() {
+    	return groundAmbientFilteredValues;
+    }
+    
+    /**
+     * \brief Front proximity values compensated for the calibration (see "calibrateSensors") and the ambient light, 
+     *  computed from the filtered values. For more details refer to "ProxDistanceTable".
+     * \return array of size 4 containing the compensated values (0..255)
+     */
+    public int[] getFrontProxsCompensated() {
+    	return proxCompensatedValues;
+    }
+    
+    /**
+     * \brief Distance of the objects detected by the front proximity sensors, obtained from the compensated values 
+     *  through the lookup tables of "getProxDistanceTable".
+     * \return array of size 4 containing the distances in mm (ProxDistanceTable.NO_OBJECT if nothing is detected)
+     */
+    public int[] getFrontProxDistances() {
+    	return proxDistances;
+    }
+    
+    /**
+     * \brief Return the corresponding front proximity distance. For more details refer to "getFrontProxDistances".
+     * \return distance in mm (ProxDistanceTable.NO_OBJECT if nothing is detected)
+     */
+    public int getFrontProxDistance(int ind) {
+    	if(ind>=0 && ind<=3) {
+    		return proxDistances[ind];
+    	}
+    	return ProxDistanceTable.NO_OBJECT;
+    }
+    
+    /**
+     * \brief Set the tables used to convert the compensated front proximity values to distances (e.g. loaded from 
+     *  the file saved after a calibration sweep).
+     * \param table distance tables
+     * \return none
+     */
+    public void setProxDistanceTable(ProxDistanceTable table) {
+    	proxDistanceTable = table;
+    }
+    
+    /**
+     * \brief Return the tables used to convert the compensated front proximity values to distances.
+     * \return distance tables
+     */
+    public ProxDistanceTable getProxDistanceTable() {
+    	return proxDistanceTable;
+    }
+    
+    /**
+     * \brief Return the position of the line under the robot, estimated from the filtered ground values each time a 
+     *  packet is received. For more details refer to "LineEstimator".
+     * \return position from -1.0 (under ground sensor 0) to 1.0 (under ground sensor 3)
+     */
+    public double getLinePosition() {
+    	return lineEstimator.getPosition();
+    }
+    
+    /**
+     * \brief Tell whether the line is lost, i.e. no ground sensor sees it.
+     * \return true if the line is lost, false otherwise
+     */
+    public boolean isLineLost() {
+    	return lineEstimator.isLineLost();
+    }
+    
+    /**
+     * \brief Tell whether an intersection is under the ground sensors.
+     * \return true if an intersection is detected, false otherwise
+     */
+    public boolean isLineIntersection() {
+    	return lineEstimator.isIntersection();
+    }
+    
+    /**
+     * \brief Return the line estimator; use it to configure the line color and the detection thresholds.
+     * \return line estimator
+     */
+    public LineEstimator getLineEstimator() {
+    	return lineEstimator;
+    }
+    
+    /**
+     * \brief Return the filter applied to each received packet; use it to configure the filtering of each group of sensors.
+     * \return sensor filter
+     */
+    public SensorFilter getSensorFilter() {
+    	return sensorFilter;
+    }
+    
+    /**
+     * \brief Copy the values (raw, filtered and odometry) of the last received packet; all the values come from the same 
+     *  packet. Can be called from any thread.
+     * \param dst frame where to copy the values (allocate it once and reuse it)
+     * \return none
+     */
+    public void getSensorFrame(SensorFrame dst) {
+    	synchronized(sensorFrame) {
+    		dst.copyFrom(sensorFrame);
+    	}
+    }
+    
     /**
     * \brief Indicate whether the robot is connected (and exchanging packets) with the phone or not.
     * \return true (if robot connected), false otherwise
@@ -995,7 +1602,27 @@ public class WheelphoneRobot {
     * \return none
     */
     public void setCommunicationTimeout(int ms) {
-    	commTimeoutLimit = ms/50;
+    	commTimeoutMs = ms;
+    	commTimeoutLimit = Math.max(1, ms/commPeriod);
+    }
+    
+    /**
+    * \brief Set the period of the packets exchange with the robot (50 ms by default); a new command is sent at most once 
+    *  per period, and only after the answer to the previous one is received. The communication timeout is kept in ms. 
+    *  If the communication is running, the timer is restarted with the new period.
+    * \param ms period in milliseconds (1 to 1000)
+    * \return none
+    */
+    public void setCommunicationPeriod(int ms) {
+    	commPeriod = Math.max(1, Math.min(ms, 1000));
+    	commTimeoutLimit = Math.max(1, commTimeoutMs/commPeriod);
+    	if(timer != null) {
+    		startCommunicationTimer();
+    	}
+    }
+    
+    public int getCommunicationPeriod() {
+    	return commPeriod;
     }
     
     /**
@@ -1047,9 +1674,11 @@ public class WheelphoneRobot {
     * \return none
     */
     public void setOdometry(double x, double y, double t) {
-    	odometry[X_ODOM] = x;
-    	odometry[Y_ODOM] = y;
-    	odometry[THETA_ODOM] = t;
+    	odom.set(x, y, t);
+    	PacketRecorder recorder = packetRecorder;
+    	if(recorder != null) {
+    		recorder.recordPose(x, y, t);
+    	}
     }
     
     /**
@@ -1060,9 +1689,7 @@ public class WheelphoneRobot {
     * \return none
     */
     public void setOdometryParameters(double ldc, double rdc, double wb) {
-    	leftDiamCoeff = ldc;
-    	rightDiamCoeff = rdc;
-    	wheelBase = wb;
+    	odom.setParameters(ldc, rdc, wb);
     }
  
     public void calibrateOdometry() {
@@ -1075,11 +1702,38 @@ public class WheelphoneRobot {
     }
     
     public void resetOdometry() {
-    	setOdometry(0,0,0);
-    	leftDist = 0;
-    	rightDist = 0;
-    	leftDistPrev = 0;
-    	rightDistPrev = 0;
+    	odom.reset();
+    	poseHistory.clear();
+    	PacketRecorder recorder = packetRecorder;
+    	if(recorder != null) {
+    		recorder.recordPose(0, 0, 0);
+    	}
+    }
+    
+    /**
+    * \brief Enable the update of an occupancy grid with the front proximity values and the odometry; the grid is 
+    * updated each time a packet is received from the robot and can be queried from any thread.
+    * \param grid the occupancy grid to update (e.g. "new OccupancyGrid()")
+    * \return none
+    */
+    public void enableOccupancyGrid(OccupancyGrid grid) {
+    	occupancyGrid = grid;
+    }
+    
+    /**
+    * \brief Stop updating the occupancy grid; the grid content is kept.
+    * \return none
+    */
+    public void disableOccupancyGrid() {
+    	occupancyGrid = null;
+    }
+    
+    /**
+    * \brief Return the occupancy grid currently updated.
+    * \return occupancy grid (null if not enabled)
+    */
+    public OccupancyGrid getOccupancyGrid() {
+    	return occupancyGrid;
     }
     
     /**
@@ -1090,15 +1744,147 @@ public class WheelphoneRobot {
     	return firmwareVersion;
     }
     
+    /**
+    * \brief Set the features asked to a robot with the firmware v4 when the communication starts (see WheelphoneProtocol); 
+    *  the values of the features not sent by the robot are 0 (e.g. without FEATURE_PROX_AMBIENT the ambient proximity 
+    *  values are not compensated). Fewer features mean smaller packets. With FEATURE_BATCH each packet contains the 
+    *  last samples taken by the robot: they are all filtered and integrated by the odometry (see "getPoseHistory"), 
+    *  the listener is notified once per packet with the last one. With FEATURE_INTEGRITY the frames have a sequence 
+    *  number and a CRC: the frames corrupted or duplicated are dropped before being decoded, a command is sent again 
+    *  when no valid answer is received for 200 ms (see "getFramesLost"). With FEATURE_TIMESTAMP the frames have the 
+    *  time of the robot: the odometry integrates the time elapsed on the robot instead of the time between the 
+    *  packets received (see "getClockSync"). No effect with the firmware v2/v3.
+    * \param features bitmap of WheelphoneProtocol.FEATURE_* (WheelphoneProtocol.FEATURES_DEFAULT by default)
+    * \return none
+    */
+    public void setProtocolFeatures(int features) {
+    	protocolFeatures = features & WheelphoneProtocol.FEATURES_ALL;
+    }
+    
+    /**
+    * \brief Return the history of the odometry, a pose for each sample received (several per packet with the batch 
+    *  frames), timed with the time of the phone (System.currentTimeMillis); with FEATURE_TIMESTAMP the time of each 
+    *  sample is the robot time converted by the clock synchronization. Cleared by "resetOdometry".
+    * \return pose history, updated by the thread handling the packets
+    */
+    public PoseHistory getPoseHistory() {
+    	return poseHistory;
+    }
+    
+    /**
+    * \brief Return the estimation of the mapping between the robot time and the phone time (System.nanoTime), updated 
+    *  with each frame having the robot time (FEATURE_TIMESTAMP); it can be used to align the samples of the robot 
+    *  with the other sensors of the phone. Restarted when the communication starts.
+    * \return clock synchronization, updated by the thread handling the packets
+    */
+    public ClockSync getClockSync() {
+    	return clockSync;
+    }
+    
+    /**
+    * \brief Return the robot time of the last sample received (FEATURE_TIMESTAMP), unwrapped.
+    * \return robot time (ms), -1 if the robot doesn't send it
+    */
+    public long getRobotTime() {
+    	return robotTime;
+    }
+    
+    /**
+    * \brief Return the features sent by the robot, as answered to the connect packet (firmware v4 only).
+    * \return bitmap of WheelphoneProtocol.FEATURE_*, 0 with the firmware v2/v3
+    */
+    public int getNegotiatedFeatures() {
+    	return negotiatedFeatures;
+    }
+    
+    /**
+    * \brief Return the number of frames of the robot lost, from the gaps in the sequence numbers (FEATURE_INTEGRITY); 
+    *  with "getFramesDuplicated" and "getFramesCorrupted" this gives the quality of the link.
+    * \return frames lost since the creation of the instance
+    */
+    public long getFramesLost() {
+    	return framesLost;
+    }
+    
+    /**
+    * \brief Return the number of frames of the robot received twice and dropped (FEATURE_INTEGRITY).
+    * \return duplicate frames since the creation of the instance
+    */
+    public long getFramesDuplicated() {
+    	return framesDuplicated;
+    }
+    
+    /**
+    * \brief Return the number of frames of the robot dropped before being decoded because of a wrong CRC or header, or 
+    *  incomplete (FEATURE_INTEGRITY).
+    * \return corrupted frames since the creation of the instance
+    */
+    public long getFramesCorrupted() {
+    	return framesCorrupted;
+    }
+    
+    /**
+    * \brief Indicate whether the compact frames of the protocol v4 are exchanged with the robot.
+    * \return true with a firmware v4 once the connect packet is answered
+    */
+    public boolean isCompactProtocol() {
+    	return compactProtocol;
+    }
+    
     /**
     * \brief Enable the logging of the sensors data received from the robot and the computed odometry.
     */
     public void enableDataLog() {
     	logEnabled = true;
-		logString = "prox0,prox1,prox2,prox3,proxAmb0,proxAmb1,proxAmb2,proxAmb3,ground0,ground1,ground2,ground3,groundAmb0,groundAmb1,groundAmb2,groundAmb3,battery,flagRobotToPhone,leftSpeed,rightSpeed,x,y,theta";
+    	AsyncLogger l = getLogger();
+    	if(l.isRotated("logFile.csv")) {
+    		l.truncate(l.openStream("logFile.csv"));	// starts a new segment, the header is written by the logger
+    		return;
+    	}
+		logString = SensorFrame.CSV_HEADER;
 		appendLog("logFile.csv", logString, true);
     }
     
+    /**
+    * \brief Rotate the data log ("logFile.csv") by size and/or time, to bound the storage used by long sessions. The 
+    * sealed segments ("logFile-000001.csv", ...) are listed with their time range in "logFile.csv.index" (see 
+    * "LogSegmentIndex") and can be compressed; this is done by a low priority thread, the logging is not slowed down.
+    * Each segment starts with the CSV header. With rotation enabled, "enableDataLog" starts a new segment instead of 
+    * clearing the file.
+    * \param maxBytes size of a segment (bytes), 0 for no limit
+    * \param maxAgeMs time covered by a segment (ms), 0 for no limit
+    * \param maxSegments number of sealed segments kept (the oldest are deleted), 0 to keep all
+    * \param compress true to compress the sealed segments (gzip)
+    * \return none
+    */
+    public void setDataLogRotation(long maxBytes, long maxAgeMs, int maxSegments, boolean compress) {
+    	synchronized(this) {
+    		logRotation = true;
+    		logRotationBytes = maxBytes;
+    		logRotationMs = maxAgeMs;
+    		logRotationSegments = maxSegments;
+    		logRotationCompress = compress;
+    	}
+    	AsyncLogger l = getLogger();
+    	l.setSegmentHeader("logFile.csv", SensorFrame.CSV_HEADER);
+    	l.setRotation("logFile.csv", maxBytes, maxAgeMs, maxSegments, compress);
+    }
+    
+    /**
+    * \brief Stop rotating the data log; the current segment continues as a normal file.
+    * \return none
+    */
+    public void disableDataLogRotation() {
+    	AsyncLogger l;
+    	synchronized(this) {
+    		logRotation = false;
+    		l = logger;
+    	}
+    	if(l != null) {
+    		l.disableRotation("logFile.csv");
+    	}
+    }
+    
     
     /**
     * \brief Disable the logging.
@@ -1107,43 +1893,94 @@ public class WheelphoneRobot {
     	logEnabled = false;
     }
     
+    /**
+    * \brief Record all the raw packets exchanged with the robot in a compact binary format (see "PacketRecorder"); the 
+    * recording can be converted offline to the "logFile.csv" format with "PacketRecordingConverter" (desktop tools) or replayed.
+    * Recording costs much less than the data log, thus it can be left enabled for long sessions.
+    * \param dir directory where the recording segments are created
+    * \param name name of the recording
+    * \return none
+    */
+    public void enablePacketRecording(File dir, String name) {
+    	PacketRecorder recorder = new PacketRecorder(dir, name);
+    	if(accessoryManager != null && accessoryManager.isConnected()) {
+    		recorder.setFirmwareVersion(accessoryManager.getVersion());
+    	}
+    	recorder.recordPose(odometry[X_ODOM], odometry[Y_ODOM], odometry[THETA_ODOM]);
+    	PacketRecorder old = packetRecorder;
+    	packetRecorder = recorder;
+    	if(old != null) {
+    		old.close();
+    	}
+    }
+    
+    /**
+    * \brief Stop the recording of the packets and close the current segment.
+    * \return none
+    */
+    public void disablePacketRecording() {
+    	PacketRecorder recorder = packetRecorder;
+    	packetRecorder = null;
+    	if(recorder != null) {
+    		recorder.close();
+    	}
+    }
+    
+    /**
+    * \brief Return the current packets recorder.
+    * \return recorder (null if not enabled)
+    */
+    public PacketRecorder getPacketRecorder() {
+    	return packetRecorder;
+    }
+    
+    /**
+    * \brief Return the recorder of the communication events (always enabled); the application can record its own 
+    *  events with ids starting from "TraceRecorder.EV_USER".
+    * \return trace recorder
+    */
+    public TraceRecorder getTraceRecorder() {
+    	return trace;
+    }
+    
+    /**
+    * \brief Write the last communication events to a file. The events are also dumped automatically in the log 
+    *  directory ("trace-<time>-<reason>.csv") when the robot is detached and when the communication times out.
+    * \param file destination file
+    * \return number of events written
+    */
+    public int dumpTrace(File file) throws IOException {
+    	return trace.dump(file);
+    }
+    
+    /**
+    * \brief Set the directory where the log files are created (default "sdcard/"); the files already opened are not moved.
+    * \param dir log directory
+    * \return none
+    */
+    public synchronized void setLogDirectory(File dir) {
+    	logDirectory = dir;
+    	if(logger != null) {
+    		logger.setDirectory(dir);
+    	}
+    }
+    
+    /**
+    * \brief Wait until all the log lines are written to the files, e.g. before reading them.
+    * \param timeoutMs maximum time to wait (ms)
+    * \return true if everything was written, false if the timeout expired
+    */
+    public boolean flushLog(long timeoutMs) {
+    	AsyncLogger l;
+    	synchronized(this) {
+    		l = logger;
+    	}
+    	return l == null || l.flush(timeoutMs);
+    }
+    
 	void appendLog(String fileName, String text, boolean clearFile)
 	{       
-	   File logFile = new File("sdcard/" + fileName);
-	   if (!logFile.exists()) {
-	      try
-	      {
-	         logFile.createNewFile();
-	      } 
-	      catch (IOException e)
-	      {
-	         // TODO Auto-generated catch block
-	         e.printStackTrace();
-	      }
-	   } else {
-		   if(clearFile) {
-			   logFile.delete();
-			   try {
-				   logFile.createNewFile();
-			   } catch (IOException e) {
-				   // TODO Auto-generated catch block
-				   e.printStackTrace();
-			   }
-		   }
-	   }
-	   try
-	   {
-	      //BufferedWriter for performance, true to set append to file flag
-	      BufferedWriter buf = new BufferedWriter(new FileWriter(logFile, true)); 
-	      buf.append(text);
-	      buf.newLine(); 
-	      buf.close();
-	   }
-	   catch (IOException e)
-	   {
-	      // TODO Auto-generated catch block
-	      e.printStackTrace();
-	   }
+		getLogger().append(fileName, text, clearFile);	// queued, written by the logger thread
 	}
 	
 	/*
@@ -0,0 +1,21 @@
+#!/bin/sh
+# Allocation check of the per packet path of the library (LibraryBenchmark -check-alloc).
+# Compiles the library and the tools in a temporary directory and runs the benchmark; the exit status is not 0
+# when a steady state benchmark allocates memory, when log lines are dropped or when the compilation fails.
+# Usage (from any directory):
+#  tools/check-alloc.sh <classpath of the Android classes>
+# The Android classes must run on a desktop JVM (e.g. the android-all jar of Robolectric), the android.jar of
+# the SDK only contains stubs.
+
+if [ $# -lt 1 ]; then
+	echo "usage: $0 <classpath of the Android classes>" >&2
+	exit 2
+fi
+ANDROID_CP="$1"
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+OUT="$(mktemp -d)"
+trap 'rm -rf "$OUT"' EXIT
+
+javac -nowarn -encoding UTF-8 -cp "$ANDROID_CP" -d "$OUT" $(find "$ROOT/src" "$ROOT/gen" -name '*.java') || exit 1
+javac -nowarn -encoding UTF-8 -cp "$OUT:$ANDROID_CP" -d "$OUT" $(find "$ROOT/tools/src" -name '*.java') || exit 1
+java -cp "$OUT:$ANDROID_CP" com.wheelphone.wheelphonelibrary.LibraryBenchmark -check-alloc
@@ -0,0 +1,399 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file EpisodeRunner.java
+ * \brief Parallel simulated episodes to tune the parameters of a controller
+ * \copyright GNU GPL v3
+
+
+The EpisodeRunner class evaluates sets of controller parameters (gains, speeds, thresholds, ...) in simulation
+instead of on the real robot. An episode is a short run of a new WheelphoneRobot connected to a new
+WorldSimulator through an in-process transport, in virtual time: each communication period the packet of the
+simulated robot is handled, the controller sets the speeds and the command is sent, as fast as possible (the
+communication task is run by the runner, see "WheelphoneRobot.tick"). The application provides an Episode:
+- "setup": the world and the start pose, drawn from the random generator of the episode
+- "control": called at each period with the parameters being evaluated, reads the robot and sets the speeds
+- "observe" and "score": the metric, the higher the score the better
+Each parameter set is evaluated on the same episodes (same seeds), thus the scores are comparable and a run
+can be repeated. The episodes are run by a pool of threads, one per processor by default; nothing is shared
+between the episodes (each has its own robot, transport, world and random generator).
+\verbatim
+ EpisodeRunner runner = new EpisodeRunner();
+ List<EpisodeRunner.Candidate> best = runner.run(factory, EpisodeRunner.grid(min, max, steps), 100, 1234, 5);
+\endverbatim
+Example with a line following controller:
+\verbatim
+ java com.wheelphone.wheelphonelibrary.EpisodeRunner [episodes per set] [threads]
+\endverbatim
+
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.content.Intent;
+
+public class EpisodeRunner {
+
+	/*
+	 * Scenario, controller and metric of an episode; a new instance is created for each episode.
+	 */
+	public static abstract class Episode {
+		/**
+		 * \brief Build the world and place the robot.
+		 * \param world empty world
+		 * \param random random generator of the episode (deterministic)
+		 * \return none
+		 */
+		public abstract void setup(WorldSimulator world, Random random);
+
+		/**
+		 * \brief Control the robot, called once per communication period after the last packet was handled.
+		 * \param robot robot
+		 * \param params parameters evaluated
+		 * \param timeMs time since the start of the episode (ms)
+		 * \return none
+		 */
+		public abstract void control(WheelphoneRobot robot, double[] params, long timeMs);
+
+		/**
+		 * \brief Observe the simulated robot after each period, e.g. to accumulate an error.
+		 * \param world world (true pose of the robot)
+		 * \param robot robot
+		 * \param timeMs time since the start of the episode (ms)
+		 * \return false to end the episode now
+		 */
+		public boolean observe(WorldSimulator world, WheelphoneRobot robot, long timeMs) {
+			return true;
+		}
+
+		/**
+		 * \brief Score of the episode, the higher the better.
+		 * \param world world at the end of the episode
+		 * \param robot robot
+		 * \return score
+		 */
+		public abstract double score(WorldSimulator world, WheelphoneRobot robot);
+	}
+
+	public interface EpisodeFactory {
+		Episode create();
+	}
+
+	/*
+	 * Parameter set and its scores.
+	 */
+	public static class Candidate {
+		public final double[] params;
+		public final double[] scores;		// one per episode
+		public double mean, std;
+
+		Candidate(double[] p, int episodes) {
+			params = p;
+			scores = new double[episodes];
+		}
+
+		void summarize() {
+			double s = 0.0, s2 = 0.0;
+			for(double v : scores) {
+				s += v;
+				s2 += v*v;
+			}
+			mean = s/scores.length;
+			std = Math.sqrt(Math.max(0.0, s2/scores.length - mean*mean));
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%s mean %.3f std %.3f", Arrays.toString(params), mean, std);
+		}
+	}
+
+	/*
+	 * Transport to the simulated robot in virtual time: the answer to a command is computed when the command is
+	 * written and delivered at the next period.
+	 */
+	static class SimTransport extends USBAccessoryManagerLocal {
+		private final WorldSimulator world;
+		private final byte[] response = new byte[WheelphoneProtocol.PACKET_LENGTH_RECV];
+		private int responseLength = 0;
+		private long timeMs = 0, lastUpdateMs = 0;
+
+		SimTransport(WorldSimulator w) {
+			super(1024);
+			world = w;
+			version = w.getVersion();
+		}
+
+		@Override
+		public RETURN_CODES enable(Context context, Intent intent) {
+			connected = true;
+			closed = false;
+			deliver(USBAccessoryManagerMessage.MessageType.READY);
+			return RETURN_CODES.SUCCESS;
+		}
+
+		@Override
+		public void disable(Context context) {
+			connected = false;
+			closed = true;
+		}
+
+		@Override
+		public void write(byte[] data) {
+			double dt = 0.0;
+			if(data[0] == WheelphoneProtocol.UPDATE_STATE || data[0] == WheelphoneProtocol.UPDATE_STATE_COMPACT
+					|| data[0] == WheelphoneProtocol.UPDATE_STATE_CHECKED) {
+				dt = timeMs - lastUpdateMs;
+				lastUpdateMs = timeMs;
+			}
+			responseLength = world.step(data, data.length, response, dt);
+		}
+
+		@Override
+		long getPacketTime() {
+			return timeMs;
+		}
+
+		@Override
+		long getPacketNanoTime() {
+			return timeMs*1000000L;
+		}
+
+		/**
+		 * \brief Move to the next period and deliver the pending answer.
+		 * \param periodMs communication period (ms)
+		 * \return none
+		 */
+		void advance(int periodMs) {
+			timeMs += periodMs;
+			if(responseLength > 0) {
+				int n = responseLength;
+				responseLength = 0;
+				receive(response, 0, n);
+			}
+		}
+	}
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int periodMs = 50;
+	private long durationMs = 20000;
+
+	public void setThreads(int n) {
+		threads = Math.max(1, n);
+	}
+
+	/**
+	 * \brief Set the simulated time of an episode.
+	 * \param duration episode length (ms)
+	 * \param period communication period (ms), as "WheelphoneRobot.setCommunicationPeriod"
+	 * \return none
+	 */
+	public void setEpisode(long duration, int period) {
+		durationMs = duration;
+		periodMs = Math.max(1, period);
+	}
+
+	/**
+	 * \brief Run an episode.
+	 * \param episode episode
+	 * \param params parameters evaluated
+	 * \param seed seed of the episode
+	 * \return score
+	 */
+	public double runEpisode(Episode episode, double[] params, long seed) {
+		Random random = new Random(seed);
+		WorldSimulator world = new WorldSimulator("3.0");
+		world.setCalibrationTimes(0, 0);
+		episode.setup(world, random);
+		SimTransport transport = new SimTransport(world);
+		WheelphoneRobot robot = new WheelphoneRobot(null, null);
+		robot.setCommunicationPeriod(periodMs);
+		robot.attach(transport);
+		for(long t=0; t<durationMs; t+=periodMs) {
+			transport.advance(periodMs);
+			episode.control(robot, params, t);
+			robot.tick();
+			if(!episode.observe(world, robot, t)) {
+				break;
+			}
+		}
+		return episode.score(world, robot);
+	}
+
+	/**
+	 * \brief Evaluate parameter sets, each one on the same episodes, in parallel.
+	 * \param factory creates the episodes
+	 * \param paramSets parameter sets to evaluate
+	 * \param episodes number of episodes per parameter set
+	 * \param seed seed of the run; the seed of each episode is derived from it
+	 * \param topK number of best parameter sets returned
+	 * \return best parameter sets, the best first
+	 */
+	public List<Candidate> run(final EpisodeFactory factory, List<double[]> paramSets, int episodes, long seed, int topK)
+			throws InterruptedException {
+		final ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+		for(double[] p : paramSets) {
+			candidates.add(new Candidate(p, episodes));
+		}
+		final long[] seeds = new long[episodes];
+		Random r = new Random(seed);
+		for(int e=0; e<episodes; e++) {
+			seeds[e] = r.nextLong();
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for(final Candidate c : candidates) {
+				for(int e=0; e<episodes; e++) {
+					final int episode = e;
+					futures.add(pool.submit(new Runnable() {
+						public void run() {
+							c.scores[episode] = runEpisode(factory.create(), c.params, seeds[episode]);
+						}
+					}));
+				}
+			}
+			for(Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (java.util.concurrent.ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		for(Candidate c : candidates) {
+			c.summarize();
+		}
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			public int compare(Candidate a, Candidate b) {
+				return Double.compare(b.mean, a.mean);
+			}
+		});
+		return new ArrayList<Candidate>(candidates.subList(0, Math.min(topK, candidates.size())));
+	}
+
+	/**
+	 * \brief Build the parameter sets of a regular grid.
+	 * \param min minimum value of each parameter
+	 * \param max maximum value of each parameter
+	 * \param steps number of values of each parameter (1 for min only)
+	 * \return parameter sets
+	 */
+	public static List<double[]> grid(double[] min, double[] max, int[] steps) {
+		ArrayList<double[]> sets = new ArrayList<double[]>();
+		int[] index = new int[min.length];
+		while(true) {
+			double[] p = new double[min.length];
+			for(int i=0; i<p.length; i++) {
+				p[i] = (steps[i] <= 1) ? min[i] : min[i] + (max[i] - min[i])*index[i]/(steps[i] - 1);
+			}
+			sets.add(p);
+			int i = 0;
+			while(i < index.length && ++index[i] >= steps[i]) {
+				index[i] = 0;
+				i++;
+			}
+			if(i == index.length) {
+				return sets;
+			}
+		}
+	}
+
+	/**
+	 * \brief Draw parameter sets uniformly.
+	 * \param min minimum value of each parameter
+	 * \param max maximum value of each parameter
+	 * \param count number of sets
+	 * \param seed seed of the random generator
+	 * \return parameter sets
+	 */
+	public static List<double[]> random(double[] min, double[] max, int count, long seed) {
+		ArrayList<double[]> sets = new ArrayList<double[]>();
+		Random r = new Random(seed);
+		for(int n=0; n<count; n++) {
+			double[] p = new double[min.length];
+			for(int i=0; i<p.length; i++) {
+				p[i] = min[i] + (max[i] - min[i])*r.nextDouble();
+			}
+			sets.add(p);
+		}
+		return sets;
+	}
+
+	/*
+	 * Example: follow a black line along the x axis, starting near it with a random offset and heading.
+	 * Parameters: base speed (mm/s), proportional gain (mm/s per unit of line position).
+	 */
+	static class LineFollowing extends Episode {
+		private static final int[] FLOOR = {WorldSimulator.FLOOR_WHITE, WorldSimulator.FLOOR_WHITE, WorldSimulator.FLOOR_WHITE, WorldSimulator.FLOOR_WHITE};
+		private double error = 0.0;
+		private int lost = 0, steps = 0;
+
+		@Override
+		public void setup(WorldSimulator world, Random random) {
+			world.setTable(-200, -400, 3000, 400);
+			world.addLine(-200, 0, 3000, 0, 20, WorldSimulator.FLOOR_BLACK);
+			world.setNoise(3.0, 3.0, random.nextLong());
+			world.setPose(0.0, (random.nextDouble() - 0.5)*20.0, (random.nextDouble() - 0.5)*0.6);
+		}
+
+		@Override
+		public void control(WheelphoneRobot robot, double[] params, long timeMs) {
+			if(timeMs == 0) {	// the floor values are known, as after a calibration on the floor
+				robot.getLineEstimator().seed(FLOOR);
+			}
+			double turn = params[1]*robot.getLinePosition();	// line on the left side (sensor 0) => negative
+			robot.setSpeed((int)(params[0] + turn), (int)(params[0] - turn));
+		}
+
+		@Override
+		public boolean observe(WorldSimulator world, WheelphoneRobot robot, long timeMs) {
+			error += Math.abs(world.getY());
+			steps++;
+			if(robot.isLineLost()) {
+				lost++;
+			}
+			return !world.hasFallen();
+		}
+
+		@Override
+		public double score(WorldSimulator world, WheelphoneRobot robot) {
+			// progress along the line (m), minus the mean distance from it (cm) and the time without the line
+			return world.getX()/1000.0 - error/steps/10.0 - (double)lost/steps - (world.hasFallen() ? 10.0 : 0.0);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int episodes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		EpisodeRunner runner = new EpisodeRunner();
+		if(args.length > 1) {
+			runner.setThreads(Integer.parseInt(args[1]));
+		}
+		runner.setEpisode(10000, 50);
+		List<double[]> sets = grid(new double[] {50, 0}, new double[] {200, 300}, new int[] {4, 7});
+		long start = System.nanoTime();
+		List<Candidate> best = runner.run(new EpisodeFactory() {
+			public Episode create() {
+				return new LineFollowing();
+			}
+		}, sets, episodes, 1234, 5);
+		double s = (System.nanoTime() - start)/1e9;
+		System.out.println(String.format(Locale.US, "%d episodes in %.1f s (%d threads)", sets.size()*episodes, s, runner.threads));
+		for(Candidate c : best) {
+			System.out.println(c);
+		}
+	}
+
+}
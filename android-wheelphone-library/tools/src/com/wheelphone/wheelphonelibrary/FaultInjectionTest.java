@@ -0,0 +1,247 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file FaultInjectionTest.java
+ * \brief Recovery time of the communication after each class of link fault
+ * \copyright GNU GPL v3
+
+
+The FaultInjectionTest class measures how WheelphoneRobot recovers from the faults injected by
+USBAccessoryManagerFaulty, between the robot and a RobotSimulator (see SoakTest for the loopback transport).
+For each fault class, several trials are run, each one with a new robot and a parameter drawn from the seed:
+the communication is started, the fault is injected after a warmup and the robot is observed for a while.
+The simulator sends a fixed signature in the proximity values, thus a packet is valid when the robot is
+connected and decodes the signature. For each trial:
+- time to recover: from the injection to the first valid packet received after the end of the fault (see
+  "USBAccessoryManagerFaulty.getFaultEndNs"); not recovered if there is none before the end of the observation
+- lost commands: command packets that should have reached the robot in this time (one per period) and did not
+- invalid packets decoded and whether the robot was disconnected by the communication timeout
+- frames rejected by the robot (wrong CRC or duplicate, with the feature FEATURE_INTEGRITY of the protocol v4)
+The simulated firmware is a 3.0 by default; "-version 4.0 -features 15" runs the protocol v4 with all the
+features (see WheelphoneProtocol). It runs on a desktop computer:
+\verbatim
+ java com.wheelphone.wheelphonelibrary.FaultInjectionTest [trials] [seed] [-observe ms] [-version v] [-features bitmap]
+     [-out report.txt]
+\endverbatim
+
+*/
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+
+public class FaultInjectionTest {
+
+	private static final int[] SIGNATURE = {11, 22, 33, 44};
+
+	/*
+	 * Results of the trials of a fault class.
+	 */
+	public static class Result {
+		public int fault;
+		public int trials = 0;
+		public int recovered = 0;
+		public double recoverySumMs = 0.0, recoveryMaxMs = 0.0;		// recovered trials only
+		public long lostCommands = 0, lostCommandsMax = 0;
+		public long invalidPackets = 0;
+		public int timeouts = 0;									// trials ending disconnected
+		public long rejectedFrames = 0;								// corrupted and duplicate frames dropped
+
+		public double getMeanRecoveryMs() {
+			return (recovered == 0) ? Double.NaN : recoverySumMs/recovered;
+		}
+	}
+
+	/*
+	 * Valid packets seen by the robot: time and commands received by the simulator at that time.
+	 */
+	private static class Observer implements WheelphoneRobot.WheelPhoneRobotListener {
+		private final WheelphoneRobot robot;
+		private final RobotSimulator simulator;
+		private final long[] times = new long[100000];
+		private final long[] requests = new long[times.length];
+		private int count = 0;
+		private long invalid = 0;
+
+		Observer(WheelphoneRobot r, RobotSimulator sim) {
+			robot = r;
+			simulator = sim;
+		}
+
+		public synchronized void onWheelphoneUpdate() {
+			boolean valid = robot.isRobotConnected();
+			for(int i=0; i<4 && valid; i++) {
+				valid = robot.getFrontProx(i) == SIGNATURE[i];
+			}
+			if(!valid) {
+				invalid++;
+			} else if(count < times.length) {
+				times[count] = System.nanoTime();
+				requests[count] = simulator.getRequestCount();
+				count++;
+			}
+		}
+	}
+
+	private long seed = 1;
+	private int trials = 5;
+	private long warmupMs = 1000;
+	private long observeMs = 8000;			// longer than a detach (2 s) and two write retries (2 x 2 s)
+	private String version = "3.0";
+	private int features = WheelphoneProtocol.FEATURES_DEFAULT;
+
+	public void setSeed(long s) {
+		seed = s;
+	}
+
+	public void setTrials(int n) {
+		trials = n;
+	}
+
+	/**
+	 * \brief Set the firmware version of the simulator and the features asked by the robot (protocol v4).
+	 * \param v accessory version
+	 * \param f bitmap of WheelphoneProtocol.FEATURE_*
+	 * \return none
+	 */
+	public void setProtocol(String v, int f) {
+		version = v;
+		features = f;
+	}
+
+	/**
+	 * \brief Set how long the robot is observed after the injection of a fault.
+	 * \param ms observation time (ms)
+	 * \return none
+	 */
+	public void setObservation(long ms) {
+		observeMs = ms;
+	}
+
+	/**
+	 * \brief Run the trials of a fault class.
+	 * \param fault fault class (USBAccessoryManagerFaulty.FAULT_*)
+	 * \return results
+	 */
+	public Result run(int fault) throws InterruptedException {
+		Result res = new Result();
+		res.fault = fault;
+		Random random = new Random(seed*31 + fault);
+		for(int t=0; t<trials; t++) {
+			trial(res, random.nextLong(), USBAccessoryManagerFaulty.randomParameter(fault, random));
+		}
+		return res;
+	}
+
+	private void trial(Result res, long trialSeed, int param) throws InterruptedException {
+		RobotSimulator sim = new RobotSimulator(version);
+		for(int i=0; i<4; i++) {
+			sim.setProximity(i, SIGNATURE[i]);
+		}
+		USBAccessoryManagerFaulty faulty = new USBAccessoryManagerFaulty(new SoakTest.LoopbackTransport(sim, true), trialSeed);
+		WheelphoneRobot robot = new WheelphoneRobot(null, null);
+		robot.setProtocolFeatures(features);
+		Observer obs = new Observer(robot, sim);
+		robot.setWheelPhoneRobotListener(obs);
+		robot.startCommunication(faulty);
+		Thread.sleep(warmupMs);
+		int period = robot.getCommunicationPeriod();
+		long req0 = sim.getRequestCount();
+		long t0 = System.nanoTime();
+		faulty.inject(res.fault, param);
+		Thread.sleep(observeMs);
+		long end = System.nanoTime();
+		long faultEnd = Math.max(t0, faulty.getFaultEndNs());
+		boolean connected = robot.isRobotConnected();
+		robot.closeUSBCommunication();
+		res.rejectedFrames += robot.getFramesCorrupted() + robot.getFramesDuplicated();
+
+		long recoveredAt = 0, reqAtRecovery = sim.getRequestCount();
+		synchronized(obs) {
+			for(int i=0; i<obs.count; i++) {
+				if(obs.times[i] > faultEnd) {
+					recoveredAt = obs.times[i];
+					reqAtRecovery = obs.requests[i];
+					break;
+				}
+			}
+			res.invalidPackets += obs.invalid;
+		}
+		long until = (recoveredAt != 0) ? recoveredAt : end;
+		long expected = (until - t0)/(period*1000000L);
+		long lost = Math.max(0, expected - (reqAtRecovery - req0));
+		res.trials++;
+		res.lostCommands += lost;
+		res.lostCommandsMax = Math.max(res.lostCommandsMax, lost);
+		if(recoveredAt != 0) {
+			double ms = (recoveredAt - t0)/1000000.0;
+			res.recovered++;
+			res.recoverySumMs += ms;
+			res.recoveryMaxMs = Math.max(res.recoveryMaxMs, ms);
+		}
+		if(!connected) {
+			res.timeouts++;
+		}
+	}
+
+	/**
+	 * \brief Build the report of the results.
+	 * \param results results of each fault class
+	 * \return report text
+	 */
+	public static String report(Result[] results) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%-16s %7s %10s %12s %12s %10s %10s %8s %9s %9s\n", "fault", "trials", "recovered",
+				"recoverMean", "recoverMax", "lostMean", "lostMax", "invalid", "timeouts", "rejected"));
+		for(Result r : results) {
+			sb.append(String.format(Locale.US, "%-16s %7d %10s %12.1f %12.1f %10.1f %10d %8d %9d %9d\n",
+					USBAccessoryManagerFaulty.faultName(r.fault), r.trials, r.recovered + "/" + r.trials, r.getMeanRecoveryMs(),
+					r.recoveryMaxMs, (double)r.lostCommands/Math.max(1, r.trials), r.lostCommandsMax, r.invalidPackets, r.timeouts,
+					r.rejectedFrames));
+		}
+		sb.append("recovery in ms from the injection, lost commands per trial\n");
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+		FaultInjectionTest t = new FaultInjectionTest();
+		String out = null;
+		String version = "3.0";
+		int features = WheelphoneProtocol.FEATURES_DEFAULT;
+		int positional = 0;
+		for(int i=0; i<args.length; i++) {
+			if(args[i].equals("-observe") && i + 1 < args.length) {
+				t.setObservation(Long.parseLong(args[++i]));
+			} else if(args[i].equals("-version") && i + 1 < args.length) {
+				version = args[++i];
+			} else if(args[i].equals("-features") && i + 1 < args.length) {
+				features = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-out") && i + 1 < args.length) {
+				out = args[++i];
+			} else if(positional++ == 0) {
+				t.setTrials(Integer.parseInt(args[i]));
+			} else {
+				t.setSeed(Long.parseLong(args[i]));
+			}
+		}
+		t.setProtocol(version, features);
+		Result[] results = new Result[USBAccessoryManagerFaulty.FAULT_CLASSES];
+		for(int f=0; f<results.length; f++) {
+			System.out.println("running: " + USBAccessoryManagerFaulty.faultName(f));
+			results[f] = t.run(f);
+		}
+		String report = report(results);
+		System.out.print(report);
+		if(out != null) {
+			Writer w = new FileWriter(out);
+			try {
+				w.write(report);
+			} finally {
+				w.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file JvmStats.java
+ * \brief Memory and garbage collector counters of the JVM for the desktop tools
+ * \copyright GNU GPL v3
+
+
+The JvmStats class reads the memory allocated by the current thread and the garbage collections counters
+through the java.lang.management beans. These classes don't exist on Android, thus they are accessed by
+reflection and the values are -1 when not available. Used by LibraryBenchmark and SoakTest.
+
+*/
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+final class JvmStats {
+
+	private static final Object threadBean;
+	private static final Method allocatedBytes;
+	private static final List<?> collectors;
+	private static final Method collectionCount, collectionTime;
+
+	static {
+		Object bean = null;
+		Method m = null;
+		List<?> gcs = null;
+		Method count = null, time = null;
+		try {
+			Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+			try {	// com.sun.management.ThreadMXBean, HotSpot only
+				bean = factory.getMethod("getThreadMXBean").invoke(null);
+				m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+				m.invoke(bean, Thread.currentThread().getId());
+			} catch (Exception e) {
+				bean = null;
+				m = null;
+			}
+			gcs = (List<?>)factory.getMethod("getGarbageCollectorMXBeans").invoke(null);
+			Class<?> gc = Class.forName("java.lang.management.GarbageCollectorMXBean");
+			count = gc.getMethod("getCollectionCount");
+			time = gc.getMethod("getCollectionTime");
+		} catch (Exception e) {
+			gcs = null;
+		}
+		threadBean = bean;
+		allocatedBytes = m;
+		collectors = gcs;
+		collectionCount = count;
+		collectionTime = time;
+	}
+
+	private JvmStats() {
+	}
+
+	static boolean isAllocationAvailable() {
+		return allocatedBytes != null;
+	}
+
+	/**
+	 * \brief Return the memory allocated by the current thread since its start.
+	 * \return bytes, -1 if not available
+	 */
+	static long allocatedBytes() {
+		if(allocatedBytes == null) {
+			return -1;
+		}
+		try {
+			return ((Long)allocatedBytes.invoke(threadBean, Thread.currentThread().getId())).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * \brief Return the number of garbage collections since the start of the JVM (all the collectors).
+	 * \return collections, -1 if not available
+	 */
+	static long gcCount() {
+		return sum(collectionCount);
+	}
+
+	/**
+	 * \brief Return the time spent in the garbage collections since the start of the JVM (all the collectors).
+	 * \return ms, -1 if not available
+	 */
+	static long gcTimeMs() {
+		return sum(collectionTime);
+	}
+
+	private static long sum(Method m) {
+		if(collectors == null) {
+			return -1;
+		}
+		long total = 0;
+		try {
+			for(Object gc : collectors) {
+				long v = ((Long)m.invoke(gc)).longValue();
+				if(v > 0) {
+					total += v;
+				}
+			}
+		} catch (Exception e) {
+			return -1;
+		}
+		return total;
+	}
+
+	/**
+	 * \brief Return the heap used after a garbage collection.
+	 * \return bytes
+	 */
+	static long usedHeapAfterGc() {
+		Runtime rt = Runtime.getRuntime();
+		for(int i=0; i<3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+}
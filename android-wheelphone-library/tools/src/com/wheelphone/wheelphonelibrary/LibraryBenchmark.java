@@ -0,0 +1,487 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file LibraryBenchmark.java
+ * \brief Micro benchmarks of the per packet hot paths of the library
+ * \copyright GNU GPL v3
+
+
+The LibraryBenchmark class measures what the library costs per packet on a desktop JVM:
+- decoding of an UPDATE_STATE packet and odometry update (WheelphoneProtocol, Odometry)
+- complete handling of a READ event by WheelphoneRobot (decode, filters, odometry, published frame), without and
+  with the data log
+- construction and sending of the command packet ("sendCommandsToRobot")
+- buffering of the received bytes by the transport ("read", "peek", "ignore")
+- debug/data log lines, built by String concatenation ("appendLog") and with LogLineFormatter
+- filtering of the sensors values of a packet (SensorFilter, EMA and median)
+- complete packet cycle: READ handled, listener notified, next command sent ("robot cycle")
+Each benchmark is warmed up, then measured in several rounds; the result is the median time per operation and
+the memory allocated per operation by the benchmark thread (see JvmStats, not available on every JVM).
+The benchmarks writing log lines must measure the queuing of the lines, not the discarding of the lines when the
+queue of the AsyncLogger is full: they log at most LOG_CHUNK lines, then wait until the writer thread has emptied
+the queue; the time and the memory of the wait are not counted. The lines dropped are reported, a run where
+lines are dropped is invalid and the exit status is 1. The results can be saved and compared with a previous run:
+\verbatim
+ java com.wheelphone.wheelphonelibrary.LibraryBenchmark [-out results.csv] [-baseline previous.csv] [-filter name] [-check-alloc]
+\endverbatim
+The per packet path must not allocate memory once running (no garbage collection pauses at high rates): with
+"-check-alloc" the benchmarks listed in STEADY_STATE that allocate memory are reported and the exit status is 1,
+so that a build script can fail on a regression (see tools/check-alloc.sh).
+
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+public class LibraryBenchmark {
+
+	public static final String[] STEADY_STATE = {"decode+odometry", "robot READ", "robot READ + data log",
+		"sendCommandsToRobot", "robot cycle", "transport receive+read", "transport receive+peek+ignore",
+		"log line (LogLineFormatter)", "sensor filter (EMA)", "sensor filter (median 9)"};	// benchmarks that must not allocate
+	private static final double ALLOCATION_TOLERANCE = 0.5;	// B/op, allocations of the measurement itself
+	private static final int LOG_CHUNK = 256;				// lines logged between two drains, a quarter of the logger queue
+
+	/*
+	 * Operation measured: "run" executes it "iterations" times.
+	 */
+	public interface Operation {
+		void run(int iterations) throws Exception;
+	}
+
+	/*
+	 * Result of a benchmark.
+	 */
+	public static class Result {
+		public final String name;
+		public final double nsPerOp;
+		public final double bytesPerOp;		// NaN if the allocations can't be measured
+		public long dropped = 0;			// log lines discarded by the logger during the benchmark
+
+		Result(String n, double ns, double bytes) {
+			name = n;
+			nsPerOp = ns;
+			bytesPerOp = bytes;
+		}
+	}
+
+	/*
+	 * Transport used to feed the packets to WheelphoneRobot; the packets written are discarded.
+	 */
+	static class BenchTransport extends USBAccessoryManagerLocal {
+		long written = 0;
+
+		BenchTransport() {
+			super(4096);
+			version = "3.0";
+		}
+
+		@Override
+		public RETURN_CODES enable(android.content.Context context, android.content.Intent intent) {
+			connected = true;
+			closed = false;
+			return RETURN_CODES.SUCCESS;
+		}
+
+		@Override
+		public void disable(android.content.Context context) {
+			connected = false;
+			closed = true;
+		}
+
+		@Override
+		public void write(byte[] data) {
+			written++;
+		}
+
+		void feed(byte[] data, int len) {
+			receive(data, 0, len);
+		}
+
+		void ready() {
+			deliver(USBAccessoryManagerMessage.MessageType.READY);
+		}
+	}
+
+	private int warmupRounds = 5;
+	private int rounds = 10;
+	private int iterations = 100000;
+	private long pausedNs = 0, pausedBytes = 0;		// spent in "drain" during the current round
+
+	/**
+	 * \brief Set the amount of work of each benchmark.
+	 * \param warmup rounds not measured
+	 * \param measured rounds measured
+	 * \param iterationsPerRound operations of each round
+	 * \return none
+	 */
+	public void setRounds(int warmup, int measured, int iterationsPerRound) {
+		warmupRounds = warmup;
+		rounds = measured;
+		iterations = iterationsPerRound;
+	}
+
+	/**
+	 * \brief Measure an operation.
+	 * \param name benchmark name
+	 * \param op operation
+	 * \return result
+	 */
+	public Result measure(String name, Operation op) throws Exception {
+		for(int r=0; r<warmupRounds; r++) {
+			op.run(iterations);
+		}
+		double[] ns = new double[rounds];
+		long bytes = 0;
+		for(int r=0; r<rounds; r++) {
+			pausedNs = 0;
+			pausedBytes = 0;
+			long a0 = JvmStats.allocatedBytes();
+			long t0 = System.nanoTime();
+			op.run(iterations);
+			long t1 = System.nanoTime();
+			bytes += JvmStats.allocatedBytes() - a0 - pausedBytes;
+			ns[r] = (double)(t1 - t0 - pausedNs)/iterations;
+		}
+		Arrays.sort(ns);
+		double b = !JvmStats.isAllocationAvailable() ? Double.NaN : (double)bytes/((long)rounds*iterations);
+		return new Result(name, ns[rounds/2], b);
+	}
+
+	/**
+	 * \brief Wait until the writer thread of a logger has written the queued lines, not counted in the measure.
+	 *  Called by the log benchmarks every LOG_CHUNK lines.
+	 * \param logger logger to drain
+	 * \return none
+	 */
+	void drain(AsyncLogger logger) {
+		long a0 = JvmStats.allocatedBytes();
+		long t0 = System.nanoTime();
+		logger.flush(10000);
+		pausedNs += System.nanoTime() - t0;
+		pausedBytes += JvmStats.allocatedBytes() - a0;
+	}
+
+	/**
+	 * \brief Measure an operation writing lines with a logger, and count the lines discarded by the logger.
+	 * \param name benchmark name
+	 * \param logger logger used by the operation
+	 * \param op operation, calling "drain" at least every LOG_CHUNK lines
+	 * \return result
+	 */
+	public Result measureLog(String name, AsyncLogger logger, Operation op) throws Exception {
+		long dropped = logger.getDroppedCount();
+		Result r = measure(name, op);
+		r.dropped = logger.getDroppedCount() - dropped;
+		return r;
+	}
+
+	/**
+	 * \brief Run all the benchmarks whose name contains a text.
+	 * \param filter text to look for in the names, null for all
+	 * \return results
+	 */
+	public List<Result> runAll(String filter) throws Exception {
+		ArrayList<Result> results = new ArrayList<Result>();
+		final SensorFrame sensors = new SensorFrame();
+		for(int i=0; i<4; i++) {
+			sensors.prox[i] = 10 + i;
+			sensors.ground[i] = 150 + i;
+		}
+		sensors.battery = 140;
+		sensors.leftSpeed = 120;
+		sensors.rightSpeed = 110;
+		final byte[] packet = new byte[WheelphoneProtocol.PACKET_LENGTH_RECV];
+		WheelphoneProtocol.encodeUpdateState(sensors, packet, 0);
+		final File dir = new File(System.getProperty("java.io.tmpdir"), "wheelphone-benchmark");
+		dir.mkdirs();
+
+		if(matches("decode+odometry", filter)) {
+			results.add(measure("decode+odometry", new Operation() {
+				final SensorFrame frame = new SensorFrame();
+				final Odometry odometry = new Odometry();
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						WheelphoneProtocol.decodeUpdateState(packet, 0, frame);
+						frame.leftSpeed = WheelphoneProtocol.filterSpeed(frame.leftSpeed);
+						frame.rightSpeed = WheelphoneProtocol.filterSpeed(frame.rightSpeed);
+						odometry.update(frame.leftSpeed, frame.rightSpeed, 50.0);
+					}
+				}
+			}));
+		}
+
+		final WheelphoneRobot robot = new WheelphoneRobot(null, null);
+		robot.setLogDirectory(dir);
+		final BenchTransport transport = new BenchTransport();
+		robot.attach(transport);
+		transport.ready();
+
+		if(matches("robot READ", filter)) {
+			results.add(measure("robot READ", new Operation() {
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						transport.feed(packet, packet.length);
+					}
+				}
+			}));
+		}
+		if(matches("robot READ + data log", filter)) {
+			robot.enableDataLog();
+			final AsyncLogger dataLogger = robot.getLogger();
+			results.add(measureLog("robot READ + data log", dataLogger, new Operation() {
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						transport.feed(packet, packet.length);
+						if(i%LOG_CHUNK == LOG_CHUNK - 1) {
+							drain(dataLogger);
+						}
+					}
+				}
+			}));
+			robot.disableDataLog();
+		}
+		if(matches("sendCommandsToRobot", filter)) {
+			robot.setSpeed(100, 50);
+			results.add(measure("sendCommandsToRobot", new Operation() {
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						robot.sendCommandsToRobot();
+					}
+				}
+			}));
+		}
+		if(matches("robot cycle", filter)) {
+			final int[] sum = new int[1];
+			robot.setWheelPhoneRobotListener(new WheelphoneRobot.WheelPhoneRobotListener() {
+				public void onWheelphoneUpdate() {	// typical application: read the sensors, set the speeds
+					sum[0] += robot.getFrontProx(0) + robot.getGroundProx(3);
+					robot.setSpeed(sum[0] & 0x7F, 100);
+				}
+			});
+			results.add(measure("robot cycle", new Operation() {
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						transport.feed(packet, packet.length);
+						robot.sendCommandsToRobot();
+					}
+				}
+			}));
+			robot.removeWheelPhoneRobotListener();
+		}
+
+		final BenchTransport buffer = new BenchTransport();
+		final byte[] dest = new byte[WheelphoneProtocol.PACKET_LENGTH_RECV];
+		if(matches("transport receive+read", filter)) {
+			results.add(measure("transport receive+read", new Operation() {
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						buffer.readData.write(packet, 0, packet.length);
+						if(buffer.available() >= dest.length) {
+							buffer.read(dest);
+						}
+					}
+				}
+			}));
+		}
+		if(matches("transport receive+peek+ignore", filter)) {
+			results.add(measure("transport receive+peek+ignore", new Operation() {
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						buffer.readData.write(packet, 0, packet.length);
+						buffer.peek(dest);
+						buffer.ignore(dest.length);
+					}
+				}
+			}));
+		}
+
+		if(matches("sensor filter", filter)) {
+			final int[][] raw = new int[8][4];
+			final int[][] out = new int[4][4];
+			final SensorFilter sensorFilter = new SensorFilter();
+			Operation op = new Operation() {
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						int[] v = raw[i & 3];
+						for(int c=0; c<4; c++) {		// values changing at each packet, as the readings of a moving robot
+							v[c] = (i*(c + 7))%251;
+						}
+						sensorFilter.apply(v, raw[4], raw[5], raw[6], out[0], out[1], out[2], out[3]);
+					}
+				}
+			};
+			for(int g=0; g<SensorFilter.NUM_GROUPS; g++) {
+				sensorFilter.setFilter(g, SensorFilter.FILTER_EMA, 0.3);
+			}
+			if(matches("sensor filter (EMA)", filter)) {
+				results.add(measure("sensor filter (EMA)", op));
+			}
+			for(int g=0; g<SensorFilter.NUM_GROUPS; g++) {
+				sensorFilter.setFilter(g, SensorFilter.FILTER_MEDIAN, 9);
+				sensorFilter.setOutlierClamp(g, 50);
+			}
+			if(matches("sensor filter (median 9)", filter)) {
+				results.add(measure("sensor filter (median 9)", op));
+			}
+		}
+
+		final AsyncLogger logger = new AsyncLogger(dir);
+		final int stream = logger.openStream("benchmark.csv");
+		if(matches("appendLog (String)", filter)) {
+			final AsyncLogger debugLogger = robot.getLogger();
+			results.add(measureLog("appendLog (String)", debugLogger, new Operation() {
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						robot.appendLog("benchmark.txt", "WheelphoneRobot: timeout = " + i + "(trials=" + 0 + ")", false);
+						if(i%LOG_CHUNK == LOG_CHUNK - 1) {
+							drain(debugLogger);
+						}
+					}
+				}
+			}));
+		}
+		if(matches("log line (LogLineFormatter)", filter)) {
+			results.add(measureLog("log line (LogLineFormatter)", logger, new Operation() {
+				final LogLineFormatter line = new LogLineFormatter();
+				public void run(int n) {
+					for(int i=0; i<n; i++) {
+						sensors.appendCsv(line.clear());
+						logger.append(stream, line.chars(), line.length());
+						if(i%LOG_CHUNK == LOG_CHUNK - 1) {
+							drain(logger);
+						}
+					}
+				}
+			}));
+		}
+		logger.close();
+		robot.flushLog(10000);
+		return results;
+	}
+
+	private static boolean matches(String name, String filter) {
+		return filter == null || name.contains(filter);
+	}
+
+	/**
+	 * \brief Print the results, with the change compared to a baseline.
+	 * \param results results to print
+	 * \param baseline ns/op of a previous run by benchmark name, null if none
+	 * \return none
+	 */
+	public static void print(List<Result> results, HashMap<String, Double> baseline) {
+		System.out.println(String.format(Locale.US, "%-32s %12s %12s %10s %10s", "benchmark", "ns/op", "B/op", "dropped", "change"));
+		for(Result r : results) {
+			String change = "";
+			Double b = (baseline == null) ? null : baseline.get(r.name);
+			if(b != null && b.doubleValue() > 0.0) {
+				change = String.format(Locale.US, "%+.1f%%", 100.0*(r.nsPerOp - b.doubleValue())/b.doubleValue());
+			}
+			System.out.println(String.format(Locale.US, "%-32s %12.1f %12.1f %10d %10s", r.name, r.nsPerOp, r.bytesPerOp, r.dropped, change));
+		}
+	}
+
+	/**
+	 * \brief Return the steady state benchmarks (see STEADY_STATE) allocating memory.
+	 * \param results results to check
+	 * \return failing results, empty if none allocates or if the allocations can't be measured
+	 */
+	public static List<Result> checkAllocations(List<Result> results) {
+		ArrayList<Result> failed = new ArrayList<Result>();
+		List<String> steady = Arrays.asList(STEADY_STATE);
+		for(Result r : results) {
+			if(steady.contains(r.name) && r.bytesPerOp > ALLOCATION_TOLERANCE) {	// false for NaN
+				failed.add(r);
+			}
+		}
+		return failed;
+	}
+
+	public static void save(List<Result> results, File file) throws IOException {
+		Writer out = new FileWriter(file);
+		try {
+			out.write("benchmark,ns_per_op,bytes_per_op,dropped\n");
+			for(Result r : results) {
+				out.write(r.name + "," + String.format(Locale.US, "%.2f,%.2f,%d", r.nsPerOp, r.bytesPerOp, r.dropped) + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static HashMap<String, Double> load(File file) throws IOException {
+		HashMap<String, Double> map = new HashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line = in.readLine();	// header
+			while((line = in.readLine()) != null) {
+				String[] v = line.split(",");
+				if(v.length >= 2) {
+					map.put(v[0], Double.valueOf(v[1]));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return map;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File out = null, baseline = null;
+		String filter = null;
+		boolean checkAlloc = false;
+		for(int i=0; i<args.length; i++) {
+			if(args[i].equals("-check-alloc")) {
+				checkAlloc = true;
+			} else if(i + 1 >= args.length) {
+				break;
+			} else if(args[i].equals("-out")) {
+				out = new File(args[++i]);
+			} else if(args[i].equals("-baseline")) {
+				baseline = new File(args[++i]);
+			} else if(args[i].equals("-filter")) {
+				filter = args[++i];
+			}
+		}
+		LibraryBenchmark b = new LibraryBenchmark();
+		List<Result> results = b.runAll(filter);
+		print(results, baseline == null ? null : load(baseline));
+		if(out != null) {
+			save(results, out);
+		}
+		boolean dropped = false;
+		for(Result r : results) {
+			if(r.dropped > 0) {
+				System.out.println(String.format(Locale.US, "LOG LINES DROPPED: %s dropped %d lines, its time is not valid", r.name, r.dropped));
+				dropped = true;
+			}
+		}
+		if(dropped) {
+			System.exit(1);
+		}
+		if(checkAlloc) {
+			if(!JvmStats.isAllocationAvailable()) {
+				System.out.println("allocations can't be measured on this JVM, check skipped");
+				return;
+			}
+			List<Result> failed = checkAllocations(results);
+			for(Result r : failed) {
+				System.out.println(String.format(Locale.US, "ALLOCATION REGRESSION: %s allocates %.1f B/op", r.name, r.bytesPerOp));
+			}
+			if(!failed.isEmpty()) {
+				System.exit(1);
+			}
+			System.out.println("steady state without allocation");
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file MultiRobotTest.java
+ * \brief Many robot instances communicating at the same time in one process
+ * \copyright GNU GPL v3
+
+
+The MultiRobotTest class checks that WheelphoneRobot instances don't share any state: N robots (up to 100 by
+default) run at the same time, each one with its own timer, transport (the loopback of SoakTest, with its
+firmware and dispatcher threads) and RobotSimulator. Each simulator sends its own signature in the proximity
+values and reports its own accessory version, every packet decoded by a robot is checked against the
+signature of its simulator. For each number of robots the total exchange rate is measured; with isolated
+instances it grows linearly with the number of robots (scaling efficiency = rate / (N * rate of one robot)).
+It runs on a desktop computer:
+\verbatim
+ java com.wheelphone.wheelphonelibrary.MultiRobotTest [seconds per step] [period ms] [robots ...]
+\endverbatim
+
+*/
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+public class MultiRobotTest {
+
+	/*
+	 * Robot with its simulator, counting the packets decoded with the signature of another one.
+	 */
+	static class Instance implements WheelphoneRobot.WheelPhoneRobotListener {
+		final int id;
+		final WheelphoneRobot robot = new WheelphoneRobot(null, null);
+		final RobotSimulator simulator;
+		final SoakTest.LoopbackTransport transport;
+		volatile long packets = 0, foreign = 0;
+
+		Instance(int n) {
+			id = n;
+			simulator = new RobotSimulator((n%2 == 0) ? "3.0" : "3.1");
+			for(int i=0; i<4; i++) {
+				simulator.setProximity(i, signature(n, i));
+			}
+			transport = new SoakTest.LoopbackTransport(simulator, true);
+			robot.setWheelPhoneRobotListener(this);
+		}
+
+		static int signature(int n, int i) {
+			return (n*4 + i)%256;
+		}
+
+		public void onWheelphoneUpdate() {
+			if(!robot.isRobotConnected()) {
+				return;
+			}
+			for(int i=0; i<4; i++) {
+				if(robot.getFrontProx(i) != signature(id, i)) {
+					foreign++;
+					return;
+				}
+			}
+			packets++;
+		}
+	}
+
+	/*
+	 * Results with a number of robots.
+	 */
+	public static class Step {
+		public int robots;
+		public double rate;				// exchanges per second, all the robots
+		public double efficiency;		// rate / (robots * rate of one robot)
+		public long foreignPackets;		// packets with the signature of another robot
+		public int wrongVersions;		// robots not using the version of their own accessory
+	}
+
+	private long stepMs = 5000;
+	private int periodMs = 20;
+
+	/**
+	 * \brief Set the duration of each step and the communication period of the robots.
+	 * \param ms measurement time of each number of robots (ms)
+	 * \param period communication period (ms)
+	 * \return none
+	 */
+	public void setTiming(long ms, int period) {
+		stepMs = ms;
+		periodMs = period;
+	}
+
+	/**
+	 * \brief Run the robots together.
+	 * \param count number of robots
+	 * \return results
+	 */
+	public Step run(int count) throws InterruptedException {
+		ArrayList<Instance> instances = new ArrayList<Instance>();
+		for(int n=0; n<count; n++) {
+			Instance in = new Instance(n);
+			in.robot.setCommunicationPeriod(periodMs);
+			in.robot.startCommunication(in.transport);
+			instances.add(in);
+		}
+		Thread.sleep(1000);		// all the timers running
+		long p0 = 0;
+		for(Instance in : instances) {
+			p0 += in.packets;
+		}
+		long start = System.nanoTime();
+		Thread.sleep(stepMs);
+		long p1 = 0;
+		double s = (System.nanoTime() - start)/1e9;
+		Step step = new Step();
+		step.robots = count;
+		for(Instance in : instances) {
+			p1 += in.packets;
+			step.foreignPackets += in.foreign;
+			if(!in.transport.getVersion().equals(in.simulator.getVersion())) {
+				step.wrongVersions++;
+			}
+		}
+		step.rate = (p1 - p0)/s;
+		for(Instance in : instances) {
+			in.robot.closeUSBCommunication();
+		}
+		return step;
+	}
+
+	public static String report(ArrayList<Step> steps) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%7s %12s %12s %11s %9s %9s\n", "robots", "exchanges/s", "per robot", "efficiency",
+				"foreign", "versions"));
+		for(Step s : steps) {
+			sb.append(String.format(Locale.US, "%7d %12.1f %12.1f %10.0f%% %9d %9d\n", s.robots, s.rate, s.rate/s.robots,
+					100.0*s.efficiency, s.foreignPackets, s.wrongVersions));
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		MultiRobotTest t = new MultiRobotTest();
+		int[] counts = {1, 10, 25, 50, 100};
+		if(args.length > 1) {
+			t.setTiming((long)(Double.parseDouble(args[0])*1000.0), Integer.parseInt(args[1]));
+		} else if(args.length > 0) {
+			t.setTiming((long)(Double.parseDouble(args[0])*1000.0), 20);
+		}
+		if(args.length > 2) {
+			counts = new int[args.length - 2];
+			for(int i=0; i<counts.length; i++) {
+				counts[i] = Integer.parseInt(args[i + 2]);
+			}
+		}
+		ArrayList<Step> steps = new ArrayList<Step>();
+		double single = 0.0;
+		boolean isolated = true;
+		for(int n : counts) {
+			System.out.println("running: " + n + " robots");
+			Step s = t.run(n);
+			if(single == 0.0) {
+				single = s.rate/s.robots;
+			}
+			s.efficiency = s.rate/(s.robots*single);
+			isolated &= s.foreignPackets == 0 && s.wrongVersions == 0;
+			steps.add(s);
+		}
+		System.out.print(report(steps));
+		System.out.println(isolated ? "instances isolated" : "STATE SHARED BETWEEN INSTANCES");
+		if(!isolated) {
+			System.exit(1);
+		}
+	}
+
+}
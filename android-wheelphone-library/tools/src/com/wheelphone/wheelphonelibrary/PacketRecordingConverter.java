@@ -0,0 +1,150 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file PacketRecordingConverter.java
+ * \brief Offline conversion of a packets recording to the data log format
+ * \copyright GNU GPL v3
+
+
+The PacketRecordingConverter class converts a recording made with PacketRecorder to the same columns of the
+"logFile.csv" data log (see "WheelphoneRobot.enableDataLog"): the packets received are decoded and the
+odometry is integrated with the same code used by WheelphoneRobot, using the recorded times (the robot times
+when the frames have them, FEATURE_TIMESTAMP). The odometry
+set by the application while recording (POSE records) is applied at the same point of the stream.
+The odometry parameters must be the same used online (see "setOdometryParameters").
+The frames can also be stored in the compact columnar format (see ColumnarFrameWriter), used for long sessions.
+It can be run on a desktop computer (columnar format when the output file name ends with ".wpc"):
+\verbatim
+ java com.wheelphone.wheelphonelibrary.PacketRecordingConverter <directory> <prefix> <output.csv|output.wpc>
+\endverbatim
+
+*/
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+public class PacketRecordingConverter {
+
+	private final Odometry odometry = new Odometry();
+	private final SensorFrame frame = new SensorFrame();
+	private final LogLineFormatter line = new LogLineFormatter();
+	private final double[] pose = new double[3];
+	private long robotTime = -1;		// robot time of the last frame (ms, unwrapped)
+
+	public void setOdometryParameters(double ldc, double rdc, double wb) {
+		odometry.setParameters(ldc, rdc, wb);
+	}
+
+	/**
+	 * \brief Convert the packets received from the robot to CSV lines.
+	 * \param in recording to convert
+	 * \param out destination of the lines (header included)
+	 * \return number of lines written
+	 */
+	public long convert(PacketRecordingReader in, Writer out) throws IOException {
+		long lines = 0;
+		odometry.reset();
+		robotTime = -1;
+		out.write(SensorFrame.CSV_HEADER);
+		out.write('\n');
+		while(nextFrame(in, lines)) {
+			frame.appendCsv(line.clear());
+			line.append('\n');
+			out.write(line.chars(), 0, line.length());
+			lines++;
+		}
+		return lines;
+	}
+
+	/**
+	 * \brief Convert the packets received from the robot to the columnar format; the frames time is the recorded 
+	 *  phone time (ms).
+	 * \param in recording to convert
+	 * \param out destination of the frames (not closed)
+	 * \return number of frames written
+	 */
+	public long convert(PacketRecordingReader in, ColumnarFrameWriter out) throws IOException {
+		long frames = 0;
+		odometry.reset();
+		robotTime = -1;
+		while(nextFrame(in, frames)) {
+			out.append(frame);
+			frames++;
+		}
+		return frames;
+	}
+
+	/**
+	 * \brief Decode the next packet received from the robot and integrate the odometry.
+	 * \param in recording
+	 * \param count packets decoded before this one (0 for the first packet)
+	 * \return false at the end of the recording
+	 */
+	private boolean nextFrame(PacketRecordingReader in, long count) throws IOException {
+		while(in.next()) {
+			if(in.getType() == PacketRecorder.POSE) {
+				in.getPose(pose);
+				odometry.set(pose[0], pose[1], pose[2]);
+				continue;
+			}
+			if(in.getType() != PacketRecorder.INBOUND || !WheelphoneProtocol.decodeState(in.getData(), in.getLength(), frame)) {
+				continue;
+			}
+			frame.leftSpeed = WheelphoneProtocol.filterSpeed(frame.leftSpeed);
+			frame.rightSpeed = WheelphoneProtocol.filterSpeed(frame.rightSpeed);
+			long t = in.getWallClockTime();		// ms resolution, as the time used online
+			double dt = (count == 0) ? 0.0 : (double)(t - frame.timestamp);
+			if(frame.robotTime >= 0) {		// as online, the time elapsed on the robot
+				long r = WheelphoneProtocol.unwrapRobotTime(robotTime, (int)frame.robotTime);
+				boolean restart = count == 0 || robotTime < 0 || WheelphoneProtocol.isRobotTimeJump(robotTime, r);
+				dt = restart ? 0.0 : (double)Math.max(0, r - robotTime);
+				robotTime = r;
+				frame.robotTime = r;
+			}
+			frame.timestamp = t;
+			frame.sequence = count;
+			odometry.update(frame.leftSpeed, frame.rightSpeed, dt);
+			double[] p = odometry.getPose();
+			frame.x = p[Odometry.X_ODOM];
+			frame.y = p[Odometry.Y_ODOM];
+			frame.theta = p[Odometry.THETA_ODOM];
+			return true;
+		}
+		return false;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3) {
+			System.err.println("usage: PacketRecordingConverter <directory> <prefix> <output.csv|output.wpc> [leftDiamCoeff rightDiamCoeff wheelBase]");
+			System.exit(1);
+		}
+		PacketRecordingConverter c = new PacketRecordingConverter();
+		if(args.length >= 6) {
+			c.setOdometryParameters(Double.parseDouble(args[3]), Double.parseDouble(args[4]), Double.parseDouble(args[5]));
+		}
+		PacketRecordingReader in = new PacketRecordingReader(new File(args[0]), args[1]);
+		if(args[2].endsWith(ColumnarFrameWriter.EXTENSION)) {
+			ColumnarFrameWriter store = new ColumnarFrameWriter(new File(args[2]));
+			try {
+				long n = c.convert(in, store);
+				System.out.println(n + " frames written, firmware version " + in.getFirmwareVersion());
+			} finally {
+				store.close();
+				in.close();
+			}
+			return;
+		}
+		Writer out = new BufferedWriter(new FileWriter(args[2]), 64*1024);
+		try {
+			long n = c.convert(in, out);
+			System.out.println(n + " lines written, firmware version " + in.getFirmwareVersion());
+		} finally {
+			out.close();
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,681 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file RobotSimulator.java
+ * \brief Simulation of the robot firmware side of the accessory protocol
+ * \copyright GNU GPL v3
+
+
+The RobotSimulator class answers the packets sent by WheelphoneRobot as the robot firmware does, so that the
+library and the applications can be exercised without a robot, e.g. on a desktop computer:
+- APP_CONNECT / APP_DISCONNECT: start / stop the communication (the motors are stopped when disconnected)
+- with a version 4.x, APP_CONNECT asking for the compact frames is answered with the features sent (those
+  requested among "setSupportedFeatures"), then UPDATE_STATE_COMPACT is used in both directions (see
+  WheelphoneProtocol); a connect without the request keeps the 63 bytes packets as the firmware v2/v3
+- with FEATURE_BATCH the robot is simulated in steps of the sampling period ("setSamplePeriod"), the sensors
+  are sampled at each step and at each command, and the last samples are sent in each answer
+- with FEATURE_TIMESTAMP the answers have the time of the robot clock when the samples were taken; the clock
+  runs since the creation of the simulator, with the offset and the drift given by "setClock"
+- with FEATURE_INTEGRITY the answers have a sequence number and a CRC, the commands UPDATE_STATE_CHECKED with a
+  wrong CRC or a sequence number already received are not applied (but answered, see "getCorruptedCommands")
+- UPDATE_STATE: the speeds and the flags are applied and an UPDATE_STATE packet (63 bytes) is sent back with
+  the sensors values, the battery, the flags and the measured speeds
+- flags from the phone: speed control (bit 0), soft acceleration (bit 1), obstacle avoidance (bit 2), cliff
+  avoidance (bit 3), sensors calibration (bit 4, the motors are stopped during the calibration), odometry
+  calibration (bit 5, the robot rotates in place, then bit 7 is set in the robot flags)
+- flags to the phone: obstacle avoidance enabled (bit 0), cliff avoidance enabled (bit 1), charging (bit 5),
+  charged (bit 6), odometry calibration finished (bit 7)
+The sensors values are set by the application (or by a subclass overriding "update"); the
+measured speeds follow the received speeds (with soft acceleration if enabled). The onboard obstacle and cliff
+avoidance are simplified: the robot doesn't go forward when a front proximity is over OBSTACLE_THR and stops
+when a ground value is under CLIFF_THR.
+The simulator is connected to the library with USBAccessoryManagerStream, through a TCP socket ("listen") or
+any pair of streams such as named pipes ("serve"). Each answer is sent after the configured latency and no
+faster than the configured rate. It can also run alone:
+\verbatim
+ java com.wheelphone.wheelphonelibrary.RobotSimulator [port] [version] [latency ms] [max rate Hz]
+ java com.wheelphone.wheelphonelibrary.RobotSimulator pipe <input> <output> [version] [latency ms] [max rate Hz]
+\endverbatim
+
+*/
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class RobotSimulator {
+
+	public static final double MM_S_TO_BYTE = 2.8;				// same scale as WheelphoneRobot
+	public static final int OBSTACLE_THR = 100;
+	public static final int CLIFF_THR = 30;
+	public static final double SOFT_ACCELERATION = 500.0;		// mm/s^2
+	public static final double OPEN_LOOP_GAIN = 0.8;			// speed reached without speed control (load)
+	public static final int ODOMETRY_CALIBRATION_SPEED = 100;	// mm/s
+
+	private final String version;
+	private final boolean compactCapable;		// version 4.x
+	private int supportedFeatures = WheelphoneProtocol.FEATURES_ALL;
+	private volatile long latencyNs = 0;
+	private volatile long periodNs = 0;			// minimum time between two answers
+	private long sensorsCalibrationMs = 1000;
+	private long odometryCalibrationMs = 5000;
+
+	// robot state
+	protected final SensorFrame sensors = new SensorFrame();	// values sent to the phone (raw fields only)
+	private boolean connected = false;
+	private int commandLeft = 0, commandRight = 0;				// mm/s
+	private byte flagsFromPhone = 0;
+	private double leftSpeed = 0.0, rightSpeed = 0.0;			// mm/s
+	private boolean charging = false, charged = false;
+	private long sensorsCalibrationEnd = 0, odometryCalibrationEnd = 0;
+	private boolean odometryCalibrating = false, odometryCalibrationFinished = false;
+	private long lastUpdateNs = 0;
+	private boolean compact = false;			// compact frames negotiated
+	private int features = 0;					// features sent in the compact frames
+	private double samplePeriodMs = 10.0;		// sampling of the sensors with FEATURE_BATCH
+	private double sinceSampleMs = 0.0, robotTimeMs = 0.0;
+	private long clockOffsetMs = 0;				// robot clock, see "setClock"
+	private double clockRate = 1.0;
+	private long lastSentSampleMs = -1;			// time of the last sample sent, -1 before the first one
+	private final SensorFrame[] samples = new SensorFrame[WheelphoneProtocol.MAX_BATCH_COUNT];	// last samples (ring)
+	private final long[] sampleTimes = new long[samples.length];
+	private int sampleFirst = 0, sampleCount = 0;
+	private final SensorFrame[] batch = new SensorFrame[samples.length];	// samples of the answer, oldest first
+	private final int[] batchDt = new int[samples.length];
+	private int txSequence = 0, rxSequence = -1;	// FEATURE_INTEGRITY
+
+	// statistics
+	private long requests = 0, responses = 0, connects = 0, disconnects = 0, unknown = 0;
+	private long corruptedCommands = 0, duplicateCommands = 0, lostCommands = 0;
+
+	private ServerSocket server = null;
+	private volatile Socket client = null;
+	private volatile boolean serving = false;
+
+	/**
+	 * \brief Class constructor
+	 * \param firmwareVersion accessory version reported to the phone (e.g. "3.0")
+	 * \return RobotSimulator instance
+	 */
+	public RobotSimulator(String firmwareVersion) {
+		version = firmwareVersion;
+		compactCapable = firmwareVersion.startsWith(WheelphoneProtocol.PROTOCOL_COMPACT + ".");
+		sensors.battery = 150;
+		for(int i=0; i<4; i++) {
+			sensors.ground[i] = 150;		// white floor
+		}
+		for(int i=0; i<samples.length; i++) {
+			samples[i] = new SensorFrame();
+		}
+	}
+
+	/**
+	 * \brief Set the time between the reception of a packet and the answer.
+	 * \param ms latency (ms)
+	 * \return none
+	 */
+	public void setLatency(double ms) {
+		latencyNs = (long)(ms*1000000.0);
+	}
+
+	/**
+	 * \brief Set the maximum rate of the answers; a request received earlier is answered later.
+	 * \param hz maximum answers per second, 0 for no limit
+	 * \return none
+	 */
+	public void setMaxRate(double hz) {
+		periodNs = (hz > 0.0) ? (long)(1000000000.0/hz) : 0;
+	}
+
+	public synchronized void setCalibrationTimes(long sensorsMs, long odometryMs) {
+		sensorsCalibrationMs = sensorsMs;
+		odometryCalibrationMs = odometryMs;
+	}
+
+	/**
+	 * \brief Set the features the simulated firmware can send in the compact frames (version 4.x only).
+	 * \param f bitmap of WheelphoneProtocol.FEATURE_*
+	 * \return none
+	 */
+	public synchronized void setSupportedFeatures(int f) {
+		supportedFeatures = f;
+	}
+
+	/**
+	 * \brief Set the sampling period of the sensors sent in the batch frames (FEATURE_BATCH).
+	 * \param ms sampling period (ms)
+	 * \return none
+	 */
+	public synchronized void setSamplePeriod(double ms) {
+		samplePeriodMs = Math.max(1.0, ms);
+	}
+
+	/**
+	 * \brief Set the clock of the simulated robot, sent with FEATURE_TIMESTAMP.
+	 * \param offsetMs time of the robot clock when the simulation starts (ms)
+	 * \param driftPpm drift of the robot clock (ppm, positive if the clock is slower than the simulation time)
+	 * \return none
+	 */
+	public synchronized void setClock(long offsetMs, double driftPpm) {
+		clockOffsetMs = offsetMs;
+		clockRate = 1.0/(1.0 + driftPpm*1e-6);
+	}
+
+	private long robotClock() {
+		return clockOffsetMs + Math.round(robotTimeMs*clockRate);
+	}
+
+	public synchronized void setProximity(int i, int value) {
+		sensors.prox[i] = value;
+	}
+
+	public synchronized void setProximityAmbient(int i, int value) {
+		sensors.proxAmbient[i] = value;
+	}
+
+	public synchronized void setGround(int i, int value) {
+		sensors.ground[i] = value;
+	}
+
+	public synchronized void setGroundAmbient(int i, int value) {
+		sensors.groundAmbient[i] = value;
+	}
+
+	public synchronized void setBattery(int value) {
+		sensors.battery = value;
+	}
+
+	public synchronized void setCharging(boolean isCharging, boolean isCharged) {
+		charging = isCharging;
+		charged = isCharged;
+	}
+
+	/**
+	 * \brief Handle a packet received from the phone (firmware logic, without timing).
+	 * \param request packet received
+	 * \param len packet length
+	 * \param response destination of the answer (PACKET_LENGTH_RECV bytes)
+	 * \param nowNs current time (System.nanoTime)
+	 * \return length of the answer, 0 if there is no answer
+	 */
+	public synchronized int handle(byte[] request, int len, byte[] response, long nowNs) {
+		switch(request[0] & 0xFF) {
+			case WheelphoneProtocol.APP_CONNECT:
+				connected = true;
+				connects++;
+				if(lastUpdateNs != 0) {
+					robotTimeMs += (nowNs - lastUpdateNs)/1000000.0;
+				}
+				lastUpdateNs = nowNs;
+				compact = compactCapable && len >= 2 && (request[1] & WheelphoneProtocol.CONNECT_COMPACT) != 0;
+				if(!compact) {
+					return 0;
+				}
+				features = request[1] & supportedFeatures & WheelphoneProtocol.FEATURES_ALL;
+				sampleCount = 0;
+				sinceSampleMs = 0.0;
+				lastSentSampleMs = -1;
+				rxSequence = -1;
+				response[0] = (byte)WheelphoneProtocol.APP_CONNECT;
+				response[1] = (byte)(WheelphoneProtocol.CONNECT_COMPACT | features);
+				return 2;
+			case WheelphoneProtocol.APP_DISCONNECT:
+				connected = false;
+				disconnects++;
+				commandLeft = 0;
+				commandRight = 0;
+				return 0;
+			case WheelphoneProtocol.UPDATE_STATE:
+				if(len < WheelphoneProtocol.PACKET_LENGTH_SEND) {
+					unknown++;
+					return 0;
+				}
+				command(request, nowNs);
+				WheelphoneProtocol.encodeUpdateState(sensors, response, 0);
+				responses++;
+				return WheelphoneProtocol.PACKET_LENGTH_RECV;
+			case WheelphoneProtocol.UPDATE_STATE_COMPACT:
+				if(!compact || len < WheelphoneProtocol.COMPACT_COMMAND_LENGTH) {
+					unknown++;
+					return 0;
+				}
+				command(request, nowNs);
+				responses++;
+				return encodeCompact(response);
+			case WheelphoneProtocol.UPDATE_STATE_CHECKED:
+				if(!compact || (features & WheelphoneProtocol.FEATURE_INTEGRITY) == 0 || len < WheelphoneProtocol.CHECKED_COMMAND_LENGTH) {
+					unknown++;
+					return 0;
+				}
+				if(!WheelphoneProtocol.checkIntegrity(request, WheelphoneProtocol.CHECKED_COMMAND_LENGTH)) {
+					corruptedCommands++;
+				} else if(acceptSequence(WheelphoneProtocol.sequenceOf(request, WheelphoneProtocol.CHECKED_COMMAND_LENGTH))) {
+					command(request, nowNs);
+				}
+				responses++;
+				return encodeCompact(response);
+			default:
+				unknown++;
+				return 0;
+		}
+	}
+
+	/**
+	 * \brief Apply a command (speeds and flags) and update the state sent back.
+	 * \param request command packet (UPDATE_STATE or UPDATE_STATE_COMPACT, same layout)
+	 * \param nowNs current time (System.nanoTime)
+	 * \return none
+	 */
+	private void command(byte[] request, long nowNs) {
+		requests++;
+		commandLeft = (int)(request[WheelphoneProtocol.OFFSET_LEFT_SPEED_CMD]*MM_S_TO_BYTE);
+		commandRight = (int)(request[WheelphoneProtocol.OFFSET_RIGHT_SPEED_CMD]*MM_S_TO_BYTE);
+		flagsFromPhone = request[WheelphoneProtocol.OFFSET_FLAGS_PHONE];
+		if((flagsFromPhone & 0x10) != 0) {
+			sensorsCalibrationEnd = nowNs + sensorsCalibrationMs*1000000L;
+		}
+		if((flagsFromPhone & 0x20) != 0) {
+			odometryCalibrating = true;
+			odometryCalibrationFinished = false;
+			odometryCalibrationEnd = nowNs + odometryCalibrationMs*1000000L;
+		}
+		double elapsed = (lastUpdateNs == 0) ? 0.0 : (nowNs - lastUpdateNs)/1000000.0;
+		double dt = Math.min(elapsed, 500.0);
+		robotTimeMs += elapsed - dt;		// the clock runs during the time not simulated
+		lastUpdateNs = nowNs;
+		if(compact && (features & WheelphoneProtocol.FEATURE_BATCH) != 0) {
+			while(dt > 0.0) {		// a sample at each sampling period
+				double d = Math.min(dt, samplePeriodMs - sinceSampleMs);
+				step(d, nowNs);
+				update(d);
+				dt -= d;
+				sinceSampleMs += d;
+				robotTimeMs += d;
+				if(sinceSampleMs >= samplePeriodMs - 1e-6) {	// rounding of the steps
+					sample();
+				}
+			}
+			if(sinceSampleMs > 0.0 || sampleCount == 0) {	// and one when the command is received
+				sample();
+			}
+			return;
+		}
+		step(dt, nowNs);
+		update(dt);
+		robotTimeMs += dt;
+		sensors.robotTime = robotClock();
+		sensors.flagRobotToPhone = robotFlags();
+		sensors.leftSpeed = (int)Math.round(leftSpeed);
+		sensors.rightSpeed = (int)Math.round(rightSpeed);
+	}
+
+	/**
+	 * \brief Store the current values of the sensors as a sample for the next batch frame; only the samples that fit
+	 *  in a frame are kept.
+	 * \return none
+	 */
+	private void sample() {
+		sensors.flagRobotToPhone = robotFlags();
+		sensors.leftSpeed = (int)Math.round(leftSpeed);
+		sensors.rightSpeed = (int)Math.round(rightSpeed);
+		sensors.robotTime = robotClock();
+		int capacity = WheelphoneProtocol.batchCapacity(features);
+		if(sampleCount == capacity) {	// the oldest one is lost
+			sampleFirst = (sampleFirst + 1)%samples.length;
+			sampleCount--;
+		}
+		int k = (sampleFirst + sampleCount)%samples.length;
+		samples[k].copyFrom(sensors);
+		sampleTimes[k] = sensors.robotTime;
+		sampleCount++;
+		sinceSampleMs = 0.0;
+	}
+
+	private boolean acceptSequence(int sequence) {
+		if(rxSequence >= 0) {
+			int gap = (sequence - rxSequence) & 0xFF;
+			if(gap == 0 || gap > 128) {
+				duplicateCommands++;
+				return false;
+			}
+			lostCommands += gap - 1;
+		}
+		rxSequence = sequence;
+		return true;
+	}
+
+	/**
+	 * \brief Encode the answer with the compact frames (single sample or batch, with the sequence number and the CRC
+	 *  if negotiated).
+	 * \param response destination
+	 * \return length of the answer
+	 */
+	private int encodeCompact(byte[] response) {
+		int n;
+		if((features & WheelphoneProtocol.FEATURE_BATCH) != 0) {
+			n = encodeBatch(response);
+		} else {
+			n = WheelphoneProtocol.encodeCompactState(sensors, features, response, 0);
+		}
+		if((features & WheelphoneProtocol.FEATURE_INTEGRITY) != 0) {
+			n = WheelphoneProtocol.seal(response, n, txSequence++);
+		}
+		return n;
+	}
+
+	private int encodeBatch(byte[] response) {
+		for(int i=0; i<sampleCount; i++) {
+			int k = (sampleFirst + i)%samples.length;
+			batch[i] = samples[k];
+			batchDt[i] = (lastSentSampleMs < 0) ? 0 : (int)(sampleTimes[k] - lastSentSampleMs);
+			lastSentSampleMs = sampleTimes[k];
+		}
+		int n = WheelphoneProtocol.encodeBatchState(sensors, batch, batchDt, sampleCount, features, response, 0);
+		sampleFirst = 0;
+		sampleCount = 0;
+		return n;
+	}
+
+	private void step(double dtMs, long nowNs) {
+		double l = commandLeft, r = commandRight;
+		if(odometryCalibrating) {
+			if(nowNs >= odometryCalibrationEnd) {
+				odometryCalibrating = false;
+				odometryCalibrationFinished = true;
+			} else {
+				l = ODOMETRY_CALIBRATION_SPEED;
+				r = -ODOMETRY_CALIBRATION_SPEED;
+			}
+		}
+		if(!connected || nowNs < sensorsCalibrationEnd) {
+			l = 0;
+			r = 0;
+		}
+		if((flagsFromPhone & 0x04) != 0) {		// obstacle avoidance
+			for(int i=0; i<4; i++) {
+				if(sensors.prox[i] > OBSTACLE_THR) {
+					l = Math.min(l, 0);
+					r = Math.min(r, 0);
+				}
+			}
+		}
+		if((flagsFromPhone & 0x08) != 0) {		// cliff avoidance
+			for(int i=0; i<4; i++) {
+				if(sensors.ground[i] < CLIFF_THR) {
+					l = 0;
+					r = 0;
+				}
+			}
+		}
+		if((flagsFromPhone & 0x01) == 0) {		// no speed control
+			l *= OPEN_LOOP_GAIN;
+			r *= OPEN_LOOP_GAIN;
+		}
+		if((flagsFromPhone & 0x02) != 0) {		// soft acceleration
+			double max = SOFT_ACCELERATION*dtMs/1000.0;
+			leftSpeed += Math.max(-max, Math.min(max, l - leftSpeed));
+			rightSpeed += Math.max(-max, Math.min(max, r - rightSpeed));
+		} else {
+			leftSpeed = l;
+			rightSpeed = r;
+		}
+	}
+
+	private byte robotFlags() {
+		int f = 0;
+		if((flagsFromPhone & 0x04) != 0) {
+			f |= 0x01;
+		}
+		if((flagsFromPhone & 0x08) != 0) {
+			f |= 0x02;
+		}
+		if(charging) {
+			f |= 0x20;
+		}
+		if(charged) {
+			f |= 0x40;
+		}
+		if(odometryCalibrationFinished) {
+			f |= 0x80;
+		}
+		return (byte)f;
+	}
+
+	/**
+	 * \brief Called for each UPDATE_STATE received (lock held), after the measured speeds are updated and before
+	 *  the answer is encoded; a subclass can update the sensors values in "sensors".
+	 * \param dtMs time since the previous update (ms)
+	 * \return none
+	 */
+	protected void update(double dtMs) {
+	}
+
+	/**
+	 * \brief Exchange the packets with the phone until the stream is closed.
+	 * \param in bytes sent by the phone
+	 * \param out bytes sent to the phone
+	 * \return none
+	 */
+	public void serve(InputStream in, OutputStream out) throws IOException {
+		byte[] request = new byte[WheelphoneProtocol.PACKET_LENGTH_SEND];
+		byte[] response = new byte[WheelphoneProtocol.PACKET_LENGTH_RECV];
+		long lastResponseNs = 0;
+		USBAccessoryManagerStream.writeHello(out, version);
+		try {
+			while(true) {
+				int c = in.read();
+				if(c < 0) {
+					break;
+				}
+				int len = USBAccessoryManagerStream.packetLength(c, false);
+				if(len == 0) {
+					synchronized(this) {
+						unknown++;
+					}
+					continue;
+				}
+				request[0] = (byte)c;
+				for(int n=1; n<len; ) {
+					int r = in.read(request, n, len - n);
+					if(r < 0) {
+						return;
+					}
+					n += r;
+				}
+				long now = System.nanoTime();
+				int n = handle(request, len, response, now);
+				if(n == 0) {
+					continue;
+				}
+				long due = Math.max(now + latencyNs, lastResponseNs + periodNs);
+				sleepUntil(due);
+				out.write(response, 0, n);
+				out.flush();
+				lastResponseNs = Math.max(due, System.nanoTime() - latencyNs);
+			}
+		} finally {
+			synchronized(this) {
+				connected = false;
+			}
+		}
+	}
+
+	private static void sleepUntil(long ns) {
+		long wait;
+		while((wait = ns - System.nanoTime()) > 0) {
+			try {
+				Thread.sleep(wait/1000000, (int)(wait%1000000));
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * \brief Accept the connections of the phone on a local TCP port, one at a time, from a background thread.
+	 * \param port TCP port, 0 to use any free port
+	 * \return port used
+	 */
+	public synchronized int listen(int port) throws IOException {
+		server = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+		serving = true;
+		final ServerSocket s = server;
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while(serving) {
+					try {
+						Socket c = s.accept();
+						c.setTcpNoDelay(true);
+						client = c;
+						try {
+							serve(c.getInputStream(), c.getOutputStream());
+						} catch (IOException e) {
+							// connection closed
+						} finally {
+							c.close();
+							client = null;
+						}
+					} catch (IOException e) {
+						break;	// server closed
+					}
+				}
+			}
+		}, "RobotSimulator");
+		t.setDaemon(true);
+		t.start();
+		return server.getLocalPort();
+	}
+
+	/**
+	 * \brief Stop accepting connections and close the current one (the phone receives DETACHED).
+	 * \return none
+	 */
+	public void stop() {
+		serving = false;
+		try {
+			ServerSocket s;
+			synchronized(this) {
+				s = server;
+				server = null;
+			}
+			if(s != null) {
+				s.close();
+			}
+			Socket c = client;
+			if(c != null) {
+				c.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public synchronized boolean isConnected() {
+		return connected;
+	}
+
+	public synchronized boolean isCalibratingSensors() {
+		return lastUpdateNs < sensorsCalibrationEnd;
+	}
+
+	public synchronized boolean isCalibratingOdometry() {
+		return odometryCalibrating;
+	}
+
+	/**
+	 * \brief Return the speeds received from the phone.
+	 * \param speeds destination (left, right) in mm/s
+	 * \return none
+	 */
+	public synchronized void getCommandedSpeeds(int[] speeds) {
+		speeds[0] = commandLeft;
+		speeds[1] = commandRight;
+	}
+
+	public synchronized double getLeftSpeed() {
+		return leftSpeed;
+	}
+
+	public synchronized double getRightSpeed() {
+		return rightSpeed;
+	}
+
+	public synchronized byte getFlagsFromPhone() {
+		return flagsFromPhone;
+	}
+
+	public synchronized long getRequestCount() {
+		return requests;
+	}
+
+	public synchronized long getResponseCount() {
+		return responses;
+	}
+
+	public synchronized long getConnectCount() {
+		return connects;
+	}
+
+	public synchronized long getDisconnectCount() {
+		return disconnects;
+	}
+
+	public synchronized long getUnknownCount() {
+		return unknown;
+	}
+
+	/**
+	 * \brief Return the number of commands with a wrong CRC (FEATURE_INTEGRITY), not applied.
+	 * \return commands
+	 */
+	public synchronized long getCorruptedCommands() {
+		return corruptedCommands;
+	}
+
+	public synchronized long getDuplicateCommands() {
+		return duplicateCommands;
+	}
+
+	public synchronized long getLostCommands() {
+		return lostCommands;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		boolean pipe = args.length >= 3 && args[0].equals("pipe");
+		int a = pipe ? 3 : 1;
+		RobotSimulator sim = new RobotSimulator(args.length > a ? args[a] : "3.0");
+		if(args.length > a + 1) {
+			sim.setLatency(Double.parseDouble(args[a + 1]));
+		}
+		if(args.length > a + 2) {
+			sim.setMaxRate(Double.parseDouble(args[a + 2]));
+		}
+		if(pipe) {		// e.g. named pipes created with mkfifo
+			InputStream in = new FileInputStream(args[1]);
+			OutputStream out = new FileOutputStream(args[2]);
+			try {
+				sim.serve(in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+			return;
+		}
+		int port = sim.listen(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+		System.out.println("robot simulator (version " + sim.getVersion() + ") listening on port " + port);
+		while(true) {
+			Thread.sleep(5000);
+			System.out.println("requests " + sim.getRequestCount() + ", connected " + sim.isConnected());
+		}
+	}
+
+}
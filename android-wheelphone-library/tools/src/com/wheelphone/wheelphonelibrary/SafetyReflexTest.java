@@ -0,0 +1,210 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file SafetyReflexTest.java
+ * \brief Closed loop check of the safety reflex against the WorldSimulator
+ * \copyright GNU GPL v3
+
+
+The SafetyReflexTest class drives a WheelphoneRobot with the safety reflex enabled (see SafetyReflex) straight
+into an obstacle and toward the edge of the table, in virtual time through the transport of the EpisodeRunner.
+The application keeps asking for the same forward speed; each command packet written to the simulated robot is
+inspected. A scenario passes when:
+- the listener of the reflex is notified with the expected cause
+- the very first command packet sent after the packet that triggered the reflex carries zero speeds, and so do
+  the following ones while the application keeps asking to go forward
+- the speeds sent before the trigger are the ones requested (the reflex doesn't stop the robot too early)
+- the simulated robot doesn't hit the obstacle nor fall from the table
+It exits with status 1 if a scenario fails, thus it can be run by a script:
+\verbatim
+ java com.wheelphone.wheelphonelibrary.SafetyReflexTest [speed mm/s] [period ms]
+\endverbatim
+
+*/
+
+import java.util.Locale;
+
+public class SafetyReflexTest {
+
+	/*
+	 * Transport of the EpisodeRunner recording the speeds of each command packet.
+	 */
+	static class CommandProbe extends EpisodeRunner.SimTransport {
+		int commands = 0;
+		int left = 0, right = 0;
+
+		CommandProbe(WorldSimulator w) {
+			super(w);
+		}
+
+		@Override
+		public void write(byte[] data) {
+			if(data[0] == WheelphoneProtocol.UPDATE_STATE || data[0] == WheelphoneProtocol.UPDATE_STATE_COMPACT
+					|| data[0] == WheelphoneProtocol.UPDATE_STATE_CHECKED) {
+				commands++;
+				left = data[1];
+				right = data[2];
+			}
+			super.write(data);
+		}
+	}
+
+	/*
+	 * Outcome of a scenario.
+	 */
+	static class Result {
+		String name;
+		int cause = SafetyReflex.CAUSE_NONE;	// cause notified to the listener
+		int sensor = -1;
+		long triggerTimeMs = -1;
+		int commandsBeforeTrigger = 0;
+		boolean speedsBeforeTrigger = true;		// the requested speeds were sent before the trigger
+		int firstLeft = -1, firstRight = -1;	// speeds of the first command sent after the trigger
+		int movingAfterTrigger = 0;				// commands with non zero speeds after the trigger
+		boolean collided = false, fallen = false;
+		String failure = null;
+	}
+
+	private int speed = 100;
+	private int periodMs = 50;
+	private long durationMs = 10000;
+
+	public void setSpeed(int mmPerSecond) {
+		speed = mmPerSecond;
+	}
+
+	public void setPeriod(int ms) {
+		periodMs = Math.max(1, ms);
+	}
+
+	/**
+	 * \brief Run a scenario: the robot starts at the origin heading along x and is asked to go straight.
+	 * \param name name of the scenario
+	 * \param world world of the scenario
+	 * \param expectedCause cause the reflex must report
+	 * \param cliff true to enable the cliff thresholds, false for the obstacle thresholds only
+	 * \return outcome of the scenario
+	 */
+	public Result run(String name, WorldSimulator world, int expectedCause, boolean cliff) {
+		final Result res = new Result();
+		res.name = name;
+		world.setCalibrationTimes(0, 0);
+		world.setPose(0.0, 0.0, 0.0);
+		CommandProbe transport = new CommandProbe(world);
+		WheelphoneRobot robot = new WheelphoneRobot(null, null);
+		robot.setCommunicationPeriod(periodMs);
+		SafetyReflex reflex = robot.getSafetyReflex();
+		for(int i=0; i<4; i++) {
+			reflex.setObstacleDistance(i, cliff ? 0 : 30);
+			reflex.setCliffThreshold(i, cliff ? 20 : 0);
+		}
+		reflex.setAllowReverse(false);
+		final long[] now = new long[1];
+		final int[] commandsAtTrigger = {-1};
+		final CommandProbe probe = transport;
+		reflex.setSafetyReflexListener(new SafetyReflex.SafetyReflexListener() {
+			public void onSafetyReflex(int cause, int sensor) {
+				if(cause != SafetyReflex.CAUSE_NONE && commandsAtTrigger[0] < 0) {
+					res.cause = cause;
+					res.sensor = sensor;
+					res.triggerTimeMs = now[0];
+					commandsAtTrigger[0] = probe.commands;
+				}
+			}
+		});
+		robot.enableSafetyReflex();
+		robot.attach(transport);
+		for(long t=0; t<durationMs; t+=periodMs) {
+			now[0] = t;
+			transport.advance(periodMs);		// the packet received is decoded, the reflex is checked
+			robot.setSpeed(speed, speed);		// the application doesn't react
+			int before = transport.commands;
+			robot.tick();
+			if(transport.commands == before) {
+				continue;
+			}
+			if(commandsAtTrigger[0] < 0) {
+				if(robot.isRobotConnected() && transport.left == 0 && transport.right == 0 && before > 2) {
+					res.speedsBeforeTrigger = false;
+				}
+				res.commandsBeforeTrigger = transport.commands;
+			} else if(res.firstLeft < 0) {
+				res.firstLeft = transport.left;
+				res.firstRight = transport.right;
+			} else if(transport.left != 0 || transport.right != 0) {
+				res.movingAfterTrigger++;
+			}
+		}
+		robot.closeUSBCommunication();
+		res.collided = world.getCollisionCount() > 0;
+		res.fallen = world.hasFallen();
+		if(commandsAtTrigger[0] < 0) {
+			res.failure = "reflex not triggered";
+		} else if(res.cause != expectedCause) {
+			res.failure = "wrong cause " + res.cause;
+		} else if(res.firstLeft != 0 || res.firstRight != 0) {
+			res.failure = "next command not stopped (" + res.firstLeft + ", " + res.firstRight + ")";
+		} else if(res.movingAfterTrigger > 0) {
+			res.failure = res.movingAfterTrigger + " commands moving after the trigger";
+		} else if(!res.speedsBeforeTrigger) {
+			res.failure = "stopped before the trigger";
+		} else if(res.collided || res.fallen) {
+			res.failure = res.collided ? "obstacle hit" : "fallen from the table";
+		}
+		return res;
+	}
+
+	/**
+	 * \brief Wall across the path of the robot.
+	 * \return world of the scenario
+	 */
+	static WorldSimulator obstacleWorld() {
+		WorldSimulator world = new WorldSimulator("3.0");
+		world.setTable(-1000, -1000, 1000, 1000);
+		world.addBox(300, -200, 350, 200);
+		return world;
+	}
+
+	/**
+	 * \brief Edge of the table in front of the robot, no obstacle.
+	 * \return world of the scenario
+	 */
+	static WorldSimulator cliffWorld() {
+		WorldSimulator world = new WorldSimulator("3.0");
+		world.setTable(-1000, -1000, 300, 1000);
+		return world;
+	}
+
+	static String report(Result[] results) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%-10s %6s %6s %9s %9s %9s %9s  %s%n", "scenario", "cause", "sensor", "trig ms",
+				"cmd before", "next cmd", "moving", "result"));
+		for(Result r : results) {
+			sb.append(String.format(Locale.US, "%-10s %6d %6d %9d %9d %9s %9d  %s%n", r.name, r.cause, r.sensor, r.triggerTimeMs,
+					r.commandsBeforeTrigger, r.firstLeft + "," + r.firstRight, r.movingAfterTrigger,
+					r.failure == null ? "ok" : "FAILED: " + r.failure));
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) {
+		SafetyReflexTest t = new SafetyReflexTest();
+		if(args.length > 0) {
+			t.setSpeed(Integer.parseInt(args[0]));
+		}
+		if(args.length > 1) {
+			t.setPeriod(Integer.parseInt(args[1]));
+		}
+		Result[] results = {
+			t.run("obstacle", obstacleWorld(), SafetyReflex.CAUSE_OBSTACLE, false),
+			t.run("cliff", cliffWorld(), SafetyReflex.CAUSE_CLIFF, true)
+		};
+		System.out.print(report(results));
+		for(Result r : results) {
+			if(r.failure != null) {
+				System.exit(1);
+			}
+		}
+	}
+
+}
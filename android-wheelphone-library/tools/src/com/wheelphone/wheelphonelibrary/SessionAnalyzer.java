@@ -0,0 +1,434 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file SessionAnalyzer.java
+ * \brief Parallel analysis of a directory of logged sessions
+ * \copyright GNU GPL v3
+
+
+The SessionAnalyzer class looks for the sessions logged by the library in a directory (and its subdirectories):
+packets recordings (PacketRecorder, all the segments with the same prefix are one session), columnar frames
+files (ColumnarFrameWriter, ".wpc") and data logs ("logFile.csv", without time, a packet every 50 ms is
+assumed). The sessions are analysed in parallel with fork/join: the list is split in halves until a task holds
+a single session (see SessionStatistics), then the statistics are merged in the fleet-wide ones, in the order
+of the sessions, and written as summary tables:
+- sessions.csv: one line per session (packets interval, battery, odometry drift)
+- noise.csv: noise of each sensor channel for the fleet and the noisiest session
+- intervals.csv: fleet histogram of the packets intervals
+- battery.csv: fleet mean battery level for each minute since the start of the sessions
+It runs on a desktop computer:
+\verbatim
+ java com.wheelphone.wheelphonelibrary.SessionAnalyzer <directory> [output directory] [threads]
+\endverbatim
+Without output directory the tables are printed.
+
+*/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class SessionAnalyzer {
+
+	public static final String FORMAT_RECORDING = "recording";
+	public static final String FORMAT_COLUMNAR = "columnar";
+	public static final String FORMAT_LOG = "log";
+
+	/*
+	 * A session found in the directory.
+	 */
+	public static class Session {
+		public final String name;		// path relative to the analysed directory
+		public final String format;
+		final File file;				// columnar file or data log; directory of the segments for a recording
+		final String prefix;			// segments prefix of a recording
+
+		Session(String n, String f, File fl, String p) {
+			name = n;
+			format = f;
+			file = fl;
+			prefix = p;
+		}
+	}
+
+	/*
+	 * Analysis of a range of sessions: split in two halves forked in parallel, down to a single session.
+	 */
+	private class AnalyzeTask extends RecursiveAction {
+		private final List<Session> sessions;
+		private final SessionStatistics[] result;
+		private final int from, to;
+
+		AnalyzeTask(List<Session> s, SessionStatistics[] r, int f, int t) {
+			sessions = s;
+			result = r;
+			from = f;
+			to = t;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new AnalyzeTask(sessions, result, from, mid), new AnalyzeTask(sessions, result, mid, to));
+				return;
+			}
+			try {
+				result[from] = analyze(sessions.get(from));
+			} catch (IOException e) {
+				System.err.println(sessions.get(from).name + ": " + e);
+			} catch (RuntimeException e) {		// corrupted file: skip the session, not the whole analysis
+				System.err.println(sessions.get(from).name + ": " + e);
+			}
+		}
+	}
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private double leftDiamCoeff = Double.NaN, rightDiamCoeff, wheelBase;
+
+	public void setThreads(int n) {
+		threads = Math.max(1, n);
+	}
+
+	/**
+	 * \brief Set the odometry parameters used to integrate the packets recordings (see "WheelphoneRobot.setOdometryParameters").
+	 * \param ldc left diameter coefficient
+	 * \param rdc right diameter coefficient
+	 * \param wb wheel base (mm)
+	 * \return none
+	 */
+	public void setOdometryParameters(double ldc, double rdc, double wb) {
+		leftDiamCoeff = ldc;
+		rightDiamCoeff = rdc;
+		wheelBase = wb;
+	}
+
+	/**
+	 * \brief Find the sessions in a directory and its subdirectories.
+	 * \param dir directory
+	 * \return sessions, sorted by name
+	 */
+	public List<Session> findSessions(File dir) {
+		ArrayList<Session> list = new ArrayList<Session>();
+		find(dir, "", list);
+		return list;
+	}
+
+	private void find(File dir, String path, List<Session> list) {
+		String[] names = dir.list();
+		if(names == null) {
+			return;
+		}
+		Arrays.sort(names);
+		String lastPrefix = null;
+		for(String n : names) {
+			File f = new File(dir, n);
+			if(f.isDirectory()) {
+				find(f, path + n + "/", list);
+			} else if(n.endsWith(PacketRecorder.SEGMENT_EXTENSION)) {
+				int dash = n.lastIndexOf('-');
+				if(dash <= 0) {
+					continue;
+				}
+				String prefix = n.substring(0, dash);
+				if(!prefix.equals(lastPrefix)) {	// the segments of a recording are consecutive once sorted
+					list.add(new Session(path + prefix, FORMAT_RECORDING, dir, prefix));
+					lastPrefix = prefix;
+				}
+			} else if(n.endsWith(ColumnarFrameWriter.EXTENSION)) {
+				list.add(new Session(path + n, FORMAT_COLUMNAR, f, null));
+			} else if(n.endsWith(".csv") && isDataLog(f)) {
+				list.add(new Session(path + n, FORMAT_LOG, f, null));
+			}
+		}
+	}
+
+	private static boolean isDataLog(File f) {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(f));
+			String header = in.readLine();
+			return header != null && header.startsWith(SensorFrame.CSV_HEADER);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * \brief Analyse a session; can be called from several threads at the same time.
+	 * \param s session
+	 * \return statistics of the session
+	 */
+	public SessionStatistics analyze(Session s) throws IOException {
+		SessionStatistics st = new SessionStatistics(s.name);
+		st.setFormat(s.format);
+		if(s.format.equals(FORMAT_RECORDING)) {
+			analyzeRecording(s, st);
+		} else if(s.format.equals(FORMAT_COLUMNAR)) {
+			analyzeColumnar(s, st);
+		} else {
+			analyzeLog(s, st);
+		}
+		return st;
+	}
+
+	private void analyzeRecording(Session s, SessionStatistics st) throws IOException {
+		PacketRecordingReader in = new PacketRecordingReader(s.file, s.prefix);
+		Odometry odometry = new Odometry();
+		if(leftDiamCoeff == leftDiamCoeff) {
+			odometry.setParameters(leftDiamCoeff, rightDiamCoeff, wheelBase);
+		}
+		SensorFrame frame = new SensorFrame();
+		int[] values = new int[SessionStatistics.NOISE_CHANNELS];
+		double[] pose = new double[3];
+		long lastTime = 0, robotTime = -1;
+		boolean first = true;
+		try {
+			while(in.next()) {
+				if(in.getType() == PacketRecorder.POSE) {
+					in.getPose(pose);
+					double[] p = odometry.getPose();
+					st.addReset(p[Odometry.X_ODOM], p[Odometry.Y_ODOM], p[Odometry.THETA_ODOM], pose[0], pose[1]);
+					odometry.set(pose[0], pose[1], pose[2]);
+					continue;
+				}
+				if(in.getType() != PacketRecorder.INBOUND || !WheelphoneProtocol.decodeState(in.getData(), in.getLength(), frame)) {
+					continue;
+				}
+				frame.leftSpeed = WheelphoneProtocol.filterSpeed(frame.leftSpeed);
+				frame.rightSpeed = WheelphoneProtocol.filterSpeed(frame.rightSpeed);
+				long t = in.getWallClockTime();
+				double dt = first ? 0.0 : (double)(t - lastTime);
+				if(frame.robotTime >= 0) {		// robot time (FEATURE_TIMESTAMP), as online
+					long r = WheelphoneProtocol.unwrapRobotTime(robotTime, (int)frame.robotTime);
+					dt = (robotTime < 0 || WheelphoneProtocol.isRobotTimeJump(robotTime, r)) ? 0.0 : (double)Math.max(0, r - robotTime);
+					robotTime = r;
+				}
+				odometry.update(frame.leftSpeed, frame.rightSpeed, dt);
+				first = false;
+				lastTime = t;
+				channels(frame, values);
+				double[] p = odometry.getPose();
+				st.addFrame(t, values, p[Odometry.X_ODOM], p[Odometry.Y_ODOM]);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void analyzeColumnar(Session s, SessionStatistics st) throws IOException {
+		ColumnarFrameReader in = new ColumnarFrameReader(s.file);
+		try {
+			ColumnarFrameReader.Cursor[] c = new ColumnarFrameReader.Cursor[SessionStatistics.NOISE_CHANNELS];
+			for(int i=0; i<c.length; i++) {
+				c[i] = in.openChannel(i);
+			}
+			ColumnarFrameReader.Cursor x = in.openChannel(ColumnarFrameWriter.CH_X);
+			ColumnarFrameReader.Cursor y = in.openChannel(ColumnarFrameWriter.CH_Y);
+			int[] values = new int[SessionStatistics.NOISE_CHANNELS];
+			while(x.next() && y.next()) {
+				for(int i=0; i<c.length; i++) {
+					c[i].next();
+					values[i] = (int)c[i].getValue();
+				}
+				st.addFrame(x.getTime(), values, x.getDouble(), y.getDouble());
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void analyzeLog(Session s, SessionStatistics st) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(s.file), 64*1024);
+		int[] values = new int[SessionStatistics.NOISE_CHANNELS];
+		try {
+			String line = in.readLine();	// header
+			while((line = in.readLine()) != null) {
+				String[] v = line.split(",");
+				if(v.length <= ColumnarFrameWriter.CH_Y) {
+					continue;
+				}
+				try {
+					for(int i=0; i<values.length; i++) {
+						values[i] = Integer.parseInt(v[i].trim());
+					}
+					st.addFrame(-1, values, Double.parseDouble(v[ColumnarFrameWriter.CH_X]), Double.parseDouble(v[ColumnarFrameWriter.CH_Y]));
+				} catch (NumberFormatException e) {
+					// skip the line
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void channels(SensorFrame f, int[] values) {
+		for(int i=0; i<4; i++) {
+			values[ColumnarFrameWriter.CH_PROX0 + i] = f.prox[i];
+			values[ColumnarFrameWriter.CH_PROX_AMBIENT0 + i] = f.proxAmbient[i];
+			values[ColumnarFrameWriter.CH_GROUND0 + i] = f.ground[i];
+			values[ColumnarFrameWriter.CH_GROUND_AMBIENT0 + i] = f.groundAmbient[i];
+		}
+		values[ColumnarFrameWriter.CH_BATTERY] = f.battery;
+	}
+
+	/**
+	 * \brief Analyse the sessions in parallel and merge them in the fleet statistics; a session that can't be read
+	 *  is skipped.
+	 * \param sessions sessions to analyse
+	 * \param fleet destination of the merged statistics
+	 * \return statistics of each session, in the order of the sessions
+	 */
+	public List<SessionStatistics> analyzeAll(List<Session> sessions, SessionStatistics fleet) {
+		SessionStatistics[] stats = new SessionStatistics[sessions.size()];
+		ArrayList<SessionStatistics> result = new ArrayList<SessionStatistics>();
+		if(stats.length > 0) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new AnalyzeTask(sessions, stats, 0, stats.length));
+			} finally {
+				pool.shutdown();
+			}
+		}
+		for(SessionStatistics st : stats) {
+			if(st != null) {
+				result.add(st);
+				fleet.merge(st);	// merged in the sessions order, thus the result doesn't depend on the scheduling
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * \brief Write the summary tables.
+	 * \param sessions statistics of each session
+	 * \param fleet fleet statistics
+	 * \param dir destination directory, null to print the tables
+	 * \return none
+	 */
+	public void writeTables(List<SessionStatistics> sessions, SessionStatistics fleet, File dir) throws IOException {
+		Writer out = open(dir, "sessions.csv");
+		try {
+			out.write("session,format,frames,duration_s,interval_mean_ms,interval_p50_ms,interval_p95_ms,interval_p99_ms,"
+					+ "battery_first,battery_last,battery_per_hour,resets,drift_mean_mm,drift_max_mm,drift_percent,heading_error_rad\n");
+			for(SessionStatistics s : sessions) {
+				writeSession(out, s);
+			}
+			writeSession(out, fleet);
+		} finally {
+			close(out, dir);
+		}
+		out = open(dir, "noise.csv");
+		try {
+			out.write("channel,noise,worst_session,worst_noise\n");
+			for(int c=0; c<SessionStatistics.NOISE_CHANNELS; c++) {
+				SessionStatistics worst = null;
+				for(SessionStatistics s : sessions) {
+					if(s.getNoise(c) == s.getNoise(c) && (worst == null || s.getNoise(c) > worst.getNoise(c))) {
+						worst = s;
+					}
+				}
+				out.write(ColumnarFrameWriter.channelName(c) + "," + format(fleet.getNoise(c)) + ","
+						+ (worst == null ? "," : worst.getName() + "," + format(worst.getNoise(c))) + "\n");
+			}
+		} finally {
+			close(out, dir);
+		}
+		out = open(dir, "intervals.csv");
+		try {
+			out.write("interval_ms,packets,percent\n");
+			for(int i=0; i<SessionStatistics.INTERVAL_BINS; i++) {
+				long n = fleet.getIntervalHistogram(i);
+				if(n > 0) {
+					out.write(i + "," + n + "," + format(100.0*n/fleet.getIntervalCount()) + "\n");
+				}
+			}
+		} finally {
+			close(out, dir);
+		}
+		out = open(dir, "battery.csv");
+		try {
+			out.write("minute,frames,battery\n");
+			for(int m=0; m<fleet.getBatteryMinutes(); m++) {
+				if(fleet.getBatterySamples(m) > 0) {
+					out.write(m + "," + fleet.getBatterySamples(m) + "," + format(fleet.getBatteryLevel(m)) + "\n");
+				}
+			}
+		} finally {
+			close(out, dir);
+		}
+	}
+
+	private static void writeSession(Writer out, SessionStatistics s) throws IOException {
+		out.write(s.getName() + "," + s.getFormat() + "," + s.getFrameCount() + "," + format(s.getDuration()) + ","
+				+ format(s.getMeanInterval()) + "," + format(s.getIntervalPercentile(50)) + "," + format(s.getIntervalPercentile(95)) + ","
+				+ format(s.getIntervalPercentile(99)) + "," + format(s.getFirstBattery()) + "," + format(s.getLastBattery()) + ","
+				+ format(s.getBatterySlope()) + "," + s.getResetCount() + "," + format(s.getMeanDrift()) + ","
+				+ format(s.getMaxDrift()) + "," + format(s.getDriftPercent()) + "," + format(s.getMeanHeadingError()) + "\n");
+	}
+
+	private static String format(double v) {
+		return (v != v) ? "" : String.format(Locale.US, "%.3f", v);
+	}
+
+	private static String format(int v) {
+		return (v < 0) ? "" : Integer.toString(v);	// -1: not available
+	}
+
+	private static Writer open(File dir, String name) throws IOException {
+		if(dir == null) {
+			Writer w = new OutputStreamWriter(System.out);
+			w.write("\n# " + name + "\n");
+			return w;
+		}
+		dir.mkdirs();
+		return new BufferedWriter(new FileWriter(new File(dir, name)));
+	}
+
+	private static void close(Writer w, File dir) throws IOException {
+		if(dir == null) {
+			w.flush();	// don't close System.out
+		} else {
+			w.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("usage: SessionAnalyzer <directory> [output directory] [threads]");
+			System.exit(1);
+		}
+		SessionAnalyzer a = new SessionAnalyzer();
+		if(args.length >= 3) {
+			a.setThreads(Integer.parseInt(args[2]));
+		}
+		long start = System.currentTimeMillis();
+		List<Session> sessions = a.findSessions(new File(args[0]));
+		SessionStatistics fleet = new SessionStatistics("fleet");
+		fleet.setFormat("all");
+		List<SessionStatistics> result = a.analyzeAll(sessions, fleet);
+		a.writeTables(result, fleet, args.length >= 2 ? new File(args[1]) : null);
+		System.err.println(result.size() + " sessions, " + fleet.getFrameCount() + " frames analysed in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+}
@@ -0,0 +1,341 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file SessionStatistics.java
+ * \brief Statistics of a logged session, mergeable for the whole fleet
+ * \copyright GNU GPL v3
+
+
+The SessionStatistics class accumulates the statistics of the frames of a session (see SessionAnalyzer):
+- packets interval distribution: histogram with 1 ms bins
+- sensors noise: standard deviation of the difference between consecutive values divided by sqrt(2), i.e. the
+  noise of a signal varying slowly compared to the packets rate, for the proximity, ground and battery channels
+- odometry drift: when the odometry is reset the robot is supposed to be back at the pose of the previous reset,
+  thus the pose just before the reset is the error accumulated meanwhile (only the packets recordings contain
+  the resets)
+- battery discharge: linear regression of the battery level over time and mean level of each minute
+The statistics of several sessions can be merged to get the fleet-wide values. An instance must be used by one
+thread at a time.
+
+*/
+
+public class SessionStatistics {
+
+	public static final int NOISE_CHANNELS = ColumnarFrameWriter.CH_BATTERY + 1;	// prox, ambient, ground, ground ambient, battery
+	public static final int INTERVAL_BINS = 1000;		// 1 ms bins, the last one contains the intervals of 999 ms or more
+	public static final long BATTERY_BUCKET_MS = 60000;
+
+	private final String name;
+	private String format = "";
+	private int sessions = 0;						// sessions containing frames
+	private long frames = 0;
+	private long firstTime = -1, lastTime = -1;
+	private double duration = 0.0;					// s, sum of the sessions durations
+	private final long[] intervals = new long[INTERVAL_BINS];
+	private long intervalCount = 0;
+	private double intervalSum = 0.0;
+	private final int[] previous = new int[NOISE_CHANNELS];
+	private final double[] diffSum = new double[NOISE_CHANNELS];
+	private final double[] diffSquares = new double[NOISE_CHANNELS];
+	private long diffCount = 0;
+	private double lastX, lastY;
+	private double travelled = 0.0;					// mm since the last reset
+	private int resets = 0;
+	private double driftSum = 0.0, headingErrorSum = 0.0, travelledSum = 0.0, maxDrift = 0.0;
+	private int batteryFirst = -1, batteryLast = -1;
+	private double bn, bsx, bsy, bsxx, bsxy;		// regression of the battery (level over hours)
+	private double slopeSum = 0.0;					// slopes of the merged sessions
+	private int slopes = 0;
+	private double[] batterySum = new double[64];	// per minute since the start of the session
+	private int[] batteryCount = new int[64];
+	private int batteryBuckets = 0;
+
+	/**
+	 * \brief Class constructor
+	 * \param sessionName name of the session (or of the group, e.g. "fleet")
+	 * \return SessionStatistics instance
+	 */
+	public SessionStatistics(String sessionName) {
+		name = sessionName;
+	}
+
+	public void setFormat(String f) {
+		format = f;
+	}
+
+	/**
+	 * \brief Add a frame.
+	 * \param time phone time (ms), -1 if unknown (data log)
+	 * \param values raw values of the channels 0..NOISE_CHANNELS-1 (see ColumnarFrameWriter.CH_*)
+	 * \param x odometry x (mm)
+	 * \param y odometry y (mm)
+	 * \return none
+	 */
+	public void addFrame(long time, int[] values, double x, double y) {
+		if(frames > 0) {
+			for(int c=0; c<NOISE_CHANNELS; c++) {
+				double d = values[c] - previous[c];
+				diffSum[c] += d;
+				diffSquares[c] += d*d;
+			}
+			diffCount++;
+			travelled += Math.sqrt((x - lastX)*(x - lastX) + (y - lastY)*(y - lastY));
+		}
+		System.arraycopy(values, 0, previous, 0, NOISE_CHANNELS);
+		lastX = x;
+		lastY = y;
+		int battery = values[ColumnarFrameWriter.CH_BATTERY];
+		if(batteryFirst < 0) {
+			batteryFirst = battery;
+		}
+		batteryLast = battery;
+		if(frames == 0 && sessions == 0) {
+			sessions = 1;
+		}
+		double t = (time >= 0) ? time : frames*50;	// data log: nominal 50 ms between packets
+		if(firstTime < 0) {
+			firstTime = (long)t;
+		} else if(time >= 0 && lastTime >= 0) {
+			long dt = time - lastTime;
+			if(dt >= 0) {
+				intervals[(int)Math.min(dt, INTERVAL_BINS - 1)]++;
+				intervalCount++;
+				intervalSum += dt;
+			}
+		}
+		lastTime = (long)t;
+		duration = (lastTime - firstTime)/1000.0;
+		double h = (t - firstTime)/3600000.0;
+		bn++;
+		bsx += h;
+		bsy += battery;
+		bsxx += h*h;
+		bsxy += h*battery;
+		int bucket = (int)((t - firstTime)/BATTERY_BUCKET_MS);
+		addBattery(bucket, battery, 1);
+		frames++;
+	}
+
+	/**
+	 * \brief Add an odometry reset (or set).
+	 * \param x odometry x just before the reset (mm)
+	 * \param y odometry y just before the reset (mm)
+	 * \param theta odometry theta just before the reset (radians)
+	 * \param newX new odometry x (mm)
+	 * \param newY new odometry y (mm)
+	 * \return none
+	 */
+	public void addReset(double x, double y, double theta, double newX, double newY) {
+		if(frames > 0 && travelled > 0.0) {
+			double drift = Math.sqrt(x*x + y*y);
+			driftSum += drift;
+			headingErrorSum += Math.abs(Math.atan2(Math.sin(theta), Math.cos(theta)));
+			travelledSum += travelled;
+			if(drift > maxDrift) {
+				maxDrift = drift;
+			}
+			resets++;
+		}
+		travelled = 0.0;
+		lastX = newX;
+		lastY = newY;
+	}
+
+	private void addBattery(int bucket, double sum, int count) {
+		if(bucket >= batterySum.length) {
+			int n = Math.max(bucket + 1, batterySum.length*2);
+			double[] s = new double[n];
+			System.arraycopy(batterySum, 0, s, 0, batterySum.length);
+			batterySum = s;
+			int[] c = new int[n];
+			System.arraycopy(batteryCount, 0, c, 0, batteryCount.length);
+			batteryCount = c;
+		}
+		batterySum[bucket] += sum;
+		batteryCount[bucket] += count;
+		if(bucket >= batteryBuckets) {
+			batteryBuckets = bucket + 1;
+		}
+	}
+
+	/**
+	 * \brief Add the statistics of another session (or group of sessions); the battery curves are aligned on
+	 *  the start of the sessions.
+	 * \param s statistics to add
+	 * \return none
+	 */
+	public void merge(SessionStatistics s) {
+		sessions += s.sessions;
+		frames += s.frames;
+		duration += s.duration;
+		for(int i=0; i<INTERVAL_BINS; i++) {
+			intervals[i] += s.intervals[i];
+		}
+		intervalCount += s.intervalCount;
+		intervalSum += s.intervalSum;
+		for(int c=0; c<NOISE_CHANNELS; c++) {
+			diffSum[c] += s.diffSum[c];
+			diffSquares[c] += s.diffSquares[c];
+		}
+		diffCount += s.diffCount;
+		resets += s.resets;
+		driftSum += s.driftSum;
+		headingErrorSum += s.headingErrorSum;
+		travelledSum += s.travelledSum;
+		maxDrift = Math.max(maxDrift, s.maxDrift);
+		double slope = s.getBatterySlope();	// the sessions are not aligned in time, average their slopes
+		if(slope == slope) {
+			slopeSum += slope;
+			slopes++;
+		}
+		for(int b=0; b<s.batteryBuckets; b++) {
+			if(s.batteryCount[b] > 0) {
+				addBattery(b, s.batterySum[b], s.batteryCount[b]);
+			}
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public int getSessionCount() {
+		return sessions;
+	}
+
+	public long getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * \brief Return the duration of the session (sum of the durations for merged statistics).
+	 * \return duration (s)
+	 */
+	public double getDuration() {
+		return duration;
+	}
+
+	public long getIntervalCount() {
+		return intervalCount;
+	}
+
+	public long getIntervalHistogram(int ms) {
+		return intervals[ms];
+	}
+
+	public double getMeanInterval() {
+		return (intervalCount == 0) ? Double.NaN : intervalSum/intervalCount;
+	}
+
+	/**
+	 * \brief Return a percentile of the packets intervals.
+	 * \param p percentile (0..100)
+	 * \return interval (ms), -1 if no interval
+	 */
+	public int getIntervalPercentile(double p) {
+		if(intervalCount == 0) {
+			return -1;
+		}
+		long rank = (long)Math.ceil(p/100.0*intervalCount);
+		long n = 0;
+		for(int i=0; i<INTERVAL_BINS; i++) {
+			n += intervals[i];
+			if(n >= Math.max(rank, 1)) {
+				return i;
+			}
+		}
+		return INTERVAL_BINS - 1;
+	}
+
+	/**
+	 * \brief Return the noise of a channel: standard deviation of the difference between consecutive values / sqrt(2).
+	 * \param channel channel (0..NOISE_CHANNELS-1)
+	 * \return noise (raw units), NaN if less than 2 frames
+	 */
+	public double getNoise(int channel) {
+		if(diffCount < 2) {
+			return Double.NaN;
+		}
+		double mean = diffSum[channel]/diffCount;
+		double var = diffSquares[channel]/diffCount - mean*mean;
+		return Math.sqrt(Math.max(var, 0.0)/2.0);
+	}
+
+	public int getResetCount() {
+		return resets;
+	}
+
+	/**
+	 * \brief Return the mean position error at the resets.
+	 * \return error (mm), NaN if no reset
+	 */
+	public double getMeanDrift() {
+		return (resets == 0) ? Double.NaN : driftSum/resets;
+	}
+
+	public double getMaxDrift() {
+		return maxDrift;
+	}
+
+	/**
+	 * \brief Return the position error relative to the distance travelled.
+	 * \return error (% of the distance), NaN if no reset
+	 */
+	public double getDriftPercent() {
+		return (travelledSum <= 0.0) ? Double.NaN : 100.0*driftSum/travelledSum;
+	}
+
+	public double getMeanHeadingError() {
+		return (resets == 0) ? Double.NaN : headingErrorSum/resets;
+	}
+
+	public int getFirstBattery() {
+		return batteryFirst;
+	}
+
+	public int getLastBattery() {
+		return batteryLast;
+	}
+
+	/**
+	 * \brief Return the battery discharge rate (regression over the session, mean of the sessions for merged statistics).
+	 * \return battery level change per hour (NaN if the session is too short)
+	 */
+	public double getBatterySlope() {
+		if(slopes > 0) {
+			return slopeSum/slopes;
+		}
+		double d = bn*bsxx - bsx*bsx;
+		if(bn < 2 || d <= 0.0) {
+			return Double.NaN;
+		}
+		return (bn*bsxy - bsx*bsy)/d;
+	}
+
+	public int getBatteryMinutes() {
+		return batteryBuckets;
+	}
+
+	/**
+	 * \brief Return the mean battery level during a minute of the session(s).
+	 * \param minute minute since the start of the session
+	 * \return level, NaN if no frame
+	 */
+	public double getBatteryLevel(int minute) {
+		return (batteryCount[minute] == 0) ? Double.NaN : batterySum[minute]/batteryCount[minute];
+	}
+
+	/**
+	 * \brief Return the number of frames of a minute of the session(s).
+	 * \param minute minute since the start of the session
+	 * \return frames
+	 */
+	public int getBatterySamples(int minute) {
+		return batteryCount[minute];
+	}
+
+}
@@ -0,0 +1,492 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file SoakTest.java
+ * \brief Sustained throughput and latency test of the communication at increasing rates
+ * \copyright GNU GPL v3
+
+
+The SoakTest class drives WheelphoneRobot against an in-process RobotSimulator at increasing exchange rates
+(20 Hz to 1 kHz by default, see "WheelphoneRobot.setCommunicationPeriod") for a configurable time per rate
+(hours for a real soak). The transport reproduces the threads of the USB accessory: the firmware answers
+from its own thread and, like the Android Handler, the packets are handled by a single dispatcher thread
+through a message queue (can be disabled to measure the timer alone). For each rate it records:
+- achieved exchange rate, exchanges missed (timer ticks without a command because the answer was late)
+- round trip: from the command written by the timer task to the end of the handling of the answer
+- interval between commands (timer jitter), commands later than 1.5 periods
+- heap growth (after GC) and garbage collections (count, time)
+- bytes exchanged per exchange (both directions), to compare the 63 bytes packets of the firmware v2/v3 with the
+  compact frames of the protocol v4 ("-version 4.0"); with "-link" the transfer of the bytes takes time as on a
+  link of limited throughput, so that the highest rate reached by each protocol can be compared
+A rate is flagged as saturated when less than 90% of the exchanges are achieved or when the 99th percentile
+of the round trip exceeds the period. It runs on a desktop computer:
+\verbatim
+ java com.wheelphone.wheelphonelibrary.SoakTest [seconds per rate] [rate Hz ...] [-direct] [-latency ms] [-version v]
+     [-link bytes/s] [-out report.txt]
+\endverbatim
+
+*/
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.content.Context;
+import android.content.Intent;
+
+public class SoakTest {
+
+	public static final int[] DEFAULT_RATES = {20, 50, 100, 200, 500, 1000};
+
+	/*
+	 * Latency histogram with 10 us bins up to 100 ms.
+	 */
+	static class Histogram {
+		private static final int BIN_NS = 10000;
+		private final long[] bins = new long[10000];
+		private long count = 0, overflow = 0, max = 0;
+
+		synchronized void add(long ns) {
+			int b = (int)Math.min(ns/BIN_NS, bins.length);
+			if(b == bins.length) {
+				overflow++;
+			} else {
+				bins[b]++;
+			}
+			count++;
+			if(ns > max) {
+				max = ns;
+			}
+		}
+
+		synchronized void reset() {
+			for(int i=0; i<bins.length; i++) {
+				bins[i] = 0;
+			}
+			count = 0;
+			overflow = 0;
+			max = 0;
+		}
+
+		synchronized long count() {
+			return count;
+		}
+
+		synchronized long countAbove(long ns) {
+			long n = overflow;
+			for(int i=(int)Math.min(ns/BIN_NS + 1, bins.length); i<bins.length; i++) {
+				n += bins[i];
+			}
+			return n;
+		}
+
+		/**
+		 * \brief Return a percentile (upper bound of the bin).
+		 * \param p percentile (0..100)
+		 * \return ms, NaN if empty
+		 */
+		synchronized double percentileMs(double p) {
+			if(count == 0) {
+				return Double.NaN;
+			}
+			long rank = Math.max(1, (long)Math.ceil(p/100.0*count));
+			long n = 0;
+			for(int i=0; i<bins.length; i++) {
+				n += bins[i];
+				if(n >= rank) {
+					return (i + 1)*BIN_NS/1000000.0;
+				}
+			}
+			return max/1000000.0;
+		}
+
+		synchronized double maxMs() {
+			return max/1000000.0;
+		}
+	}
+
+	/*
+	 * Transport connecting WheelphoneRobot to the simulator in the same process.
+	 */
+	static class LoopbackTransport extends USBAccessoryManagerLocal {
+		private final RobotSimulator simulator;
+		private final boolean handler;
+		private final byte[] request = new byte[WheelphoneProtocol.PACKET_LENGTH_SEND];
+		private final byte[] response = new byte[WheelphoneProtocol.PACKET_LENGTH_RECV];
+		private int requestLength = 0;
+		private long requestNs = 0, lastSendNs = 0;
+		private volatile long latencyNs = 0;
+		private volatile double linkNsPerByte = 0.0;			// transfer time, 0 for no limit
+		private final LinkedBlockingQueue<Long> messages = new LinkedBlockingQueue<Long>();	// as the Handler messages
+		private Thread firmwareThread, handlerThread;
+		private volatile boolean running = false;
+		final Histogram roundTrip = new Histogram();
+		final Histogram sendInterval = new Histogram();
+		volatile long exchanges = 0;
+		volatile long bytesSent = 0, bytesReceived = 0;
+
+		LoopbackTransport(RobotSimulator sim, boolean useHandler) {
+			super(64*1024);
+			simulator = sim;
+			handler = useHandler;
+			version = sim.getVersion();
+		}
+
+		@Override
+		public RETURN_CODES enable(Context context, Intent intent) {
+			running = true;
+			connected = true;
+			closed = false;
+			firmwareThread = new Thread(new Runnable() {
+				public void run() {
+					firmware();
+				}
+			}, "SoakFirmware");
+			firmwareThread.setDaemon(true);
+			firmwareThread.start();
+			if(handler) {
+				handlerThread = new Thread(new Runnable() {
+					public void run() {
+						dispatch();
+					}
+				}, "SoakHandler");
+				handlerThread.setDaemon(true);
+				handlerThread.start();
+			}
+			deliver(USBAccessoryManagerMessage.MessageType.READY);
+			return RETURN_CODES.SUCCESS;
+		}
+
+		@Override
+		public void disable(Context context) {
+			running = false;
+			connected = false;
+			closed = true;
+			if(firmwareThread != null) {
+				firmwareThread.interrupt();
+			}
+			if(handlerThread != null) {
+				handlerThread.interrupt();
+			}
+		}
+
+		@Override
+		public synchronized void write(byte[] data) {
+			long now = System.nanoTime();
+			while(requestLength > 0 && running) {	// previous packet not yet taken by the firmware
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			if(data[0] == WheelphoneProtocol.UPDATE_STATE || data[0] == WheelphoneProtocol.UPDATE_STATE_COMPACT
+					|| data[0] == WheelphoneProtocol.UPDATE_STATE_CHECKED) {
+				if(lastSendNs != 0) {
+					sendInterval.add(now - lastSendNs);
+				}
+				lastSendNs = now;
+			}
+			System.arraycopy(data, 0, request, 0, Math.min(data.length, request.length));
+			requestLength = Math.min(data.length, request.length);
+			bytesSent += requestLength;
+			requestNs = now;
+			notifyAll();
+		}
+
+		private void firmware() {
+			byte[] packet = new byte[WheelphoneProtocol.PACKET_LENGTH_SEND];
+			while(running) {
+				int len;
+				long sentNs;
+				synchronized(this) {
+					while(requestLength == 0) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					len = requestLength;
+					sentNs = requestNs;
+					System.arraycopy(request, 0, packet, 0, len);
+					requestLength = 0;
+					notifyAll();
+				}
+				int n = simulator.handle(packet, len, response, System.nanoTime());
+				if(n == 0) {
+					continue;
+				}
+				bytesReceived += n;
+				long wait = sentNs + latencyNs + (long)((len + n)*linkNsPerByte) - System.nanoTime();
+				if(wait > 0) {
+					try {
+						Thread.sleep(wait/1000000, (int)(wait%1000000));
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if(handler) {
+					readData.write(response, 0, n);
+					messages.add(Long.valueOf(sentNs));
+				} else {
+					receive(response, 0, n);
+					done(sentNs);
+				}
+			}
+		}
+
+		private void dispatch() {
+			while(running) {
+				long sentNs;
+				try {
+					sentNs = messages.take().longValue();
+				} catch (InterruptedException e) {
+					return;
+				}
+				deliver(USBAccessoryManagerMessage.MessageType.READ);
+				done(sentNs);
+			}
+		}
+
+		private void done(long sentNs) {
+			roundTrip.add(System.nanoTime() - sentNs);
+			exchanges++;
+		}
+
+		void setLatency(double ms) {
+			latencyNs = (long)(ms*1000000.0);
+		}
+
+		/**
+		 * \brief Limit the throughput of the link: each exchange takes the time to transfer the command and the answer.
+		 * \param bytesPerSecond throughput, 0 for no limit
+		 * \return none
+		 */
+		void setLinkRate(double bytesPerSecond) {
+			linkNsPerByte = (bytesPerSecond > 0.0) ? 1e9/bytesPerSecond : 0.0;
+		}
+
+		void resetStatistics() {
+			roundTrip.reset();
+			sendInterval.reset();
+			exchanges = 0;
+			bytesSent = 0;
+			bytesReceived = 0;
+		}
+	}
+
+	/*
+	 * Results at one rate.
+	 */
+	public static class Stage {
+		public int targetHz;
+		public int periodMs;
+		public double seconds;
+		public long exchanges;
+		public double achievedHz;
+		public long missed;						// exchanges expected but not done
+		public double rttP50, rttP90, rttP99, rttMax;	// ms
+		public double intervalP50, intervalP99;	// ms between commands
+		public long lateCommands;				// commands sent more than 1.5 periods after the previous one
+		public long heapStart, heapEnd;			// bytes after GC
+		public long gcCount, gcTimeMs;
+		public double bytesPerExchange;			// command and answer
+		public boolean saturated;
+	}
+
+	private long stageMs = 30000;
+	private boolean useHandler = true;
+	private double latencyMs = 0.0;
+	private String version = "3.0";
+	private double linkRate = 0.0;
+	private Writer progress = null;
+
+	public void setStageDuration(long ms) {
+		stageMs = ms;
+	}
+
+	/**
+	 * \brief Choose whether the answers are handled through a dispatcher thread (as the Android Handler) or directly
+	 *  from the firmware thread.
+	 * \param handler true to use the dispatcher thread
+	 * \return none
+	 */
+	public void setUseHandler(boolean handler) {
+		useHandler = handler;
+	}
+
+	/**
+	 * \brief Set the firmware answer latency.
+	 * \param ms time between the command and the answer (ms)
+	 * \return none
+	 */
+	public void setLatency(double ms) {
+		latencyMs = ms;
+	}
+
+	/**
+	 * \brief Set the firmware version of the simulator, "4.0" for the compact frames of the protocol v4.
+	 * \param v accessory version
+	 * \return none
+	 */
+	public void setFirmwareVersion(String v) {
+		version = v;
+	}
+
+	/**
+	 * \brief Limit the throughput of the link between the phone and the simulator.
+	 * \param bytesPerSecond throughput, 0 for no limit
+	 * \return none
+	 */
+	public void setLinkRate(double bytesPerSecond) {
+		linkRate = bytesPerSecond;
+	}
+
+	public void setProgress(Writer w) {
+		progress = w;
+	}
+
+	/**
+	 * \brief Run the test at each rate.
+	 * \param rates exchange rates (Hz)
+	 * \return results of each rate
+	 */
+	public List<Stage> run(int[] rates) throws InterruptedException, IOException {
+		ArrayList<Stage> stages = new ArrayList<Stage>();
+		RobotSimulator sim = new RobotSimulator(version);
+		LoopbackTransport transport = new LoopbackTransport(sim, useHandler);
+		transport.setLatency(latencyMs);
+		transport.setLinkRate(linkRate);
+		WheelphoneRobot robot = new WheelphoneRobot(null, null);
+		robot.setCommunicationTimeout(60000);
+		robot.setSpeed(100, 100);
+		robot.startCommunication(transport);
+		try {
+			for(int hz : rates) {
+				stages.add(runStage(robot, transport, hz));
+			}
+		} finally {
+			robot.closeUSBCommunication();
+		}
+		return stages;
+	}
+
+	private Stage runStage(WheelphoneRobot robot, LoopbackTransport transport, int hz) throws InterruptedException, IOException {
+		Stage s = new Stage();
+		s.targetHz = hz;
+		s.periodMs = Math.max(1, Math.round(1000.0f/hz));
+		robot.setCommunicationPeriod(s.periodMs);
+		Thread.sleep(Math.min(2000, stageMs/10));		// settle
+		s.heapStart = JvmStats.usedHeapAfterGc();
+		long gc0 = JvmStats.gcCount(), gcTime0 = JvmStats.gcTimeMs();
+		transport.resetStatistics();
+		long start = System.nanoTime();
+		long end = start + stageMs*1000000L;
+		long nextProgress = start + 60000000000L;
+		while(System.nanoTime() < end) {
+			Thread.sleep(Math.min(1000, stageMs));
+			if(progress != null && System.nanoTime() >= nextProgress) {
+				nextProgress += 60000000000L;
+				progress.write(String.format(Locale.US, "%d Hz: %.0f s, %d exchanges, rtt p99 %.2f ms\n", hz,
+						(System.nanoTime() - start)/1e9, transport.exchanges, transport.roundTrip.percentileMs(99)));
+				progress.flush();
+			}
+		}
+		s.seconds = (System.nanoTime() - start)/1e9;
+		s.exchanges = transport.exchanges;
+		s.achievedHz = s.exchanges/s.seconds;
+		s.bytesPerExchange = (s.exchanges == 0) ? 0.0 : (double)(transport.bytesSent + transport.bytesReceived)/s.exchanges;
+		s.missed = Math.max(0, (long)(s.seconds*1000.0/s.periodMs) - s.exchanges);
+		s.rttP50 = transport.roundTrip.percentileMs(50);
+		s.rttP90 = transport.roundTrip.percentileMs(90);
+		s.rttP99 = transport.roundTrip.percentileMs(99);
+		s.rttMax = transport.roundTrip.maxMs();
+		s.intervalP50 = transport.sendInterval.percentileMs(50);
+		s.intervalP99 = transport.sendInterval.percentileMs(99);
+		s.lateCommands = transport.sendInterval.countAbove(s.periodMs*1500000L);
+		s.gcCount = (gc0 < 0) ? -1 : JvmStats.gcCount() - gc0;
+		s.gcTimeMs = (gcTime0 < 0) ? -1 : JvmStats.gcTimeMs() - gcTime0;
+		s.heapEnd = JvmStats.usedHeapAfterGc();
+		s.saturated = s.achievedHz < 0.9*1000.0/s.periodMs || s.rttP99 > s.periodMs;
+		return s;
+	}
+
+	/**
+	 * \brief Build the report of a run.
+	 * \param stages results
+	 * \return report text
+	 */
+	public static String report(List<Stage> stages) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%6s %6s %9s %9s %8s %8s %8s %8s %8s %8s %8s %7s %10s %6s %8s %s\n",
+				"Hz", "period", "exchanges", "achieved", "missed", "rtt50", "rtt90", "rtt99", "rttMax", "int99", "late",
+				"B/exch", "heapDelta", "gc", "gcMs", "saturated"));
+		Stage first = null;
+		for(Stage s : stages) {
+			sb.append(String.format(Locale.US, "%6d %6d %9d %9.1f %8d %8.2f %8.2f %8.2f %8.2f %8.2f %8d %7.1f %10d %6d %8d %s\n",
+					s.targetHz, s.periodMs, s.exchanges, s.achievedHz, s.missed, s.rttP50, s.rttP90, s.rttP99, s.rttMax,
+					s.intervalP99, s.lateCommands, s.bytesPerExchange, s.heapEnd - s.heapStart, s.gcCount, s.gcTimeMs, s.saturated ? "YES" : "no"));
+			if(s.saturated && first == null) {
+				first = s;
+			}
+		}
+		if(first == null) {
+			sb.append("not saturated up to the highest rate tested\n");
+		} else {
+			sb.append(String.format(Locale.US, "saturation at %d Hz: %.1f exchanges/s achieved (%.0f%%), rtt p99 %.2f ms for a %d ms period\n",
+					first.targetHz, first.achievedHz, 100.0*first.achievedHz*first.periodMs/1000.0, first.rttP99, first.periodMs));
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		SoakTest t = new SoakTest();
+		ArrayList<Integer> rates = new ArrayList<Integer>();
+		String out = null;
+		boolean duration = false;
+		for(int i=0; i<args.length; i++) {
+			if(args[i].equals("-direct")) {
+				t.setUseHandler(false);
+			} else if(args[i].equals("-latency") && i + 1 < args.length) {
+				t.setLatency(Double.parseDouble(args[++i]));
+			} else if(args[i].equals("-version") && i + 1 < args.length) {
+				t.setFirmwareVersion(args[++i]);
+			} else if(args[i].equals("-link") && i + 1 < args.length) {
+				t.setLinkRate(Double.parseDouble(args[++i]));
+			} else if(args[i].equals("-out") && i + 1 < args.length) {
+				out = args[++i];
+			} else if(!duration) {
+				t.setStageDuration((long)(Double.parseDouble(args[i])*1000.0));
+				duration = true;
+			} else {
+				rates.add(Integer.valueOf(args[i]));
+			}
+		}
+		int[] r = DEFAULT_RATES;
+		if(!rates.isEmpty()) {
+			r = new int[rates.size()];
+			for(int i=0; i<r.length; i++) {
+				r[i] = rates.get(i).intValue();
+			}
+		}
+		Writer console = new java.io.OutputStreamWriter(System.out);
+		t.setProgress(console);
+		String report = report(t.run(r));
+		console.write(report);
+		console.flush();
+		if(out != null) {
+			Writer w = new FileWriter(out);
+			try {
+				w.write(report);
+			} finally {
+				w.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,400 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file USBAccessoryManagerFaulty.java
+ * \brief Transport wrapper injecting the faults of an unreliable USB link
+ * \copyright GNU GPL v3
+
+
+The USBAccessoryManagerFaulty class is placed between WheelphoneRobot and another local transport (e.g. the
+loopback to a RobotSimulator) and injects the faults seen with a real USB accessory link, to measure how
+the library recovers from them (see FaultInjectionTest):
+- FAULT_LATENCY_SPIKE: the bytes received during "param" ms are held and delivered at the end
+- FAULT_PARTIAL_READ: the next packet is cut, its last "param" bytes are lost
+- FAULT_SPLIT: the next packet arrives in two chunks, the second one "param" ms later
+- FAULT_MERGE: the next packet is held "param" ms, the packets received meanwhile are delivered together with it
+  (the robot answers only after receiving a command, thus the packet is delivered alone in the normal exchange)
+- FAULT_CORRUPT: "param" random bytes of the next packet are changed
+- FAULT_WRITE_ERROR: the next "param" write attempts fail; as the Android transports, a failed write is retried
+  once after WRITE_RETRY_MS and dropped if it fails again
+- FAULT_DETACH: the accessory is detached (DETACHED), the link is down for "param" ms, then the accessory is
+  attached again (ATTACHED, READY)
+The faults are injected immediately ("inject") or by a background thread following a schedule drawn from a
+seed ("schedule"), so that a run can be repeated. The received bytes are delivered to WheelphoneRobot by a
+thread of this class, as the Handler of the Android transports.
+
+*/
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import android.content.Context;
+import android.content.Intent;
+
+public class USBAccessoryManagerFaulty extends USBAccessoryManagerLocal {
+
+	public static final int FAULT_LATENCY_SPIKE = 0;
+	public static final int FAULT_PARTIAL_READ = 1;
+	public static final int FAULT_SPLIT = 2;
+	public static final int FAULT_MERGE = 3;
+	public static final int FAULT_CORRUPT = 4;
+	public static final int FAULT_WRITE_ERROR = 5;
+	public static final int FAULT_DETACH = 6;
+	public static final int FAULT_CLASSES = 7;
+	public static final long WRITE_RETRY_MS = 2000;		// same as the Android transports ("write")
+	private static final String[] FAULT_NAMES = {"latency spike", "partial read", "split packet", "merged packets",
+		"corrupted bytes", "write error", "detach"};
+
+	/*
+	 * Event waiting to be delivered to the robot.
+	 */
+	private static class Chunk {
+		final USBAccessoryManagerMessage.MessageType type;
+		final byte[] data;		// READ only
+		final long dueNs;
+
+		Chunk(USBAccessoryManagerMessage.MessageType t, byte[] d, long due) {
+			type = t;
+			data = d;
+			dueNs = due;
+		}
+	}
+
+	private final USBAccessoryManagerLocal link;
+	private final Random random;
+	private final LinkedList<Chunk> chunks = new LinkedList<Chunk>();
+	private Thread deliveryThread = null, scheduleThread = null;
+	private volatile boolean running = false;
+
+	// armed faults (lock on this)
+	private long spikeEndNs = 0, lastDueNs = 0;
+	private int partialBytes = 0, splitMs = -1, corruptBytes = 0, writeFailures = 0, mergeMs = -1;
+	private boolean linkDown = false;
+	private long faultEndNs = 0;
+	private final long[] injected = new long[FAULT_CLASSES];
+
+	/**
+	 * \brief Class constructor
+	 * \param transport transport to the robot
+	 * \param seed seed of the random values (bytes corrupted, split positions, schedule)
+	 * \return USBAccessoryManagerFaulty instance
+	 */
+	public USBAccessoryManagerFaulty(USBAccessoryManagerLocal transport, long seed) {
+		super(4096);
+		link = transport;
+		random = new Random(seed);
+	}
+
+	@Override
+	public RETURN_CODES enable(Context context, Intent intent) {
+		running = true;
+		closed = false;
+		deliveryThread = new Thread(new Runnable() {
+			public void run() {
+				deliveryLoop();
+			}
+		}, "USBAccessoryManagerFaulty");
+		deliveryThread.setDaemon(true);
+		deliveryThread.start();
+		link.setReceiver(new MessageReceiver() {
+			public void onAccessoryMessage(USBAccessoryManagerMessage.MessageType type) {
+				fromLink(type);
+			}
+		});
+		return link.enable(context, intent);
+	}
+
+	@Override
+	public void disable(Context context) {
+		link.disable(context);
+		running = false;
+		connected = false;
+		closed = true;
+		if(deliveryThread != null) {
+			deliveryThread.interrupt();
+		}
+		if(scheduleThread != null) {
+			scheduleThread.interrupt();
+		}
+	}
+
+	@Override
+	public void write(byte[] data) {
+		int tries = 2;
+		while(tries-- > 0) {
+			boolean fail;
+			synchronized(this) {
+				if(linkDown || !running) {
+					return;
+				}
+				fail = writeFailures > 0;
+				if(fail) {
+					writeFailures--;
+				}
+			}
+			if(!fail) {
+				link.write(data);
+				return;
+			}
+			if(trace != null) {
+				trace.record(TraceRecorder.EV_USB_WRITE_ERROR, tries, 0, 0);
+			}
+			try {
+				Thread.sleep(WRITE_RETRY_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized(this) {
+				faultEndNs = Math.max(faultEndNs, System.nanoTime());
+			}
+		}
+	}
+
+	@Override
+	public String getVersion() {
+		return link.getVersion();
+	}
+
+	/**
+	 * \brief Inject a fault now (the packets faults apply to the next packet received).
+	 * \param fault fault class (FAULT_*)
+	 * \param param parameter of the fault (see the class description)
+	 * \return none
+	 */
+	public void inject(int fault, int param) {
+		long now = System.nanoTime();
+		if(trace != null) {
+			trace.record(TraceRecorder.EV_FAULT, fault, param, 0);
+		}
+		synchronized(this) {
+			injected[fault]++;
+			faultEndNs = Math.max(faultEndNs, now);
+			switch(fault) {
+				case FAULT_LATENCY_SPIKE:
+					spikeEndNs = now + param*1000000L;
+					faultEndNs = Math.max(faultEndNs, spikeEndNs);
+					break;
+				case FAULT_PARTIAL_READ:
+					partialBytes = Math.max(1, param);
+					break;
+				case FAULT_SPLIT:
+					splitMs = Math.max(0, param);
+					break;
+				case FAULT_MERGE:
+					mergeMs = Math.max(0, param);
+					break;
+				case FAULT_CORRUPT:
+					corruptBytes = Math.max(1, param);
+					break;
+				case FAULT_WRITE_ERROR:
+					writeFailures += Math.max(1, param);
+					break;
+				case FAULT_DETACH:
+					if(linkDown) {
+						break;
+					}
+					linkDown = true;
+					connected = false;
+					faultEndNs = Math.max(faultEndNs, now + param*1000000L);
+					enqueue(USBAccessoryManagerMessage.MessageType.DETACHED, null, now);
+					final long upNs = now + param*1000000L;
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							reattach(upNs);
+						}
+					}, "USBAccessoryManagerFaultyAttach");
+					t.setDaemon(true);
+					t.start();
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	 * \brief Return a parameter drawn for a fault class (used by "schedule").
+	 * \param fault fault class
+	 * \param r random generator
+	 * \return parameter
+	 */
+	public static int randomParameter(int fault, Random r) {
+		switch(fault) {
+			case FAULT_LATENCY_SPIKE:
+				return 100 + r.nextInt(900);						// ms
+			case FAULT_PARTIAL_READ:
+				return 1 + r.nextInt(WheelphoneProtocol.PACKET_LENGTH_RECV - 1);	// bytes lost
+			case FAULT_SPLIT:
+			case FAULT_MERGE:
+				return r.nextInt(100);								// ms
+			case FAULT_CORRUPT:
+				return 1 + r.nextInt(4);							// bytes
+			case FAULT_WRITE_ERROR:
+				return 1 + r.nextInt(2);							// failures
+			case FAULT_DETACH:
+				return 200 + r.nextInt(1800);						// ms
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * \brief Inject faults from a background thread; the times, classes and parameters are drawn from the seed of
+	 *  the transport.
+	 * \param classes fault classes to draw from
+	 * \param count number of faults
+	 * \param meanIntervalMs mean time between two faults (exponential distribution)
+	 * \return none
+	 */
+	public synchronized void schedule(final int[] classes, final int count, final long meanIntervalMs) {
+		final long[] delays = new long[count];
+		final int[] faults = new int[count];
+		final int[] params = new int[count];
+		for(int i=0; i<count; i++) {	// drawn now, the schedule doesn't depend on the packets
+			delays[i] = (long)(-Math.log(1.0 - random.nextDouble())*meanIntervalMs);
+			faults[i] = classes[random.nextInt(classes.length)];
+			params[i] = randomParameter(faults[i], random);
+		}
+		scheduleThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for(int i=0; i<count && running; i++) {
+						Thread.sleep(delays[i]);
+						inject(faults[i], params[i]);
+					}
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		}, "USBAccessoryManagerFaultySchedule");
+		scheduleThread.setDaemon(true);
+		scheduleThread.start();
+	}
+
+	private void reattach(long upNs) {
+		long wait;
+		while((wait = upNs - System.nanoTime()) > 0) {
+			try {
+				Thread.sleep(wait/1000000 + 1);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		synchronized(this) {
+			linkDown = false;
+			connected = true;
+			long now = System.nanoTime();
+			enqueue(USBAccessoryManagerMessage.MessageType.ATTACHED, null, now);
+			enqueue(USBAccessoryManagerMessage.MessageType.READY, null, now);
+		}
+	}
+
+	/*
+	 * Event from the transport to the robot.
+	 */
+	private void fromLink(USBAccessoryManagerMessage.MessageType type) {
+		long now = System.nanoTime();
+		if(type != USBAccessoryManagerMessage.MessageType.READ) {
+			synchronized(this) {
+				if(type == USBAccessoryManagerMessage.MessageType.READY) {
+					connected = true;
+				} else if(type == USBAccessoryManagerMessage.MessageType.DETACHED) {
+					connected = false;
+				}
+				enqueue(type, null, now);
+			}
+			return;
+		}
+		int n = link.available();
+		if(n == 0) {
+			return;
+		}
+		byte[] data = new byte[n];
+		link.read(data);
+		synchronized(this) {
+			if(linkDown) {
+				return;		// lost
+			}
+			long due = Math.max(now, spikeEndNs);
+			if(corruptBytes > 0) {
+				for(; corruptBytes>0; corruptBytes--) {
+					data[random.nextInt(n)] ^= (byte)(1 + random.nextInt(255));
+				}
+				faultEndNs = Math.max(faultEndNs, due);
+			}
+			if(partialBytes > 0) {
+				byte[] cut = new byte[Math.max(0, n - partialBytes)];
+				System.arraycopy(data, 0, cut, 0, cut.length);
+				data = cut;
+				partialBytes = 0;
+				faultEndNs = Math.max(faultEndNs, due);
+			}
+			if(mergeMs >= 0) {		// the next chunks are queued after this one, delivered as soon as it is
+				due += mergeMs*1000000L;
+				mergeMs = -1;
+				faultEndNs = Math.max(faultEndNs, due);
+			}
+			if(splitMs >= 0 && data.length > 1) {
+				int at = 1 + random.nextInt(data.length - 1);
+				byte[] first = new byte[at], second = new byte[data.length - at];
+				System.arraycopy(data, 0, first, 0, at);
+				System.arraycopy(data, at, second, 0, second.length);
+				enqueue(USBAccessoryManagerMessage.MessageType.READ, first, due);
+				due += splitMs*1000000L;
+				data = second;
+				splitMs = -1;
+				faultEndNs = Math.max(faultEndNs, due);
+			}
+			enqueue(USBAccessoryManagerMessage.MessageType.READ, data, due);
+		}
+	}
+
+	private void enqueue(USBAccessoryManagerMessage.MessageType type, byte[] data, long dueNs) {
+		lastDueNs = Math.max(lastDueNs, dueNs);		// keep the order
+		chunks.addLast(new Chunk(type, data, lastDueNs));
+		notifyAll();
+	}
+
+	private void deliveryLoop() {
+		while(running) {
+			Chunk c;
+			try {
+				synchronized(this) {
+					while(chunks.isEmpty()) {
+						wait();
+					}
+					c = chunks.removeFirst();
+				}
+				long wait;
+				while((wait = c.dueNs - System.nanoTime()) > 0) {
+					Thread.sleep(wait/1000000, (int)(wait%1000000));
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(c.type == USBAccessoryManagerMessage.MessageType.READ) {
+				receive(c.data, 0, c.data.length);
+			} else {
+				deliver(c.type);
+			}
+		}
+	}
+
+	/**
+	 * \brief Return when the last fault injected stopped affecting the link (end of the latency spike, last chunk
+	 *  of a split packet, link up again, ...).
+	 * \return time (System.nanoTime), 0 if no fault was injected
+	 */
+	public synchronized long getFaultEndNs() {
+		return faultEndNs;
+	}
+
+	public synchronized long getInjectedCount(int fault) {
+		return injected[fault];
+	}
+
+	public static String faultName(int fault) {
+		return (fault >= 0 && fault < FAULT_NAMES.length) ? FAULT_NAMES[fault] : Integer.toString(fault);
+	}
+
+}
@@ -0,0 +1,467 @@
+package com.wheelphone.wheelphonelibrary;
+
+/**
+ * \file WorldSimulator.java
+ * \brief Simulation of the robot moving in a 2D world with its proximity and ground sensors
+ * \copyright GNU GPL v3
+
+
+The WorldSimulator class extends the RobotSimulator with a differential drive robot moving in a flat world:
+- walls (segments, boxes) and round obstacles, seen by the 4 front proximity sensors: each sensor casts a ray
+  from its mounting position (see ProxSensorModel) and the distance of the nearest hit is converted to a value
+  with the inverse of the default ProxDistanceTable model (value = (190 / distance)^2, 0 farther than the range)
+- floor markings (rectangles, lines of a given width) sampled by the 4 ground sensors; outside the table (if
+  set) the ground value is 0, a cliff for the onboard cliff avoidance
+The measured speeds of the firmware move the robot (wheel base of Odometry, speeds limited to MAX_SPEED as
+in WheelphoneRobot); the pose is integrated in steps of at most MAX_STEP_MS. A move making the body (a disc of
+ROBOT_RADIUS) hit an obstacle is cancelled, only the rotation is kept (the wheels slip). When the center of the
+robot leaves the table the robot falls and doesn't move anymore.
+The world can be used through the accessory protocol like the RobotSimulator, in real time, or stepped
+with a virtual clock ("step") as fast as possible for closed loop tests. The coordinates are in mm, the angles
+in radians, in the same frame used by the odometry (x forward, y to the left, at the start pose).
+\verbatim
+ WorldSimulator world = new WorldSimulator("3.0");
+ world.setTable(-500, -500, 500, 500);
+ world.addBox(200, -100, 250, 100);
+ world.addLine(-400, 0, 400, 0, 20, WorldSimulator.FLOOR_BLACK);
+ int n = world.step(request, request.length, response, 10.0);	// 10 ms later
+\endverbatim
+
+*/
+
+import java.util.Random;
+
+public class WorldSimulator extends RobotSimulator {
+
+	public static final double MAX_SPEED = 350.0;			// mm/s, same limit as WheelphoneRobot (MAX_SPEED_REAL)
+	public static final double ROBOT_RADIUS = 45.0;			// mm
+	public static final double MAX_STEP_MS = 5.0;			// integration step
+	public static final int FLOOR_WHITE = 150;				// ground values
+	public static final int FLOOR_BLACK = 50;
+	public static final int FLOOR_CLIFF = 0;
+	public static final double PROX_MODEL_A = 190.0;		// distance = A * value^(-0.5), default model of ProxDistanceTable
+
+	// ground sensors position (mm), positioned as the front sensors ("1 2" in front, "0 3" on the sides)
+	private static final double[] GROUND_X = {30.0, 36.0, 36.0, 30.0};
+	private static final double[] GROUND_Y = {18.0, 6.0, -6.0, -18.0};
+
+	private static final int WALL = 0, CIRCLE = 1;
+	private static final int RECT = 0, STRIP = 1;
+
+	// obstacles: type, then 4 values (segment x1 y1 x2 y2, circle x y radius)
+	private int obstacleCount = 0;
+	private int[] obstacleType = new int[16];
+	private double[] obstacle = new double[16*4];
+
+	// floor markings: type, value, then 5 values (rectangle x1 y1 x2 y2, strip x1 y1 x2 y2 half width)
+	private int markingCount = 0;
+	private int[] markingType = new int[16];
+	private int[] markingValue = new int[16];
+	private double[] marking = new double[16*5];
+	private int floorValue = FLOOR_WHITE;
+	private boolean table = false;
+	private double tableMinX, tableMinY, tableMaxX, tableMaxY;
+
+	private final ProxSensorModel proxModel = new ProxSensorModel();
+	private double wheelBase = new Odometry().getWheelBase()*1000.0;	// mm
+
+	// robot state
+	private double x = 0.0, y = 0.0, theta = 0.0;
+	private double distance = 0.0;								// traveled (mm)
+	private long collisions = 0;
+	private boolean blocked = false, fallen = false;
+
+	private Random random = null;
+	private double proxNoise = 0.0, groundNoise = 0.0;
+	private long virtualNs = 1;
+
+	/**
+	 * \brief Class constructor; the world is empty, the floor is white and without limits.
+	 * \param firmwareVersion accessory version reported to the phone (e.g. "3.0")
+	 * \return WorldSimulator instance
+	 */
+	public WorldSimulator(String firmwareVersion) {
+		super(firmwareVersion);
+	}
+
+	public synchronized void addWall(double x1, double y1, double x2, double y2) {
+		addObstacle(WALL, x1, y1, x2, y2);
+	}
+
+	/**
+	 * \brief Add a rectangular obstacle aligned with the axes.
+	 * \param x1, y1 corner
+	 * \param x2, y2 opposite corner
+	 * \return none
+	 */
+	public synchronized void addBox(double x1, double y1, double x2, double y2) {
+		addObstacle(WALL, x1, y1, x2, y1);
+		addObstacle(WALL, x2, y1, x2, y2);
+		addObstacle(WALL, x2, y2, x1, y2);
+		addObstacle(WALL, x1, y2, x1, y1);
+	}
+
+	public synchronized void addCylinder(double cx, double cy, double radius) {
+		addObstacle(CIRCLE, cx, cy, radius, 0.0);
+	}
+
+	/**
+	 * \brief Surround the table with walls.
+	 * \return none
+	 */
+	public synchronized void addTableWalls() {
+		if(table) {
+			addBox(tableMinX, tableMinY, tableMaxX, tableMaxY);
+		}
+	}
+
+	private void addObstacle(int type, double a, double b, double c, double d) {
+		if(obstacleCount == obstacleType.length) {
+			obstacleType = grow(obstacleType);
+			obstacle = grow(obstacle);
+		}
+		obstacleType[obstacleCount] = type;
+		int o = obstacleCount*4;
+		obstacle[o] = a;
+		obstacle[o + 1] = b;
+		obstacle[o + 2] = c;
+		obstacle[o + 3] = d;
+		obstacleCount++;
+	}
+
+	/**
+	 * \brief Add a rectangular floor marking aligned with the axes; the markings added later are on top.
+	 * \param x1, y1 corner
+	 * \param x2, y2 opposite corner
+	 * \param value ground value over the marking (e.g. FLOOR_BLACK, FLOOR_CLIFF for a hole)
+	 * \return none
+	 */
+	public synchronized void addMarking(double x1, double y1, double x2, double y2, int value) {
+		addMarking(RECT, value, Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), 0.0);
+	}
+
+	/**
+	 * \brief Add a straight line on the floor (e.g. a tape for line following).
+	 * \param x1, y1 start
+	 * \param x2, y2 end
+	 * \param width line width (mm)
+	 * \param value ground value over the line
+	 * \return none
+	 */
+	public synchronized void addLine(double x1, double y1, double x2, double y2, double width, int value) {
+		addMarking(STRIP, value, x1, y1, x2, y2, width/2.0);
+	}
+
+	private void addMarking(int type, int value, double a, double b, double c, double d, double e) {
+		if(markingCount == markingType.length) {
+			markingType = grow(markingType);
+			markingValue = grow(markingValue);
+			marking = grow(marking);
+		}
+		markingType[markingCount] = type;
+		markingValue[markingCount] = value;
+		int m = markingCount*5;
+		marking[m] = a;
+		marking[m + 1] = b;
+		marking[m + 2] = c;
+		marking[m + 3] = d;
+		marking[m + 4] = e;
+		markingCount++;
+	}
+
+	public synchronized void setFloor(int value) {
+		floorValue = value;
+	}
+
+	/**
+	 * \brief Limit the floor to a table: outside the ground value is FLOOR_CLIFF and the robot falls.
+	 * \param x1, y1 corner
+	 * \param x2, y2 opposite corner
+	 * \return none
+	 */
+	public synchronized void setTable(double x1, double y1, double x2, double y2) {
+		table = true;
+		tableMinX = Math.min(x1, x2);
+		tableMinY = Math.min(y1, y2);
+		tableMaxX = Math.max(x1, x2);
+		tableMaxY = Math.max(y1, y2);
+	}
+
+	/**
+	 * \brief Remove all the obstacles, the markings and the table limits.
+	 * \return none
+	 */
+	public synchronized void clearWorld() {
+		obstacleCount = 0;
+		markingCount = 0;
+		table = false;
+		floorValue = FLOOR_WHITE;
+	}
+
+	/**
+	 * \brief Place the robot; the collision and fall states are cleared.
+	 * \param px, py position (mm)
+	 * \param ptheta orientation (radians)
+	 * \return none
+	 */
+	public synchronized void setPose(double px, double py, double ptheta) {
+		x = px;
+		y = py;
+		theta = ptheta;
+		distance = 0.0;
+		collisions = 0;
+		blocked = false;
+		fallen = false;
+		sense();
+	}
+
+	public synchronized void setWheelBase(double mm) {
+		wheelBase = mm;
+	}
+
+	/**
+	 * \brief Add gaussian noise to the sensors values.
+	 * \param prox standard deviation of the proximity values
+	 * \param ground standard deviation of the ground values
+	 * \param seed seed of the random generator, for reproducible runs
+	 * \return none
+	 */
+	public synchronized void setNoise(double prox, double ground, long seed) {
+		proxNoise = prox;
+		groundNoise = ground;
+		random = (prox > 0.0 || ground > 0.0) ? new Random(seed) : null;
+	}
+
+	/**
+	 * \brief Return the sensors model used to place the front proximity sensors (can be modified).
+	 * \return sensors model
+	 */
+	public ProxSensorModel getProxSensorModel() {
+		return proxModel;
+	}
+
+	/**
+	 * \brief Handle a packet at a virtual time, "dtMs" after the previous one, without waiting; the world can be
+	 *  run many times faster than real time.
+	 * \param request packet sent by the phone
+	 * \param len packet length
+	 * \param response destination of the answer (PACKET_LENGTH_RECV bytes)
+	 * \param dtMs time since the previous packet (ms)
+	 * \return length of the answer, 0 if there is no answer
+	 */
+	public synchronized int step(byte[] request, int len, byte[] response, double dtMs) {
+		virtualNs += (long)(dtMs*1000000.0);
+		return handle(request, len, response, virtualNs);
+	}
+
+	@Override
+	protected void update(double dtMs) {
+		double l = clamp(getLeftSpeed()), r = clamp(getRightSpeed());
+		while(dtMs > 0.0 && !fallen) {
+			double dt = Math.min(dtMs, MAX_STEP_MS);
+			dtMs -= dt;
+			move(l*dt/1000.0, r*dt/1000.0);
+		}
+		sense();
+	}
+
+	private static double clamp(double speed) {
+		return Math.max(-MAX_SPEED, Math.min(MAX_SPEED, speed));
+	}
+
+	private void move(double left, double right) {
+		double d = (left + right)/2.0;
+		double dTheta = (right - left)/wheelBase;
+		double a = theta + dTheta/2.0;
+		double nx = x + d*Math.cos(a);
+		double ny = y + d*Math.sin(a);
+		theta = normalize(theta + dTheta);
+		if(collides(nx, ny)) {
+			if(!blocked) {
+				collisions++;
+				blocked = true;
+			}
+			return;
+		}
+		blocked = false;
+		x = nx;
+		y = ny;
+		distance += Math.abs(d);
+		if(table && (x < tableMinX || x > tableMaxX || y < tableMinY || y > tableMaxY)) {
+			fallen = true;
+		}
+	}
+
+	private static double normalize(double a) {
+		while(a > Math.PI) {
+			a -= 2.0*Math.PI;
+		}
+		while(a < -Math.PI) {
+			a += 2.0*Math.PI;
+		}
+		return a;
+	}
+
+	private boolean collides(double px, double py) {
+		for(int i=0; i<obstacleCount; i++) {
+			int o = i*4;
+			if(obstacleType[i] == CIRCLE) {
+				double dx = px - obstacle[o], dy = py - obstacle[o + 1];
+				double min = ROBOT_RADIUS + obstacle[o + 2];
+				if(dx*dx + dy*dy < min*min) {
+					return true;
+				}
+			} else if(segmentDistance2(px, py, obstacle[o], obstacle[o + 1], obstacle[o + 2], obstacle[o + 3]) < ROBOT_RADIUS*ROBOT_RADIUS) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static double segmentDistance2(double px, double py, double x1, double y1, double x2, double y2) {
+		double dx = x2 - x1, dy = y2 - y1;
+		double len2 = dx*dx + dy*dy;
+		double t = (len2 == 0.0) ? 0.0 : ((px - x1)*dx + (py - y1)*dy)/len2;
+		t = Math.max(0.0, Math.min(1.0, t));
+		double ex = x1 + t*dx - px, ey = y1 + t*dy - py;
+		return ex*ex + ey*ey;
+	}
+
+	/*
+	 * Update the proximity and ground values from the current pose.
+	 */
+	private void sense() {
+		double c = Math.cos(theta), s = Math.sin(theta);
+		for(int i=0; i<4; i++) {
+			double mx = proxModel.getMountX(i), my = proxModel.getMountY(i);
+			double ox = x + mx*c - my*s, oy = y + mx*s + my*c;
+			double a = theta + proxModel.getMountTheta(i);
+			double range = proxModel.getMaxRange(i);
+			double d = rayCast(ox, oy, Math.cos(a), Math.sin(a), range);
+			double v = (d > range) ? 0.0 : PROX_MODEL_A*PROX_MODEL_A/Math.max(d*d, 1.0);
+			if(random != null && v > 0.0) {
+				v += random.nextGaussian()*proxNoise;
+			}
+			sensors.prox[i] = (int)Math.max(0, Math.min(255, Math.round(v)));
+		}
+		for(int i=0; i<4; i++) {
+			double gx = x + GROUND_X[i]*c - GROUND_Y[i]*s, gy = y + GROUND_X[i]*s + GROUND_Y[i]*c;
+			double v = groundValue(gx, gy);
+			if(random != null) {
+				v += random.nextGaussian()*groundNoise;
+			}
+			sensors.ground[i] = (int)Math.max(0, Math.min(255, Math.round(v)));
+		}
+	}
+
+	/*
+	 * Distance to the nearest obstacle along a ray, more than "range" if none.
+	 */
+	private double rayCast(double ox, double oy, double dx, double dy, double range) {
+		double best = range + 1.0;
+		for(int i=0; i<obstacleCount; i++) {
+			int o = i*4;
+			double t;
+			if(obstacleType[i] == CIRCLE) {
+				double fx = ox - obstacle[o], fy = oy - obstacle[o + 1], r = obstacle[o + 2];
+				double b = fx*dx + fy*dy;
+				double disc = b*b - (fx*fx + fy*fy - r*r);
+				if(disc < 0.0) {
+					continue;
+				}
+				double sq = Math.sqrt(disc);
+				t = -b - sq;
+				if(t < 0.0) {
+					t = -b + sq;		// origin inside the obstacle
+				}
+			} else {
+				double ex = obstacle[o + 2] - obstacle[o], ey = obstacle[o + 3] - obstacle[o + 1];
+				double den = dx*ey - dy*ex;
+				if(den == 0.0) {
+					continue;			// parallel
+				}
+				double wx = obstacle[o] - ox, wy = obstacle[o + 1] - oy;
+				t = (wx*ey - wy*ex)/den;
+				double u = (wx*dy - wy*dx)/den;
+				if(u < 0.0 || u > 1.0) {
+					continue;
+				}
+			}
+			if(t >= 0.0 && t < best) {
+				best = t;
+			}
+		}
+		return best;
+	}
+
+	private int groundValue(double px, double py) {
+		if(table && (px < tableMinX || px > tableMaxX || py < tableMinY || py > tableMaxY)) {
+			return FLOOR_CLIFF;
+		}
+		for(int i=markingCount-1; i>=0; i--) {
+			int m = i*5;
+			if(markingType[i] == RECT) {
+				if(px >= marking[m] && px <= marking[m + 2] && py >= marking[m + 1] && py <= marking[m + 3]) {
+					return markingValue[i];
+				}
+			} else if(segmentDistance2(px, py, marking[m], marking[m + 1], marking[m + 2], marking[m + 3]) <= marking[m + 4]*marking[m + 4]) {
+				return markingValue[i];
+			}
+		}
+		return floorValue;
+	}
+
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length*2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static double[] grow(double[] a) {
+		double[] b = new double[a.length*2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	public synchronized double getX() {
+		return x;
+	}
+
+	public synchronized double getY() {
+		return y;
+	}
+
+	public synchronized double getTheta() {
+		return theta;
+	}
+
+	/**
+	 * \brief Return the distance traveled since the last "setPose".
+	 * \return distance (mm)
+	 */
+	public synchronized double getDistance() {
+		return distance;
+	}
+
+	/**
+	 * \brief Return the number of times the robot hit an obstacle since the last "setPose" (a contact lasting
+	 *  several steps counts once).
+	 * \return collisions
+	 */
+	public synchronized long getCollisionCount() {
+		return collisions;
+	}
+
+	/**
+	 * \brief Tell whether the last move was stopped by an obstacle.
+	 * \return true if the robot is blocked
+	 */
+	public synchronized boolean isBlocked() {
+		return blocked;
+	}
+
+	public synchronized boolean hasFallen() {
+		return fallen;
+	}
+
+}